@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.common.regex.Regex;
+import org.opensearch.core.common.bytes.BytesArray;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The stats of the fields listed in <code>fieldstats.ranges.fields</code> of an immutable index, kept as custom
+ * data of its {@link IndexMetadata} under {@link #CUSTOM_KEY}, so that they survive closing the index and full
+ * cluster restarts. The final reports of the primaries ({@link FieldRangesMetadata.ShardRanges}) each replace the
+ * stats of their shard, and the stats are complete once every shard reported since the index became immutable
+ * with its current settings. Complete stats answer requests for closed indices, which have no shards to ask, and
+ * for searchable snapshots, whose shards would fetch the metadata of their segments from the repository.
+ */
+final class ArchivedFieldStats {
+
+    static final String CUSTOM_KEY = "fieldstats";
+    private static final String UUID = "uuid";
+    private static final String SETTINGS_VERSION = "settings_version";
+    private static final String SHARD_PREFIX = "shard_";
+
+    private ArchivedFieldStats() {
+    }
+
+    /**
+     * @param report a final report of one of the primaries of the index, resolved against its metadata
+     * @return the custom data of the index with the stats of the shard replaced, or <code>null</code> if the report
+     * is stale or doesn't change them
+     */
+    static Map<String, String> put(IndexMetadata indexMetadata, FieldRangesMetadata.ShardRanges report)
+        throws IOException {
+        if (report.isFinal() == false || report.getSettingsVersion() != indexMetadata.getSettingsVersion()
+            || ImmutableIndexMemo.isImmutable(indexMetadata) == false) {
+            return null;
+        }
+        Map<String, String> current = indexMetadata.getCustomData(CUSTOM_KEY);
+        Map<String, String> archived = new HashMap<>();
+        if (current != null && isCurrent(indexMetadata, current)) {
+            archived.putAll(current);
+        }
+        archived.put(UUID, indexMetadata.getIndexUUID());
+        archived.put(SETTINGS_VERSION, Long.toString(indexMetadata.getSettingsVersion()));
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.writeMap(report.getFields(), StreamOutput::writeString, (o, stats) -> stats.writeTo(o));
+        archived.put(SHARD_PREFIX + report.getShard(),
+            Base64.getEncoder().encodeToString(BytesReference.toBytes(out.bytes())));
+        return archived.equals(current) ? null : archived;
+    }
+
+    /**
+     * @return the stats of the shards of the index merged, or <code>null</code> if they aren't complete or the
+     * index may have changed since
+     */
+    static Map<String, FieldStats<?>> get(IndexMetadata indexMetadata) {
+        Map<String, String> archived = indexMetadata.getCustomData(CUSTOM_KEY);
+        if (archived == null || isCurrent(indexMetadata, archived) == false
+            || ImmutableIndexMemo.isImmutable(indexMetadata) == false) {
+            return null;
+        }
+        Map<String, FieldStats<?>> merged = new HashMap<>();
+        try {
+            for (int shard = 0; shard < indexMetadata.getNumberOfShards(); shard++) {
+                String encoded = archived.get(SHARD_PREFIX + shard);
+                if (encoded == null) {
+                    return null;
+                }
+                StreamInput in = new BytesArray(Base64.getDecoder().decode(encoded)).streamInput();
+                for (Map.Entry<String, FieldStats<?>> entry :
+                    in.readMap(StreamInput::readString, FieldStats::readFrom).entrySet()) {
+                    FieldStats<?> existing = merged.get(entry.getKey());
+                    if (existing == null) {
+                        merged.put(entry.getKey(), entry.getValue());
+                    } else if (existing.getType() != entry.getValue().getType()) {
+                        return null;
+                    } else {
+                        existing.accumulate(entry.getValue());
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+        return merged;
+    }
+
+    /**
+     * @return <code>true</code> if the request can be answered from archived stats: it asks for the stats of the
+     * whole indices, without a query, optional statistics, probes or point in time
+     */
+    static boolean canAnswer(FieldStatsRequest request) {
+        return ("cluster".equals(request.level()) || "indices".equals(request.level()))
+            && request.getQuery() == null && request.getRouting() == null && request.getPit() == null
+            && request.getStats().length == 0
+            && request.getProbes().isEmpty() && request.shouldExpandFlatObjects() == false
+            && request.getFields().length > 0;
+    }
+
+    /**
+     * @param exact whether field patterns are answered from the shards, or may just match the archived fields
+     * @return the archived stats of the fields of the request and of its index constraints, or <code>null</code> if
+     * a concrete field isn't archived, since leaving it out would answer as if the index had no values for it
+     */
+    static Map<String, FieldStats<?>> select(Map<String, FieldStats<?>> archived, FieldStatsRequest request,
+                                             boolean exact) {
+        Map<String, FieldStats<?>> selected = new HashMap<>();
+        for (String pattern : request.getFields()) {
+            if (select(archived, pattern, exact, selected) == false) {
+                return null;
+            }
+        }
+        for (IndexConstraint constraint : request.getIndexConstraints()) {
+            if (select(archived, constraint.getField(), exact, selected) == false) {
+                return null;
+            }
+        }
+        return selected;
+    }
+
+    private static boolean select(Map<String, FieldStats<?>> archived, String pattern, boolean exact,
+                                  Map<String, FieldStats<?>> selected) {
+        if (Regex.isSimpleMatchPattern(pattern) == false) {
+            FieldStats<?> stats = archived.get(pattern);
+            if (stats == null) {
+                return false;
+            }
+            selected.put(pattern, stats);
+            return true;
+        }
+        if (exact) {
+            return false;
+        }
+        for (Map.Entry<String, FieldStats<?>> entry : archived.entrySet()) {
+            if (Regex.simpleMatch(pattern, entry.getKey())) {
+                selected.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return true;
+    }
+
+    private static boolean isCurrent(IndexMetadata indexMetadata, Map<String, String> archived) {
+        return indexMetadata.getIndexUUID().equals(archived.get(UUID))
+            && Long.toString(indexMetadata.getSettingsVersion()).equals(archived.get(SETTINGS_VERSION));
+    }
+}
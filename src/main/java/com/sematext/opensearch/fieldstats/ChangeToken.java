@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.common.hash.MurmurHash3;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.core.common.bytes.BytesArray;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * The state of the indices an <code>indices</code> level response was computed from, which a later request sends
+ * back as <code>since</code> to only get the indices whose stats may have changed. An index is unchanged if its
+ * metadata version is the same and its shards answered from the same copies with the same reader versions, which
+ * every refresh that changes the shard increases. This holds for immutable indices too, whose shards may still
+ * refresh documents indexed before their block, or be force merged.
+ */
+final class ChangeToken {
+
+    static final ChangeToken EMPTY = new ChangeToken(Collections.emptyMap());
+
+    private static final byte FORMAT = 1;
+
+    private final Map<String, IndexState> indices;
+
+    /**
+     * @param indices the state of the indices, by index uuid
+     */
+    ChangeToken(Map<String, IndexState> indices) {
+        this.indices = indices;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token wasn't returned by a field stats response
+     */
+    static ChangeToken parse(String token) {
+        try {
+            StreamInput in = new BytesArray(Base64.getUrlDecoder().decode(token)).streamInput();
+            if (in.readByte() != FORMAT) {
+                throw new IllegalArgumentException("unknown format");
+            }
+            Map<String, IndexState> indices = in.readMap(StreamInput::readString, IndexState::new);
+            if (in.available() != 0) {
+                throw new IllegalArgumentException("trailing bytes");
+            }
+            return new ChangeToken(indices);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("invalid [since] token [" + token + "]", e);
+        }
+    }
+
+    String encode() {
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            out.writeByte(FORMAT);
+            out.writeMap(new TreeMap<>(indices), StreamOutput::writeString, (o, state) -> state.writeTo(o));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(BytesReference.toBytes(out.bytes()));
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to encode change token", e);
+        }
+    }
+
+    /**
+     * @return the state of the indices, by index uuid
+     */
+    Map<String, IndexState> getIndices() {
+        return indices;
+    }
+
+    /**
+     * @return the fingerprint of the readers the shards of an index answered from, or <code>null</code> if one of
+     * them didn't report its reader
+     */
+    static Long fingerprint(List<FieldStatsShardResponse> shards) {
+        shards.sort(Comparator.comparingInt(shard -> shard.getShardId().id()));
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            for (FieldStatsShardResponse shard : shards) {
+                if (shard.getAllocationId() == null || shard.getReaderVersion() < 0) {
+                    return null;
+                }
+                out.writeVInt(shard.getShardId().id());
+                out.writeString(shard.getAllocationId());
+                out.writeVLong(shard.getReaderVersion());
+            }
+            byte[] bytes = BytesReference.toBytes(out.bytes());
+            return MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static final class IndexState implements Writeable {
+
+        private final String name;
+        private final long metadataVersion;
+        private final boolean immutable;
+        private final long fingerprint;
+        private final boolean listed;
+
+        /**
+         * @param fingerprint the fingerprint of the readers of the shards
+         * @param listed whether the index was part of the response, so that the next response reports it as removed
+         *               once it isn't
+         */
+        IndexState(String name, long metadataVersion, boolean immutable, long fingerprint, boolean listed) {
+            this.name = name;
+            this.metadataVersion = metadataVersion;
+            this.immutable = immutable;
+            this.fingerprint = fingerprint;
+            this.listed = listed;
+        }
+
+        /**
+         * @return the state of an index that didn't answer completely, which is never the same as another state
+         */
+        static IndexState unknown(String name, boolean listed) {
+            return new IndexState(name, -1, false, 0, listed);
+        }
+
+        IndexState(StreamInput in) throws IOException {
+            name = in.readString();
+            metadataVersion = in.readZLong();
+            immutable = in.readBoolean();
+            fingerprint = in.readLong();
+            listed = in.readBoolean();
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isListed() {
+            return listed;
+        }
+
+        /**
+         * @return <code>true</code> if the stats of the index can't have changed between the two states
+         */
+        boolean isSameAs(IndexState other) {
+            return metadataVersion >= 0 && metadataVersion == other.metadataVersion && immutable == other.immutable
+                && fingerprint == other.fingerprint;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(name);
+            out.writeZLong(metadataVersion);
+            out.writeBoolean(immutable);
+            out.writeLong(fingerprint);
+            out.writeBoolean(listed);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            IndexState that = (IndexState) o;
+            return metadataVersion == that.metadataVersion && immutable == that.immutable
+                && fingerprint == that.fingerprint && listed == that.listed && name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, metadataVersion, immutable, fingerprint, listed);
+        }
+    }
+}
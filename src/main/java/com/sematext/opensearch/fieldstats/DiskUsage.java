@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.codecs.perfield.PerFieldDocValuesFormat;
+import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.BytesRef;
+import org.opensearch.common.lucene.Lucene;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.core.xcontent.ToXContentFragment;
+import org.opensearch.core.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimated number of bytes a field takes in the points, terms and postings, doc values and norms
+ * structures of a shard.
+ *
+ * The size of each structure is read from the segment files (inside the compound file if needed). Fields that
+ * are written with their own per-field postings or doc values format own the files of that format, otherwise
+ * the files of a structure are shared between fields proportionally to an estimate of each field's share,
+ * which is derived from point and term counts times an approximate per-entry size. When the files can't be
+ * attributed, the estimate itself is reported.
+ */
+public class DiskUsage implements Writeable, ToXContentFragment {
+
+    public static final String NAME = "disk_usage";
+
+    private static final int POINTS = 0;
+    private static final int TERMS = 1;
+    private static final int DOC_VALUES = 2;
+    private static final int NORMS = 3;
+
+    private final long[] bytes;
+
+    DiskUsage() {
+        this.bytes = new long[4];
+    }
+
+    public DiskUsage(StreamInput in) throws IOException {
+        this.bytes = in.readVLongArray();
+    }
+
+    public long getPointsBytes() {
+        return bytes[POINTS];
+    }
+
+    /**
+     * @return the bytes of the terms dictionary and the postings
+     */
+    public long getTermsBytes() {
+        return bytes[TERMS];
+    }
+
+    public long getDocValuesBytes() {
+        return bytes[DOC_VALUES];
+    }
+
+    public long getNormsBytes() {
+        return bytes[NORMS];
+    }
+
+    public long getTotalBytes() {
+        return bytes[POINTS] + bytes[TERMS] + bytes[DOC_VALUES] + bytes[NORMS];
+    }
+
+    void accumulate(DiskUsage other) {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] += other.bytes[i];
+        }
+    }
+
+    /**
+     * Estimates the disk usage of every field of every leaf of <code>reader</code>.
+     */
+    static Map<String, DiskUsage> analyze(IndexReader reader) throws IOException {
+        Map<String, DiskUsage> usages = new HashMap<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            analyzeLeaf(context.reader(), usages);
+        }
+        return usages;
+    }
+
+    private static void analyzeLeaf(LeafReader reader, Map<String, DiskUsage> usages) throws IOException {
+        Map<String, Long> filesBytes = filesBytes(reader);
+
+        // estimated share of every field in every (structure, file suffix) group
+        Map<String, Map<String, Long>> estimates = new HashMap<>();
+        for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+            String field = fieldInfo.name;
+            if (fieldInfo.getPointDimensionCount() > 0) {
+                PointValues points = reader.getPointValues(field);
+                if (points != null) {
+                    long perPoint = (long) points.getBytesPerDimension() * points.getNumDimensions() + Integer.BYTES;
+                    addEstimate(estimates, groupKey(POINTS, ""), field, points.size() * perPoint);
+                }
+            }
+            Terms terms = reader.terms(field);
+            if (terms != null) {
+                long perTerm = averageLength(terms.getMin(), terms.getMax()) + 1;
+                long estimate = Math.max(0, terms.size()) * perTerm + Math.max(0, terms.getSumDocFreq());
+                if (terms.hasPositions()) {
+                    estimate += Math.max(0, terms.getSumTotalTermFreq());
+                }
+                addEstimate(estimates, groupKey(TERMS, formatSuffix(fieldInfo, PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY,
+                    PerFieldPostingsFormat.PER_FIELD_SUFFIX_KEY)), field, estimate);
+            }
+            if (fieldInfo.getDocValuesType() != DocValuesType.NONE) {
+                addEstimate(estimates, groupKey(DOC_VALUES, formatSuffix(fieldInfo,
+                    PerFieldDocValuesFormat.PER_FIELD_FORMAT_KEY, PerFieldDocValuesFormat.PER_FIELD_SUFFIX_KEY)),
+                    field, estimateDocValues(reader, fieldInfo));
+            }
+            if (fieldInfo.hasNorms()) {
+                addEstimate(estimates, groupKey(NORMS, ""), field, reader.maxDoc());
+            }
+        }
+
+        for (Map.Entry<String, Map<String, Long>> group : estimates.entrySet()) {
+            int structure = group.getKey().charAt(0) - '0';
+            Long groupBytes = filesBytes.get(group.getKey());
+            long totalEstimate = group.getValue().values().stream().mapToLong(Long::longValue).sum();
+            for (Map.Entry<String, Long> entry : group.getValue().entrySet()) {
+                long fieldBytes;
+                if (groupBytes == null || totalEstimate == 0) {
+                    fieldBytes = entry.getValue();
+                } else {
+                    fieldBytes = (long) ((double) groupBytes * entry.getValue() / totalEstimate);
+                }
+                usages.computeIfAbsent(entry.getKey(), k -> new DiskUsage()).bytes[structure] += fieldBytes;
+            }
+        }
+    }
+
+    private static void addEstimate(Map<String, Map<String, Long>> estimates, String groupKey, String field,
+                                    long estimate) {
+        estimates.computeIfAbsent(groupKey, k -> new HashMap<>()).merge(field, estimate, Long::sum);
+    }
+
+    private static long estimateDocValues(LeafReader reader, FieldInfo fieldInfo) throws IOException {
+        switch (fieldInfo.getDocValuesType()) {
+            case SORTED: {
+                SortedDocValues values = reader.getSortedDocValues(fieldInfo.name);
+                return (long) reader.maxDoc() * Integer.BYTES + (values == null ? 0 : values.getValueCount() * 8L);
+            }
+            case SORTED_SET: {
+                SortedSetDocValues values = reader.getSortedSetDocValues(fieldInfo.name);
+                return (long) reader.maxDoc() * Integer.BYTES + (values == null ? 0 : values.getValueCount() * 8L);
+            }
+            case BINARY:
+                return (long) reader.maxDoc() * 16;
+            default:
+                return (long) reader.maxDoc() * Long.BYTES;
+        }
+    }
+
+    private static long averageLength(BytesRef min, BytesRef max) {
+        if (min == null || max == null) {
+            return 8;
+        }
+        return (min.length + max.length + 1) / 2;
+    }
+
+    /**
+     * @return the segment suffix of the files a per-field format wrote the field into, or an empty string
+     */
+    private static String formatSuffix(FieldInfo fieldInfo, String formatKey, String suffixKey) {
+        String format = fieldInfo.getAttribute(formatKey);
+        String suffix = fieldInfo.getAttribute(suffixKey);
+        if (format == null || suffix == null) {
+            return "";
+        }
+        return format + "_" + suffix;
+    }
+
+    private static String groupKey(int structure, String segmentSuffix) {
+        return structure + ":" + segmentSuffix;
+    }
+
+    /**
+     * @return the total size of the segment files per (structure, segment suffix) group
+     */
+    private static Map<String, Long> filesBytes(LeafReader reader) throws IOException {
+        Map<String, Long> filesBytes = new HashMap<>();
+        SegmentReader segmentReader = Lucene.segmentReader(reader);
+        SegmentCommitInfo commitInfo = segmentReader.getSegmentInfo();
+        if (commitInfo.info.getUseCompoundFile()) {
+            try (Directory compound = commitInfo.info.getCodec().compoundFormat()
+                    .getCompoundReader(segmentReader.directory(), commitInfo.info, IOContext.READ)) {
+                for (String file : compound.listAll()) {
+                    addFile(filesBytes, commitInfo, file, compound.fileLength(file));
+                }
+            }
+        } else {
+            for (String file : commitInfo.files()) {
+                addFile(filesBytes, commitInfo, file, segmentReader.directory().fileLength(file));
+            }
+        }
+        return filesBytes;
+    }
+
+    private static void addFile(Map<String, Long> filesBytes, SegmentCommitInfo commitInfo, String file, long length) {
+        int structure = structure(IndexFileNames.getExtension(file));
+        if (structure < 0) {
+            return;
+        }
+        String suffix = IndexFileNames.stripExtension(IndexFileNames.stripSegmentName(file));
+        if (suffix.startsWith("_")) {
+            suffix = suffix.substring(1);
+        }
+        filesBytes.merge(groupKey(structure, suffix), length, Long::sum);
+    }
+
+    private static int structure(String extension) {
+        if (extension == null) {
+            return -1;
+        }
+        switch (extension) {
+            case "kdd":
+            case "kdi":
+            case "kdm":
+                return POINTS;
+            case "tim":
+            case "tip":
+            case "tmd":
+            case "doc":
+            case "pos":
+            case "pay":
+                return TERMS;
+            case "dvd":
+            case "dvm":
+                return DOC_VALUES;
+            case "nvd":
+            case "nvm":
+                return NORMS;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLongArray(bytes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(TOTAL_IN_BYTES_FIELD, getTotalBytes());
+        builder.field(POINTS_IN_BYTES_FIELD, bytes[POINTS]);
+        builder.field(TERMS_IN_BYTES_FIELD, bytes[TERMS]);
+        builder.field(DOC_VALUES_IN_BYTES_FIELD, bytes[DOC_VALUES]);
+        builder.field(NORMS_IN_BYTES_FIELD, bytes[NORMS]);
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(bytes, ((DiskUsage) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    static final String TOTAL_IN_BYTES_FIELD = "total_in_bytes";
+    static final String POINTS_IN_BYTES_FIELD = "points_in_bytes";
+    static final String TERMS_IN_BYTES_FIELD = "terms_in_bytes";
+    static final String DOC_VALUES_IN_BYTES_FIELD = "doc_values_in_bytes";
+    static final String NORMS_IN_BYTES_FIELD = "norms_in_bytes";
+}
@@ -0,0 +1,484 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.Version;
+import org.opensearch.cluster.Diff;
+import org.opensearch.cluster.DiffableUtils;
+import org.opensearch.cluster.NamedDiff;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.cluster.metadata.Metadata;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.core.index.Index;
+import org.opensearch.core.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The min and max values of the fields listed in <code>fieldstats.ranges.fields</code>, for each index, which the
+ * primaries report once the index became immutable ({@link ImmutableIndexMemo#isImmutable}). The ranges of an index
+ * are final once all its primaries reported them, and stay final until its settings change. Final ranges are
+ * exact, so the coordinating node can evaluate index constraints on them without asking the shards. Diffs only hold
+ * the indices whose ranges changed, so that reports don't publish the ranges of all indices again.
+ */
+public final class FieldRangesMetadata implements Metadata.Custom {
+
+    public static final String TYPE = "field_ranges";
+
+    private static final DiffableUtils.NonDiffableValueSerializer<String, IndexRanges> RANGES_SERIALIZER =
+        new DiffableUtils.NonDiffableValueSerializer<String, IndexRanges>() {
+            @Override
+            public void write(IndexRanges value, StreamOutput out) throws IOException {
+                value.writeTo(out);
+            }
+
+            @Override
+            public IndexRanges read(StreamInput in, String key) throws IOException {
+                return new IndexRanges(in);
+            }
+        };
+
+    static final FieldRangesMetadata EMPTY = new FieldRangesMetadata(Collections.emptyMap());
+
+    private final Map<String, IndexRanges> indices;
+
+    /**
+     * @param indices the ranges of each index, by index uuid
+     */
+    FieldRangesMetadata(Map<String, IndexRanges> indices) {
+        this.indices = Collections.unmodifiableMap(indices);
+    }
+
+    public FieldRangesMetadata(StreamInput in) throws IOException {
+        this.indices = Collections.unmodifiableMap(in.readMap(StreamInput::readString, IndexRanges::new));
+    }
+
+    public static NamedDiff<Metadata.Custom> readDiffFrom(StreamInput in) throws IOException {
+        return new FieldRangesDiff(in);
+    }
+
+    @Override
+    public Diff<Metadata.Custom> diff(Metadata.Custom previousState) {
+        return new FieldRangesDiff((FieldRangesMetadata) previousState, this);
+    }
+
+    static FieldRangesMetadata get(Metadata metadata) {
+        FieldRangesMetadata ranges = metadata.custom(TYPE);
+        return ranges == null ? EMPTY : ranges;
+    }
+
+    /**
+     * @return the ranges of the index with the given uuid, or <code>null</code>
+     */
+    IndexRanges index(String uuid) {
+        return indices.get(uuid);
+    }
+
+    /**
+     * @return these ranges updated with the ranges the primaries reported, without the indices that were deleted or
+     * aren't immutable anymore, whose ranges can't be used
+     */
+    FieldRangesMetadata apply(Metadata metadata, List<ShardRanges> reports) {
+        Set<String> uuids = new HashSet<>();
+        for (IndexMetadata indexMetadata : metadata) {
+            if (ImmutableIndexMemo.isImmutable(indexMetadata)) {
+                uuids.add(indexMetadata.getIndexUUID());
+            }
+        }
+        Map<String, IndexRanges> updated = new HashMap<>(indices);
+        updated.keySet().retainAll(uuids);
+        for (ShardRanges report : reports) {
+            IndexMetadata indexMetadata = metadata.index(report.index);
+            if (indexMetadata == null || indexMetadata.getIndexUUID().equals(report.index.getUUID()) == false
+                || (report = report.resolve(indexMetadata)) == null) {
+                continue;
+            }
+            IndexRanges existing = updated.get(report.index.getUUID());
+            updated.put(report.index.getUUID(), existing == null ? new IndexRanges(report) : existing.merge(report));
+        }
+        return new FieldRangesMetadata(updated);
+    }
+
+    /**
+     * @return the indices whose stats may match the constraints, which all indices without final ranges may
+     */
+    String[] prune(Metadata metadata, String[] concreteIndices, IndexConstraint[] constraints) {
+        List<String> matching = new ArrayList<>(concreteIndices.length);
+        for (String index : concreteIndices) {
+            IndexMetadata indexMetadata = metadata.index(index);
+            IndexRanges ranges = indexMetadata == null ? null : indices.get(indexMetadata.getIndexUUID());
+            if (ranges == null || ranges.isFinal(indexMetadata) == false || ranges.mayMatch(constraints)) {
+                matching.add(index);
+            }
+        }
+        return matching.size() == concreteIndices.length ? concreteIndices : matching.toArray(new String[0]);
+    }
+
+    /**
+     * Finds the backing indices of a data stream that can't match a constraint on its timestamp field, assuming that
+     * the ranges of the timestamp field follow the generations of the backing indices. Lower bounds exclude the
+     * oldest indices and upper bounds the newest ones, up to the last index whose final range doesn't match, which
+     * is found by a binary search over the indices, so indices without final ranges are excluded too when they are
+     * older (or newer) than one that doesn't match.
+     *
+     * @param backingIndices the backing indices of the data stream, oldest first
+     * @return the names of the backing indices that can't match
+     */
+    List<String> excludedBackingIndices(Metadata metadata, List<Index> backingIndices, IndexConstraint constraint) {
+        int size = backingIndices.size();
+        boolean oldest = constraint.getComparison() == IndexConstraint.Comparison.GT
+            || constraint.getComparison() == IndexConstraint.Comparison.GTE;
+        IndexConstraint[] constraints = new IndexConstraint[] {constraint};
+        // the number of indices, from the oldest or the newest one, that can't match
+        int excluded = 0;
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            IndexMetadata indexMetadata = metadata.index(backingIndices.get(oldest ? mid : size - 1 - mid));
+            IndexRanges ranges = indexMetadata == null ? null : indices.get(indexMetadata.getIndexUUID());
+            if (ranges != null && ranges.isFinal(indexMetadata) && ranges.mayMatch(constraints) == false) {
+                excluded = mid + 1;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        List<String> names = new ArrayList<>(excluded);
+        for (int i = 0; i < excluded; i++) {
+            names.add(backingIndices.get(oldest ? i : size - 1 - i).getName());
+        }
+        return names;
+    }
+
+    @Override
+    public String getWriteableName() {
+        return TYPE;
+    }
+
+    @Override
+    public Version getMinimalSupportedVersion() {
+        return Version.CURRENT.minimumCompatibilityVersion();
+    }
+
+    /**
+     * The ranges are reported again after a full cluster restart, so they are not persisted.
+     */
+    @Override
+    public EnumSet<Metadata.XContentContext> context() {
+        return EnumSet.of(Metadata.XContentContext.API);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeMap(indices, StreamOutput::writeString, (o, ranges) -> ranges.writeTo(o));
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        for (Map.Entry<String, IndexRanges> entry : new TreeMap<>(indices).entrySet()) {
+            builder.field(entry.getKey());
+            entry.getValue().toXContent(builder);
+        }
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return indices.equals(((FieldRangesMetadata) o).indices);
+    }
+
+    @Override
+    public int hashCode() {
+        return indices.hashCode();
+    }
+
+    /**
+     * The ranges of the indices that were added, changed or removed.
+     */
+    static final class FieldRangesDiff implements NamedDiff<Metadata.Custom> {
+
+        private final DiffableUtils.MapDiff<String, IndexRanges, Map<String, IndexRanges>> indices;
+
+        FieldRangesDiff(FieldRangesMetadata before, FieldRangesMetadata after) {
+            indices = DiffableUtils.diff(before.indices, after.indices, DiffableUtils.getStringKeySerializer(),
+                RANGES_SERIALIZER);
+        }
+
+        FieldRangesDiff(StreamInput in) throws IOException {
+            indices = DiffableUtils.readJdkMapDiff(in, DiffableUtils.getStringKeySerializer(), RANGES_SERIALIZER);
+        }
+
+        @Override
+        public Metadata.Custom apply(Metadata.Custom part) {
+            return new FieldRangesMetadata(indices.apply(((FieldRangesMetadata) part).indices));
+        }
+
+        @Override
+        public String getWriteableName() {
+            return TYPE;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            indices.writeTo(out);
+        }
+    }
+
+    private static FieldStats<?> copy(FieldStats<?> stats) {
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            stats.writeTo(out);
+            return FieldStats.readFrom(out.bytes().streamInput());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The ranges of the fields of an index. Only the min and max values of the stats are meaningful, since the
+     * stats of every report are accumulated.
+     */
+    static final class IndexRanges implements Writeable {
+        private final String name;
+        private final int numberOfShards;
+        private final long settingsVersion;
+        private final Set<Integer> finalShards;
+        private final Map<String, FieldStats<?>> fields;
+
+        private IndexRanges(String name, int numberOfShards, long settingsVersion, Set<Integer> finalShards,
+                            Map<String, FieldStats<?>> fields) {
+            this.name = name;
+            this.numberOfShards = numberOfShards;
+            this.settingsVersion = settingsVersion;
+            this.finalShards = Collections.unmodifiableSet(finalShards);
+            this.fields = Collections.unmodifiableMap(fields);
+        }
+
+        private IndexRanges(ShardRanges report) {
+            this(report.index.getName(), report.numberOfShards, report.settingsVersion,
+                report.isFinal ? Collections.singleton(report.shard) : Collections.emptySet(),
+                new HashMap<>(report.fields));
+        }
+
+        IndexRanges(StreamInput in) throws IOException {
+            this(in.readString(), in.readVInt(), in.readLong(), new TreeSet<>(in.readList(StreamInput::readVInt)),
+                in.readMap(StreamInput::readString, FieldStats::readFrom));
+        }
+
+        /**
+         * @return the ranges with the report of one of the primaries applied. The first final report after the
+         * index became immutable, or after its settings changed, starts the final ranges over.
+         */
+        IndexRanges merge(ShardRanges report) {
+            Set<Integer> finalShards = new TreeSet<>();
+            Map<String, FieldStats<?>> fields = new HashMap<>();
+            if (report.isFinal == false || this.finalShards.isEmpty() == false
+                && settingsVersion == report.settingsVersion) {
+                finalShards.addAll(this.finalShards);
+                fields.putAll(this.fields);
+            }
+            if (report.isFinal) {
+                finalShards.add(report.shard);
+            } else {
+                finalShards.clear();
+            }
+            for (Map.Entry<String, FieldStats<?>> entry : report.fields.entrySet()) {
+                FieldStats<?> existing = fields.get(entry.getKey());
+                if (existing == null || existing.getType() != entry.getValue().getType()) {
+                    fields.put(entry.getKey(), entry.getValue());
+                } else {
+                    FieldStats<?> merged = copy(existing);
+                    merged.accumulate(entry.getValue());
+                    fields.put(entry.getKey(), merged);
+                }
+            }
+            return new IndexRanges(name, report.numberOfShards, report.settingsVersion, finalShards, fields);
+        }
+
+        /**
+         * @return <code>true</code> if all primaries reported their ranges since the index became immutable with
+         * its current settings
+         */
+        boolean isFinal(IndexMetadata indexMetadata) {
+            return finalShards.size() == indexMetadata.getNumberOfShards()
+                && settingsVersion == indexMetadata.getSettingsVersion()
+                && ImmutableIndexMemo.isImmutable(indexMetadata);
+        }
+
+        /**
+         * @return <code>false</code> if the ranges prove that one of the constraints doesn't match
+         */
+        boolean mayMatch(IndexConstraint[] constraints) {
+            for (IndexConstraint constraint : constraints) {
+                FieldStats<?> stats = fields.get(constraint.getField());
+                if (stats == null) {
+                    continue;
+                }
+                try {
+                    if (stats.match(constraint) == false) {
+                        return false;
+                    }
+                } catch (RuntimeException e) {
+                    // the value doesn't parse, which the shards report as a failure
+                }
+            }
+            return true;
+        }
+
+        Map<String, FieldStats<?>> getFields() {
+            return fields;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(name);
+            out.writeVInt(numberOfShards);
+            out.writeLong(settingsVersion);
+            out.writeCollection(finalShards, StreamOutput::writeVInt);
+            out.writeMap(fields, StreamOutput::writeString, (o, stats) -> stats.writeTo(o));
+        }
+
+        void toXContent(XContentBuilder builder) throws IOException {
+            builder.startObject();
+            builder.field("index", name);
+            builder.field("final", finalShards.size() == numberOfShards);
+            builder.startObject("fields");
+            for (Map.Entry<String, FieldStats<?>> entry : new TreeMap<>(fields).entrySet()) {
+                builder.startObject(entry.getKey());
+                entry.getValue().toInnerXContent(builder);
+                builder.endObject();
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            IndexRanges that = (IndexRanges) o;
+            return numberOfShards == that.numberOfShards && settingsVersion == that.settingsVersion
+                && name.equals(that.name) && finalShards.equals(that.finalShards) && fields.equals(that.fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, numberOfShards, settingsVersion, finalShards, fields);
+        }
+    }
+
+    /**
+     * The ranges of the fields of a primary, as reported to the elected cluster manager.
+     */
+    static final class ShardRanges implements Writeable {
+        private final Index index;
+        private final int shard;
+        private final int numberOfShards;
+        private final long settingsVersion;
+        private final boolean isFinal;
+        private final boolean closing;
+        private final Map<String, FieldStats<?>> fields;
+
+        /**
+         * @param settingsVersion the settings version of the index, when <code>isFinal</code>
+         * @param isFinal whether the index was immutable when the ranges were computed
+         * @param closing whether the ranges were computed while the shard was closed along with its index, after
+         *                which they are final for the closed index whatever its settings version
+         */
+        ShardRanges(Index index, int shard, int numberOfShards, long settingsVersion, boolean isFinal,
+                    boolean closing, Map<String, FieldStats<?>> fields) {
+            this.index = index;
+            this.shard = shard;
+            this.numberOfShards = numberOfShards;
+            this.settingsVersion = settingsVersion;
+            this.isFinal = isFinal;
+            this.closing = closing;
+            this.fields = fields;
+        }
+
+        ShardRanges(StreamInput in) throws IOException {
+            index = new Index(in);
+            shard = in.readVInt();
+            numberOfShards = in.readVInt();
+            settingsVersion = in.readLong();
+            isFinal = in.readBoolean();
+            closing = in.readBoolean();
+            fields = in.readMap(StreamInput::readString, FieldStats::readFrom);
+        }
+
+        /**
+         * @return the report as it applies to the current metadata of its index, or <code>null</code> if it was
+         * computed while the index was closed but the index was opened since
+         */
+        ShardRanges resolve(IndexMetadata indexMetadata) {
+            if (closing == false) {
+                return this;
+            }
+            if (indexMetadata.getState() != IndexMetadata.State.CLOSE) {
+                return null;
+            }
+            return new ShardRanges(index, shard, numberOfShards, indexMetadata.getSettingsVersion(), true, false,
+                fields);
+        }
+
+        Index getIndex() {
+            return index;
+        }
+
+        int getShard() {
+            return shard;
+        }
+
+        long getSettingsVersion() {
+            return settingsVersion;
+        }
+
+        boolean isFinal() {
+            return isFinal;
+        }
+
+        Map<String, FieldStats<?>> getFields() {
+            return fields;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            index.writeTo(out);
+            out.writeVInt(shard);
+            out.writeVInt(numberOfShards);
+            out.writeLong(settingsVersion);
+            out.writeBoolean(isFinal);
+            out.writeBoolean(closing);
+            out.writeMap(fields, StreamOutput::writeString, (o, stats) -> stats.writeTo(o));
+        }
+    }
+}
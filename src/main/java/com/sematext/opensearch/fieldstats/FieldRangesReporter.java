@@ -0,0 +1,254 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.index.IndexReader;
+import org.opensearch.action.support.master.AcknowledgedResponse;
+import org.opensearch.client.Client;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.cluster.service.ClusterService;
+import org.opensearch.common.Nullable;
+import org.opensearch.common.lifecycle.AbstractLifecycleComponent;
+import org.opensearch.common.settings.Setting;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.common.util.concurrent.ThreadContext;
+import org.opensearch.core.action.ActionListener;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.index.IndexService;
+import org.opensearch.index.engine.Engine;
+import org.opensearch.index.mapper.MappedFieldType;
+import org.opensearch.index.shard.IndexEventListener;
+import org.opensearch.index.shard.IndexShard;
+import org.opensearch.index.shard.IndexShardState;
+import org.opensearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.opensearch.threadpool.Scheduler;
+import org.opensearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Reports the ranges of the fields listed in <code>fieldstats.ranges.fields</code> of the primaries of this node to
+ * the elected cluster manager, which publishes them in {@link FieldRangesMetadata}. Only final ranges are reported,
+ * since only those are used: every <code>fieldstats.ranges.interval</code>, the primaries of indices that became
+ * immutable, or whose settings changed, since they were last reported are sent in a single request, and only once
+ * the previous request completed. The primaries of an index that is being closed report their ranges right away.
+ */
+public final class FieldRangesReporter extends AbstractLifecycleComponent implements IndexEventListener {
+
+    private static final Logger logger = LogManager.getLogger(FieldRangesReporter.class);
+
+    public static final Setting<List<String>> FIELDS_SETTING = Setting.listSetting(
+        "fieldstats.ranges.fields", Collections.emptyList(), Function.identity(), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> INTERVAL_SETTING = Setting.timeSetting(
+        "fieldstats.ranges.interval", TimeValue.timeValueSeconds(30), TimeValue.timeValueSeconds(1),
+        Setting.Property.NodeScope);
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final List<String> fields;
+    private final TimeValue interval;
+    private final Set<IndexShard> shards = ConcurrentHashMap.newKeySet();
+    private final Map<ShardId, Reported> reported = new ConcurrentHashMap<>();
+    private final AtomicBoolean reporting = new AtomicBoolean();
+    private volatile Scheduler.Cancellable schedule;
+
+    public FieldRangesReporter(Settings settings, Client client, ClusterService clusterService,
+                               ThreadPool threadPool) {
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.fields = FIELDS_SETTING.get(settings);
+        this.interval = INTERVAL_SETTING.get(settings);
+    }
+
+    @Override
+    protected void doStart() {
+        if (fields.isEmpty() == false) {
+            schedule = threadPool.scheduleWithFixedDelay(this::report, interval, ThreadPool.Names.MANAGEMENT);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        Scheduler.Cancellable schedule = this.schedule;
+        if (schedule != null) {
+            schedule.cancel();
+        }
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    @Override
+    public void afterIndexShardStarted(IndexShard indexShard) {
+        if (fields.isEmpty() == false) {
+            shards.add(indexShard);
+        }
+    }
+
+    @Override
+    public void beforeIndexShardClosed(ShardId shardId, @Nullable IndexShard indexShard, Settings indexSettings) {
+        if (indexShard != null) {
+            shards.remove(indexShard);
+        }
+        reported.remove(shardId);
+    }
+
+    /**
+     * Reports the final ranges of the primaries of an index that is being closed, while they can still be read.
+     * The index is write blocked and flushed by then, and the ranges are final for the closed index.
+     */
+    @Override
+    public void beforeIndexRemoved(IndexService indexService, IndexRemovalReason reason) {
+        if (fields.isEmpty() || reason != IndexRemovalReason.CLOSED) {
+            return;
+        }
+        List<FieldRangesMetadata.ShardRanges> reports = new ArrayList<>();
+        for (IndexShard shard : indexService) {
+            if (shard.routingEntry().primary() == false || shard.state() != IndexShardState.STARTED) {
+                continue;
+            }
+            try (Engine.Searcher searcher = shard.acquireSearcher("fieldstats_ranges")) {
+                reports.add(new FieldRangesMetadata.ShardRanges(shard.shardId().getIndex(), shard.shardId().id(),
+                    indexService.getMetadata().getNumberOfShards(), -1, true, true,
+                    ranges(shard, searcher.getIndexReader())));
+            } catch (Exception e) {
+                logger.debug(new ParameterizedMessage("failed to compute the field ranges of {}",
+                    shard.shardId()), e);
+            }
+        }
+        if (reports.isEmpty() == false) {
+            send(reports, ActionListener.wrap(response -> {},
+                e -> logger.debug("failed to report the field ranges of a closed index", e)));
+        }
+    }
+
+    void report() {
+        if (reporting.compareAndSet(false, true) == false) {
+            return;
+        }
+        boolean sent = false;
+        try {
+            List<FieldRangesMetadata.ShardRanges> reports = new ArrayList<>();
+            Map<ShardId, Reported> pending = new HashMap<>();
+            for (IndexShard shard : shards) {
+                if (shard.routingEntry().primary() == false || shard.state() != IndexShardState.STARTED) {
+                    continue;
+                }
+                IndexMetadata indexMetadata = clusterService.state().metadata().index(shard.shardId().getIndex());
+                // the shards of closed indices have no segments to read, their ranges were reported when closing
+                if (indexMetadata == null || indexMetadata.getState() == IndexMetadata.State.CLOSE) {
+                    continue;
+                }
+                // the ranges of indices that are still written to only grow, and aren't used
+                if (ImmutableIndexMemo.isImmutable(indexMetadata) == false) {
+                    continue;
+                }
+                try (Engine.Searcher searcher = shard.acquireSearcher("fieldstats_ranges")) {
+                    Reported current = new Reported(searcher.getDirectoryReader().getVersion(),
+                        indexMetadata.getSettingsVersion());
+                    if (current.equals(reported.get(shard.shardId()))) {
+                        continue;
+                    }
+                    reports.add(new FieldRangesMetadata.ShardRanges(shard.shardId().getIndex(), shard.shardId().id(),
+                        indexMetadata.getNumberOfShards(), indexMetadata.getSettingsVersion(), true, false,
+                        ranges(shard, searcher.getIndexReader())));
+                    pending.put(shard.shardId(), current);
+                } catch (Exception e) {
+                    logger.debug(new ParameterizedMessage("failed to compute the field ranges of {}",
+                        shard.shardId()), e);
+                }
+            }
+            if (reports.isEmpty()) {
+                return;
+            }
+            send(reports, ActionListener.runAfter(ActionListener.wrap(
+                response -> reported.putAll(pending),
+                e -> logger.debug("failed to report field ranges", e)),
+                () -> reporting.set(false)));
+            sent = true;
+        } finally {
+            if (sent == false) {
+                reporting.set(false);
+            }
+        }
+    }
+
+    private void send(List<FieldRangesMetadata.ShardRanges> reports, ActionListener<AcknowledgedResponse> listener) {
+        ThreadContext threadContext = threadPool.getThreadContext();
+        try (ThreadContext.StoredContext ignore = threadContext.stashContext()) {
+            threadContext.markAsSystemContext();
+            client.execute(UpdateFieldRangesAction.INSTANCE, new UpdateFieldRangesRequest(reports), listener);
+        }
+    }
+
+    /**
+     * @return the stats, of which the min and max values matter, of the fields that have values in the shard
+     */
+    private Map<String, FieldStats<?>> ranges(IndexShard shard, IndexReader reader) throws Exception {
+        Map<String, FieldStats<?>> ranges = new HashMap<>();
+        for (String pattern : fields) {
+            for (String field : shard.mapperService().simpleMatchToFullName(pattern)) {
+                MappedFieldType fieldType = shard.mapperService().fieldType(field);
+                FieldStatsProvider provider = fieldType == null ? null : FieldStatsProviders.get(fieldType);
+                FieldStats<?> stats = provider == null ? null : provider.build(fieldType, reader, field);
+                if (stats != null && stats.hasMinMax()) {
+                    ranges.put(field, stats);
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * What the final ranges of a primary were last reported for: its reader, and the settings of its index.
+     */
+    private static final class Reported {
+        private final long readerVersion;
+        private final long settingsVersion;
+
+        Reported(long readerVersion, long settingsVersion) {
+            this.readerVersion = readerVersion;
+            this.settingsVersion = settingsVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Reported that = (Reported) o;
+            return readerVersion == that.readerVersion && settingsVersion == that.settingsVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(readerVersion, settingsVersion);
+        }
+    }
+}
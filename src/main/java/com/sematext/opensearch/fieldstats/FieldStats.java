@@ -20,16 +20,22 @@ import org.apache.lucene.util.StringHelper;
 import org.opensearch.core.common.io.stream.StreamInput;
 import org.opensearch.core.common.io.stream.StreamOutput;
 import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.common.Booleans;
 import org.opensearch.common.joda.Joda;
 import org.opensearch.common.joda.JodaDateFormatter;
 import org.opensearch.common.network.InetAddresses;
 import org.opensearch.common.network.NetworkAddress;
 import org.opensearch.common.time.DateFormatter;
+import org.opensearch.common.time.DateFormatters;
+import org.opensearch.common.time.DateUtils;
 import org.opensearch.core.xcontent.ToXContent;
 import org.opensearch.core.xcontent.XContentBuilder;
+import org.opensearch.index.mapper.DateFieldMapper;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.InetAddress;
+import java.time.ZoneOffset;
 import java.util.Objects;
 
 public abstract class FieldStats<T> implements Writeable, ToXContent {
@@ -38,9 +44,12 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
     private long docCount;
     private long sumDocFreq;
     private long sumTotalTermFreq;
+    private long missing;
     private boolean isSearchable;
     private boolean isAggregatable;
     private boolean hasMinMax;
+    private DiskUsage diskUsage;
+    private boolean approximate;
     protected T minValue;
     protected T maxValue;
 
@@ -67,6 +76,7 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         this.isSearchable = isSearchable;
         this.isAggregatable = isAggregatable;
         this.hasMinMax = false;
+        this.missing = missing(maxDoc, docCount);
     }
 
     /**
@@ -99,6 +109,11 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         this.hasMinMax = true;
         this.minValue = minValue;
         this.maxValue = maxValue;
+        this.missing = missing(maxDoc, docCount);
+    }
+
+    private static long missing(long baseDocCount, long docCount) {
+        return docCount < 0 || baseDocCount < docCount ? -1 : baseDocCount - docCount;
     }
 
     byte getType() {
@@ -119,6 +134,14 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
                 return "ip";
             case 5:
                 return "geo_point";
+            case 6:
+                return "unsigned_long";
+            case 7:
+                return "date_nanos";
+            case 8:
+                return "boolean";
+            case 9:
+                return "geo_shape";
             default:
                 throw new IllegalArgumentException("Unknown type.");
         }
@@ -162,6 +185,70 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         return (int) (docCount * 100 / maxDoc);
     }
 
+    /**
+     * @return the number of documents that don't have a value for this field, or -1 if this measurement isn't available.
+     *
+     * Without nested mappings this is 'max_doc - doc_count'. Otherwise only the documents at the nesting level
+     * of the field are taken into account: root documents for root fields and the nested documents of the
+     * enclosing nested object for fields inside a nested object.
+     */
+    public long getMissing() {
+        return missing;
+    }
+
+    /**
+     * Sets the number of documents at the nesting level of this field, which {@link #getMissing()} is derived from.
+     */
+    void setBaseDocCount(long baseDocCount) {
+        this.missing = missing(baseDocCount, docCount);
+    }
+
+    /**
+     * @return The fraction of documents at the nesting level of this field that have at least one value for it,
+     * or -1 if this measurement isn't available.
+     *
+     * This is a derived statistic and is based on: 'doc_count / (doc_count + missing)'
+     */
+    public double getFractionalDensity() {
+        if (docCount < 0 || missing < 0 || docCount + missing == 0) {
+            return -1;
+        }
+        return (double) docCount / (docCount + missing);
+    }
+
+    /**
+     * @return the estimated bytes this field takes on disk, or <code>null</code> if it wasn't requested
+     */
+    public DiskUsage getDiskUsage() {
+        return diskUsage;
+    }
+
+    void setDiskUsage(DiskUsage diskUsage) {
+        this.diskUsage = diskUsage;
+    }
+
+    /**
+     * @return <code>true</code> if the min and max values weren't computed from the documents matching the query of
+     * the request only, but from all the documents of at least one shard.
+     */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    /**
+     * Narrows these stats to the documents matching the query of the request. Term frequencies aren't available
+     * for a subset of the documents, the base doc count has to be set again afterwards.
+     *
+     * @param docCount the number of matching documents with a value for this field, or -1 if unknown
+     * @param approximate <code>true</code> if the min and max values weren't computed from the matching documents
+     */
+    void scopeToQuery(long docCount, boolean approximate) {
+        this.docCount = docCount;
+        this.sumDocFreq = -1;
+        this.sumTotalTermFreq = -1;
+        this.approximate = approximate;
+    }
+
     /**
      * @return the sum of each term's document frequency in this field, or -1 if this measurement isn't available.
      * Document frequency is the number of documents containing a particular term.
@@ -261,9 +348,20 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         } else if (this.sumTotalTermFreq != -1) {
             this.sumTotalTermFreq += other.sumTotalTermFreq;
         }
+        if (other.missing == -1) {
+            this.missing = -1;
+        } else if (this.missing != -1) {
+            this.missing += other.missing;
+        }
+        if (diskUsage == null) {
+            diskUsage = other.diskUsage;
+        } else if (other.diskUsage != null) {
+            diskUsage.accumulate(other.diskUsage);
+        }
 
         isSearchable |= other.isSearchable;
         isAggregatable |= other.isAggregatable;
+        approximate |= other.approximate;
 
         assert type == other.getType();
         if (other.hasMinMax) {
@@ -275,6 +373,57 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
                 maxValue = (T) other.maxValue;
             }
         }
+        accumulateOptionalStats(other);
+    }
+
+    /**
+     * Accumulates <code>other</code> into <code>stats</code>, which must be of the same type, except that
+     * <code>date</code> and <code>date_nanos</code> stats accumulate into each other at millisecond resolution, like
+     * searches over indices that map a field with both types do.
+     *
+     * @return the accumulated stats, which is <code>stats</code> or its <code>date</code> conversion, or
+     * <code>null</code> if the types conflict
+     */
+    static FieldStats<?> merge(FieldStats<?> stats, FieldStats<?> other) {
+        if (stats instanceof DateNanos && other instanceof Date) {
+            stats = toMillis((DateNanos) stats, ((Date) other).formatter);
+        } else if (stats instanceof Date && other instanceof DateNanos) {
+            other = toMillis((DateNanos) other, ((Date) stats).formatter);
+        } else if (stats.type != other.type) {
+            return null;
+        }
+        stats.accumulate(other);
+        return stats;
+    }
+
+    /**
+     * @param formatter the formatter of the <code>date</code> stats the converted stats are merged with, or
+     *                  <code>null</code>
+     */
+    private static FieldStats<?> toMillis(DateNanos dateNanos, DateFormatter formatter) {
+        FieldStats<java.lang.Long> nanos = dateNanos;
+        FieldStats<java.lang.Long> millis;
+        if (nanos.hasMinMax) {
+            millis = new Date(nanos.maxDoc, nanos.docCount, nanos.sumDocFreq, nanos.sumTotalTermFreq,
+                nanos.isSearchable, nanos.isAggregatable,
+                formatter == null ? DateFieldMapper.DEFAULT_DATE_TIME_FORMATTER : formatter,
+                DateUtils.toMilliSeconds(nanos.minValue), DateUtils.toMilliSeconds(nanos.maxValue));
+        } else {
+            millis = new Date(nanos.maxDoc, nanos.docCount, nanos.sumDocFreq, nanos.sumTotalTermFreq,
+                nanos.isSearchable, nanos.isAggregatable);
+        }
+        millis.missing = nanos.missing;
+        millis.diskUsage = nanos.diskUsage;
+        millis.approximate = nanos.approximate;
+        return millis;
+    }
+
+    /**
+     * Accumulates the optional statistics of the provided stats, which is of the same type as this instance.
+     *
+     * @param other second field stats object to accumulate
+     */
+    protected void accumulateOptionalStats(FieldStats<?> other) {
     }
 
     protected void updateMinMax(T min, T max) {
@@ -295,6 +444,8 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         builder.field(MAX_DOC_FIELD, maxDoc);
         builder.field(DOC_COUNT_FIELD, docCount);
         builder.field(DENSITY_FIELD, getDensity());
+        builder.field(MISSING_FIELD, missing);
+        builder.field(FRACTIONAL_DENSITY_FIELD, getFractionalDensity());
         builder.field(SUM_DOC_FREQ_FIELD, sumDocFreq);
         builder.field(SUM_TOTAL_TERM_FREQ_FIELD, sumTotalTermFreq);
         builder.field(SEARCHABLE_FIELD, isSearchable);
@@ -302,6 +453,13 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         if (hasMinMax) {
             toInnerXContent(builder);
         }
+        if (approximate) {
+            builder.field(APPROXIMATE_FIELD, true);
+        }
+        if (diskUsage != null) {
+            diskUsage.toXContent(builder, params);
+        }
+        toOptionalStatsXContent(builder, params);
         builder.endObject();
         return builder;
     }
@@ -326,10 +484,26 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         if (hasMinMax) {
             writeMinMax(out);
         }
+        out.writeLong(missing);
+        out.writeOptionalWriteable(diskUsage);
+        out.writeBoolean(approximate);
+        writeOptionalStats(out);
     }
 
     protected abstract void writeMinMax(StreamOutput out) throws IOException;
 
+    /**
+     * Optional statistics are only computed when requested, they are written after the min and max values.
+     */
+    protected void writeOptionalStats(StreamOutput out) throws IOException {
+    }
+
+    protected void readOptionalStats(StreamInput in) throws IOException {
+    }
+
+    protected void toOptionalStatsXContent(XContentBuilder builder, Params params) throws IOException {
+    }
+
     /**
      * @param constraint Index constraints
      *
@@ -376,9 +550,12 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         if (docCount != that.docCount) return false;
         if (sumDocFreq != that.sumDocFreq) return false;
         if (sumTotalTermFreq != that.sumTotalTermFreq) return false;
+        if (missing != that.missing) return false;
         if (isSearchable != that.isSearchable) return false;
         if (isAggregatable != that.isAggregatable) return false;
         if (hasMinMax != that.hasMinMax) return false;
+        if (Objects.equals(diskUsage, that.diskUsage) == false) return false;
+        if (approximate != that.approximate) return false;
         if (hasMinMax == false) {
             return true;
         }
@@ -389,8 +566,8 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
-            hasMinMax, minValue, maxValue);
+        return Objects.hash(type, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, missing, isSearchable, isAggregatable,
+            hasMinMax, diskUsage, approximate, minValue, maxValue);
     }
 
     public static class Long extends FieldStats<java.lang.Long> {
@@ -532,6 +709,14 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
             return formatter.formatMillis(maxValue);
         }
 
+        @Override
+        protected void accumulateOptionalStats(FieldStats<?> other) {
+            // stats without values have no formatter
+            if (formatter == null) {
+                formatter = ((Date) other).formatter;
+            }
+        }
+
         @Override
         public boolean equals(Object o) {
             if (!super.equals(o)) return false;
@@ -549,6 +734,9 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
     }
 
     public static class Text extends FieldStats<BytesRef> {
+        private PrefixDistribution prefixDistribution;
+        private LengthHistogram lengthHistogram;
+
         public Text(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
                     boolean isSearchable, boolean isAggregatable) {
             super((byte) 3, maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
@@ -597,6 +785,94 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
             builder.field(MIN_VALUE_FIELD, getMinValueAsString());
             builder.field(MAX_VALUE_FIELD, getMaxValueAsString());
         }
+
+        /**
+         * @return the number of terms per leading prefix, or <code>null</code> if it wasn't requested
+         */
+        public PrefixDistribution getPrefixDistribution() {
+            return prefixDistribution;
+        }
+
+        void setPrefixDistribution(PrefixDistribution prefixDistribution) {
+            this.prefixDistribution = prefixDistribution;
+        }
+
+        /**
+         * @return the average number of tokens per document that has a value for this field,
+         * or -1 if this measurement isn't available.
+         *
+         * For fields that aren't analyzed this is the average number of values per document.
+         */
+        public double getAvgLength() {
+            if (getSumTotalTermFreq() < 0 || getDocCount() <= 0) {
+                return -1;
+            }
+            return (double) getSumTotalTermFreq() / getDocCount();
+        }
+
+        /**
+         * @return the distribution of the number of tokens per document, or <code>null</code> if it wasn't
+         * requested or the field has no norms
+         */
+        public LengthHistogram getLengthHistogram() {
+            return lengthHistogram;
+        }
+
+        void setLengthHistogram(LengthHistogram lengthHistogram) {
+            this.lengthHistogram = lengthHistogram;
+        }
+
+        @Override
+        protected void accumulateOptionalStats(FieldStats<?> other) {
+            PrefixDistribution otherDistribution = ((Text) other).prefixDistribution;
+            if (prefixDistribution == null) {
+                prefixDistribution = otherDistribution;
+            } else if (otherDistribution != null) {
+                prefixDistribution.accumulate(otherDistribution);
+            }
+            LengthHistogram otherHistogram = ((Text) other).lengthHistogram;
+            if (lengthHistogram == null) {
+                lengthHistogram = otherHistogram;
+            } else if (otherHistogram != null) {
+                lengthHistogram.accumulate(otherHistogram);
+            }
+        }
+
+        @Override
+        protected void writeOptionalStats(StreamOutput out) throws IOException {
+            out.writeOptionalWriteable(prefixDistribution);
+            out.writeOptionalWriteable(lengthHistogram);
+        }
+
+        @Override
+        protected void readOptionalStats(StreamInput in) throws IOException {
+            prefixDistribution = in.readOptionalWriteable(PrefixDistribution::new);
+            lengthHistogram = in.readOptionalWriteable(LengthHistogram::new);
+        }
+
+        @Override
+        protected void toOptionalStatsXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field(AVG_LENGTH_FIELD, getAvgLength());
+            if (prefixDistribution != null) {
+                prefixDistribution.toXContent(builder, params);
+            }
+            if (lengthHistogram != null) {
+                lengthHistogram.toXContent(builder, params);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) return false;
+            Text that = (Text) o;
+            return Objects.equals(prefixDistribution, that.prefixDistribution)
+                && Objects.equals(lengthHistogram, that.lengthHistogram);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * super.hashCode() + Objects.hashCode(prefixDistribution)) + Objects.hashCode(lengthHistogram);
+        }
     }
 
     public static class Ip extends FieldStats<InetAddress> {
@@ -646,12 +922,22 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         public String getMaxValueAsString() {
             return NetworkAddress.format(maxValue);
         }
+
+        @Override
+        protected void toInnerXContent(XContentBuilder builder) throws IOException {
+            builder.field(MIN_VALUE_FIELD, getMinValueAsString());
+            builder.field(MIN_VALUE_AS_STRING_FIELD, getMinValueAsString());
+            builder.field(MAX_VALUE_FIELD, getMaxValueAsString());
+            builder.field(MAX_VALUE_AS_STRING_FIELD, getMaxValueAsString());
+        }
     }
 
     public static class GeoPoint extends FieldStats<org.opensearch.common.geo.GeoPoint> {
+        private GeoSummary geoSummary;
+
         public GeoPoint(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
                   boolean isSearchable, boolean isAggregatable) {
-            super((byte) 5, maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+            this((byte) 5, maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                 isSearchable, isAggregatable);
         }
 
@@ -659,7 +945,20 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
                         boolean isSearchable, boolean isAggregatable,
                         org.opensearch.common.geo.GeoPoint minValue,
                         org.opensearch.common.geo.GeoPoint maxValue) {
-            super((byte) 5, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
+            this((byte) 5, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
+                minValue, maxValue);
+        }
+
+        GeoPoint(byte type, long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                 boolean isSearchable, boolean isAggregatable) {
+            super(type, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable);
+        }
+
+        GeoPoint(byte type, long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                 boolean isSearchable, boolean isAggregatable,
+                 org.opensearch.common.geo.GeoPoint minValue,
+                 org.opensearch.common.geo.GeoPoint maxValue) {
+            super(type, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
                 minValue, maxValue);
         }
 
@@ -668,16 +967,22 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
             return org.opensearch.common.geo.GeoPoint.fromGeohash(value);
         }
 
+        /**
+         * Replaces the min and max points rather than resetting them, they may be shared with the stats
+         * they were accumulated from.
+         */
         @Override
         protected void updateMinMax(org.opensearch.common.geo.GeoPoint min,
                                     org.opensearch.common.geo.GeoPoint max) {
-            minValue.reset(Math.min(min.lat(), minValue.lat()), Math.min(min.lon(), minValue.lon()));
-            maxValue.reset(Math.max(max.lat(), maxValue.lat()), Math.max(max.lon(), maxValue.lon()));
+            minValue = new org.opensearch.common.geo.GeoPoint(Math.min(min.lat(), minValue.lat()),
+                Math.min(min.lon(), minValue.lon()));
+            maxValue = new org.opensearch.common.geo.GeoPoint(Math.max(max.lat(), maxValue.lat()),
+                Math.max(max.lon(), maxValue.lon()));
         }
 
         @Override
         public int compare(org.opensearch.common.geo.GeoPoint p1, org.opensearch.common.geo.GeoPoint p2) {
-            throw new IllegalArgumentException("compare is not supported for geo_point field stats");
+            throw new IllegalArgumentException("compare is not supported for " + getDisplayType() + " field stats");
         }
 
         @Override
@@ -697,6 +1002,235 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         public String getMaxValueAsString() {
             return maxValue.toString();
         }
+
+        /**
+         * @return the bounding box, centroid and coverage grid, or <code>null</code> if it wasn't requested
+         */
+        public GeoSummary getGeoSummary() {
+            return geoSummary;
+        }
+
+        void setGeoSummary(GeoSummary geoSummary) {
+            this.geoSummary = geoSummary;
+        }
+
+        @Override
+        protected void accumulateOptionalStats(FieldStats<?> other) {
+            GeoSummary otherSummary = ((GeoPoint) other).geoSummary;
+            if (geoSummary == null) {
+                geoSummary = otherSummary;
+            } else if (otherSummary != null) {
+                geoSummary.accumulate(otherSummary);
+            }
+        }
+
+        @Override
+        protected void writeOptionalStats(StreamOutput out) throws IOException {
+            out.writeOptionalWriteable(geoSummary);
+        }
+
+        @Override
+        protected void readOptionalStats(StreamInput in) throws IOException {
+            geoSummary = in.readOptionalWriteable(GeoSummary::new);
+        }
+
+        @Override
+        protected void toOptionalStatsXContent(XContentBuilder builder, Params params) throws IOException {
+            if (geoSummary != null) {
+                geoSummary.toXContent(builder, params);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) return false;
+            return Objects.equals(geoSummary, ((GeoPoint) o).geoSummary);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + Objects.hashCode(geoSummary);
+        }
+    }
+
+    /**
+     * Stats of a <code>geo_shape</code> field, the min and max values are the corners of the bounding box
+     * of the indexed shapes.
+     */
+    public static class GeoShape extends GeoPoint {
+        public GeoShape(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                        boolean isSearchable, boolean isAggregatable) {
+            super((byte) 9, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable);
+        }
+
+        public GeoShape(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                        boolean isSearchable, boolean isAggregatable,
+                        org.opensearch.common.geo.GeoPoint minValue,
+                        org.opensearch.common.geo.GeoPoint maxValue) {
+            super((byte) 9, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
+                minValue, maxValue);
+        }
+    }
+
+    public static class UnsignedLong extends FieldStats<BigInteger> {
+        public UnsignedLong(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                            boolean isSearchable, boolean isAggregatable) {
+            super((byte) 6, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable);
+        }
+
+        public UnsignedLong(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                            boolean isSearchable, boolean isAggregatable,
+                            BigInteger minValue, BigInteger maxValue) {
+            super((byte) 6, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
+                minValue, maxValue);
+        }
+
+        @Override
+        public int compare(BigInteger o1, BigInteger o2) {
+            return o1.compareTo(o2);
+        }
+
+        @Override
+        public void writeMinMax(StreamOutput out) throws IOException {
+            out.writeString(minValue.toString());
+            out.writeString(maxValue.toString());
+        }
+
+        @Override
+        public BigInteger valueOf(String value, String optionalFormat) {
+            if (optionalFormat != null) {
+                throw new UnsupportedOperationException("custom format isn't supported");
+            }
+            return new BigInteger(value);
+        }
+
+        @Override
+        public String getMinValueAsString() {
+            return minValue.toString();
+        }
+
+        @Override
+        public String getMaxValueAsString() {
+            return maxValue.toString();
+        }
+    }
+
+    /**
+     * Stats of a <code>date_nanos</code> field, the min and max values are nanoseconds since the epoch.
+     */
+    public static class DateNanos extends FieldStats<java.lang.Long> {
+        private DateFormatter formatter;
+
+        public DateNanos(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                         boolean isSearchable, boolean isAggregatable) {
+            super((byte) 7, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable);
+            this.formatter = null;
+        }
+
+        public DateNanos(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                         boolean isSearchable, boolean isAggregatable,
+                         DateFormatter formatter,
+                         long minValue, long maxValue) {
+            super((byte) 7, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
+                minValue, maxValue);
+            this.formatter = formatter;
+        }
+
+        @Override
+        public int compare(java.lang.Long o1, java.lang.Long o2) {
+            return o1.compareTo(o2);
+        }
+
+        @Override
+        public void writeMinMax(StreamOutput out) throws IOException {
+            out.writeString(formatter.pattern());
+            out.writeLong(minValue);
+            out.writeLong(maxValue);
+        }
+
+        @Override
+        public java.lang.Long valueOf(String value, String fmt) {
+            DateFormatter f = formatter;
+            if (fmt != null) {
+                f = DateFormatter.forPattern(fmt);
+            }
+            return DateUtils.toLong(DateFormatters.from(f.parse(value)).toInstant());
+        }
+
+        @Override
+        public String getMinValueAsString() {
+            return format(minValue);
+        }
+
+        @Override
+        public String getMaxValueAsString() {
+            return format(maxValue);
+        }
+
+        private String format(long nanos) {
+            if (formatter == null) {
+                return java.lang.Long.toString(nanos);
+            }
+            return formatter.format(DateUtils.toInstant(nanos).atZone(ZoneOffset.UTC));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) return false;
+            DateNanos that = (DateNanos) o;
+            return Objects.equals(formatter == null ? null : formatter.pattern(),
+                that.formatter == null ? null : that.formatter.pattern());
+        }
+
+        @Override
+        public int hashCode() {
+            int result = super.hashCode();
+            result = 31 * result + (formatter == null ? 0 : formatter.pattern().hashCode());
+            return result;
+        }
+    }
+
+    public static class Boolean extends FieldStats<java.lang.Boolean> {
+        public Boolean(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                       boolean isSearchable, boolean isAggregatable) {
+            super((byte) 8, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable);
+        }
+
+        public Boolean(long maxDoc, long docCount, long sumDocFreq, long sumTotalTermFreq,
+                       boolean isSearchable, boolean isAggregatable,
+                       boolean minValue, boolean maxValue) {
+            super((byte) 8, maxDoc, docCount, sumDocFreq, sumTotalTermFreq, isSearchable, isAggregatable,
+                minValue, maxValue);
+        }
+
+        @Override
+        public int compare(java.lang.Boolean o1, java.lang.Boolean o2) {
+            return o1.compareTo(o2);
+        }
+
+        @Override
+        public void writeMinMax(StreamOutput out) throws IOException {
+            out.writeBoolean(minValue);
+            out.writeBoolean(maxValue);
+        }
+
+        @Override
+        public java.lang.Boolean valueOf(String value, String optionalFormat) {
+            if (optionalFormat != null) {
+                throw new UnsupportedOperationException("custom format isn't supported");
+            }
+            return Booleans.parseBoolean(value);
+        }
+
+        @Override
+        public String getMinValueAsString() {
+            return minValue.toString();
+        }
+
+        @Override
+        public String getMaxValueAsString() {
+            return maxValue.toString();
+        }
     }
 
     public static FieldStats<?> readFrom(StreamInput in) throws IOException {
@@ -708,45 +1242,50 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
         boolean isSearchable = in.readBoolean();
         boolean isAggregatable = in.readBoolean();
         boolean hasMinMax = in.readBoolean();
+        final FieldStats<?> stats;
         switch (type) {
             case 0:
                 if (hasMinMax) {
-                    return new Long(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Long(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable, in.readLong(), in.readLong());
                 } else {
-                    return new Long(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Long(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable);
                 }
+                break;
             case 1:
                 if (hasMinMax) {
-                    return new Double(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Double(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable, in.readDouble(), in.readDouble());
                 } else {
-                    return new Double(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Double(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable);
                 }
+                break;
             case 2:
                 if (hasMinMax) {
                     JodaDateFormatter formatter = Joda.forPattern(in.readString());
-                    return new Date(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Date(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable, formatter, in.readLong(), in.readLong());
                 } else {
-                    return new Date(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Date(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable);
                 }
+                break;
             case 3:
                 if (hasMinMax) {
-                    return new Text(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Text(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable, in.readBytesRef(), in.readBytesRef());
                 } else {
-                    return new Text(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Text(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable);
                 }
-
+                break;
             case 4: {
                 if (hasMinMax == false) {
-                    return new Ip(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new Ip(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable);
+                    break;
                 }
                 int l1 = in.readByte();
                 byte[] b1 = new byte[l1];
@@ -756,36 +1295,90 @@ public abstract class FieldStats<T> implements Writeable, ToXContent {
                 in.readBytes(b2, 0, l2);
                 InetAddress min = InetAddressPoint.decode(b1);
                 InetAddress max = InetAddressPoint.decode(b2);
-                return new Ip(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                stats = new Ip(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                     isSearchable, isAggregatable, min, max);
+                break;
             }
             case 5: {
                 if (hasMinMax == false) {
-                    return new GeoPoint(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    stats = new GeoPoint(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                        isSearchable, isAggregatable);
+                    break;
+                }
+                org.opensearch.common.geo.GeoPoint min =
+                    new org.opensearch.common.geo.GeoPoint(in.readDouble(), in.readDouble());
+                org.opensearch.common.geo.GeoPoint max =
+                    new org.opensearch.common.geo.GeoPoint(in.readDouble(), in.readDouble());
+                stats = new GeoPoint(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                    isSearchable, isAggregatable, min, max);
+                break;
+            }
+            case 6:
+                if (hasMinMax) {
+                    stats = new UnsignedLong(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                        isSearchable, isAggregatable, new BigInteger(in.readString()), new BigInteger(in.readString()));
+                } else {
+                    stats = new UnsignedLong(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                        isSearchable, isAggregatable);
+                }
+                break;
+            case 7:
+                if (hasMinMax) {
+                    DateFormatter formatter = DateFormatter.forPattern(in.readString());
+                    stats = new DateNanos(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                        isSearchable, isAggregatable, formatter, in.readLong(), in.readLong());
+                } else {
+                    stats = new DateNanos(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                        isSearchable, isAggregatable);
+                }
+                break;
+            case 8:
+                if (hasMinMax) {
+                    stats = new Boolean(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                        isSearchable, isAggregatable, in.readBoolean(), in.readBoolean());
+                } else {
+                    stats = new Boolean(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                        isSearchable, isAggregatable);
+                }
+                break;
+            case 9: {
+                if (hasMinMax == false) {
+                    stats = new GeoShape(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                         isSearchable, isAggregatable);
+                    break;
                 }
                 org.opensearch.common.geo.GeoPoint min =
                     new org.opensearch.common.geo.GeoPoint(in.readDouble(), in.readDouble());
                 org.opensearch.common.geo.GeoPoint max =
                     new org.opensearch.common.geo.GeoPoint(in.readDouble(), in.readDouble());
-                return new GeoPoint(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
+                stats = new GeoShape(maxDoc, docCount, sumDocFreq, sumTotalTermFreq,
                     isSearchable, isAggregatable, min, max);
+                break;
             }
             default:
                 throw new IllegalArgumentException("Unknown type.");
         }
+        stats.missing = in.readLong();
+        stats.diskUsage = in.readOptionalWriteable(DiskUsage::new);
+        stats.approximate = in.readBoolean();
+        stats.readOptionalStats(in);
+        return stats;
     }
 
     static final String TYPE_FIELD = new String("type");
     static final String MAX_DOC_FIELD = new String("max_doc");
     static final String DOC_COUNT_FIELD = new String("doc_count");
     static final String DENSITY_FIELD = new String("density");
+    static final String MISSING_FIELD = new String("missing");
+    static final String FRACTIONAL_DENSITY_FIELD = new String("fractional_density");
     static final String SUM_DOC_FREQ_FIELD = new String("sum_doc_freq");
     static final String SUM_TOTAL_TERM_FREQ_FIELD = new String("sum_total_term_freq");
+    static final String AVG_LENGTH_FIELD = new String("avg_length");
     static final String SEARCHABLE_FIELD = new String("searchable");
     static final String AGGREGATABLE_FIELD = new String("aggregatable");
     static final String MIN_VALUE_FIELD = new String("min_value");
     static final String MIN_VALUE_AS_STRING_FIELD = new String("min_value_as_string");
     static final String MAX_VALUE_FIELD = new String("max_value");
     static final String MAX_VALUE_AS_STRING_FIELD = new String("max_value_as_string");
+    static final String APPROXIMATE_FIELD = new String("approximate");
 }
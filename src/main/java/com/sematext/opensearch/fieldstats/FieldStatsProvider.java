@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.index.IndexReader;
+import org.opensearch.index.mapper.MappedFieldType;
+
+import java.io.IOException;
+
+/**
+ * Computes the stats of a field of a given type from the index metadata of a shard (point and terms
+ * statistics), without visiting documents.
+ *
+ * @see FieldStatsProviders
+ */
+@FunctionalInterface
+interface FieldStatsProvider {
+
+    /**
+     * @return the stats of <code>field</code> in <code>reader</code>
+     */
+    FieldStats<?> build(MappedFieldType fieldType, IndexReader reader, String field) throws IOException;
+}
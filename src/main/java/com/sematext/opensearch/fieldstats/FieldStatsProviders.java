@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.FloatPoint;
+import org.apache.lucene.document.InetAddressPoint;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.sandbox.document.BigIntegerPoint;
+import org.apache.lucene.sandbox.document.HalfFloatPoint;
+import org.opensearch.common.geo.GeoPoint;
+import org.opensearch.index.mapper.BooleanFieldMapper;
+import org.opensearch.index.mapper.DateFieldMapper;
+import org.opensearch.index.mapper.GeoPointFieldMapper;
+import org.opensearch.index.mapper.GeoShapeFieldMapper;
+import org.opensearch.index.mapper.IpFieldMapper;
+import org.opensearch.index.mapper.MappedFieldType;
+import org.opensearch.index.mapper.NumberFieldMapper;
+import org.opensearch.index.mapper.RangeFieldMapper;
+import org.opensearch.index.mapper.RangeType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Registry of the {@link FieldStatsProvider}s of the field types that have native stats.
+ *
+ * Providers are looked up by the class of the field type, walking up its class hierarchy, and the entry of a
+ * class resolves the provider of the concrete type when one class serves several types (numbers, dates and
+ * ranges). Field types of modules and plugins this plugin doesn't depend on are looked up by type name.
+ * Fields without a provider get string stats from their terms dictionary.
+ */
+final class FieldStatsProviders {
+
+    private static final Map<String, PointsProvider> NUMBERS = new HashMap<>();
+    private static final Map<RangeType, PointsProvider> RANGES = new EnumMap<>(RangeType.class);
+    private static final Map<Class<? extends MappedFieldType>, Function<MappedFieldType, FieldStatsProvider>> BY_CLASS =
+        new LinkedHashMap<>();
+    private static final Map<String, FieldStatsProvider> BY_TYPE_NAME = new HashMap<>();
+
+    private static final PointsProvider DATE = new PointsProvider(
+        (fieldType, maxDoc) -> new FieldStats.Date(maxDoc, -1L, -1L, -1L,
+            fieldType.isSearchable(), fieldType.isAggregatable()),
+        (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.Date(maxDoc, docCount, -1, size,
+            fieldType.isSearchable(), fieldType.isAggregatable(),
+            ((DateFieldMapper.DateFieldType) fieldType).dateTimeFormatter(),
+            LongPoint.decodeDimension(min, 0), LongPoint.decodeDimension(max, 0)));
+
+    private static final PointsProvider DATE_NANOS = new PointsProvider(
+        (fieldType, maxDoc) -> new FieldStats.DateNanos(maxDoc, 0, -1, -1,
+            fieldType.isSearchable(), fieldType.isAggregatable()),
+        (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.DateNanos(maxDoc, docCount, -1, size,
+            fieldType.isSearchable(), fieldType.isAggregatable(),
+            ((DateFieldMapper.DateFieldType) fieldType).dateTimeFormatter(),
+            LongPoint.decodeDimension(min, 0), LongPoint.decodeDimension(max, 0)));
+
+    private static final PointsProvider IP = new PointsProvider(
+        (fieldType, maxDoc) -> new FieldStats.Ip(maxDoc, 0, -1, -1,
+            fieldType.isSearchable(), fieldType.isAggregatable()),
+        (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.Ip(maxDoc, docCount, -1, size,
+            fieldType.isSearchable(), fieldType.isAggregatable(),
+            InetAddressPoint.decode(min), InetAddressPoint.decode(max)));
+
+    private static final PointsProvider GEO_POINT = new PointsProvider(
+        (fieldType, maxDoc) -> new FieldStats.GeoPoint(maxDoc, -1L, -1L, -1L,
+            fieldType.isSearchable(), fieldType.isAggregatable()),
+        (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.GeoPoint(maxDoc, docCount, -1L, size,
+            fieldType.isSearchable(), fieldType.isAggregatable(),
+            new GeoPoint(GeoEncodingUtils.decodeLatitude(min, 0), GeoEncodingUtils.decodeLongitude(min, Integer.BYTES)),
+            new GeoPoint(GeoEncodingUtils.decodeLatitude(max, 0), GeoEncodingUtils.decodeLongitude(max, Integer.BYTES))));
+
+    /**
+     * Shapes are indexed as triangles whose first four dimensions are the min lat, min lon, max lat and max lon
+     * of the triangle.
+     */
+    private static final PointsProvider GEO_SHAPE = new PointsProvider(
+        (fieldType, maxDoc) -> new FieldStats.GeoShape(maxDoc, 0, -1, -1,
+            fieldType.isSearchable(), fieldType.isAggregatable()),
+        (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.GeoShape(maxDoc, docCount, -1, size,
+            fieldType.isSearchable(), fieldType.isAggregatable(),
+            new GeoPoint(GeoEncodingUtils.decodeLatitude(min, 0), GeoEncodingUtils.decodeLongitude(min, Integer.BYTES)),
+            new GeoPoint(GeoEncodingUtils.decodeLatitude(max, 2 * Integer.BYTES),
+                GeoEncodingUtils.decodeLongitude(max, 3 * Integer.BYTES))));
+
+    private static final FieldStatsProvider BOOLEAN = (fieldType, reader, field) -> {
+        Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms == null) {
+            return new FieldStats.Boolean(reader.maxDoc(), 0, 0, 0, fieldType.isSearchable(), fieldType.isAggregatable());
+        }
+        return new FieldStats.Boolean(reader.maxDoc(), terms.getDocCount(), terms.getSumDocFreq(),
+            terms.getSumTotalTermFreq(), fieldType.isSearchable(), fieldType.isAggregatable(),
+            BooleanFieldMapper.Values.TRUE.bytesEquals(terms.getMin()),
+            BooleanFieldMapper.Values.TRUE.bytesEquals(terms.getMax()));
+    };
+
+    /**
+     * Scaled floats are indexed as long points of the scaled value, the field type scales them back for display.
+     */
+    private static final PointsProvider SCALED_FLOAT = new PointsProvider(
+        (fieldType, maxDoc) -> new FieldStats.Double(maxDoc, 0, -1, -1,
+            fieldType.isSearchable(), fieldType.isAggregatable()),
+        (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.Double(maxDoc, docCount, -1, size,
+            fieldType.isSearchable(), fieldType.isAggregatable(),
+            ((Number) fieldType.valueForDisplay(LongPoint.decodeDimension(min, 0))).doubleValue(),
+            ((Number) fieldType.valueForDisplay(LongPoint.decodeDimension(max, 0))).doubleValue()));
+
+    static {
+        NUMBERS.put(NumberFieldMapper.NumberType.LONG.typeName(), longPoints(LongPoint::decodeDimension, 0));
+        NUMBERS.put(NumberFieldMapper.NumberType.INTEGER.typeName(), longPoints(IntPoint::decodeDimension, 0));
+        NUMBERS.put(NumberFieldMapper.NumberType.SHORT.typeName(), longPoints(IntPoint::decodeDimension, 0));
+        NUMBERS.put(NumberFieldMapper.NumberType.BYTE.typeName(), longPoints(IntPoint::decodeDimension, 0));
+        NUMBERS.put(NumberFieldMapper.NumberType.HALF_FLOAT.typeName(), doublePoints(HalfFloatPoint::decodeDimension, 0));
+        NUMBERS.put(NumberFieldMapper.NumberType.FLOAT.typeName(), doublePoints(FloatPoint::decodeDimension, 0));
+        NUMBERS.put(NumberFieldMapper.NumberType.DOUBLE.typeName(), doublePoints(DoublePoint::decodeDimension, 0));
+        NUMBERS.put(NumberFieldMapper.NumberType.UNSIGNED_LONG.typeName(), new PointsProvider(
+            (fieldType, maxDoc) -> new FieldStats.UnsignedLong(maxDoc, 0, -1, -1,
+                fieldType.isSearchable(), fieldType.isAggregatable()),
+            (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.UnsignedLong(maxDoc, docCount, -1, size,
+                fieldType.isSearchable(), fieldType.isAggregatable(),
+                BigIntegerPoint.decodeDimension(min, 0), BigIntegerPoint.decodeDimension(max, 0))));
+
+        // range points hold the lower bound in the first dimension and the upper bound in the second one
+        RANGES.put(RangeType.INTEGER, longPoints(IntPoint::decodeDimension, Integer.BYTES));
+        RANGES.put(RangeType.LONG, longPoints(LongPoint::decodeDimension, Long.BYTES));
+        RANGES.put(RangeType.FLOAT, doublePoints(FloatPoint::decodeDimension, Float.BYTES));
+        RANGES.put(RangeType.DOUBLE, doublePoints(DoublePoint::decodeDimension, Double.BYTES));
+        RANGES.put(RangeType.DATE, new PointsProvider(
+            (fieldType, maxDoc) -> new FieldStats.Date(maxDoc, 0, -1, -1,
+                fieldType.isSearchable(), fieldType.isAggregatable()),
+            (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.Date(maxDoc, docCount, -1, size,
+                fieldType.isSearchable(), fieldType.isAggregatable(),
+                ((RangeFieldMapper.RangeFieldType) fieldType).dateTimeFormatter(),
+                LongPoint.decodeDimension(min, 0), LongPoint.decodeDimension(max, Long.BYTES))));
+        RANGES.put(RangeType.IP, new PointsProvider(
+            (fieldType, maxDoc) -> new FieldStats.Ip(maxDoc, 0, -1, -1,
+                fieldType.isSearchable(), fieldType.isAggregatable()),
+            (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.Ip(maxDoc, docCount, -1, size,
+                fieldType.isSearchable(), fieldType.isAggregatable(),
+                InetAddressPoint.decode(Arrays.copyOfRange(min, 0, InetAddressPoint.BYTES)),
+                InetAddressPoint.decode(Arrays.copyOfRange(max, InetAddressPoint.BYTES, 2 * InetAddressPoint.BYTES)))));
+
+        BY_CLASS.put(NumberFieldMapper.NumberFieldType.class, fieldType -> NUMBERS.get(fieldType.typeName()));
+        BY_CLASS.put(DateFieldMapper.DateFieldType.class,
+            fieldType -> DateFieldMapper.DATE_NANOS_CONTENT_TYPE.equals(fieldType.typeName()) ? DATE_NANOS : DATE);
+        BY_CLASS.put(IpFieldMapper.IpFieldType.class, fieldType -> IP);
+        BY_CLASS.put(GeoPointFieldMapper.GeoPointFieldType.class, fieldType -> GEO_POINT);
+        BY_CLASS.put(GeoShapeFieldMapper.GeoShapeFieldType.class, fieldType -> GEO_SHAPE);
+        BY_CLASS.put(RangeFieldMapper.RangeFieldType.class,
+            fieldType -> RANGES.get(((RangeFieldMapper.RangeFieldType) fieldType).rangeType()));
+        BY_CLASS.put(BooleanFieldMapper.BooleanFieldType.class, fieldType -> BOOLEAN);
+
+        // mapper-extras module
+        BY_TYPE_NAME.put("scaled_float", SCALED_FLOAT);
+    }
+
+    private FieldStatsProviders() {
+    }
+
+    /**
+     * @return the provider of <code>fieldType</code>, or <code>null</code> if the type has no native stats
+     */
+    static FieldStatsProvider get(MappedFieldType fieldType) {
+        for (Class<?> clazz = fieldType.getClass(); clazz != null && clazz != MappedFieldType.class;
+                clazz = clazz.getSuperclass()) {
+            Function<MappedFieldType, FieldStatsProvider> resolver = BY_CLASS.get(clazz);
+            if (resolver != null) {
+                return resolver.apply(fieldType);
+            }
+        }
+        return BY_TYPE_NAME.get(fieldType.typeName());
+    }
+
+    private static PointsProvider longPoints(LongDecoder decoder, int maxOffset) {
+        return new PointsProvider(
+            (fieldType, maxDoc) -> new FieldStats.Long(maxDoc, 0, -1, -1,
+                fieldType.isSearchable(), fieldType.isAggregatable()),
+            (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.Long(maxDoc, docCount, -1, size,
+                fieldType.isSearchable(), fieldType.isAggregatable(),
+                decoder.decode(min, 0), decoder.decode(max, maxOffset)));
+    }
+
+    private static PointsProvider doublePoints(DoubleDecoder decoder, int maxOffset) {
+        return new PointsProvider(
+            (fieldType, maxDoc) -> new FieldStats.Double(maxDoc, 0, -1, -1,
+                fieldType.isSearchable(), fieldType.isAggregatable()),
+            (fieldType, maxDoc, docCount, size, min, max) -> new FieldStats.Double(maxDoc, docCount, -1, size,
+                fieldType.isSearchable(), fieldType.isAggregatable(),
+                decoder.decode(min, 0), decoder.decode(max, maxOffset)));
+    }
+
+    @FunctionalInterface
+    private interface LongDecoder {
+        long decode(byte[] packedValue, int offset);
+    }
+
+    @FunctionalInterface
+    private interface DoubleDecoder {
+        double decode(byte[] packedValue, int offset);
+    }
+
+    @FunctionalInterface
+    interface EmptyStats {
+        FieldStats<?> build(MappedFieldType fieldType, long maxDoc);
+    }
+
+    @FunctionalInterface
+    interface PackedValuesStats {
+        FieldStats<?> build(MappedFieldType fieldType, long maxDoc, long docCount, long size, byte[] min, byte[] max);
+    }
+
+    /**
+     * Provider of fields indexed as points, which decodes the min and max values from the min and max packed values
+     * of the points. The decoding is exposed so that bounds computed some other way can be turned into stats too.
+     */
+    static final class PointsProvider implements FieldStatsProvider {
+        private final EmptyStats empty;
+        private final PackedValuesStats packedValues;
+
+        PointsProvider(EmptyStats empty, PackedValuesStats packedValues) {
+            this.empty = empty;
+            this.packedValues = packedValues;
+        }
+
+        @Override
+        public FieldStats<?> build(MappedFieldType fieldType, IndexReader reader, String field) throws IOException {
+            long size = PointValues.size(reader, field);
+            if (size == 0) {
+                return empty(fieldType, reader.maxDoc());
+            }
+            return fromPackedValues(fieldType, reader.maxDoc(), PointValues.getDocCount(reader, field), size,
+                PointValues.getMinPackedValue(reader, field), PointValues.getMaxPackedValue(reader, field));
+        }
+
+        /**
+         * @return stats without min and max values
+         */
+        FieldStats<?> empty(MappedFieldType fieldType, long maxDoc) {
+            return empty.build(fieldType, maxDoc);
+        }
+
+        /**
+         * @return stats whose min and max values are decoded from the given packed values
+         */
+        FieldStats<?> fromPackedValues(MappedFieldType fieldType, long maxDoc, long docCount, long size,
+                                       byte[] min, byte[] max) {
+            return packedValues.build(fieldType, maxDoc, docCount, size, min, max);
+        }
+    }
+}
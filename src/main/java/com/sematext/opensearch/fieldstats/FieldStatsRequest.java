@@ -16,26 +16,73 @@ package com.sematext.opensearch.fieldstats;
 
 import org.opensearch.action.ActionRequestValidationException;
 import org.opensearch.action.ValidateActions;
+import org.opensearch.action.search.SearchContextId;
 import org.opensearch.action.support.IndicesOptions;
 import org.opensearch.action.support.broadcast.BroadcastRequest;
+import org.opensearch.common.unit.TimeValue;
 import org.opensearch.core.common.Strings;
 import org.opensearch.core.common.io.stream.StreamInput;
 import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.core.tasks.TaskId;
 import org.opensearch.core.xcontent.XContentParser;
 import org.opensearch.core.xcontent.XContentParser.Token;
+import org.opensearch.index.query.AbstractQueryBuilder;
+import org.opensearch.index.query.QueryBuilder;
+import org.opensearch.tasks.Task;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 public class FieldStatsRequest extends BroadcastRequest<FieldStatsRequest> {
     public static final String DEFAULT_LEVEL = "cluster";
+    public static final int DEFAULT_SIZE = 100;
+
+    /**
+     * Statistics that are more expensive than the metadata lookups and are only computed on demand.
+     */
+    public static final Set<String> OPTIONAL_STATS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        PrefixDistribution.NAME,
+        DiskUsage.NAME,
+        LengthHistogram.NAME,
+        GeoSummary.NAME
+    )));
 
     private String[] fields = Strings.EMPTY_ARRAY;
     private String level = DEFAULT_LEVEL;
     private IndexConstraint[] indexConstraints = new IndexConstraint[0];
     private boolean useCache = true;
+    private String[] stats = Strings.EMPTY_ARRAY;
+    private int prefixLength = PrefixDistribution.DEFAULT_PREFIX_LENGTH;
+    private boolean expandFlatObjects = false;
+    private QueryBuilder query;
+    private Map<String, String> probes = Collections.emptyMap();
+    private int from = 0;
+    private int size = DEFAULT_SIZE;
+    private TimeValue timeout;
+    private boolean hedge = false;
+    private boolean dataStreamOrder = false;
+    private String since;
+    private TimeValue waitForChange;
+    private String pit;
+    private TimeValue pitKeepAlive;
+    // the decoded pit, on the coordinating node only
+    private SearchContextId pitContextId;
+    // when the execution the timeout applies to started, on the coordinating node only
+    private long startNanos;
+    // the memoized stats of the shards of the current execution, on the coordinating node only
+    private Map<ShardId, FieldStatsShardResponse> memoizedShards = Collections.emptyMap();
+    private String routing;
+    private String preference;
 
     public FieldStatsRequest(String... indices) {
         super(indices);
@@ -51,12 +98,40 @@ public class FieldStatsRequest extends BroadcastRequest<FieldStatsRequest> {
         }
         level = in.readString();
         useCache = in.readBoolean();
+        stats = in.readStringArray();
+        prefixLength = in.readVInt();
+        expandFlatObjects = in.readBoolean();
+        query = in.readOptionalNamedWriteable(QueryBuilder.class);
+        probes = in.readMap(StreamInput::readString, StreamInput::readString);
+        from = in.readVInt();
+        size = in.readVInt();
+        timeout = in.readOptionalTimeValue();
+        hedge = in.readBoolean();
+        dataStreamOrder = in.readBoolean();
+        since = in.readOptionalString();
+        waitForChange = in.readOptionalTimeValue();
+        pit = in.readOptionalString();
+        pitKeepAlive = in.readOptionalTimeValue();
+        routing = in.readOptionalString();
+        preference = in.readOptionalString();
     }
 
     public FieldStatsRequest(String[] indices, IndicesOptions indicesOptions) {
         super(indices, indicesOptions);
     }
 
+    /**
+     * Closed indices are forbidden by default. Requests that ask for them are answered from their archived stats
+     * ({@link ArchivedFieldStats}).
+     *
+     * @return the options, with closed indices allowed
+     */
+    public static IndicesOptions allowClosedIndices(IndicesOptions options) {
+        return IndicesOptions.fromOptions(options.ignoreUnavailable(), options.allowNoIndices(),
+            options.expandWildcardsOpen(), options.expandWildcardsClosed(), options.expandWildcardsHidden(),
+            options.allowAliasesToMultipleIndices(), false, options.ignoreAliases(), options.ignoreThrottled());
+    }
+
     public String[] getFields() {
         return fields;
     }
@@ -72,10 +147,247 @@ public class FieldStatsRequest extends BroadcastRequest<FieldStatsRequest> {
         this.useCache = useCache;
     }
 
+    /**
+     * @return <code>false</code> if the response must not be served from or stored in the response cache of the
+     * coordinating node
+     */
     public boolean shouldUseCache() {
         return useCache;
     }
 
+    /**
+     * @return the names of the optional statistics to compute in addition to the default ones
+     */
+    public String[] getStats() {
+        return stats;
+    }
+
+    public void setStats(String[] stats) {
+        if (stats == null) {
+            throw new NullPointerException("specified stats can't be null");
+        }
+        this.stats = stats;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    public void setPrefixLength(int prefixLength) {
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * @return <code>true</code> if the keys of flat_object fields should be reported as sub-fields
+     */
+    public boolean shouldExpandFlatObjects() {
+        return expandFlatObjects;
+    }
+
+    public void setExpandFlatObjects(boolean expandFlatObjects) {
+        this.expandFlatObjects = expandFlatObjects;
+    }
+
+    /**
+     * @return the query that restricts the documents stats are computed over, or <code>null</code> for all documents
+     */
+    public QueryBuilder getQuery() {
+        return query;
+    }
+
+    public void setQuery(QueryBuilder query) {
+        this.query = query;
+    }
+
+    /**
+     * @return the terms to probe by field name, only the number of documents holding each term is returned for them
+     */
+    public Map<String, String> getProbes() {
+        return probes;
+    }
+
+    public void setProbes(Map<String, String> probes) {
+        if (probes == null) {
+            throw new NullPointerException("specified probes can't be null");
+        }
+        this.probes = probes;
+    }
+
+    /**
+     * @return the offset of the first shard or segment entry to return with the shards and segments levels
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    public void setFrom(int from) {
+        this.from = from;
+    }
+
+    /**
+     * @return the number of shard or segment entries to return with the shards and segments levels
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return how long to wait for the shards before returning the stats of the shards that answered, or
+     * <code>null</code> to wait for all shards
+     */
+    public TimeValue getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(TimeValue timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts the timeout of an execution of the request on the coordinating node.
+     */
+    void setStartNanos(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * @param memoizedShards the memoized stats of the shards the current execution sends requests to, which the
+     *                       shard requests let the copies they were computed from confirm instead of recomputing
+     */
+    void setMemoizedShards(Map<ShardId, FieldStatsShardResponse> memoizedShards) {
+        this.memoizedShards = memoizedShards;
+    }
+
+    /**
+     * @return the memoized stats of the shard, or <code>null</code>
+     */
+    FieldStatsShardResponse getMemoizedShard(ShardId shardId) {
+        return memoizedShards.get(shardId);
+    }
+
+    /**
+     * @return what is left of the timeout of the current execution, which shard requests sent later, like retries
+     * on other copies and hedged requests, get less of, or <code>null</code> without a timeout
+     */
+    TimeValue getRemainingTimeout() {
+        if (timeout == null) {
+            return null;
+        }
+        return TimeValue.timeValueNanos(Math.max(0, timeout.nanos() - (System.nanoTime() - startNanos)));
+    }
+
+    /**
+     * @return <code>true</code> if a shard request that is slow to answer should also be sent to another copy of
+     * the shard
+     */
+    public boolean shouldHedge() {
+        return hedge;
+    }
+
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    /**
+     * @return <code>true</code> if the backing indices of data streams may be assumed to hold increasing timestamps
+     * with their generation, so that index constraints on the timestamp field exclude the backing indices that are
+     * older or newer than one that doesn't match
+     */
+    public boolean isDataStreamOrdered() {
+        return dataStreamOrder;
+    }
+
+    public void setDataStreamOrder(boolean dataStreamOrder) {
+        this.dataStreamOrder = dataStreamOrder;
+    }
+
+    /**
+     * @return the change token of an earlier <code>indices</code> level response, so that only the indices whose
+     * stats may have changed since are returned, or <code>null</code>
+     */
+    public String getSince() {
+        return since;
+    }
+
+    public void setSince(String since) {
+        this.since = since;
+    }
+
+    /**
+     * @return how long the request waits for the <code>max_value</code> or <code>doc_count</code> of a field to
+     * change before it returns the current stats anyway, or <code>null</code> to return them right away
+     */
+    public TimeValue getWaitForChange() {
+        return waitForChange;
+    }
+
+    public void setWaitForChange(TimeValue waitForChange) {
+        this.waitForChange = waitForChange;
+    }
+
+    /**
+     * @return the id of a point in time whose readers the stats are computed from, instead of the current readers
+     * of the shards, or <code>null</code>. The indices of the request are those of the point in time.
+     */
+    public String getPit() {
+        return pit;
+    }
+
+    public void setPit(String pit) {
+        this.pit = pit;
+    }
+
+    /**
+     * @return how long the point in time is kept alive after the request, like for searches, or <code>null</code> to
+     * leave its keep alive as is
+     */
+    public TimeValue getPitKeepAlive() {
+        return pitKeepAlive;
+    }
+
+    public void setPitKeepAlive(TimeValue pitKeepAlive) {
+        this.pitKeepAlive = pitKeepAlive;
+    }
+
+    /**
+     * @return the pit decoded by the coordinating node, which the shard requests are routed by, or <code>null</code>
+     */
+    SearchContextId getPitContextId() {
+        return pitContextId;
+    }
+
+    void setPitContextId(SearchContextId pitContextId) {
+        this.pitContextId = pitContextId;
+    }
+
+    /**
+     * @return the comma separated routing values that limit the request to the shards they route to, or
+     * <code>null</code>
+     */
+    public String getRouting() {
+        return routing;
+    }
+
+    public void setRouting(String routing) {
+        this.routing = routing;
+    }
+
+    /**
+     * @return the preference that picks the shard copies to ask, like the search preference, or <code>null</code>
+     * to prefer the same copy of each shard across requests
+     */
+    public String getPreference() {
+        return preference;
+    }
+
+    public void setPreference(String preference) {
+        this.preference = preference;
+    }
+
     public IndexConstraint[] getIndexConstraints() {
         return indexConstraints;
     }
@@ -90,6 +402,7 @@ public class FieldStatsRequest extends BroadcastRequest<FieldStatsRequest> {
     public void source(XContentParser parser) throws IOException {
         List<IndexConstraint> indexConstraints = new ArrayList<>();
         List<String> fields = new ArrayList<>();
+        List<String> stats = null;
         String fieldName = null;
         Token token = parser.nextToken();
         assert token == Token.START_OBJECT;
@@ -101,19 +414,46 @@ public class FieldStatsRequest extends BroadcastRequest<FieldStatsRequest> {
                 case START_OBJECT:
                     if ("index_constraints".equals(fieldName)) {
                         parseIndexConstraints(indexConstraints, parser);
+                    } else if ("query".equals(fieldName)) {
+                        query = AbstractQueryBuilder.parseInnerQueryBuilder(parser);
+                    } else if ("probe".equals(fieldName)) {
+                        parseProbes(probes = new LinkedHashMap<>(), parser);
+                    } else if ("pit".equals(fieldName)) {
+                        parsePit(parser);
                     } else {
                         throw new IllegalArgumentException("unknown field [" + fieldName + "]");
                     }
                     break;
                 case START_ARRAY:
                     if ("fields".equals(fieldName)) {
-                        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
-                            if (token.isValue()) {
-                                fields.add(parser.text());
-                            } else {
-                                throw new IllegalArgumentException("unexpected token [" + token + "]");
-                            }
-                        }
+                        parseStringArray(fields, parser);
+                    } else if ("stats".equals(fieldName)) {
+                        parseStringArray(stats = new ArrayList<>(), parser);
+                    } else {
+                        throw new IllegalArgumentException("unknown field [" + fieldName + "]");
+                    }
+                    break;
+                case VALUE_NUMBER:
+                case VALUE_STRING:
+                case VALUE_BOOLEAN:
+                    if ("prefix_length".equals(fieldName)) {
+                        prefixLength = parser.intValue();
+                    } else if ("from".equals(fieldName)) {
+                        from = parser.intValue();
+                    } else if ("size".equals(fieldName)) {
+                        size = parser.intValue();
+                    } else if ("expand_flat_objects".equals(fieldName)) {
+                        expandFlatObjects = parser.booleanValue();
+                    } else if ("hedge".equals(fieldName)) {
+                        hedge = parser.booleanValue();
+                    } else if ("data_stream_order".equals(fieldName)) {
+                        dataStreamOrder = parser.booleanValue();
+                    } else if ("since".equals(fieldName)) {
+                        since = parser.text();
+                    } else if ("wait_for_change".equals(fieldName)) {
+                        waitForChange = TimeValue.parseTimeValue(parser.text(), "wait_for_change");
+                    } else if ("timeout".equals(fieldName)) {
+                        timeout = TimeValue.parseTimeValue(parser.text(), "timeout");
                     } else {
                         throw new IllegalArgumentException("unknown field [" + fieldName + "]");
                     }
@@ -124,6 +464,48 @@ public class FieldStatsRequest extends BroadcastRequest<FieldStatsRequest> {
         }
         this.fields = fields.toArray(new String[fields.size()]);
         this.indexConstraints = indexConstraints.toArray(new IndexConstraint[indexConstraints.size()]);
+        if (stats != null) {
+            this.stats = stats.toArray(new String[stats.size()]);
+        }
+    }
+
+    private static void parseStringArray(List<String> values, XContentParser parser) throws IOException {
+        Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token.isValue()) {
+                values.add(parser.text());
+            } else {
+                throw new IllegalArgumentException("unexpected token [" + token + "]");
+            }
+        }
+    }
+
+    private void parsePit(XContentParser parser) throws IOException {
+        String field = null;
+        for (Token token = parser.nextToken(); token != Token.END_OBJECT; token = parser.nextToken()) {
+            if (token == Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if (token.isValue() && "id".equals(field)) {
+                pit = parser.text();
+            } else if (token.isValue() && "keep_alive".equals(field)) {
+                pitKeepAlive = TimeValue.parseTimeValue(parser.text(), "keep_alive");
+            } else {
+                throw new IllegalArgumentException("unknown field [" + field + "] of [pit]");
+            }
+        }
+    }
+
+    private static void parseProbes(Map<String, String> probes, XContentParser parser) throws IOException {
+        String field = null;
+        for (Token token = parser.nextToken(); token != Token.END_OBJECT; token = parser.nextToken()) {
+            if (token == Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if (token.isValue()) {
+                probes.put(field, parser.text());
+            } else {
+                throw new IllegalArgumentException("unexpected token [" + token + "]");
+            }
+        }
     }
 
     private static void parseIndexConstraints(List<IndexConstraint> indexConstraints,
@@ -180,31 +562,151 @@ public class FieldStatsRequest extends BroadcastRequest<FieldStatsRequest> {
         this.level = level;
     }
 
+    @Override
+    public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+        return new FieldStatsTask(id, type, action, getDescription(), parentTaskId, headers);
+    }
+
+    @Override
+    public String getDescription() {
+        return "indices[" + String.join(",", indices()) + "], fields["
+            + (fields == null ? "" : String.join(",", fields)) + "], level[" + level + "]";
+    }
+
     @Override
     public ActionRequestValidationException validate() {
         ActionRequestValidationException validationException = super.validate();
-        if ("cluster".equals(level) == false && "indices".equals(level) == false) {
+        if ("cluster".equals(level) == false && "indices".equals(level) == false
+                && "shards".equals(level) == false && "segments".equals(level) == false) {
             validationException =
                 ValidateActions.addValidationError("invalid level option [" + level + "]", validationException);
         }
-        if (fields == null || fields.length == 0) {
+        if (from < 0 || size < 0) {
+            validationException = ValidateActions.addValidationError("from and size must not be negative",
+                validationException);
+        }
+        if (probes.isEmpty() == false && ("shards".equals(level) || "segments".equals(level))) {
+            validationException = ValidateActions.addValidationError("probe isn't supported with level ["
+                + level + "]", validationException);
+        }
+        if (query != null && "segments".equals(level)) {
+            validationException = ValidateActions.addValidationError("query isn't supported with level ["
+                + level + "]", validationException);
+        }
+        if (since != null && "indices".equals(level) == false) {
+            validationException = ValidateActions.addValidationError("since isn't supported with level ["
+                + level + "]", validationException);
+        } else if (since != null) {
+            try {
+                ChangeToken.parse(since);
+            } catch (IllegalArgumentException e) {
+                validationException = ValidateActions.addValidationError(e.getMessage(), validationException);
+            }
+        }
+        if (waitForChange != null && waitForChange.nanos() <= 0) {
+            validationException = ValidateActions.addValidationError("wait_for_change must be positive",
+                validationException);
+        }
+        if (waitForChange != null && ("shards".equals(level) || "segments".equals(level))) {
+            validationException = ValidateActions.addValidationError("wait_for_change isn't supported with level ["
+                + level + "]", validationException);
+        }
+        if (pit != null) {
+            if (indices().length > 0) {
+                validationException = ValidateActions.addValidationError("indices can't be specified with a pit, "
+                    + "the indices of the pit are used", validationException);
+            }
+            if (routing != null || preference != null) {
+                validationException = ValidateActions.addValidationError("routing and preference can't be used "
+                    + "with a pit, whose shard copies are fixed", validationException);
+            }
+            if (waitForChange != null) {
+                validationException = ValidateActions.addValidationError(
+                    "wait_for_change can't be used with a pit, whose readers don't change", validationException);
+            }
+        }
+        if (timeout != null && timeout.nanos() <= 0) {
+            validationException = ValidateActions.addValidationError("timeout must be positive",
+                validationException);
+        }
+        if ((fields == null || fields.length == 0) && probes.isEmpty()) {
             validationException = ValidateActions.addValidationError("no fields specified", validationException);
         }
+        for (String stat : stats) {
+            if (OPTIONAL_STATS.contains(stat) == false) {
+                validationException =
+                    ValidateActions.addValidationError("unknown stat [" + stat + "]", validationException);
+            }
+        }
+        if (prefixLength < PrefixDistribution.MIN_PREFIX_LENGTH || prefixLength > PrefixDistribution.MAX_PREFIX_LENGTH) {
+            validationException = ValidateActions.addValidationError("prefix_length must be between ["
+                + PrefixDistribution.MIN_PREFIX_LENGTH + "] and [" + PrefixDistribution.MAX_PREFIX_LENGTH
+                + "] but was [" + prefixLength + "]", validationException);
+        }
         return validationException;
     }
 
-    @Override
-    public void writeTo(StreamOutput out) throws IOException {
-        super.writeTo(out);
-        out.writeStringArrayNullable(fields);
+    /**
+     * Writes the options that the response depends on in a canonical form, so that requests asking for the same
+     * stats share an entry in the response cache. Timeout and hedging only change how the response is computed and
+     * are left out. New options that change the response must be added here.
+     */
+    void writeCacheKey(StreamOutput out) throws IOException {
+        out.writeStringArray(indices());
+        indicesOptions().writeIndicesOptions(out);
+        String[] sortedFields = fields.clone();
+        Arrays.sort(sortedFields);
+        out.writeStringArray(sortedFields);
         out.writeVInt(indexConstraints.length);
         for (IndexConstraint indexConstraint : indexConstraints) {
             out.writeString(indexConstraint.getField());
             out.writeByte(indexConstraint.getProperty().getId());
             out.writeByte(indexConstraint.getComparison().getId());
             out.writeString(indexConstraint.getValue());
+            out.writeOptionalString(indexConstraint.getOptionalFormat());
+        }
+        out.writeString(level);
+        String[] sortedStats = stats.clone();
+        Arrays.sort(sortedStats);
+        out.writeStringArray(sortedStats);
+        out.writeVInt(prefixLength);
+        out.writeBoolean(expandFlatObjects);
+        out.writeOptionalNamedWriteable(query);
+        out.writeMap(new TreeMap<>(probes), StreamOutput::writeString, StreamOutput::writeString);
+        out.writeVInt(from);
+        out.writeVInt(size);
+        out.writeOptionalString(routing);
+        out.writeOptionalString(preference);
+        out.writeBoolean(dataStreamOrder);
+        out.writeOptionalString(since);
+        out.writeOptionalString(pit);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringArrayNullable(fields);
+        out.writeVInt(indexConstraints.length);
+        for (IndexConstraint indexConstraint : indexConstraints) {
+            indexConstraint.writeTo(out);
         }
         out.writeString(level);
         out.writeBoolean(useCache);
+        out.writeStringArray(stats);
+        out.writeVInt(prefixLength);
+        out.writeBoolean(expandFlatObjects);
+        out.writeOptionalNamedWriteable(query);
+        out.writeMap(probes, StreamOutput::writeString, StreamOutput::writeString);
+        out.writeVInt(from);
+        out.writeVInt(size);
+        out.writeOptionalTimeValue(timeout);
+        out.writeBoolean(hedge);
+        out.writeBoolean(dataStreamOrder);
+        out.writeOptionalString(since);
+        out.writeOptionalTimeValue(waitForChange);
+        out.writeOptionalString(pit);
+        out.writeOptionalTimeValue(pitKeepAlive);
+        out.writeOptionalString(routing);
+        out.writeOptionalString(preference);
     }
 }
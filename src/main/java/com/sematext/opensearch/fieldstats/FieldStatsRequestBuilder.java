@@ -16,6 +16,10 @@ package com.sematext.opensearch.fieldstats;
 
 import org.opensearch.action.support.broadcast.BroadcastOperationRequestBuilder;
 import org.opensearch.client.OpenSearchClient;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.index.query.QueryBuilder;
+
+import java.util.Map;
 
 
 public class FieldStatsRequestBuilder extends
@@ -40,6 +44,82 @@ public class FieldStatsRequestBuilder extends
         return this;
     }
 
+    public FieldStatsRequestBuilder setStats(String... stats) {
+        request().setStats(stats);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setPrefixLength(int prefixLength) {
+        request().setPrefixLength(prefixLength);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setExpandFlatObjects(boolean expandFlatObjects) {
+        request().setExpandFlatObjects(expandFlatObjects);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setQuery(QueryBuilder query) {
+        request().setQuery(query);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setProbes(Map<String, String> probes) {
+        request().setProbes(probes);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setFrom(int from) {
+        request().setFrom(from);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setSize(int size) {
+        request().setSize(size);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setTimeout(TimeValue timeout) {
+        request().setTimeout(timeout);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setHedge(boolean hedge) {
+        request().setHedge(hedge);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setDataStreamOrder(boolean dataStreamOrder) {
+        request().setDataStreamOrder(dataStreamOrder);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setSince(String since) {
+        request().setSince(since);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setWaitForChange(TimeValue waitForChange) {
+        request().setWaitForChange(waitForChange);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setPit(String pit, TimeValue keepAlive) {
+        request().setPit(pit);
+        request().setPitKeepAlive(keepAlive);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setRouting(String routing) {
+        request().setRouting(routing);
+        return this;
+    }
+
+    public FieldStatsRequestBuilder setPreference(String preference) {
+        request().setPreference(preference);
+        return this;
+    }
+
     public FieldStatsRequestBuilder setUseCache(boolean useCache) {
         request().setUseCache(useCache);
         return this;
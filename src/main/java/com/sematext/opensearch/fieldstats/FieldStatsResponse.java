@@ -21,6 +21,7 @@ import org.opensearch.core.common.io.stream.StreamOutput;
 import org.opensearch.core.xcontent.XContentBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,15 @@ import java.util.Map;
 public class FieldStatsResponse extends BroadcastResponse {
     private Map<String, Map<String, FieldStats<?>>> indicesMergedFieldStats = new HashMap<>();
     private Map<String, String> conflicts = new HashMap<>();
+    private Map<String, Map<String, Long>> indicesProbes = new HashMap<>();
+    private List<ShardFieldStats> entries = new ArrayList<>();
+    private int totalEntries;
+    private boolean timedOut;
+    private int hedgedShards;
+    private int hedgeWins;
+    private String changeToken;
+    private List<String> removedIndices = new ArrayList<>();
+    private boolean changed;
 
     public FieldStatsResponse() {
     }
@@ -37,9 +47,45 @@ public class FieldStatsResponse extends BroadcastResponse {
                               List<DefaultShardOperationFailedException> shardFailures,
                               Map<String, Map<String, FieldStats<?>>> indicesMergedFieldStats,
                               Map<String, String> conflicts) {
+        this(totalShards, successfulShards, failedShards, shardFailures, indicesMergedFieldStats, conflicts,
+            new HashMap<>());
+    }
+
+    public FieldStatsResponse(int totalShards, int successfulShards, int failedShards,
+                              List<DefaultShardOperationFailedException> shardFailures,
+                              Map<String, Map<String, FieldStats<?>>> indicesMergedFieldStats,
+                              Map<String, String> conflicts, Map<String, Map<String, Long>> indicesProbes) {
+        this(totalShards, successfulShards, failedShards, shardFailures, indicesMergedFieldStats, conflicts,
+            indicesProbes, new ArrayList<>(), 0);
+    }
+
+    public FieldStatsResponse(int totalShards, int successfulShards, int failedShards,
+                              List<DefaultShardOperationFailedException> shardFailures,
+                              Map<String, Map<String, FieldStats<?>>> indicesMergedFieldStats,
+                              Map<String, String> conflicts, Map<String, Map<String, Long>> indicesProbes,
+                              List<ShardFieldStats> entries, int totalEntries) {
+        this(totalShards, successfulShards, failedShards, shardFailures, indicesMergedFieldStats, conflicts,
+            indicesProbes, entries, totalEntries, false);
+    }
+
+    /**
+     * @param entries the requested page of shard or segment entries, for the shards and segments levels
+     * @param totalEntries the number of shard or segment entries across all pages
+     * @param timedOut whether the timeout of the request expired, so that some shards or optional statistics are
+     *                 missing from the response
+     */
+    public FieldStatsResponse(int totalShards, int successfulShards, int failedShards,
+                              List<DefaultShardOperationFailedException> shardFailures,
+                              Map<String, Map<String, FieldStats<?>>> indicesMergedFieldStats,
+                              Map<String, String> conflicts, Map<String, Map<String, Long>> indicesProbes,
+                              List<ShardFieldStats> entries, int totalEntries, boolean timedOut) {
         super(totalShards, successfulShards, failedShards, shardFailures);
         this.indicesMergedFieldStats = indicesMergedFieldStats;
         this.conflicts = conflicts;
+        this.indicesProbes = indicesProbes;
+        this.entries = entries;
+        this.totalEntries = totalEntries;
+        this.timedOut = timedOut;
     }
 
     public FieldStatsResponse(StreamInput in) throws IOException {
@@ -64,7 +110,20 @@ public class FieldStatsResponse extends BroadcastResponse {
             String value = in.readString();
             conflicts.put(key, value);
         }
-
+        size = in.readVInt();
+        indicesProbes = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = in.readString();
+            indicesProbes.put(key, in.readMap(StreamInput::readString, StreamInput::readVLong));
+        }
+        entries = in.readList(ShardFieldStats::new);
+        totalEntries = in.readVInt();
+        timedOut = in.readBoolean();
+        hedgedShards = in.readVInt();
+        hedgeWins = in.readVInt();
+        changeToken = in.readOptionalString();
+        removedIndices = in.readStringList();
+        changed = in.readBoolean();
     }
 
     @Nullable
@@ -80,6 +139,88 @@ public class FieldStatsResponse extends BroadcastResponse {
         return indicesMergedFieldStats;
     }
 
+    /**
+     * @return the number of documents holding each probed term, by index name (or <code>_all</code>) and field name.
+     * Only indices that hold at least one of the terms are included.
+     */
+    public Map<String, Map<String, Long>> getIndicesProbes() {
+        return indicesProbes;
+    }
+
+    /**
+     * @return the requested page of shard or segment entries, in index, shard and segment generation order
+     */
+    public List<ShardFieldStats> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the number of shard or segment entries across all pages
+     */
+    public int getTotalEntries() {
+        return totalEntries;
+    }
+
+    /**
+     * @return <code>true</code> if the timeout of the request expired before all shards answered or computed their
+     * optional statistics. The shards that didn't answer in time are reported as failed.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return the number of shard requests that were hedged to another copy of the shard
+     */
+    public int getHedgedShards() {
+        return hedgedShards;
+    }
+
+    /**
+     * @return the number of hedged shard requests where the other copy answered first
+     */
+    public int getHedgeWins() {
+        return hedgeWins;
+    }
+
+    void setHedgeStats(int hedgedShards, int hedgeWins) {
+        this.hedgedShards = hedgedShards;
+        this.hedgeWins = hedgeWins;
+    }
+
+    /**
+     * @return the token that a later <code>indices</code> level request passes as <code>since</code> to only get the
+     * indices whose stats may have changed, or <code>null</code> for other levels
+     */
+    public String getChangeToken() {
+        return changeToken;
+    }
+
+    /**
+     * @return the indices that were part of the response the <code>since</code> token was returned with, but were
+     * deleted or no longer match the request
+     */
+    public List<String> getRemovedIndices() {
+        return removedIndices;
+    }
+
+    void setChanges(String changeToken, List<String> removedIndices) {
+        this.changeToken = changeToken;
+        this.removedIndices = removedIndices;
+    }
+
+    /**
+     * @return <code>true</code> if a request that waited for a change returned because the <code>max_value</code> or
+     * <code>doc_count</code> of a field changed, rather than because it waited for too long
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    void setChanged(boolean changed) {
+        this.changed = changed;
+    }
+
     @Override
     protected void addCustomXContentFields(XContentBuilder builder, Params params) throws IOException {
         builder.startObject("upgraded_indices");
@@ -105,5 +246,18 @@ public class FieldStatsResponse extends BroadcastResponse {
             out.writeString(entry.getKey());
             out.writeString(entry.getValue());
         }
+        out.writeVInt(indicesProbes.size());
+        for (Map.Entry<String, Map<String, Long>> entry : indicesProbes.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeMap(entry.getValue(), StreamOutput::writeString, StreamOutput::writeVLong);
+        }
+        out.writeList(entries);
+        out.writeVInt(totalEntries);
+        out.writeBoolean(timedOut);
+        out.writeVInt(hedgedShards);
+        out.writeVInt(hedgeWins);
+        out.writeOptionalString(changeToken);
+        out.writeStringCollection(removedIndices);
+        out.writeBoolean(changed);
     }
 }
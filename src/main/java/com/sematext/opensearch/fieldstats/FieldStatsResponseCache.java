@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.cluster.ClusterState;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.common.cache.Cache;
+import org.opensearch.common.cache.CacheBuilder;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.common.settings.Setting;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.common.unit.ByteSizeValue;
+import org.opensearch.core.index.Index;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the merged responses of the coordinating node, so that identical requests sent by many dashboards don't
+ * all fan out to the shards.
+ *
+ * Entries are keyed by the canonical form of the request ({@link FieldStatsRequest#writeCacheKey}) and the uuid and
+ * metadata version of every index it resolves to, so mapping and settings changes, and new or deleted indices, are
+ * seen right away. Refreshes of the shards are not visible on the coordinating node: a response is fresh for
+ * <code>fieldstats.cache.ttl</code> (disabled by default), and is then served for another
+ * <code>fieldstats.cache.stale_while_revalidate</code> while a single background request refreshes it. The cache
+ * holds up to <code>fieldstats.cache.size</code> of serialized responses and evicts the least recently used ones.
+ */
+public final class FieldStatsResponseCache {
+
+    public static final Setting<TimeValue> TTL_SETTING = Setting.timeSetting(
+        "fieldstats.cache.ttl", TimeValue.ZERO, TimeValue.ZERO, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> STALE_WHILE_REVALIDATE_SETTING = Setting.timeSetting(
+        "fieldstats.cache.stale_while_revalidate", TimeValue.ZERO, TimeValue.ZERO, Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> SIZE_SETTING = Setting.byteSizeSetting(
+        "fieldstats.cache.size", new ByteSizeValue(10 * 1024 * 1024), Setting.Property.NodeScope);
+
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final LongSupplier relativeNanos;
+    private final Cache<BytesReference, Entry> cache;
+
+    FieldStatsResponseCache(TimeValue ttl, TimeValue staleWhileRevalidate, ByteSizeValue size,
+                            LongSupplier relativeNanos) {
+        this.ttlNanos = ttl.nanos();
+        this.staleNanos = staleWhileRevalidate.nanos();
+        this.relativeNanos = relativeNanos;
+        if (ttlNanos <= 0 || size.getBytes() <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.<BytesReference, Entry>builder()
+                .setMaximumWeight(size.getBytes())
+                .weigher((key, entry) -> key.length() + entry.response.length())
+                .build();
+        }
+    }
+
+    boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * @param indices the concrete indices the request resolves to
+     */
+    static BytesReference key(FieldStatsRequest request, ClusterState state, Index[] indices) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeCacheKey(out);
+        Index[] sorted = indices.clone();
+        Arrays.sort(sorted, Comparator.comparing(Index::getUUID));
+        out.writeVInt(sorted.length);
+        for (Index index : sorted) {
+            IndexMetadata indexMetadata = state.metadata().getIndexSafe(index);
+            out.writeString(index.getUUID());
+            out.writeVLong(indexMetadata.getVersion());
+        }
+        return out.bytes();
+    }
+
+    /**
+     * @return the cached response, fresh or stale, or <code>null</code> if there is none that may still be served
+     */
+    Entry get(BytesReference key) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long age = relativeNanos.getAsLong() - entry.createdNanos;
+        if (age >= ttlNanos + staleNanos) {
+            cache.invalidate(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return <code>false</code> if the entry outlived the ttl and is only served until it is refreshed
+     */
+    boolean isFresh(Entry entry) {
+        return relativeNanos.getAsLong() - entry.createdNanos < ttlNanos;
+    }
+
+    /**
+     * Caches <code>response</code> unless some shards failed or timed out, which would make it partial.
+     */
+    void put(BytesReference key, FieldStatsResponse response) throws IOException {
+        if (response.getFailedShards() > 0 || response.isTimedOut()) {
+            return;
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        cache.put(key, new Entry(out.bytes(), relativeNanos.getAsLong()));
+    }
+
+    static final class Entry {
+        private final BytesReference response;
+        private final long createdNanos;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(BytesReference response, long createdNanos) {
+            this.response = response;
+            this.createdNanos = createdNanos;
+        }
+
+        /**
+         * @return a copy of the cached response
+         */
+        FieldStatsResponse response() throws IOException {
+            return new FieldStatsResponse(response.streamInput());
+        }
+
+        /**
+         * @return <code>true</code> if the caller should refresh the entry, which only the first caller after the
+         * entry went stale does
+         */
+        boolean tryStartRefresh() {
+            return refreshing.compareAndSet(false, true);
+        }
+
+        /**
+         * Lets the next request that finds the entry stale try to refresh it again.
+         */
+        void onRefreshFailed() {
+            refreshing.set(false);
+        }
+    }
+}
@@ -15,38 +15,102 @@ package com.sematext.opensearch.fieldstats;
 
 
 import org.opensearch.action.support.broadcast.BroadcastShardRequest;
+import org.opensearch.common.unit.TimeValue;
 import org.opensearch.core.common.io.stream.StreamInput;
 import org.opensearch.core.common.io.stream.StreamOutput;
 import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.core.tasks.TaskId;
+import org.opensearch.index.query.QueryBuilder;
+import org.opensearch.index.query.QueryBuilders;
+import org.opensearch.search.internal.ShardSearchContextId;
+import org.opensearch.tasks.Task;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 
 public class FieldStatsShardRequest extends BroadcastShardRequest {
 
     private String[] fields;
     private boolean useCache;
+    private Set<String> stats;
+    private int prefixLength;
+    private boolean expandFlatObjects;
+    private QueryBuilder query;
+    private Map<String, String> probes;
+    private String level;
+    private int maxEntries;
+    private IndexConstraint[] indexConstraints;
+    private TimeValue timeout;
+    private ShardSearchContextId pitContext;
+    private TimeValue pitKeepAlive;
+    private String knownAllocationId;
+    private long knownReaderVersion = -1;
 
     public FieldStatsShardRequest() {
     }
 
-    public FieldStatsShardRequest(ShardId shardId, FieldStatsRequest request) {
+    /**
+     * @param aliasFilter the filter of the aliases the request resolved to for this index, or <code>null</code>
+     */
+    public FieldStatsShardRequest(ShardId shardId, FieldStatsRequest request, QueryBuilder aliasFilter) {
+        this(shardId, request, aliasFilter, null);
+    }
+
+    /**
+     * @param pitContext the reader context of the point in time of the request on the copy the request is sent to,
+     *                   or <code>null</code>
+     */
+    public FieldStatsShardRequest(ShardId shardId, FieldStatsRequest request, QueryBuilder aliasFilter,
+                                  ShardSearchContextId pitContext) {
         super(shardId, request);
+        this.pitContext = pitContext;
+        pitKeepAlive = request.getPitKeepAlive();
         Set<String> fields = new HashSet<>(Arrays.asList(request.getFields()));
         for (IndexConstraint indexConstraint : request.getIndexConstraints()) {
             fields.add(indexConstraint.getField());
         }
         this.fields = fields.toArray(new String[fields.size()]);
         useCache = request.shouldUseCache();
+        stats = new HashSet<>(Arrays.asList(request.getStats()));
+        prefixLength = request.getPrefixLength();
+        expandFlatObjects = request.shouldExpandFlatObjects();
+        probes = request.getProbes();
+        level = request.level();
+        timeout = request.getRemainingTimeout();
+        maxEntries = (int) Math.min(Integer.MAX_VALUE, (long) request.getFrom() + request.getSize());
+        indexConstraints = request.getIndexConstraints();
+        if (aliasFilter == null) {
+            query = request.getQuery();
+        } else if (request.getQuery() == null) {
+            query = aliasFilter;
+        } else {
+            query = QueryBuilders.boolQuery().filter(request.getQuery()).filter(aliasFilter);
+        }
     }
 
     public FieldStatsShardRequest(StreamInput in) throws IOException {
         super(in);
         fields = in.readStringArray();
         useCache = in.readBoolean();
+        stats = new HashSet<>(Arrays.asList(in.readStringArray()));
+        prefixLength = in.readVInt();
+        expandFlatObjects = in.readBoolean();
+        query = in.readOptionalNamedWriteable(QueryBuilder.class);
+        probes = in.readMap(StreamInput::readString, StreamInput::readString);
+        level = in.readString();
+        maxEntries = in.readVInt();
+        timeout = in.readOptionalTimeValue();
+        pitContext = in.readOptionalWriteable(ShardSearchContextId::new);
+        pitKeepAlive = in.readOptionalTimeValue();
+        indexConstraints = in.readArray(IndexConstraint::new, IndexConstraint[]::new);
+        knownAllocationId = in.readOptionalString();
+        knownReaderVersion = in.readZLong();
     }
 
     public String[] getFields() {
@@ -57,11 +121,166 @@ public class FieldStatsShardRequest extends BroadcastShardRequest {
         return useCache;
     }
 
+    /**
+     * @return <code>true</code> if the optional statistic with the given name was requested
+     */
+    public boolean hasStat(String name) {
+        return stats.contains(name);
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    public boolean shouldExpandFlatObjects() {
+        return expandFlatObjects;
+    }
+
+    /**
+     * @return the query of the request combined with the alias filters of the index, or <code>null</code>
+     */
+    public QueryBuilder getQuery() {
+        return query;
+    }
+
+    public Map<String, String> getProbes() {
+        return probes;
+    }
+
+    public String level() {
+        return level;
+    }
+
+    /**
+     * @return the number of segment entries this shard may return at most, the first ones in
+     * {@link ShardFieldStats#ORDER} that match the index constraints
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the index constraints that the shard and segment entries must match to be returned
+     */
+    public IndexConstraint[] getIndexConstraints() {
+        return indexConstraints;
+    }
+
+    /**
+     * @return what was left of the timeout of the request when the coordinating node sent this request, after which
+     * the shard skips optional statistics, or <code>null</code>
+     */
+    public TimeValue getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return the reader context of the point in time to read the shard from, or <code>null</code> to read its
+     * current reader
+     */
+    public ShardSearchContextId getPitContext() {
+        return pitContext;
+    }
+
+    public TimeValue getPitKeepAlive() {
+        return pitKeepAlive;
+    }
+
+    /**
+     * @return the allocation id of the copy the coordinating node memoized the stats of the shard from, or
+     * <code>null</code>
+     */
+    public String getKnownAllocationId() {
+        return knownAllocationId;
+    }
+
+    /**
+     * @return the version of the reader the coordinating node memoized the stats of the shard from, or
+     * <code>-1</code>
+     */
+    public long getKnownReaderVersion() {
+        return knownReaderVersion;
+    }
+
+    /**
+     * Lets the copy answer that its reader is still the one the stats were memoized from, instead of computing them.
+     */
+    void setKnownReader(String allocationId, long readerVersion) {
+        this.knownAllocationId = allocationId;
+        this.knownReaderVersion = readerVersion;
+    }
+
+    /**
+     * Writes what the shard response depends on, in a canonical form, so that identical shard requests of different
+     * coordinating requests are computed once.
+     */
+    void writeCoalescingKey(StreamOutput out) throws IOException {
+        shardId().writeTo(out);
+        writeStatsKey(out);
+        out.writeString(level);
+        out.writeVInt(maxEntries);
+        out.writeArray(indexConstraints);
+        // the remaining timeouts of requests always differ, coalesced ones share the deadline of the first
+        out.writeBoolean(timeout != null);
+        out.writeOptionalWriteable(pitContext);
+        out.writeOptionalString(knownAllocationId);
+        out.writeZLong(knownReaderVersion);
+    }
+
+    /**
+     * Writes what the stats of the shard depend on, in a canonical form, which is the same for all shards of the
+     * request.
+     */
+    void writeStatsKey(StreamOutput out) throws IOException {
+        String[] sortedFields = fields.clone();
+        Arrays.sort(sortedFields);
+        out.writeStringArray(sortedFields);
+        out.writeStringArray(new TreeSet<>(stats).toArray(new String[stats.size()]));
+        out.writeVInt(prefixLength);
+        out.writeBoolean(expandFlatObjects);
+        out.writeOptionalNamedWriteable(query);
+        out.writeMap(new TreeMap<>(probes), StreamOutput::writeString, StreamOutput::writeString);
+    }
+
+    /**
+     * Writes what the stats of a field in a single segment depend on without a query: the optional statistics,
+     * except for the disk usage that is computed for all fields at once.
+     */
+    void writeSegmentStatsKey(StreamOutput out) throws IOException {
+        TreeSet<String> sortedStats = new TreeSet<>(stats);
+        sortedStats.remove(DiskUsage.NAME);
+        out.writeStringArray(sortedStats.toArray(new String[sortedStats.size()]));
+        out.writeVInt(prefixLength);
+    }
+
+    @Override
+    public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+        return new FieldStatsTask(id, type, action, getDescription(), parentTaskId, headers, shardId());
+    }
+
+    @Override
+    public String getDescription() {
+        return "shard" + shardId() + ", fields[" + String.join(",", fields) + "]";
+    }
+
     @Override
     public void writeTo(StreamOutput out) throws IOException {
         super.writeTo(out);
         out.writeStringArrayNullable(fields);
         out.writeBoolean(useCache);
+        out.writeStringArray(stats.toArray(new String[stats.size()]));
+        out.writeVInt(prefixLength);
+        out.writeBoolean(expandFlatObjects);
+        out.writeOptionalNamedWriteable(query);
+        out.writeMap(probes, StreamOutput::writeString, StreamOutput::writeString);
+        out.writeString(level);
+        out.writeVInt(maxEntries);
+        out.writeOptionalTimeValue(timeout);
+        out.writeOptionalWriteable(pitContext);
+        out.writeOptionalTimeValue(pitKeepAlive);
+        out.writeArray(indexConstraints);
+        out.writeOptionalString(knownAllocationId);
+        out.writeZLong(knownReaderVersion);
     }
 
 }
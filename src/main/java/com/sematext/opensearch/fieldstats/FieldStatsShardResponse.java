@@ -19,7 +19,9 @@ import org.opensearch.core.common.io.stream.StreamOutput;
 import org.opensearch.core.index.shard.ShardId;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -27,6 +29,13 @@ import java.util.stream.Collectors;
 public class FieldStatsShardResponse extends BroadcastShardResponse {
 
     private Map<String, FieldStats<?>> fieldStats;
+    private Map<String, Long> probes;
+    private List<ShardFieldStats> entries;
+    private int totalEntries;
+    private boolean timedOut;
+    private String allocationId;
+    private long readerVersion = -1;
+    private boolean unchanged;
 
     public FieldStatsShardResponse(StreamInput in) throws IOException {
         super(in);
@@ -37,17 +46,106 @@ public class FieldStatsShardResponse extends BroadcastShardResponse {
             FieldStats<?> value = FieldStats.readFrom(in);
             fieldStats.put(key, value);
         }
+        probes = in.readMap(StreamInput::readString, StreamInput::readVLong);
+        entries = in.readList(ShardFieldStats::new);
+        timedOut = in.readBoolean();
+        allocationId = in.readOptionalString();
+        readerVersion = in.readZLong();
+        totalEntries = in.readVInt();
+        unchanged = in.readBoolean();
     }
 
     public FieldStatsShardResponse(ShardId shardId, Map<String, FieldStats<?>> fieldStats) {
+        this(shardId, fieldStats, Collections.emptyMap());
+    }
+
+    public FieldStatsShardResponse(ShardId shardId, Map<String, FieldStats<?>> fieldStats, Map<String, Long> probes) {
+        this(shardId, fieldStats, probes, Collections.emptyList());
+    }
+
+    public FieldStatsShardResponse(ShardId shardId, Map<String, FieldStats<?>> fieldStats, Map<String, Long> probes,
+                                   List<ShardFieldStats> entries) {
+        this(shardId, fieldStats, probes, entries, false);
+    }
+
+    /**
+     * @param entries the stats of the shard or of its segments, for the shards and segments levels
+     * @param timedOut whether optional statistics were skipped because the timeout of the request expired
+     */
+    public FieldStatsShardResponse(ShardId shardId, Map<String, FieldStats<?>> fieldStats, Map<String, Long> probes,
+                                   List<ShardFieldStats> entries, boolean timedOut) {
         super(shardId);
         this.fieldStats = fieldStats;
+        this.probes = probes;
+        this.entries = entries;
+        this.totalEntries = entries.size();
+        this.timedOut = timedOut;
     }
 
     public Map<String, FieldStats<?>> getFieldStats() {
         return fieldStats;
     }
 
+    /**
+     * @return the number of documents holding the probed term, by field name
+     */
+    public Map<String, Long> getProbes() {
+        return probes;
+    }
+
+    public List<ShardFieldStats> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the number of shard or segment entries of the shard that match the index constraints, of which
+     * {@link #getEntries()} are the first ones
+     */
+    public int getTotalEntries() {
+        return totalEntries;
+    }
+
+    void setTotalEntries(int totalEntries) {
+        this.totalEntries = totalEntries;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return the allocation id of the copy that answered, or <code>null</code> if the response wasn't computed by
+     * a shard copy
+     */
+    public String getAllocationId() {
+        return allocationId;
+    }
+
+    /**
+     * @return the version of the reader the copy answered from, or <code>-1</code> if unknown
+     */
+    public long getReaderVersion() {
+        return readerVersion;
+    }
+
+    void setReader(String allocationId, long readerVersion) {
+        this.allocationId = allocationId;
+        this.readerVersion = readerVersion;
+    }
+
+    /**
+     * @return <code>true</code> if the copy answered from the reader of the stats the coordinating node memoized
+     * ({@link FieldStatsShardRequest#getKnownReaderVersion()}) instead of computing them again, in which case the
+     * response holds no stats
+     */
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    void setUnchanged(boolean unchanged) {
+        this.unchanged = unchanged;
+    }
+
     Map<String, FieldStats<?> > filterNullMinMax() {
         return fieldStats.entrySet().stream()
             .filter((e) -> e.getValue().hasMinMax())
@@ -64,5 +162,12 @@ public class FieldStatsShardResponse extends BroadcastShardResponse {
             out.writeString(entry.getKey());
             entry.getValue().writeTo(out);
         }
+        out.writeMap(probes, StreamOutput::writeString, StreamOutput::writeVLong);
+        out.writeList(entries);
+        out.writeBoolean(timedOut);
+        out.writeOptionalString(allocationId);
+        out.writeZLong(readerVersion);
+        out.writeVInt(totalEntries);
+        out.writeBoolean(unchanged);
     }
 }
@@ -0,0 +1,261 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.common.Nullable;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.core.tasks.TaskId;
+import org.opensearch.core.xcontent.XContentBuilder;
+import org.opensearch.tasks.CancellableTask;
+import org.opensearch.tasks.Task;
+import org.opensearch.tasks.TaskCancelledException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The task of a field stats request on the coordinating node, which counts the shards that answered, or of a
+ * shard request, which counts the fields computed so far. Cancelling the request cancels its shard requests, which
+ * stop between fields and segments. Shard requests also keep the deadline of the request, after which they skip
+ * optional statistics.
+ */
+public class FieldStatsTask extends CancellableTask {
+
+    private final ShardId shardId;
+    private final AtomicInteger completedShards = new AtomicInteger();
+    private final AtomicInteger completedFields = new AtomicInteger();
+    private volatile int totalShards = -1;
+    private volatile int totalFields = -1;
+    private volatile boolean hasDeadline;
+    private volatile long deadlineNanos;
+    private volatile boolean timedOut;
+    private volatile FieldStatsTask progressOf;
+    private final List<Runnable> cancellationListeners = new ArrayList<>();
+
+    public FieldStatsTask(long id, String type, String action, String description, TaskId parentTaskId,
+                          Map<String, String> headers) {
+        this(id, type, action, description, parentTaskId, headers, null);
+    }
+
+    /**
+     * @param shardId the shard of a shard request, or <code>null</code> for the request on the coordinating node
+     */
+    public FieldStatsTask(long id, String type, String action, String description, TaskId parentTaskId,
+                          Map<String, String> headers, @Nullable ShardId shardId) {
+        super(id, type, action, description, parentTaskId, headers);
+        this.shardId = shardId;
+    }
+
+    @Nullable
+    public ShardId getShardId() {
+        return shardId;
+    }
+
+    @Override
+    public boolean shouldCancelChildrenOnCancellation() {
+        return true;
+    }
+
+    /**
+     * @throws TaskCancelledException if the task was cancelled
+     */
+    void ensureNotCancelled() {
+        if (isCancelled()) {
+            throw new TaskCancelledException("field stats task [" + getId() + "] was cancelled, reason ["
+                + getReasonCancelled() + "]");
+        }
+    }
+
+    /**
+     * Runs <code>listener</code> once the task is cancelled, right away if it already was.
+     */
+    void addCancellationListener(Runnable listener) {
+        synchronized (cancellationListeners) {
+            if (isCancelled() == false) {
+                cancellationListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    protected void onCancelled() {
+        List<Runnable> listeners;
+        synchronized (cancellationListeners) {
+            listeners = new ArrayList<>(cancellationListeners);
+            cancellationListeners.clear();
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Starts the timeout of the request on this node.
+     */
+    void setTimeout(TimeValue timeout) {
+        deadlineNanos = System.nanoTime() + timeout.nanos();
+        hasDeadline = true;
+    }
+
+    /**
+     * Checked before work that is skipped once the deadline passed, so a passed deadline marks the results as
+     * timed out.
+     *
+     * @return <code>true</code> if the deadline passed
+     */
+    boolean isPastDeadline() {
+        if (hasDeadline && System.nanoTime() - deadlineNanos >= 0) {
+            timedOut = true;
+        }
+        return timedOut;
+    }
+
+    /**
+     * @return <code>true</code> if something was skipped because the deadline passed
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    void setTotalShards(int totalShards) {
+        this.totalShards = totalShards;
+    }
+
+    void onShardCompleted() {
+        completedShards.incrementAndGet();
+    }
+
+    void setTotalFields(int totalFields) {
+        this.totalFields = totalFields;
+    }
+
+    void onFieldCompleted() {
+        completedFields.incrementAndGet();
+    }
+
+    /**
+     * Reports the progress of <code>task</code>, which computes the result of this task, as the status of this task.
+     */
+    void reportProgressOf(FieldStatsTask task) {
+        this.progressOf = task == this ? null : task;
+    }
+
+    @Override
+    public Status getStatus() {
+        FieldStatsTask progressOf = this.progressOf;
+        if (progressOf != null) {
+            return progressOf.getStatus();
+        }
+        return new Status(totalShards, completedShards.get(), totalFields, completedFields.get());
+    }
+
+    /**
+     * Progress of a field stats task, as reported by the tasks API. Counts that don't apply to the task are -1.
+     */
+    public static class Status implements Task.Status {
+
+        public static final String NAME = "field_stats";
+
+        private final int totalShards;
+        private final int completedShards;
+        private final int totalFields;
+        private final int completedFields;
+
+        public Status(int totalShards, int completedShards, int totalFields, int completedFields) {
+            this.totalShards = totalShards;
+            this.completedShards = completedShards;
+            this.totalFields = totalFields;
+            this.completedFields = completedFields;
+        }
+
+        public Status(StreamInput in) throws IOException {
+            totalShards = in.readInt();
+            completedShards = in.readVInt();
+            totalFields = in.readInt();
+            completedFields = in.readVInt();
+        }
+
+        public int getTotalShards() {
+            return totalShards;
+        }
+
+        /**
+         * @return the number of shards that answered successfully
+         */
+        public int getCompletedShards() {
+            return completedShards;
+        }
+
+        public int getTotalFields() {
+            return totalFields;
+        }
+
+        public int getCompletedFields() {
+            return completedFields;
+        }
+
+        @Override
+        public String getWriteableName() {
+            return NAME;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeInt(totalShards);
+            out.writeVInt(completedShards);
+            out.writeInt(totalFields);
+            out.writeVInt(completedFields);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            if (totalShards >= 0) {
+                builder.startObject("shards");
+                builder.field("total", totalShards);
+                builder.field("completed", completedShards);
+                builder.endObject();
+            }
+            if (totalFields >= 0) {
+                builder.startObject("fields");
+                builder.field("total", totalFields);
+                builder.field("completed", completedFields);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Status status = (Status) o;
+            return totalShards == status.totalShards && completedShards == status.completedShards
+                && totalFields == status.totalFields && completedFields == status.completedFields;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(totalShards, completedShards, totalFields, completedFields);
+        }
+    }
+}
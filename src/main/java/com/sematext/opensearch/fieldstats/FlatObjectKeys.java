@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.StringHelper;
+import org.opensearch.index.mapper.FlatObjectFieldMapper;
+import org.opensearch.index.mapper.MappedFieldType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Stats of the keys of a <code>flat_object</code> field, reported under virtual sub-field names such as
+ * <code>attrs.user.name</code>.
+ *
+ * A flat_object field indexes each leaf value as a <code>field.path=value</code> term of its value-and-path
+ * field, so the terms of a key are contiguous and sorted by value. The keys are enumerated with one
+ * {@link TermsEnum#seekCeil(BytesRef)} per key boundary: min is the first term of a key and max its last term,
+ * found through the doc values ords when the key has too many terms to walk. Doc counts are the union of the
+ * postings of a key, and are reported as unknown (-1) when a key exceeds {@link #TERMS_BUDGET} terms or
+ * {@link #POSTINGS_BUDGET} postings.
+ */
+final class FlatObjectKeys {
+
+    static final int TERMS_BUDGET = 1024;
+    static final long POSTINGS_BUDGET = 1L << 20;
+
+    private static final byte SEPARATOR = '=';
+
+    private FlatObjectKeys() {}
+
+    /**
+     * @return the stats of the keys of <code>fieldType</code> accepted by <code>include</code>, by virtual field name
+     */
+    static Map<String, FieldStats.Text> build(IndexReader reader, MappedFieldType fieldType,
+                                              Predicate<String> include) throws IOException {
+        String field = fieldType.name() + FlatObjectFieldMapper.VALUE_AND_PATH_SUFFIX;
+        BytesRef prefix = new BytesRef(fieldType.name() + ".");
+        Map<String, FieldStats.Text> keys = new HashMap<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leaf = context.reader();
+            Terms terms = leaf.terms(field);
+            if (terms != null) {
+                collect(leaf, terms, leaf.getSortedSetDocValues(field), prefix, fieldType, include, reader.maxDoc(),
+                    keys);
+            }
+        }
+        for (FieldStats.Text stats : keys.values()) {
+            stats.setBaseDocCount(reader.maxDoc());
+        }
+        return keys;
+    }
+
+    private static void collect(LeafReader leaf, Terms terms, SortedSetDocValues docValues, BytesRef prefix,
+                                MappedFieldType fieldType, Predicate<String> include, int maxDoc,
+                                Map<String, FieldStats.Text> keys) throws IOException {
+        TermsEnum termsEnum = terms.iterator();
+        FixedBitSet docs = new FixedBitSet(leaf.maxDoc());
+        PostingsEnum postings = null;
+        BytesRef term = seek(termsEnum, prefix);
+        while (term != null && StringHelper.startsWith(term, prefix)) {
+            int separator = indexOf(term, prefix.length);
+            if (separator < 0) {
+                term = termsEnum.next();
+                continue;
+            }
+            String name = new BytesRef(term.bytes, term.offset, separator).utf8ToString();
+            // '>' directly follows '=', so every term of the key sorts below name + '>'
+            byte[] upperBytes = Arrays.copyOfRange(term.bytes, term.offset, term.offset + separator + 1);
+            upperBytes[separator] = SEPARATOR + 1;
+            BytesRef upper = new BytesRef(upperBytes);
+            if (include.test(name) == false) {
+                term = seek(termsEnum, upper);
+                continue;
+            }
+
+            BytesRef min = value(term, separator);
+            BytesRef last = null;
+            long sumDocFreq = 0;
+            boolean counted = true;
+            int walked = 0;
+            docs.clear(0, docs.length());
+            while (term != null && term.compareTo(upper) < 0 && walked < TERMS_BUDGET) {
+                sumDocFreq += termsEnum.docFreq();
+                if (sumDocFreq <= POSTINGS_BUDGET) {
+                    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                    docs.or(postings);
+                } else {
+                    counted = false;
+                }
+                last = BytesRef.deepCopyOf(term);
+                walked++;
+                term = termsEnum.next();
+            }
+            BytesRef max;
+            if (term != null && term.compareTo(upper) < 0) {
+                // over budget: the counts are unknown, only the bounds are still cheap to find
+                counted = false;
+                sumDocFreq = -1;
+                if (docValues != null) {
+                    long end = docValues.getValueCount();
+                    TermsEnum ords = docValues.termsEnum();
+                    if (ords.seekCeil(upper) != TermsEnum.SeekStatus.END) {
+                        end = ords.ord();
+                    }
+                    ords.seekExact(end - 1);
+                    max = value(ords.term(), separator);
+                    term = seek(termsEnum, upper);
+                } else {
+                    while (term != null && term.compareTo(upper) < 0) {
+                        last = BytesRef.deepCopyOf(term);
+                        term = termsEnum.next();
+                    }
+                    max = value(last, separator);
+                }
+            } else {
+                max = value(last, separator);
+            }
+
+            FieldStats.Text stats = new FieldStats.Text(0, counted ? docs.cardinality() : -1, sumDocFreq, -1,
+                fieldType.isSearchable(), fieldType.isAggregatable(), min, max);
+            keys.computeIfAbsent(name, k -> new FieldStats.Text(maxDoc, 0, 0, -1,
+                fieldType.isSearchable(), fieldType.isAggregatable())).accumulate(stats);
+        }
+    }
+
+    private static BytesRef seek(TermsEnum termsEnum, BytesRef target) throws IOException {
+        return termsEnum.seekCeil(target) == TermsEnum.SeekStatus.END ? null : termsEnum.term();
+    }
+
+    private static int indexOf(BytesRef term, int from) {
+        for (int i = from; i < term.length; i++) {
+            if (term.bytes[term.offset + i] == SEPARATOR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static BytesRef value(BytesRef term, int separator) {
+        return new BytesRef(Arrays.copyOfRange(term.bytes, term.offset + separator + 1, term.offset + term.length));
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.core.xcontent.ToXContentFragment;
+import org.opensearch.core.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Approximate bounding box, centroid and geotile coverage of a geo_point or geo_shape field, computed from the
+ * bounds of the inner nodes of the points tree instead of the indexed values.
+ *
+ * The tree is descended at most {@link #MAX_DEPTH} levels and only as long as a node spans more than one tile
+ * at {@link #GRID_PRECISION}, so at most 2^{@link #MAX_DEPTH} cells are visited per segment. Every cell counts
+ * its points (triangles for shapes) at its center for the centroid and in the tiles it overlaps for the grid.
+ * Leaf cells that still span several tiles have their values read instead, up to {@link #MAX_VISITED_VALUES}
+ * values per segment, which makes the summary of small segments exact.
+ * Longitudes are tracked separately east and west of the prime meridian, so that the bounding box can wrap
+ * around the dateline when that makes it narrower.
+ */
+public class GeoSummary implements Writeable, ToXContentFragment {
+
+    public static final String NAME = "geo_summary";
+    static final int MAX_DEPTH = 10;
+    static final int GRID_PRECISION = 3;
+    static final long MAX_VISITED_VALUES = 65536;
+    private static final double MAX_TILE_LATITUDE = 85.05112878;
+
+    private double top;
+    private double bottom;
+    private double posLeft;
+    private double posRight;
+    private double negLeft;
+    private double negRight;
+    private double latSum;
+    private double lonSum;
+    private long count;
+    private final TreeMap<String, Long> tiles;
+    // only used while building
+    private long valuesBudget;
+
+    GeoSummary() {
+        this.top = Double.NEGATIVE_INFINITY;
+        this.bottom = Double.POSITIVE_INFINITY;
+        this.posLeft = Double.POSITIVE_INFINITY;
+        this.posRight = Double.NEGATIVE_INFINITY;
+        this.negLeft = Double.POSITIVE_INFINITY;
+        this.negRight = Double.NEGATIVE_INFINITY;
+        this.tiles = new TreeMap<>();
+    }
+
+    public GeoSummary(StreamInput in) throws IOException {
+        top = in.readDouble();
+        bottom = in.readDouble();
+        posLeft = in.readDouble();
+        posRight = in.readDouble();
+        negLeft = in.readDouble();
+        negRight = in.readDouble();
+        latSum = in.readDouble();
+        lonSum = in.readDouble();
+        count = in.readVLong();
+        int size = in.readVInt();
+        tiles = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            tiles.put(in.readString(), in.readVLong());
+        }
+    }
+
+    /**
+     * @return the number of points, or triangles for shapes, the summary was computed from
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getTop() {
+        return top;
+    }
+
+    public double getBottom() {
+        return bottom;
+    }
+
+    /**
+     * @return the western edge of the bounding box, which is greater than {@link #getRight()} if the box crosses
+     * the dateline
+     */
+    public double getLeft() {
+        if (Double.isInfinite(posLeft)) {
+            return negLeft;
+        } else if (Double.isInfinite(negLeft)) {
+            return posLeft;
+        }
+        return crossesDateline() ? posLeft : negLeft;
+    }
+
+    /**
+     * @return the eastern edge of the bounding box
+     */
+    public double getRight() {
+        if (Double.isInfinite(posLeft)) {
+            return negRight;
+        } else if (Double.isInfinite(negLeft)) {
+            return posRight;
+        }
+        return crossesDateline() ? negRight : posRight;
+    }
+
+    private boolean crossesDateline() {
+        double unwrappedWidth = posRight - negLeft;
+        double wrappedWidth = (180 - posLeft) - (-180 - negRight);
+        return unwrappedWidth > wrappedWidth;
+    }
+
+    public double getCentroidLat() {
+        return count == 0 ? Double.NaN : latSum / count;
+    }
+
+    public double getCentroidLon() {
+        return count == 0 ? Double.NaN : lonSum / count;
+    }
+
+    /**
+     * @return the number of points, or triangles for shapes, per geotile at {@link #GRID_PRECISION} keyed by
+     * <code>zoom/x/y</code>
+     */
+    public Map<String, Long> getTiles() {
+        return tiles;
+    }
+
+    void accumulate(GeoSummary other) {
+        top = Math.max(top, other.top);
+        bottom = Math.min(bottom, other.bottom);
+        posLeft = Math.min(posLeft, other.posLeft);
+        posRight = Math.max(posRight, other.posRight);
+        negLeft = Math.min(negLeft, other.negLeft);
+        negRight = Math.max(negRight, other.negRight);
+        latSum += other.latSum;
+        lonSum += other.lonSum;
+        count += other.count;
+        for (Map.Entry<String, Long> entry : other.tiles.entrySet()) {
+            tiles.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+    }
+
+    /**
+     * Summarizes <code>field</code> over all leaves of <code>reader</code>. Shapes are indexed as triangles whose
+     * first four dimensions are the min lat, min lon, max lat and max lon of the triangle.
+     */
+    static GeoSummary build(IndexReader reader, String field, boolean shape) throws IOException {
+        GeoSummary summary = new GeoSummary();
+        for (LeafReaderContext context : reader.leaves()) {
+            PointValues values = context.reader().getPointValues(field);
+            if (values != null && values.size() > 0) {
+                summary.valuesBudget = MAX_VISITED_VALUES;
+                summary.collect(values.getPointTree(), shape, 0);
+            }
+        }
+        return summary;
+    }
+
+    private void collect(PointValues.PointTree tree, boolean shape, int depth) throws IOException {
+        byte[] min = tree.getMinPackedValue();
+        byte[] max = tree.getMaxPackedValue();
+        double minLat = GeoEncodingUtils.decodeLatitude(min, 0);
+        double minLon = GeoEncodingUtils.decodeLongitude(min, Integer.BYTES);
+        double maxLat = GeoEncodingUtils.decodeLatitude(max, shape ? 2 * Integer.BYTES : 0);
+        double maxLon = GeoEncodingUtils.decodeLongitude(max, shape ? 3 * Integer.BYTES : Integer.BYTES);
+        boolean singleTile = tileX(minLon) == tileX(maxLon) && tileY(minLat) == tileY(maxLat);
+        if (depth < MAX_DEPTH && singleTile == false) {
+            if (tree.moveToChild()) {
+                do {
+                    collect(tree, shape, depth + 1);
+                } while (tree.moveToSibling());
+                tree.moveToParent();
+                return;
+            }
+            if (tree.size() <= valuesBudget) {
+                valuesBudget -= tree.size();
+                tree.visitDocValues(new ValuesVisitor(shape));
+                return;
+            }
+        }
+        addCell(minLat, minLon, maxLat, maxLon, tree.size());
+    }
+
+    private class ValuesVisitor implements PointValues.IntersectVisitor {
+        private final boolean shape;
+
+        ValuesVisitor(boolean shape) {
+            this.shape = shape;
+        }
+
+        @Override
+        public void visit(int docID) {
+            throw new UnsupportedOperationException("values are needed");
+        }
+
+        @Override
+        public void visit(int docID, byte[] packedValue) {
+            double minLat = GeoEncodingUtils.decodeLatitude(packedValue, 0);
+            double minLon = GeoEncodingUtils.decodeLongitude(packedValue, Integer.BYTES);
+            if (shape) {
+                addCell(minLat, minLon, GeoEncodingUtils.decodeLatitude(packedValue, 2 * Integer.BYTES),
+                    GeoEncodingUtils.decodeLongitude(packedValue, 3 * Integer.BYTES), 1);
+            } else {
+                addCell(minLat, minLon, minLat, minLon, 1);
+            }
+        }
+
+        @Override
+        public PointValues.Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+            return PointValues.Relation.CELL_CROSSES_QUERY;
+        }
+    }
+
+    private void addCell(double minLat, double minLon, double maxLat, double maxLon, long size) {
+        top = Math.max(top, maxLat);
+        bottom = Math.min(bottom, minLat);
+        if (maxLon >= 0) {
+            posLeft = Math.min(posLeft, Math.max(minLon, 0));
+            posRight = Math.max(posRight, maxLon);
+        }
+        if (minLon < 0) {
+            negLeft = Math.min(negLeft, minLon);
+            negRight = Math.max(negRight, Math.min(maxLon, 0));
+        }
+        latSum += (minLat + maxLat) / 2 * size;
+        lonSum += (minLon + maxLon) / 2 * size;
+        count += size;
+
+        int minX = tileX(minLon);
+        int maxX = tileX(maxLon);
+        int minY = tileY(maxLat);
+        int maxY = tileY(minLat);
+        long numTiles = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        long share = size / numTiles;
+        long remainder = size % numTiles;
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                long tileCount = share + (remainder-- > 0 ? 1 : 0);
+                if (tileCount > 0) {
+                    tiles.merge(GRID_PRECISION + "/" + x + "/" + y, tileCount, Long::sum);
+                }
+            }
+        }
+    }
+
+    static int tileX(double lon) {
+        int tiles = 1 << GRID_PRECISION;
+        int x = (int) Math.floor((lon + 180) / 360 * tiles);
+        return Math.max(0, Math.min(tiles - 1, x));
+    }
+
+    static int tileY(double lat) {
+        int tiles = 1 << GRID_PRECISION;
+        double latRad = Math.toRadians(Math.max(-MAX_TILE_LATITUDE, Math.min(MAX_TILE_LATITUDE, lat)));
+        double y = (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * tiles;
+        return Math.max(0, Math.min(tiles - 1, (int) Math.floor(y)));
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeDouble(top);
+        out.writeDouble(bottom);
+        out.writeDouble(posLeft);
+        out.writeDouble(posRight);
+        out.writeDouble(negLeft);
+        out.writeDouble(negRight);
+        out.writeDouble(latSum);
+        out.writeDouble(lonSum);
+        out.writeVLong(count);
+        out.writeVInt(tiles.size());
+        for (Map.Entry<String, Long> entry : tiles.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeVLong(entry.getValue());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(COUNT_FIELD, count);
+        if (count > 0) {
+            builder.startObject(BOUNDS_FIELD);
+            builder.startObject(TOP_LEFT_FIELD).field(LAT_FIELD, top).field(LON_FIELD, getLeft()).endObject();
+            builder.startObject(BOTTOM_RIGHT_FIELD).field(LAT_FIELD, bottom).field(LON_FIELD, getRight()).endObject();
+            builder.endObject();
+            builder.startObject(CENTROID_FIELD)
+                .field(LAT_FIELD, getCentroidLat())
+                .field(LON_FIELD, getCentroidLon())
+                .endObject();
+        }
+        builder.startObject(GRID_FIELD);
+        builder.field(PRECISION_FIELD, GRID_PRECISION);
+        builder.startArray(TILES_FIELD);
+        for (Map.Entry<String, Long> entry : tiles.entrySet()) {
+            builder.startObject().field(KEY_FIELD, entry.getKey()).field(COUNT_FIELD, entry.getValue()).endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GeoSummary that = (GeoSummary) o;
+        return Double.compare(top, that.top) == 0 && Double.compare(bottom, that.bottom) == 0
+            && Double.compare(posLeft, that.posLeft) == 0 && Double.compare(posRight, that.posRight) == 0
+            && Double.compare(negLeft, that.negLeft) == 0 && Double.compare(negRight, that.negRight) == 0
+            && Double.compare(latSum, that.latSum) == 0 && Double.compare(lonSum, that.lonSum) == 0
+            && count == that.count && tiles.equals(that.tiles);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(top, bottom, posLeft, posRight, negLeft, negRight, latSum, lonSum, count, tiles);
+    }
+
+    static final String COUNT_FIELD = "count";
+    static final String BOUNDS_FIELD = "bounds";
+    static final String TOP_LEFT_FIELD = "top_left";
+    static final String BOTTOM_RIGHT_FIELD = "bottom_right";
+    static final String CENTROID_FIELD = "centroid";
+    static final String LAT_FIELD = "lat";
+    static final String LON_FIELD = "lon";
+    static final String GRID_FIELD = "grid";
+    static final String PRECISION_FIELD = "precision";
+    static final String TILES_FIELD = "tiles";
+    static final String KEY_FIELD = "key";
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.cluster.ClusterChangedEvent;
+import org.opensearch.cluster.ClusterStateListener;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.common.cache.Cache;
+import org.opensearch.common.cache.CacheBuilder;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.common.settings.Setting;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.common.unit.ByteSizeValue;
+import org.opensearch.index.IndexModule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps the stats of the shards of indices that can't be written to anymore, because they have a write block, are
+ * read-only or are searchable snapshots, so that their shards don't compute them again.
+ *
+ * A block doesn't freeze what the shards see: documents indexed before the block become visible at the next refresh,
+ * and force merges are still allowed. Memoized stats therefore come with the copy and the reader version they were
+ * computed from, and are only used once the shard confirmed that this copy still answers from the same reader.
+ *
+ * Entries are keyed by the uuid and metadata version of the index, the shard and by what the shard requests compute
+ * ({@link FieldStatsShardRequest#writeStatsKey}), and dropped as soon as the metadata of their index changes, which
+ * removing the block does. The memo holds up to <code>fieldstats.memo.size</code> of serialized stats and evicts the
+ * least recently used ones.
+ */
+public final class ImmutableIndexMemo implements ClusterStateListener {
+
+    public static final Setting<ByteSizeValue> SIZE_SETTING = Setting.byteSizeSetting(
+        "fieldstats.memo.size", new ByteSizeValue(50 * 1024 * 1024), Setting.Property.NodeScope);
+
+    private final Cache<Key, BytesReference> cache;
+
+    ImmutableIndexMemo(ByteSizeValue size) {
+        if (size.getBytes() <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.<Key, BytesReference>builder()
+                .setMaximumWeight(size.getBytes())
+                .weigher((key, stats) -> key.shape.length() + stats.length())
+                .build();
+        }
+    }
+
+    boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * @return <code>true</code> if the documents of the index can't change while its metadata stays the same
+     */
+    static boolean isImmutable(IndexMetadata indexMetadata) {
+        Settings settings = indexMetadata.getSettings();
+        // read_only_allow_delete still lets documents be deleted
+        return indexMetadata.getState() == IndexMetadata.State.CLOSE
+            || IndexMetadata.INDEX_BLOCKS_WRITE_SETTING.get(settings)
+            || IndexMetadata.INDEX_READ_ONLY_SETTING.get(settings)
+            || IndexModule.Type.REMOTE_SNAPSHOT.match(IndexModule.INDEX_STORE_TYPE_SETTING.get(settings));
+    }
+
+    /**
+     * @param shape what the shard requests compute, as written by {@link FieldStatsShardRequest#writeStatsKey}
+     * @return a copy of the stats of the shard, with the copy and the reader they were computed from, or
+     * <code>null</code>
+     */
+    FieldStatsShardResponse get(IndexMetadata indexMetadata, int shardId, BytesReference shape) throws IOException {
+        BytesReference stats = cache.get(new Key(indexMetadata, shardId, shape));
+        return stats == null ? null : new FieldStatsShardResponse(stats.streamInput());
+    }
+
+    /**
+     * @param stats the stats of a shard, which must not have timed out and must report the reader they were computed
+     *              from
+     */
+    void put(IndexMetadata indexMetadata, BytesReference shape, FieldStatsShardResponse stats) throws IOException {
+        if (isImmutable(indexMetadata) == false || stats.getAllocationId() == null || stats.getReaderVersion() < 0) {
+            return;
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        stats.writeTo(out);
+        cache.put(new Key(indexMetadata, stats.getShardId().id(), shape), out.bytes());
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (cache == null || event.metadataChanged() == false || cache.count() == 0) {
+            return;
+        }
+        List<Key> invalid = new ArrayList<>();
+        for (Key key : cache.keys()) {
+            IndexMetadata indexMetadata = event.state().metadata().index(key.index);
+            if (indexMetadata == null || indexMetadata.getIndexUUID().equals(key.uuid) == false
+                || indexMetadata.getVersion() != key.version) {
+                invalid.add(key);
+            }
+        }
+        invalid.forEach(cache::invalidate);
+    }
+
+    private static final class Key {
+        private final String index;
+        private final String uuid;
+        private final long version;
+        private final int shardId;
+        private final BytesReference shape;
+
+        Key(IndexMetadata indexMetadata, int shardId, BytesReference shape) {
+            this.index = indexMetadata.getIndex().getName();
+            this.uuid = indexMetadata.getIndexUUID();
+            this.version = indexMetadata.getVersion();
+            this.shardId = shardId;
+            this.shape = shape;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return version == key.version && shardId == key.shardId && uuid.equals(key.uuid)
+                && shape.equals(key.shape);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uuid, version, shardId, shape);
+        }
+    }
+}
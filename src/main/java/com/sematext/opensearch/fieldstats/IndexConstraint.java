@@ -15,12 +15,14 @@ package com.sematext.opensearch.fieldstats;
 
 
 import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
 
 import java.io.IOException;
 import java.util.Locale;
 import java.util.Objects;
 
-public class IndexConstraint {
+public class IndexConstraint implements Writeable {
 
     private final String field;
     private final Property property;
@@ -49,6 +51,15 @@ public class IndexConstraint {
         this.optionalFormat = optionalFormat;
     }
 
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeByte(property.getId());
+        out.writeByte(comparison.getId());
+        out.writeString(value);
+        out.writeOptionalString(optionalFormat);
+    }
+
     /**
      * @return On what field the constraint is going to be applied on
      */
@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.SmallFloat;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.core.xcontent.ToXContentFragment;
+import org.opensearch.core.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Approximate distribution of the number of tokens per document of a text field, read from the norms.
+ *
+ * Norms store the length of a field with {@link SmallFloat#intToByte4(int)}, so there is one bucket per norm
+ * value and every bucket is keyed by the smallest length it holds. Lengths up to 24 get exact buckets. Leaves
+ * with more than {@link #SAMPLE_BUDGET} documents are sampled at regular intervals and each sampled document
+ * stands for the interval it was picked from.
+ */
+public class LengthHistogram implements Writeable, ToXContentFragment {
+
+    public static final String NAME = "length_histogram";
+    static final int SAMPLE_BUDGET = 10_000;
+
+    private final long[] counts;
+    private boolean sampled;
+
+    LengthHistogram() {
+        this.counts = new long[256];
+        this.sampled = false;
+    }
+
+    public LengthHistogram(StreamInput in) throws IOException {
+        counts = new long[256];
+        sampled = in.readBoolean();
+        int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            counts[in.readByte() & 0xFF] = in.readVLong();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the counts were extrapolated from a sample of the documents
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return the number of documents whose length falls into the bucket starting at <code>length</code>
+     */
+    public long getCount(int length) {
+        return counts[SmallFloat.intToByte4(length) & 0xFF];
+    }
+
+    void accumulate(LengthHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        sampled |= other.sampled;
+    }
+
+    /**
+     * Builds the histogram of <code>field</code> from the norms of all leaves of <code>reader</code>,
+     * or returns <code>null</code> if the field has no norms.
+     */
+    static LengthHistogram build(IndexReader reader, String field) throws IOException {
+        LengthHistogram histogram = null;
+        for (LeafReaderContext context : reader.leaves()) {
+            NumericDocValues norms = context.reader().getNormValues(field);
+            if (norms != null) {
+                if (histogram == null) {
+                    histogram = new LengthHistogram();
+                }
+                histogram.collect(context.reader(), norms);
+            }
+        }
+        return histogram;
+    }
+
+    private void collect(LeafReader reader, NumericDocValues norms) throws IOException {
+        int maxDoc = reader.maxDoc();
+        if (maxDoc <= SAMPLE_BUDGET) {
+            for (int doc = norms.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = norms.nextDoc()) {
+                counts[(int) norms.longValue() & 0xFF]++;
+            }
+            return;
+        }
+        sampled = true;
+        int interval = (maxDoc + SAMPLE_BUDGET - 1) / SAMPLE_BUDGET;
+        for (int doc = 0; doc < maxDoc; doc += interval) {
+            if (norms.advanceExact(doc)) {
+                counts[(int) norms.longValue() & 0xFF] += Math.min(interval, maxDoc - doc);
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeBoolean(sampled);
+        int size = 0;
+        for (long count : counts) {
+            if (count != 0) {
+                size++;
+            }
+        }
+        out.writeVInt(size);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                out.writeByte((byte) i);
+                out.writeVLong(counts[i]);
+            }
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(SAMPLED_FIELD, sampled);
+        builder.startArray(BUCKETS_FIELD);
+        // norm bytes sort like the lengths they encode
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                builder.startObject();
+                builder.field(LENGTH_FIELD, SmallFloat.byte4ToInt((byte) i));
+                builder.field(DOC_COUNT_FIELD, counts[i]);
+                builder.endObject();
+            }
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LengthHistogram that = (LengthHistogram) o;
+        return sampled == that.sampled && Arrays.equals(counts, that.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(counts) + Boolean.hashCode(sampled);
+    }
+
+    static final String SAMPLED_FIELD = "sampled";
+    static final String BUCKETS_FIELD = "buckets";
+    static final String LENGTH_FIELD = "length";
+    static final String DOC_COUNT_FIELD = "doc_count";
+}
@@ -0,0 +1,367 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.core.xcontent.ToXContentFragment;
+import org.opensearch.core.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Number of terms per prefix of leading characters of a field, computed by seeking the terms dictionary
+ * from one prefix boundary to the next instead of walking all terms. Prefixes are cut on UTF-8 code point
+ * boundaries, so every prefix is a valid string.
+ *
+ * Counts are exact on leaves whose terms enum supports ords (doc values of keyword fields), where
+ * the size of a bucket is the ord difference between two boundaries. On other leaves at most
+ * {@link #TERMS_PER_BUCKET_BUDGET} terms are visited per bucket and larger buckets share the
+ * remaining terms of the leaf evenly. Terms are counted once per segment they appear in, so a
+ * distribution summed over segments or shards is only exact if they don't share a bucket.
+ */
+public class PrefixDistribution implements Writeable, ToXContentFragment {
+
+    public static final String NAME = "prefix_distribution";
+    public static final int MIN_PREFIX_LENGTH = 1;
+    public static final int MAX_PREFIX_LENGTH = 3;
+    public static final int DEFAULT_PREFIX_LENGTH = 1;
+    static final int MAX_BUCKETS = 1024;
+    static final int TERMS_PER_BUCKET_BUDGET = 128;
+
+    private final int prefixLength;
+    private final TreeMap<BytesRef, Long> buckets;
+    private long otherTermCount;
+    private boolean exact;
+
+    PrefixDistribution(int prefixLength) {
+        this.prefixLength = prefixLength;
+        this.buckets = new TreeMap<>();
+        this.otherTermCount = 0;
+        this.exact = true;
+    }
+
+    public PrefixDistribution(StreamInput in) throws IOException {
+        prefixLength = in.readVInt();
+        exact = in.readBoolean();
+        otherTermCount = in.readVLong();
+        int size = in.readVInt();
+        buckets = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            buckets.put(in.readBytesRef(), in.readVLong());
+        }
+    }
+
+    /**
+     * @return the number of leading characters the terms are bucketed by
+     */
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * @return the number of terms per prefix, ordered by prefix
+     */
+    public Map<BytesRef, Long> getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @return the number of terms that fell beyond the {@link #MAX_BUCKETS} first buckets
+     */
+    public long getOtherTermCount() {
+        return otherTermCount;
+    }
+
+    /**
+     * @return <code>true</code> if all counts were computed from ords and no term can have been counted twice
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    void accumulate(PrefixDistribution other) {
+        if (prefixLength != other.prefixLength) {
+            throw new IllegalArgumentException("can't merge prefix distributions of length [" + prefixLength
+                + "] and [" + other.prefixLength + "]");
+        }
+        // a term of both sides is summed twice, which is only ruled out if they share no prefix
+        if (isEmpty() == false && other.isEmpty() == false
+            && (otherTermCount > 0 || other.otherTermCount > 0 || sharesBucket(other))) {
+            exact = false;
+        }
+        for (Map.Entry<BytesRef, Long> entry : other.buckets.entrySet()) {
+            buckets.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+        otherTermCount += other.otherTermCount;
+        exact &= other.exact;
+        trim();
+    }
+
+    private boolean isEmpty() {
+        return buckets.isEmpty() && otherTermCount == 0;
+    }
+
+    private boolean sharesBucket(PrefixDistribution other) {
+        for (BytesRef prefix : other.buckets.keySet()) {
+            if (buckets.containsKey(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void trim() {
+        if (buckets.size() <= MAX_BUCKETS) {
+            return;
+        }
+        Iterator<Map.Entry<BytesRef, Long>> iterator = buckets.entrySet().iterator();
+        for (int i = 0; iterator.hasNext(); i++) {
+            Map.Entry<BytesRef, Long> entry = iterator.next();
+            if (i >= MAX_BUCKETS) {
+                otherTermCount += entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Computes the prefix distribution of <code>field</code> over all leaves of <code>reader</code>.
+     */
+    static PrefixDistribution build(IndexReader reader, String field, int prefixLength) throws IOException {
+        PrefixDistribution distribution = new PrefixDistribution(prefixLength);
+        for (LeafReaderContext context : reader.leaves()) {
+            PrefixDistribution leafDistribution = buildLeaf(context.reader(), field, prefixLength);
+            if (leafDistribution != null) {
+                distribution.accumulate(leafDistribution);
+            }
+        }
+        return distribution;
+    }
+
+    private static PrefixDistribution buildLeaf(LeafReader reader, String field, int prefixLength) throws IOException {
+        // doc values expose an ord-capable terms enum, the postings terms dictionary usually doesn't
+        SortedSetDocValues docValues = reader.getSortedSetDocValues(field);
+        if (docValues != null && docValues.getValueCount() > 0) {
+            return buildWithOrds(docValues.termsEnum(), docValues.getValueCount(), prefixLength);
+        }
+        Terms terms = reader.terms(field);
+        if (terms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        if (termsEnum.next() == null) {
+            return null;
+        }
+        if (terms.size() >= 0 && supportsOrds(termsEnum)) {
+            return buildWithOrds(terms.iterator(), terms.size(), prefixLength);
+        }
+        return buildWithBudget(termsEnum, terms.size(), prefixLength);
+    }
+
+    private static boolean supportsOrds(TermsEnum termsEnum) throws IOException {
+        try {
+            termsEnum.ord();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static PrefixDistribution buildWithOrds(TermsEnum termsEnum, long numTerms,
+                                                    int prefixLength) throws IOException {
+        PrefixDistribution distribution = new PrefixDistribution(prefixLength);
+        BytesRef term = termsEnum.next();
+        while (term != null) {
+            long startOrd = termsEnum.ord();
+            if (distribution.buckets.size() == MAX_BUCKETS) {
+                distribution.otherTermCount += numTerms - startOrd;
+                break;
+            }
+            BytesRef prefix = prefix(term, prefixLength);
+            BytesRef upper = upperBound(prefix, prefixLength);
+            long endOrd;
+            if (upper == null || termsEnum.seekCeil(upper) == TermsEnum.SeekStatus.END) {
+                endOrd = numTerms;
+                term = null;
+            } else {
+                endOrd = termsEnum.ord();
+                term = termsEnum.term();
+            }
+            distribution.buckets.put(prefix, endOrd - startOrd);
+        }
+        return distribution;
+    }
+
+    private static PrefixDistribution buildWithBudget(TermsEnum termsEnum, long numTerms,
+                                                      int prefixLength) throws IOException {
+        PrefixDistribution distribution = new PrefixDistribution(prefixLength);
+        List<BytesRef> overflowed = new ArrayList<>();
+        long counted = 0;
+        BytesRef term = termsEnum.term();
+        while (term != null) {
+            if (distribution.buckets.size() == MAX_BUCKETS) {
+                distribution.exact = false;
+                distribution.otherTermCount += numTerms < 0 ? 0 : Math.max(0, numTerms - counted);
+                counted = numTerms;
+                break;
+            }
+            BytesRef prefix = prefix(term, prefixLength);
+            BytesRef upper = upperBound(prefix, prefixLength);
+            long count = 0;
+            while (term != null && (upper == null || term.compareTo(upper) < 0) && count < TERMS_PER_BUCKET_BUDGET) {
+                count++;
+                term = termsEnum.next();
+            }
+            if (term != null && (upper == null || term.compareTo(upper) < 0)) {
+                // budget exhausted, jump over the rest of the bucket and estimate its size afterwards
+                overflowed.add(prefix);
+                term = upper == null || termsEnum.seekCeil(upper) == TermsEnum.SeekStatus.END ? null : termsEnum.term();
+            }
+            counted += count;
+            distribution.buckets.put(prefix, count);
+        }
+        if (overflowed.isEmpty() == false) {
+            distribution.exact = false;
+            if (numTerms > counted) {
+                long share = (numTerms - counted) / overflowed.size();
+                long remainder = (numTerms - counted) % overflowed.size();
+                for (int i = 0; i < overflowed.size(); i++) {
+                    distribution.buckets.merge(overflowed.get(i), share + (i < remainder ? 1 : 0), Long::sum);
+                }
+            }
+        }
+        return distribution;
+    }
+
+    /**
+     * @return the first <code>prefixLength</code> code points of <code>term</code>, or a copy of the whole term if it
+     * is shorter
+     */
+    static BytesRef prefix(BytesRef term, int prefixLength) {
+        int codePoints = 0;
+        int length = 0;
+        for (; length < term.length; length++) {
+            if (isLeadByte(term.bytes[term.offset + length]) && codePoints++ == prefixLength) {
+                break;
+            }
+        }
+        return BytesRef.deepCopyOf(new BytesRef(term.bytes, term.offset, length));
+    }
+
+    private static int codePointCount(BytesRef term) {
+        int codePoints = 0;
+        for (int i = 0; i < term.length; i++) {
+            if (isLeadByte(term.bytes[term.offset + i])) {
+                codePoints++;
+            }
+        }
+        return codePoints;
+    }
+
+    /**
+     * @return <code>false</code> for the continuation bytes of multi-byte UTF-8 sequences
+     */
+    private static boolean isLeadByte(byte b) {
+        return (b & 0xC0) != 0x80;
+    }
+
+    /**
+     * @return the smallest term that sorts after every term starting with <code>prefix</code>,
+     * or <code>null</code> if there is none. A prefix shorter than the prefix length only holds itself.
+     */
+    static BytesRef upperBound(BytesRef prefix, int prefixLength) {
+        if (codePointCount(prefix) < prefixLength) {
+            byte[] bytes = new byte[prefix.length + 1];
+            System.arraycopy(prefix.bytes, prefix.offset, bytes, 0, prefix.length);
+            return new BytesRef(bytes);
+        }
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            int b = prefix.bytes[prefix.offset + i] & 0xFF;
+            if (b != 0xFF) {
+                byte[] bytes = new byte[i + 1];
+                System.arraycopy(prefix.bytes, prefix.offset, bytes, 0, i + 1);
+                bytes[i] = (byte) (b + 1);
+                return new BytesRef(bytes);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(prefixLength);
+        out.writeBoolean(exact);
+        out.writeVLong(otherTermCount);
+        out.writeVInt(buckets.size());
+        for (Map.Entry<BytesRef, Long> entry : buckets.entrySet()) {
+            out.writeBytesRef(entry.getKey());
+            out.writeVLong(entry.getValue());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(PREFIX_LENGTH_FIELD, prefixLength);
+        builder.field(EXACT_FIELD, exact);
+        builder.field(OTHER_TERM_COUNT_FIELD, otherTermCount);
+        builder.startArray(BUCKETS_FIELD);
+        for (Map.Entry<BytesRef, Long> entry : buckets.entrySet()) {
+            BytesRef prefix = entry.getKey();
+            builder.startObject();
+            builder.field(PREFIX_FIELD, prefix.utf8ToString());
+            builder.field(TERM_COUNT_FIELD, entry.getValue());
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PrefixDistribution that = (PrefixDistribution) o;
+        return prefixLength == that.prefixLength && otherTermCount == that.otherTermCount && exact == that.exact
+            && buckets.equals(that.buckets);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(prefixLength, buckets, otherTermCount, exact);
+    }
+
+    static final String PREFIX_LENGTH_FIELD = "prefix_length";
+    static final String EXACT_FIELD = "exact";
+    static final String OTHER_TERM_COUNT_FIELD = "other_term_count";
+    static final String BUCKETS_FIELD = "buckets";
+    static final String PREFIX_FIELD = "prefix";
+    static final String TERM_COUNT_FIELD = "term_count";
+}
@@ -0,0 +1,433 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConjunctionUtils;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.opensearch.common.lease.Releasable;
+import org.opensearch.core.common.breaker.CircuitBreaker;
+import org.opensearch.core.common.breaker.CircuitBreakingException;
+import org.opensearch.index.mapper.DateFieldMapper;
+import org.opensearch.index.mapper.MappedFieldType;
+import org.opensearch.index.mapper.NumberFieldMapper;
+import org.opensearch.index.query.QueryShardContext;
+import org.opensearch.index.query.QueryShardException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Narrows the stats of the fields of a shard to the documents that match the query of the request, which includes
+ * the filters of the aliases the request went through.
+ *
+ * The matching documents are collected once per shard, in bitsets that are accounted for in the request circuit
+ * breaker. Doc counts are exact and come from intersecting the bitsets with the exists query of the field. The min
+ * and max values of point fields are found by intersecting the points with a visitor that skips the cells which
+ * can't widen the bounds found so far; in segments sorted by a single-valued long or date field the bounds of that
+ * field are read from the first and last matching documents instead. The min and max values of string fields come
+ * from the doc values ords of the matching documents.
+ *
+ * Each field may visit up to {@link #VISITED_VALUES_BUDGET} values per shard. Beyond that budget, and for fields
+ * that support neither approach, the min and max values of all the documents are kept and the stats are flagged
+ * as approximate. If the bitsets would trip the breaker, no field is narrowed: doc counts come from count queries
+ * and all stats are flagged as approximate.
+ */
+final class QueryScopedStats implements Releasable {
+
+    static final long VISITED_VALUES_BUDGET = 1L << 22;
+    // the number of documents or values between two checks for cancellation
+    private static final int CANCELLATION_CHECK_INTERVAL = 1 << 12;
+    private static final String BREAKER_LABEL = "<fieldstats_query>";
+
+    private final IndexSearcher searcher;
+    private final QueryShardContext context;
+    private final Query filter;
+    private final CircuitBreaker breaker;
+    private final FieldStatsTask task;
+    // the matching documents and their number per segment, or null if they didn't fit within the breaker
+    private final FixedBitSet[] matches;
+    private final int[] matchCounts;
+    private final long matchCount;
+    private long reservedBytes;
+
+    QueryScopedStats(IndexSearcher searcher, QueryShardContext context, Query filter, CircuitBreaker breaker,
+                     FieldStatsTask task) throws IOException {
+        this.searcher = searcher;
+        this.context = context;
+        this.filter = filter;
+        this.breaker = breaker;
+        this.task = task;
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        FixedBitSet[] matches = new FixedBitSet[leaves.size()];
+        int[] matchCounts = new int[leaves.size()];
+        Weight weight = searcher.createWeight(searcher.rewrite(filter), ScoreMode.COMPLETE_NO_SCORES, 1f);
+        long count = 0;
+        try {
+            for (LeafReaderContext leaf : leaves) {
+                task.ensureNotCancelled();
+                Scorer scorer = weight.scorer(leaf);
+                if (scorer == null) {
+                    continue;
+                }
+                long bytes = (long) FixedBitSet.bits2words(leaf.reader().maxDoc()) * Long.BYTES;
+                breaker.addEstimateBytesAndMaybeBreak(bytes, BREAKER_LABEL);
+                reservedBytes += bytes;
+                FixedBitSet bits = new FixedBitSet(leaf.reader().maxDoc());
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                DocIdSetIterator iterator = scorer.iterator();
+                int leafCount = 0;
+                for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+                    checkCancelled(++leafCount);
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        bits.set(doc);
+                    }
+                }
+                matches[leaf.ord] = bits;
+                matchCounts[leaf.ord] = bits.cardinality();
+                count += matchCounts[leaf.ord];
+            }
+        } catch (CircuitBreakingException e) {
+            close();
+            matches = null;
+            count = searcher.count(filter);
+        }
+        this.matches = matches;
+        this.matchCounts = matchCounts;
+        this.matchCount = count;
+    }
+
+    /**
+     * Releases the bitsets from the request circuit breaker.
+     */
+    @Override
+    public void close() {
+        breaker.addWithoutBreaking(-reservedBytes);
+        reservedBytes = 0;
+    }
+
+    private void checkCancelled(long visited) {
+        if (visited % CANCELLATION_CHECK_INTERVAL == 0) {
+            task.ensureNotCancelled();
+        }
+    }
+
+    /**
+     * @param levelFilter the documents at the nesting level of a field, or <code>null</code> for all documents
+     * @return the number of matching documents at the given nesting level
+     */
+    long countMatches(Query levelFilter) throws IOException {
+        return levelFilter == null ? matchCount : countMatching(levelFilter);
+    }
+
+    /**
+     * @return the number of matching documents that also match <code>query</code>
+     */
+    private long countMatching(Query query) throws IOException {
+        if (matches == null) {
+            return searcher.count(and(filter, query));
+        }
+        Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE_NO_SCORES, 1f);
+        long count = 0;
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            task.ensureNotCancelled();
+            if (matches[leaf.ord] == null || matchCounts[leaf.ord] == 0) {
+                continue;
+            }
+            Scorer scorer = weight.scorer(leaf);
+            if (scorer == null) {
+                continue;
+            }
+            DocIdSetIterator iterator = ConjunctionUtils.intersectIterators(Arrays.asList(
+                new BitSetIterator(matches[leaf.ord], matchCounts[leaf.ord]), scorer.iterator()));
+            for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+                checkCancelled(++count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param stats the stats of <code>field</code> over all the documents
+     * @return the stats of <code>field</code> over the matching documents, or <code>stats</code> flagged as
+     * approximate if they can't be narrowed
+     */
+    FieldStats<?> narrow(FieldStats<?> stats, MappedFieldType fieldType, FieldStatsProvider provider,
+                         String field) throws IOException {
+        long docCount = docCount(fieldType);
+        long maxDoc = searcher.getIndexReader().maxDoc();
+        FieldStats<?> narrowed = null;
+        if (docCount == 0) {
+            if (provider instanceof FieldStatsProviders.PointsProvider) {
+                narrowed = ((FieldStatsProviders.PointsProvider) provider).empty(fieldType, maxDoc);
+            } else if (stats instanceof FieldStats.Text) {
+                narrowed = new FieldStats.Text(maxDoc, 0, 0, 0, fieldType.isSearchable(), fieldType.isAggregatable());
+            }
+        } else if (docCount > 0 && matches != null) {
+            try {
+                if (provider instanceof FieldStatsProviders.PointsProvider) {
+                    narrowed = pointStats(fieldType, (FieldStatsProviders.PointsProvider) provider, field, docCount);
+                } else if (stats instanceof FieldStats.Text) {
+                    narrowed = termStats(fieldType, field, docCount);
+                }
+            } catch (BudgetExceededException e) {
+                narrowed = null;
+            }
+        }
+        if (narrowed == null) {
+            stats.scopeToQuery(docCount, true);
+            return stats;
+        }
+        narrowed.scopeToQuery(docCount, false);
+        return narrowed;
+    }
+
+    private long docCount(MappedFieldType fieldType) throws IOException {
+        Query exists;
+        try {
+            exists = fieldType.existsQuery(context);
+        } catch (QueryShardException | IllegalArgumentException e) {
+            // not searchable and without doc values
+            return -1;
+        }
+        return countMatching(exists);
+    }
+
+    private FieldStats<?> pointStats(MappedFieldType fieldType, FieldStatsProviders.PointsProvider provider,
+                                     String field, long docCount) throws IOException {
+        boolean sortable = fieldType instanceof DateFieldMapper.DateFieldType
+            || NumberFieldMapper.NumberType.LONG.typeName().equals(fieldType.typeName());
+        BoundsVisitor visitor = new BoundsVisitor(task);
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            FixedBitSet leafMatches = matches[leaf.ord];
+            PointValues values = leaf.reader().getPointValues(field);
+            if (leafMatches == null || values == null) {
+                continue;
+            }
+            visitor.reset(values, leafMatches);
+            if (sortable == false || sortedLeafBounds(leaf.reader(), values, leafMatches, field, visitor) == false) {
+                values.intersect(visitor);
+            }
+        }
+        if (visitor.min == null) {
+            return null;
+        }
+        return provider.fromPackedValues(fieldType, searcher.getIndexReader().maxDoc(), docCount, -1,
+            visitor.min, visitor.max);
+    }
+
+    /**
+     * In a segment sorted by a single-valued field the first and last matching documents with a value hold the
+     * bounds of the field, whatever the sort order.
+     *
+     * @return <code>false</code> if the segment isn't sorted by the field
+     */
+    private static boolean sortedLeafBounds(LeafReader reader, PointValues values, FixedBitSet leafMatches,
+                                            String field, BoundsVisitor visitor) throws IOException {
+        Sort sort = reader.getMetaData().getSort();
+        if (sort == null || field.equals(sort.getSort()[0].getField()) == false
+                || values.size() != values.getDocCount()) {
+            return false;
+        }
+        byte[] packedValue = new byte[Long.BYTES];
+        SortedNumericDocValues docValues = DocValues.getSortedNumeric(reader, field);
+        for (int doc = leafMatches.nextSetBit(0); doc != DocIdSetIterator.NO_MORE_DOCS;
+                doc = doc + 1 < leafMatches.length() ? leafMatches.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+            visitor.count();
+            if (docValues.advanceExact(doc)) {
+                LongPoint.encodeDimension(docValues.nextValue(), packedValue, 0);
+                visitor.update(packedValue);
+                break;
+            }
+        }
+        for (int doc = leafMatches.prevSetBit(leafMatches.length() - 1); doc >= 0;
+                doc = doc > 0 ? leafMatches.prevSetBit(doc - 1) : -1) {
+            visitor.count();
+            // doc values can only move forward
+            docValues = DocValues.getSortedNumeric(reader, field);
+            if (docValues.advanceExact(doc)) {
+                LongPoint.encodeDimension(docValues.nextValue(), packedValue, 0);
+                visitor.update(packedValue);
+                break;
+            }
+        }
+        return true;
+    }
+
+    private FieldStats<?> termStats(MappedFieldType fieldType, String field, long docCount) throws IOException {
+        BytesRef min = null;
+        BytesRef max = null;
+        long visited = 0;
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            FixedBitSet leafMatches = matches[leaf.ord];
+            FieldInfo fieldInfo = leaf.reader().getFieldInfos().fieldInfo(field);
+            if (leafMatches == null || fieldInfo == null) {
+                continue;
+            }
+            if (fieldInfo.getDocValuesType() != DocValuesType.SORTED
+                    && fieldInfo.getDocValuesType() != DocValuesType.SORTED_SET) {
+                return null;
+            }
+            SortedSetDocValues docValues = DocValues.getSortedSet(leaf.reader(), field);
+            long minOrd = Long.MAX_VALUE;
+            long maxOrd = -1;
+            for (int doc = leafMatches.nextSetBit(0); doc != DocIdSetIterator.NO_MORE_DOCS;
+                    doc = doc + 1 < leafMatches.length() ? leafMatches.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+                if (++visited > VISITED_VALUES_BUDGET) {
+                    throw new BudgetExceededException();
+                }
+                checkCancelled(visited);
+                if (docValues.advanceExact(doc)) {
+                    // the ords of a document are sorted
+                    long ord = docValues.nextOrd();
+                    minOrd = Math.min(minOrd, ord);
+                    for (int i = 1; i < docValues.docValueCount(); i++) {
+                        ord = docValues.nextOrd();
+                    }
+                    maxOrd = Math.max(maxOrd, ord);
+                }
+            }
+            if (maxOrd >= 0) {
+                BytesRef leafMin = docValues.lookupOrd(minOrd);
+                if (min == null || leafMin.compareTo(min) < 0) {
+                    min = BytesRef.deepCopyOf(leafMin);
+                }
+                BytesRef leafMax = docValues.lookupOrd(maxOrd);
+                if (max == null || leafMax.compareTo(max) > 0) {
+                    max = BytesRef.deepCopyOf(leafMax);
+                }
+            }
+        }
+        if (min == null) {
+            return null;
+        }
+        return new FieldStats.Text(searcher.getIndexReader().maxDoc(), docCount, -1, -1,
+            fieldType.isSearchable(), fieldType.isAggregatable(), min, max);
+    }
+
+    private static Query and(Query first, Query second) {
+        return new BooleanQuery.Builder()
+            .add(first, BooleanClause.Occur.FILTER)
+            .add(second, BooleanClause.Occur.FILTER)
+            .build();
+    }
+
+    /**
+     * Tracks the per dimension bounds of the points of the matching documents. Cells whose bounds are within the
+     * bounds found so far are skipped, so cells are never reported as fully inside.
+     */
+    private static final class BoundsVisitor implements PointValues.IntersectVisitor {
+        private final FieldStatsTask task;
+        private long visited;
+        private int numIndexDims;
+        private int bytesPerDim;
+        private ArrayUtil.ByteArrayComparator comparator;
+        private FixedBitSet matches;
+        byte[] min;
+        byte[] max;
+
+        BoundsVisitor(FieldStatsTask task) {
+            this.task = task;
+        }
+
+        void reset(PointValues values, FixedBitSet matches) throws IOException {
+            this.numIndexDims = values.getNumIndexDimensions();
+            this.bytesPerDim = values.getBytesPerDimension();
+            this.comparator = ArrayUtil.getUnsignedComparator(bytesPerDim);
+            this.matches = matches;
+        }
+
+        void count() {
+            if (++visited > VISITED_VALUES_BUDGET) {
+                throw new BudgetExceededException();
+            }
+            if (visited % CANCELLATION_CHECK_INTERVAL == 0) {
+                task.ensureNotCancelled();
+            }
+        }
+
+        void update(byte[] packedValue) {
+            if (min == null) {
+                min = packedValue.clone();
+                max = packedValue.clone();
+                return;
+            }
+            for (int dim = 0; dim < numIndexDims; dim++) {
+                int offset = dim * bytesPerDim;
+                if (comparator.compare(packedValue, offset, min, offset) < 0) {
+                    System.arraycopy(packedValue, offset, min, offset, bytesPerDim);
+                }
+                if (comparator.compare(packedValue, offset, max, offset) > 0) {
+                    System.arraycopy(packedValue, offset, max, offset, bytesPerDim);
+                }
+            }
+        }
+
+        @Override
+        public void visit(int docID) {
+            throw new IllegalStateException("cells are never inside the bounds");
+        }
+
+        @Override
+        public void visit(int docID, byte[] packedValue) {
+            count();
+            if (matches.get(docID)) {
+                update(packedValue);
+            }
+        }
+
+        @Override
+        public PointValues.Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+            if (min == null) {
+                return PointValues.Relation.CELL_CROSSES_QUERY;
+            }
+            for (int dim = 0; dim < numIndexDims; dim++) {
+                int offset = dim * bytesPerDim;
+                if (comparator.compare(minPackedValue, offset, min, offset) < 0
+                        || comparator.compare(maxPackedValue, offset, max, offset) > 0) {
+                    return PointValues.Relation.CELL_CROSSES_QUERY;
+                }
+            }
+            return PointValues.Relation.CELL_OUTSIDE_QUERY;
+        }
+    }
+
+    private static final class BudgetExceededException extends RuntimeException {
+        BudgetExceededException() {
+            super(null, null, false, false);
+        }
+    }
+}
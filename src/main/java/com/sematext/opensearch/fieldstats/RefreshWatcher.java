@@ -0,0 +1,315 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.common.Nullable;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.action.ActionListener;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.index.engine.Engine;
+import org.opensearch.index.shard.IndexEventListener;
+import org.opensearch.index.shard.IndexShard;
+import org.opensearch.index.shard.IndexingOperationListener;
+import org.opensearch.index.translog.Translog;
+import org.opensearch.indices.replication.common.ReplicationType;
+import org.opensearch.threadpool.Scheduler;
+import org.opensearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Notifies the field stats requests that wait for a shard of this node to change once a refresh made new operations
+ * visible. The location of the last operation of every shard is tracked, and a single refresh listener is
+ * registered for the last operation of a shard that requests wait for, so that waiting neither adds a refresh
+ * listener per operation nor forces refreshes. Operations on shards that no request waits for only update that
+ * location, without locking.
+ *
+ * Replicas of indices with segment replication copy the segments of their primary instead of refreshing after the
+ * operations they apply, so their reader is checked every refresh interval of the index instead.
+ */
+public final class RefreshWatcher implements IndexEventListener, IndexingOperationListener {
+
+    private static final TimeValue DEFAULT_POLL_INTERVAL = TimeValue.timeValueSeconds(1);
+
+    private final ThreadPool threadPool;
+    private final Map<ShardId, ShardWatch> shards = new ConcurrentHashMap<>();
+    private final Set<Waiter> polling = ConcurrentHashMap.newKeySet();
+
+    public RefreshWatcher(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    public void postIndex(ShardId shardId, Engine.Index index, Engine.IndexResult result) {
+        onOperation(shardId, result);
+    }
+
+    @Override
+    public void postDelete(ShardId shardId, Engine.Delete delete, Engine.DeleteResult result) {
+        onOperation(shardId, result);
+    }
+
+    private void onOperation(ShardId shardId, Engine.Result result) {
+        if (result.getResultType() != Engine.Result.Type.SUCCESS || result.getTranslogLocation() == null) {
+            return;
+        }
+        ShardWatch watch = shards.get(shardId);
+        if (watch == null) {
+            watch = shards.computeIfAbsent(shardId, k -> new ShardWatch());
+        }
+        watch.onOperation(result.getTranslogLocation());
+    }
+
+    @Override
+    public void beforeIndexShardClosed(ShardId shardId, @Nullable IndexShard indexShard, Settings indexSettings) {
+        ShardWatch watch = shards.remove(shardId);
+        if (watch != null) {
+            watch.close();
+        }
+    }
+
+    /**
+     * Waits until the reader of the shard isn't the one with the given version anymore.
+     *
+     * @param listener notified with <code>true</code> once the reader changed or the shard is closed, or
+     *                 <code>false</code> when the timeout expires or the task is cancelled first
+     */
+    void watch(IndexShard shard, long readerVersion, TimeValue timeout, FieldStatsTask task,
+               ActionListener<Boolean> listener) {
+        Waiter waiter = new Waiter(readerVersion, ActionListener.notifyOnce(listener));
+        if (isSegmentReplica(shard)) {
+            poll(shard, waiter, timeout, task);
+            return;
+        }
+        ShardWatch watch = shards.computeIfAbsent(shard.shardId(), k -> new ShardWatch());
+        if (watch.add(shard, waiter)) {
+            waiter.timeout = threadPool.schedule(() -> watch.remove(waiter, false), timeout, ThreadPool.Names.SAME);
+            task.addCancellationListener(() -> watch.remove(waiter, false));
+        }
+    }
+
+    private static boolean isSegmentReplica(IndexShard shard) {
+        return shard.routingEntry().primary() == false && IndexMetadata.INDEX_REPLICATION_TYPE_SETTING.get(
+            shard.indexSettings().getSettings()) == ReplicationType.SEGMENT;
+    }
+
+    private void poll(IndexShard shard, Waiter waiter, TimeValue timeout, FieldStatsTask task) {
+        if (readerVersion(shard) != waiter.readerVersion) {
+            waiter.complete(true);
+            return;
+        }
+        polling.add(waiter);
+        TimeValue interval = shard.indexSettings().getRefreshInterval();
+        waiter.poll = threadPool.scheduleWithFixedDelay(() -> {
+            // the reader can't be read anymore once the shard is closed, which is a change too
+            if (readerVersion(shard) != waiter.readerVersion) {
+                polled(waiter, true);
+            }
+        }, interval.millis() > 0 ? interval : DEFAULT_POLL_INTERVAL, ThreadPool.Names.SAME);
+        waiter.timeout = threadPool.schedule(() -> polled(waiter, false), timeout, ThreadPool.Names.SAME);
+        task.addCancellationListener(() -> polled(waiter, false));
+    }
+
+    private void polled(Waiter waiter, boolean changed) {
+        if (polling.remove(waiter)) {
+            waiter.complete(changed);
+        }
+    }
+
+    /**
+     * @return the number of requests waiting for a shard of this node to change
+     */
+    int size() {
+        int size = polling.size();
+        for (ShardWatch watch : shards.values()) {
+            synchronized (watch) {
+                size += watch.waiters.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the version of the current reader of the shard, or <code>-1</code> if it can't be read anymore
+     */
+    private static long readerVersion(IndexShard shard) {
+        try (Engine.Searcher searcher = shard.acquireSearcher("fieldstats_watch")) {
+            return searcher.getDirectoryReader().getVersion();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final long readerVersion;
+        private final ActionListener<Boolean> listener;
+        private volatile Scheduler.ScheduledCancellable timeout;
+        private volatile Scheduler.Cancellable poll;
+
+        Waiter(long readerVersion, ActionListener<Boolean> listener) {
+            this.readerVersion = readerVersion;
+            this.listener = listener;
+        }
+
+        void complete(boolean changed) {
+            Scheduler.ScheduledCancellable timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            Scheduler.Cancellable poll = this.poll;
+            if (poll != null) {
+                poll.cancel();
+            }
+            listener.onResponse(changed);
+        }
+    }
+
+    private final class ShardWatch {
+
+        private final List<Waiter> waiters = new ArrayList<>();
+        // the size of the waiters, which operations read without locking
+        private volatile int waiting;
+        private volatile IndexShard shard;
+        private final AtomicReference<Translog.Location> lastWrite = new AtomicReference<>();
+        // the location of the last operation a refresh made visible, and the one a refresh listener waits for
+        private Translog.Location visible;
+        private Translog.Location listening;
+        private boolean closed;
+
+        void onOperation(Translog.Location location) {
+            Translog.Location last;
+            while ((last = lastWrite.get()) == null || location.compareTo(last) > 0) {
+                if (lastWrite.compareAndSet(last, location)) {
+                    break;
+                }
+            }
+            // a waiter added concurrently either sees this location, or is seen here
+            if (waiting == 0) {
+                return;
+            }
+            Translog.Location listen;
+            synchronized (this) {
+                listen = nextListen();
+            }
+            listen(listen);
+        }
+
+        /**
+         * @return <code>false</code> if the waiter was completed right away
+         */
+        boolean add(IndexShard shard, Waiter waiter) {
+            if (readerVersion(shard) != waiter.readerVersion) {
+                waiter.complete(true);
+                return false;
+            }
+            Translog.Location listen;
+            boolean added;
+            synchronized (this) {
+                added = closed == false;
+                if (added) {
+                    this.shard = shard;
+                    waiters.add(waiter);
+                    waiting = waiters.size();
+                }
+                // an operation before the waiter may only become visible with the next refresh
+                listen = nextListen();
+            }
+            if (added == false) {
+                waiter.complete(true);
+                return false;
+            }
+            listen(listen);
+            return true;
+        }
+
+        void remove(Waiter waiter, boolean changed) {
+            boolean removed;
+            synchronized (this) {
+                removed = waiters.remove(waiter);
+                waiting = waiters.size();
+            }
+            if (removed) {
+                waiter.complete(changed);
+            }
+        }
+
+        void close() {
+            List<Waiter> done;
+            synchronized (this) {
+                closed = true;
+                done = new ArrayList<>(waiters);
+                waiters.clear();
+                waiting = 0;
+            }
+            done.forEach(waiter -> waiter.complete(true));
+        }
+
+        /**
+         * @return the location to register a refresh listener for, or <code>null</code> if there is no need to
+         */
+        private Translog.Location nextListen() {
+            assert Thread.holdsLock(this);
+            Translog.Location last = lastWrite.get();
+            if (waiters.isEmpty() || shard == null || listening != null || last == null
+                || (visible != null && last.compareTo(visible) <= 0)) {
+                return null;
+            }
+            listening = last;
+            return listening;
+        }
+
+        private void listen(Translog.Location location) {
+            if (location == null) {
+                return;
+            }
+            try {
+                shard.addRefreshListener(location, forced -> onRefresh(location));
+            } catch (Exception e) {
+                // the shard is closing, the waiters are completed when it is closed
+                synchronized (this) {
+                    listening = null;
+                }
+            }
+        }
+
+        private void onRefresh(Translog.Location location) {
+            long readerVersion = readerVersion(shard);
+            List<Waiter> done = new ArrayList<>();
+            Translog.Location listen;
+            synchronized (this) {
+                listening = null;
+                visible = location;
+                waiters.removeIf(waiter -> {
+                    if (waiter.readerVersion != readerVersion) {
+                        done.add(waiter);
+                        return true;
+                    }
+                    return false;
+                });
+                waiting = waiters.size();
+                listen = nextListen();
+            }
+            done.forEach(waiter -> waiter.complete(true));
+            listen(listen);
+        }
+    }
+}
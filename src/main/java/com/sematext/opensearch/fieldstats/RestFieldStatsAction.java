@@ -32,6 +32,7 @@ import org.opensearch.rest.RestRequest;
 import org.opensearch.rest.RestResponse;
 import org.opensearch.core.rest.RestStatus;
 import org.opensearch.rest.action.RestBuilderListener;
+import org.opensearch.rest.action.RestCancellableNodeClient;
 
 import java.io.IOException;
 import java.util.List;
@@ -62,11 +63,36 @@ public class RestFieldStatsAction extends BaseRestHandler {
           "either specify a request body or the [fields] request parameter");
     }
 
-    FieldStatsRequestBuilder fieldStatsRequestBuilder = new FieldStatsRequestBuilder(client, FieldStatsAction.INSTANCE);
+    // the request is cancelled, along with its shard requests, when the client disconnects
+    RestCancellableNodeClient cancellableClient = new RestCancellableNodeClient(client, request.getHttpChannel());
+    FieldStatsRequestBuilder fieldStatsRequestBuilder =
+        new FieldStatsRequestBuilder(cancellableClient, FieldStatsAction.INSTANCE);
     final FieldStatsRequest fieldStatsRequest = fieldStatsRequestBuilder.request();
     fieldStatsRequest.indices(Strings.splitStringByCommaToArray(request.param("index")));
-    fieldStatsRequest.indicesOptions(IndicesOptions.fromRequest(request, fieldStatsRequest.indicesOptions()));
+    IndicesOptions indicesOptions = IndicesOptions.fromRequest(request, fieldStatsRequest.indicesOptions());
+    // closed indices are only considered when they are asked for, and are answered from their archived stats
+    if (indicesOptions.expandWildcardsClosed()) {
+      indicesOptions = FieldStatsRequest.allowClosedIndices(indicesOptions);
+    }
+    fieldStatsRequest.indicesOptions(indicesOptions);
     fieldStatsRequest.level(request.param("level", FieldStatsRequest.DEFAULT_LEVEL));
+    fieldStatsRequest.setStats(Strings.splitStringByCommaToArray(request.param("stats")));
+    fieldStatsRequest.setPrefixLength(request.paramAsInt("prefix_length", fieldStatsRequest.getPrefixLength()));
+    fieldStatsRequest.setFrom(request.paramAsInt("from", fieldStatsRequest.getFrom()));
+    fieldStatsRequest.setSize(request.paramAsInt("size", fieldStatsRequest.getSize()));
+    fieldStatsRequest.setTimeout(request.paramAsTime("timeout", null));
+    fieldStatsRequest.setHedge(request.paramAsBoolean("hedge", fieldStatsRequest.shouldHedge()));
+    fieldStatsRequest.setDataStreamOrder(request.paramAsBoolean("data_stream_order",
+        fieldStatsRequest.isDataStreamOrdered()));
+    fieldStatsRequest.setSince(request.param("since"));
+    fieldStatsRequest.setWaitForChange(request.paramAsTime("wait_for_change", null));
+    fieldStatsRequest.setPit(request.param("pit"));
+    fieldStatsRequest.setPitKeepAlive(request.paramAsTime("pit_keep_alive", null));
+    fieldStatsRequest.setUseCache(request.paramAsBoolean("request_cache", fieldStatsRequest.shouldUseCache()));
+    fieldStatsRequest.setRouting(request.param("routing"));
+    fieldStatsRequest.setPreference(request.param("preference"));
+    fieldStatsRequest.setExpandFlatObjects(request.paramAsBoolean("expand_flat_objects",
+        fieldStatsRequest.shouldExpandFlatObjects()));
     if (request.hasContentOrSourceParam()) {
       try (XContentParser parser = request.contentOrSourceParamParser()) {
         fieldStatsRequest.source(parser);
@@ -81,8 +107,36 @@ public class RestFieldStatsAction extends BaseRestHandler {
       @Override
       public RestResponse buildResponse(FieldStatsResponse response, XContentBuilder builder) throws Exception {
         builder.startObject();
+        builder.field("timed_out", response.isTimedOut());
         buildBroadcastShardsHeader(builder, request, response);
+        if (fieldStatsRequest.shouldHedge()) {
+          builder.startObject("hedging");
+          builder.field("hedged", response.getHedgedShards());
+          builder.field("won", response.getHedgeWins());
+          builder.endObject();
+        }
 
+        String level = fieldStatsRequest.level();
+        if ("shards".equals(level) || "segments".equals(level)) {
+          builder.field("total", response.getTotalEntries());
+          builder.startArray(level);
+          for (ShardFieldStats entry : response.getEntries()) {
+            entry.toXContent(builder, request);
+          }
+          builder.endArray();
+          builder.endObject();
+          return new BytesRestResponse(RestStatus.OK, builder);
+        }
+
+        if (fieldStatsRequest.getWaitForChange() != null) {
+          builder.field("changed", response.isChanged());
+        }
+        if (response.getChangeToken() != null) {
+          builder.field("change_token", response.getChangeToken());
+        }
+        if (fieldStatsRequest.getSince() != null) {
+          builder.array("removed_indices", response.getRemovedIndices().toArray(new String[0]));
+        }
         builder.startObject("indices");
         for (Map.Entry<String, Map<String, FieldStats<?>>> entry1 :
             response.getIndicesMergedFieldStats().entrySet()) {
@@ -93,6 +147,16 @@ public class RestFieldStatsAction extends BaseRestHandler {
             entry2.getValue().toXContent(builder, request);
           }
           builder.endObject();
+          Map<String, Long> probes = response.getIndicesProbes().get(entry1.getKey());
+          if (probes != null) {
+            builder.startObject("probes");
+            for (Map.Entry<String, Long> probe : probes.entrySet()) {
+              builder.startObject(probe.getKey());
+              builder.field("doc_freq", probe.getValue());
+              builder.endObject();
+            }
+            builder.endObject();
+          }
           builder.endObject();
         }
         builder.endObject();
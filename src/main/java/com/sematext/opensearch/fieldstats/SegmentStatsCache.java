@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.util.StringHelper;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.common.Nullable;
+import org.opensearch.common.cache.Cache;
+import org.opensearch.common.cache.CacheBuilder;
+import org.opensearch.common.cache.RemovalReason;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.common.lucene.Lucene;
+import org.opensearch.common.settings.Setting;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.common.io.stream.ByteBufferStreamInput;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.unit.ByteSizeValue;
+import org.opensearch.core.index.Index;
+import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.index.IndexService;
+import org.opensearch.index.IndexSettings;
+import org.opensearch.index.engine.Engine;
+import org.opensearch.index.shard.IndexEventListener;
+import org.opensearch.index.shard.IndexShard;
+import org.opensearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.opensearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the stats of the fields of single segments, so that the stats of a shard are merged from the segments that
+ * didn't change since they were last computed, and only the new segments are read.
+ *
+ * Entries are keyed by the id of the segment ({@link SegmentCommitInfo#getId()}), which changes whenever the files
+ * of the segment do, by the field and by the optional statistics that were computed
+ * ({@link FieldStatsShardRequest#writeSegmentStatsKey}). They are dropped when the segment is closed, after merges
+ * or when the shard is closed. The cache holds up to <code>fieldstats.segment_cache.size</code> of serialized stats
+ * and evicts the least recently used ones. The keys are also indexed by shard and segment, so that dropping the
+ * entries of a segment or a shard doesn't scan the whole cache.
+ *
+ * Unless <code>fieldstats.segment_cache.persist</code> is disabled, the entries of the segments of a shard are
+ * written to {@link #FILE_NAME} in the data path of the shard when it is closed, in the background, and read back
+ * when it started again, also in the background, so that a restarted node doesn't read all of its segments again.
+ * Entries are only read back for segments of the shard with the same id, name and number of documents, and the file
+ * is rewritten with the live segments only, so the entries of deleted segments don't outlive them. Shards of deleted
+ * indices aren't written, since their data path is about to be deleted.
+ */
+public final class SegmentStatsCache implements IndexEventListener {
+
+    private static final Logger logger = LogManager.getLogger(SegmentStatsCache.class);
+
+    public static final Setting<ByteSizeValue> SIZE_SETTING = Setting.byteSizeSetting(
+        "fieldstats.segment_cache.size", new ByteSizeValue(16 * 1024 * 1024), Setting.Property.NodeScope);
+    public static final Setting<Boolean> PERSIST_SETTING = Setting.boolSetting(
+        "fieldstats.segment_cache.persist", true, Setting.Property.NodeScope);
+
+    static final String FILE_NAME = "fieldstats-segments.st";
+    private static final String CODEC = "fieldstats-segments";
+    private static final int VERSION = 1;
+
+    private final ThreadPool threadPool;
+    private final boolean persist;
+    private final Cache<Key, BytesReference> cache;
+    private final Set<String> listenedSegments = ConcurrentHashMap.newKeySet();
+    // the keys of the cache by shard and by segment id, which are only accessed within a compute of their shard
+    private final Map<ShardId, Map<String, Set<Key>>> keys = new ConcurrentHashMap<>();
+    private final Set<Index> deletedIndices = ConcurrentHashMap.newKeySet();
+
+    public SegmentStatsCache(Settings settings, ThreadPool threadPool) {
+        this.threadPool = threadPool;
+        ByteSizeValue size = SIZE_SETTING.get(settings);
+        if (size.getBytes() <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.<Key, BytesReference>builder()
+                .setMaximumWeight(size.getBytes())
+                .weigher((key, stats) -> key.segmentId.length() + key.field.length() + key.variant.length()
+                    + stats.length())
+                .removalListener(notification -> {
+                    if (notification.getRemovalReason() != RemovalReason.REPLACED) {
+                        unindex(notification.getKey());
+                    }
+                })
+                .build();
+        }
+        this.persist = PERSIST_SETTING.get(settings);
+    }
+
+    boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * @param variant the optional statistics, as written by {@link FieldStatsShardRequest#writeSegmentStatsKey}
+     * @return a copy of the stats of <code>field</code> in the segment, or <code>null</code>
+     */
+    FieldStats<?> get(ShardId shardId, LeafReader leaf, String field, BytesReference variant) throws IOException {
+        String segmentId = segmentId(leaf);
+        if (segmentId == null) {
+            return null;
+        }
+        BytesReference stats = cache.get(new Key(shardId, segmentId, field, variant));
+        return stats == null ? null : FieldStats.readFrom(stats.streamInput());
+    }
+
+    /**
+     * @param stats the stats of <code>field</code> in the segment, which must be complete and are copied
+     */
+    void put(ShardId shardId, LeafReader leaf, String field, BytesReference variant, FieldStats<?> stats)
+        throws IOException {
+        String segmentId = segmentId(leaf);
+        if (segmentId == null) {
+            return;
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        stats.writeTo(out);
+        put(new Key(shardId, segmentId, field, variant), leaf, out.bytes());
+    }
+
+    private void put(Key key, LeafReader leaf, BytesReference stats) {
+        IndexReader.CacheHelper cacheHelper = leaf.getCoreCacheHelper();
+        if (cacheHelper == null) {
+            return;
+        }
+        if (listenedSegments.add(key.segmentId)) {
+            cacheHelper.addClosedListener(core -> invalidateSegment(key.segmentId));
+        }
+        keys.compute(key.shardId, (shardId, segments) -> {
+            segments = segments == null ? new HashMap<>() : segments;
+            segments.computeIfAbsent(key.segmentId, segmentId -> new HashSet<>()).add(key);
+            return segments;
+        });
+        cache.put(key, stats);
+    }
+
+    private void unindex(Key key) {
+        keys.computeIfPresent(key.shardId, (shardId, segments) -> {
+            Set<Key> segmentKeys = segments.get(key.segmentId);
+            if (segmentKeys != null && segmentKeys.remove(key) && segmentKeys.isEmpty()) {
+                segments.remove(key.segmentId);
+            }
+            return segments.isEmpty() ? null : segments;
+        });
+    }
+
+    /**
+     * @return a copy of the keys of the shard, by segment id
+     */
+    private Map<String, List<Key>> keys(ShardId shardId) {
+        Map<String, List<Key>> shardKeys = new HashMap<>();
+        keys.computeIfPresent(shardId, (id, segments) -> {
+            segments.forEach((segmentId, segmentKeys) -> shardKeys.put(segmentId, new ArrayList<>(segmentKeys)));
+            return segments;
+        });
+        return shardKeys;
+    }
+
+    private void invalidateSegment(String segmentId) {
+        listenedSegments.remove(segmentId);
+        // segments are shared by the shards of a shrunk, split or cloned index and its source
+        for (ShardId shardId : keys.keySet()) {
+            List<Key> segmentKeys = keys(shardId).get(segmentId);
+            if (segmentKeys != null) {
+                segmentKeys.forEach(cache::invalidate);
+            }
+        }
+    }
+
+    /**
+     * @return the id of the segment of <code>leaf</code>, or <code>null</code> if it has none
+     */
+    private static String segmentId(LeafReader leaf) {
+        byte[] id = Lucene.segmentReader(leaf).getSegmentInfo().getId();
+        return id == null ? null : StringHelper.idToString(id);
+    }
+
+    @Override
+    public void afterIndexShardStarted(IndexShard indexShard) {
+        if (cache != null && persist && isOpen(indexShard)) {
+            threadPool.generic().execute(() -> load(indexShard));
+        }
+    }
+
+    @Override
+    public void beforeIndexRemoved(IndexService indexService, IndexRemovalReason reason) {
+        if (reason == IndexRemovalReason.DELETED) {
+            deletedIndices.add(indexService.index());
+        }
+    }
+
+    @Override
+    public void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+        deletedIndices.remove(index);
+    }
+
+    @Override
+    public void beforeIndexShardClosed(ShardId shardId, @Nullable IndexShard indexShard, Settings indexSettings) {
+        if (cache == null) {
+            return;
+        }
+        if (indexShard != null && persist && isOpen(indexShard)
+            && deletedIndices.contains(shardId.getIndex()) == false) {
+            store(indexShard);
+        }
+        for (List<Key> segmentKeys : keys(shardId).values()) {
+            segmentKeys.forEach(cache::invalidate);
+        }
+    }
+
+    /**
+     * @return <code>false</code> for the shards of closed indices, whose engine has no segments to read
+     */
+    private static boolean isOpen(IndexShard indexShard) {
+        return indexShard.indexSettings().getIndexMetadata().getState() == IndexMetadata.State.OPEN;
+    }
+
+    /**
+     * Reads the entries of the live segments of the shard from its file into the cache.
+     */
+    void load(IndexShard indexShard) {
+        Path file = indexShard.shardPath().getDataPath().resolve(FILE_NAME);
+        if (Files.exists(file) == false) {
+            return;
+        }
+        int loaded = 0;
+        try (Engine.Searcher searcher = indexShard.acquireSearcher("fieldstats_warmup");
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Map<String, LeafReader> segments = liveSegments(searcher.getIndexReader());
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            StreamInput in = new ByteBufferStreamInput(buffer);
+            if (CODEC.equals(in.readString()) == false || in.readVInt() != VERSION
+                || indexShard.shardId().equals(new ShardId(in)) == false) {
+                throw new IOException("unexpected header");
+            }
+            int count = in.readVInt();
+            for (int i = 0; i < count; i++) {
+                String segmentId = in.readString();
+                String segmentName = in.readString();
+                int maxDoc = in.readVInt();
+                String field = in.readString();
+                BytesReference variant = in.readBytesReference();
+                BytesReference stats = in.readBytesReference();
+                LeafReader leaf = segments.get(segmentId);
+                if (leaf != null && leaf.maxDoc() == maxDoc
+                    && Lucene.segmentReader(leaf).getSegmentInfo().info.name.equals(segmentName)) {
+                    put(new Key(indexShard.shardId(), segmentId, field, variant), leaf, stats);
+                    loaded++;
+                }
+            }
+            logger.debug("loaded [{}] segment stats of {}", loaded, indexShard.shardId());
+        } catch (Exception e) {
+            logger.debug(new ParameterizedMessage("failed to load the segment stats of {}", indexShard.shardId()), e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException inner) {
+                e.addSuppressed(inner);
+            }
+        }
+    }
+
+    /**
+     * Serializes the entries of the live segments of the shard, which are then written to its file in the
+     * background, replacing the previous one.
+     */
+    void store(IndexShard indexShard) {
+        ShardId shardId = indexShard.shardId();
+        Path file = indexShard.shardPath().getDataPath().resolve(FILE_NAME);
+        BytesStreamOutput out = new BytesStreamOutput();
+        try (Engine.Searcher searcher = indexShard.acquireSearcher("fieldstats_persist")) {
+            Map<String, LeafReader> segments = liveSegments(searcher.getIndexReader());
+            Map<Key, BytesReference> entries = new HashMap<>();
+            for (Map.Entry<String, List<Key>> segmentKeys : keys(shardId).entrySet()) {
+                if (segments.containsKey(segmentKeys.getKey()) == false) {
+                    continue;
+                }
+                for (Key key : segmentKeys.getValue()) {
+                    BytesReference stats = cache.get(key);
+                    if (stats != null) {
+                        entries.put(key, stats);
+                    }
+                }
+            }
+            out.writeString(CODEC);
+            out.writeVInt(VERSION);
+            shardId.writeTo(out);
+            out.writeVInt(entries.size());
+            for (Map.Entry<Key, BytesReference> entry : entries.entrySet()) {
+                Key key = entry.getKey();
+                LeafReader leaf = segments.get(key.segmentId);
+                out.writeString(key.segmentId);
+                out.writeString(Lucene.segmentReader(leaf).getSegmentInfo().info.name);
+                out.writeVInt(leaf.maxDoc());
+                out.writeString(key.field);
+                out.writeBytesReference(key.variant);
+                out.writeBytesReference(entry.getValue());
+            }
+        } catch (Exception e) {
+            logger.debug(new ParameterizedMessage("failed to store the segment stats of {}", shardId), e);
+            return;
+        }
+        // the shard is closed on the cluster applier thread, which doesn't wait for the file
+        threadPool.generic().execute(() -> write(shardId, file, out.bytes()));
+    }
+
+    private static void write(ShardId shardId, Path file, BytesReference bytes) {
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (OutputStream stream = Files.newOutputStream(tmp)) {
+                bytes.writeTo(stream);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.debug(new ParameterizedMessage("failed to store the segment stats of {}", shardId), e);
+        }
+    }
+
+    private static Map<String, LeafReader> liveSegments(IndexReader reader) {
+        Map<String, LeafReader> segments = new HashMap<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            String segmentId = segmentId(context.reader());
+            if (segmentId != null) {
+                segments.put(segmentId, context.reader());
+            }
+        }
+        return segments;
+    }
+
+    private static final class Key {
+        private final ShardId shardId;
+        private final String segmentId;
+        private final String field;
+        private final BytesReference variant;
+
+        Key(ShardId shardId, String segmentId, String field, BytesReference variant) {
+            this.shardId = shardId;
+            this.segmentId = segmentId;
+            this.field = field;
+            this.variant = variant;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return shardId.equals(key.shardId) && segmentId.equals(key.segmentId) && field.equals(key.field)
+                && variant.equals(key.variant);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(shardId, segmentId, field, variant);
+        }
+    }
+}
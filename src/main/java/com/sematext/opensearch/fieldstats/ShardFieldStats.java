@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.common.Nullable;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.core.xcontent.ToXContentObject;
+import org.opensearch.core.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The field stats of a single shard (<code>level=shards</code>) or of a single segment of a shard
+ * (<code>level=segments</code>), with the document counts and size of the shard or segment.
+ */
+public class ShardFieldStats implements Writeable, ToXContentObject {
+
+    /**
+     * Orders entries by index name, shard id and segment generation, which is also the order segments are created in.
+     */
+    static final Comparator<ShardFieldStats> ORDER = Comparator.comparing(ShardFieldStats::getIndex)
+        .thenComparingInt(ShardFieldStats::getShard)
+        .thenComparingLong(ShardFieldStats::getGeneration);
+
+    private final String index;
+    private final int shard;
+    private final String segment;
+    private final long generation;
+    private final int segmentCount;
+    private final long numDocs;
+    private final long deletedDocs;
+    private final long sizeInBytes;
+    private final Map<String, FieldStats<?>> fieldStats;
+
+    /**
+     * @param segment the name of the segment, or <code>null</code> for the stats of a whole shard
+     * @param generation the generation of the segment, or -1 for the stats of a whole shard
+     */
+    public ShardFieldStats(String index, int shard, @Nullable String segment, long generation, int segmentCount,
+                           long numDocs, long deletedDocs, long sizeInBytes, Map<String, FieldStats<?>> fieldStats) {
+        this.index = index;
+        this.shard = shard;
+        this.segment = segment;
+        this.generation = generation;
+        this.segmentCount = segmentCount;
+        this.numDocs = numDocs;
+        this.deletedDocs = deletedDocs;
+        this.sizeInBytes = sizeInBytes;
+        this.fieldStats = fieldStats;
+    }
+
+    public ShardFieldStats(StreamInput in) throws IOException {
+        index = in.readString();
+        shard = in.readVInt();
+        segment = in.readOptionalString();
+        generation = in.readLong();
+        segmentCount = in.readVInt();
+        numDocs = in.readVLong();
+        deletedDocs = in.readVLong();
+        sizeInBytes = in.readVLong();
+        int size = in.readVInt();
+        fieldStats = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = in.readString();
+            fieldStats.put(key, FieldStats.readFrom(in));
+        }
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    @Nullable
+    public String getSegment() {
+        return segment;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return the number of live documents
+     */
+    public long getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * @return the number of deleted documents that haven't been merged away yet
+     */
+    public long getDeletedDocs() {
+        return deletedDocs;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public Map<String, FieldStats<?>> getFieldStats() {
+        return fieldStats;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(index);
+        out.writeVInt(shard);
+        out.writeOptionalString(segment);
+        out.writeLong(generation);
+        out.writeVInt(segmentCount);
+        out.writeVLong(numDocs);
+        out.writeVLong(deletedDocs);
+        out.writeVLong(sizeInBytes);
+        out.writeVInt(fieldStats.size());
+        for (Map.Entry<String, FieldStats<?>> entry : fieldStats.entrySet()) {
+            out.writeString(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("index", index);
+        builder.field("shard", shard);
+        if (segment != null) {
+            builder.field("segment", segment);
+            builder.field("generation", generation);
+        } else {
+            builder.field("segment_count", segmentCount);
+        }
+        builder.field("num_docs", numDocs);
+        builder.field("deleted_docs", deletedDocs);
+        builder.field("size_in_bytes", sizeInBytes);
+        builder.startObject("fields");
+        for (Map.Entry<String, FieldStats<?>> entry : fieldStats.entrySet()) {
+            builder.field(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.common.settings.Setting;
+import org.opensearch.common.unit.TimeValue;
+
+/**
+ * Keeps the latencies of the last {@link #SAMPLES} shard requests sent by this node, from which the delay before a
+ * shard request is hedged to another copy is derived.
+ *
+ * Latencies are counted in logarithmic buckets, each power of two split in {@link #SUB_BUCKETS}, which a new
+ * sample increments and the sample it replaces decrements. The percentile is the upper bound of the bucket it falls
+ * in, at most 12.5% above the exact latency, and is read without sorting the samples.
+ */
+public final class ShardLatencyTracker {
+
+    public static final Setting<Double> HEDGE_PERCENTILE_SETTING = Setting.doubleSetting(
+        "fieldstats.hedge.percentile", 95, 50, 100, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> HEDGE_MIN_DELAY_SETTING = Setting.timeSetting(
+        "fieldstats.hedge.min_delay", TimeValue.timeValueMillis(10), TimeValue.ZERO, Setting.Property.NodeScope);
+
+    static final int SAMPLES = 1024;
+    /**
+     * The number of samples below which the percentile is too noisy to hedge on.
+     */
+    static final int MIN_SAMPLES = 100;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final double percentile;
+    private final long minDelayNanos;
+    // the buckets of the samples, in the order they were recorded
+    private final int[] samples = new int[SAMPLES];
+    private final int[] counts = new int[BUCKETS];
+    private long count;
+
+    ShardLatencyTracker(double percentile, TimeValue minDelay) {
+        this.percentile = percentile;
+        this.minDelayNanos = minDelay.nanos();
+    }
+
+    synchronized void record(long nanos) {
+        int slot = (int) (count++ % SAMPLES);
+        if (count > SAMPLES) {
+            counts[samples[slot]]--;
+        }
+        int bucket = bucket(nanos);
+        samples[slot] = bucket;
+        counts[bucket]++;
+    }
+
+    /**
+     * @return how long to wait for a shard copy before hedging to another one, or <code>null</code> while there are
+     * less than {@link #MIN_SAMPLES} samples
+     */
+    synchronized TimeValue hedgeDelay() {
+        if (count < MIN_SAMPLES) {
+            return null;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * Math.min(count, SAMPLES)));
+        long seen = 0;
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && (seen += counts[bucket]) < rank) {
+            bucket++;
+        }
+        return TimeValue.timeValueNanos(Math.max(minDelayNanos, upperBound(bucket)));
+    }
+
+    static int bucket(long nanos) {
+        long value = Math.max(nanos, SUB_BUCKETS);
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest latency of the bucket
+     */
+    static long upperBound(int bucket) {
+        int shift = bucket / SUB_BUCKETS;
+        int subBucket = bucket % SUB_BUCKETS;
+        long upper = (long) (SUB_BUCKETS + subBucket + 1) << shift;
+        // the last bucket ends at the highest long
+        return upper <= 0 ? Long.MAX_VALUE : upper - 1;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.core.action.ActionListener;
+import org.opensearch.tasks.TaskCancelledException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs identical concurrent executions once: callers with the same key attach to the execution in flight and all
+ * get its result. The execution runs under a task of its own, so that a caller whose task is cancelled only detaches
+ * from it, and whose progress the tasks of the callers report. The execution is cancelled once no caller is left.
+ *
+ * @param <K> the key of identical executions
+ * @param <T> the result, which every caller but the first gets a copy of, since results are merged in place
+ */
+final class SingleFlight<K, T> {
+
+    interface Execution<T> {
+        void run(FieldStatsTask task, ActionListener<T> listener);
+    }
+
+    interface Copier<T> {
+        T copy(T result) throws IOException;
+    }
+
+    private final ConcurrentMap<K, Flight> flights = new ConcurrentHashMap<>();
+    private final Consumer<FieldStatsTask> cancelTask;
+    private final Consumer<FieldStatsTask> releaseTask;
+    private final Copier<T> copier;
+
+    /**
+     * @param cancelTask cancels the task of an execution that no caller is attached to anymore
+     * @param releaseTask called with the task of an execution once it completed
+     */
+    SingleFlight(Consumer<FieldStatsTask> cancelTask, Consumer<FieldStatsTask> releaseTask, Copier<T> copier) {
+        this.cancelTask = cancelTask;
+        this.releaseTask = releaseTask;
+        this.copier = copier;
+    }
+
+    /**
+     * Attaches <code>listener</code> to the execution in flight for <code>key</code>, or starts
+     * <code>execution</code> if there is none.
+     *
+     * @param caller the task of the caller, whose cancellation fails <code>listener</code> with a
+     *               {@link TaskCancelledException}
+     * @param newTask creates the task of the execution, if one is started
+     */
+    void execute(K key, FieldStatsTask caller, ActionListener<T> listener, Supplier<FieldStatsTask> newTask,
+                 Execution<T> execution) {
+        Caller<T> attached = new Caller<>(caller, listener);
+        Flight flight;
+        boolean leader;
+        while (true) {
+            Flight existing = flights.get(key);
+            if (existing != null) {
+                if (existing.attach(attached)) {
+                    flight = existing;
+                    leader = false;
+                    break;
+                }
+                flights.remove(key, existing);
+            } else {
+                Flight created = new Flight(key);
+                created.attach(attached);
+                if (flights.putIfAbsent(key, created) == null) {
+                    flight = created;
+                    leader = true;
+                    break;
+                }
+            }
+        }
+        Flight joined = flight;
+        caller.addCancellationListener(() -> joined.detach(attached));
+        if (leader) {
+            FieldStatsTask task;
+            try {
+                task = newTask.get();
+            } catch (Exception e) {
+                joined.complete(null, e, null);
+                return;
+            }
+            if (joined.start(task)) {
+                // every caller was cancelled before the task existed
+                cancelTask.accept(task);
+            }
+            execution.run(task, ActionListener.wrap(result -> joined.complete(result, null, task),
+                e -> joined.complete(null, e, task)));
+        }
+    }
+
+    /**
+     * @return the number of executions in flight
+     */
+    int size() {
+        return flights.size();
+    }
+
+    private static final class Caller<T> {
+        private final FieldStatsTask task;
+        private final ActionListener<T> listener;
+
+        Caller(FieldStatsTask task, ActionListener<T> listener) {
+            this.task = task;
+            this.listener = ActionListener.notifyOnce(listener);
+        }
+    }
+
+    private final class Flight {
+        private final K key;
+        private final List<Caller<T>> callers = new ArrayList<>();
+        private boolean done;
+        private boolean abandoned;
+        private FieldStatsTask task;
+
+        Flight(K key) {
+            this.key = key;
+        }
+
+        synchronized boolean attach(Caller<T> caller) {
+            if (done) {
+                return false;
+            }
+            callers.add(caller);
+            if (task != null) {
+                caller.task.reportProgressOf(task);
+            }
+            return true;
+        }
+
+        /**
+         * @return <code>true</code> if every caller detached already
+         */
+        synchronized boolean start(FieldStatsTask task) {
+            this.task = task;
+            for (Caller<T> caller : callers) {
+                caller.task.reportProgressOf(task);
+            }
+            return abandoned;
+        }
+
+        void detach(Caller<T> caller) {
+            FieldStatsTask cancel = null;
+            synchronized (this) {
+                if (done || callers.remove(caller) == false) {
+                    return;
+                }
+                if (callers.isEmpty()) {
+                    done = true;
+                    abandoned = true;
+                    cancel = task;
+                    flights.remove(key, this);
+                }
+            }
+            caller.listener.onFailure(new TaskCancelledException("field stats request was cancelled"));
+            if (cancel != null) {
+                cancelTask.accept(cancel);
+            }
+        }
+
+        void complete(T result, Exception failure, FieldStatsTask task) {
+            List<Caller<T>> notify;
+            synchronized (this) {
+                notify = done ? new ArrayList<>() : new ArrayList<>(callers);
+                done = true;
+                flights.remove(key, this);
+            }
+            if (task != null) {
+                releaseTask.accept(task);
+            }
+            for (int i = 0; i < notify.size(); i++) {
+                ActionListener<T> listener = notify.get(i).listener;
+                if (failure != null) {
+                    listener.onFailure(failure);
+                } else {
+                    try {
+                        listener.onResponse(i == 0 ? result : copier.copy(result));
+                    } catch (Exception e) {
+                        listener.onFailure(e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+import org.opensearch.common.cache.Cache;
+import org.opensearch.common.cache.CacheBuilder;
+import org.opensearch.common.cache.RemovalReason;
+import org.opensearch.common.lucene.Lucene;
+import org.opensearch.common.settings.Setting;
+import org.opensearch.core.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Looks up the number of live documents that hold single terms, for probe requests that only need to know which
+ * indices contain a value.
+ *
+ * Every segment is probed with one {@link TermsEnum#seekExact(BytesRef)}. In segments with deletions, the postings
+ * of a term that is found are checked against the live documents. When the node has a bloom cache
+ * (<code>fieldstats.probe.bloom_cache.size</code>, disabled by default), the first probe of a segment and field
+ * builds a bloom filter of its terms in the background, which rules out most of the segments that don't hold the
+ * term on later probes without touching the terms dictionary. Bloom filters live as long as the segment core and
+ * are only built for fields with up to {@link #MAX_BLOOM_TERMS} terms in the segment, whose filter fits in the
+ * cache.
+ */
+public final class TermProbeCache {
+
+    public static final Setting<ByteSizeValue> BLOOM_CACHE_SIZE_SETTING = Setting.byteSizeSetting(
+        "fieldstats.probe.bloom_cache.size", new ByteSizeValue(0), Setting.Property.NodeScope);
+
+    static final long MAX_BLOOM_TERMS = 1L << 24;
+
+    private static final Logger logger = LogManager.getLogger(TermProbeCache.class);
+
+    private final Cache<Key, TermBloomFilter> cache;
+    private final long maxBytes;
+    private final Executor executor;
+    private final Set<IndexReader.CacheKey> listenedCores = ConcurrentHashMap.newKeySet();
+    // the keys of the cache by segment core, which are only accessed within a compute of their core
+    private final Map<IndexReader.CacheKey, Set<Key>> keys = new ConcurrentHashMap<>();
+    private final Set<Key> building = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param executor builds the bloom filters
+     */
+    TermProbeCache(ByteSizeValue size, Executor executor) {
+        this.maxBytes = size.getBytes();
+        this.executor = executor;
+        if (size.getBytes() <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.<Key, TermBloomFilter>builder()
+                .setMaximumWeight(size.getBytes())
+                .weigher((key, filter) -> filter.ramBytesUsed())
+                .removalListener(notification -> {
+                    if (notification.getRemovalReason() != RemovalReason.REPLACED) {
+                        unindex(notification.getKey());
+                    }
+                })
+                .build();
+        }
+    }
+
+    /**
+     * @return the number of live documents of <code>leaf</code> that have <code>term</code> in <code>field</code>
+     */
+    long docFreq(LeafReader leaf, String field, BytesRef term) throws IOException {
+        Terms terms = leaf.terms(field);
+        if (terms == null) {
+            return 0;
+        }
+        TermBloomFilter filter = bloomFilter(leaf, field, terms);
+        if (filter != null && filter.mightContain(term) == false) {
+            return 0;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        if (termsEnum.seekExact(term) == false) {
+            return 0;
+        }
+        Bits liveDocs = leaf.getLiveDocs();
+        if (liveDocs == null) {
+            return termsEnum.docFreq();
+        }
+        long docFreq = 0;
+        PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            if (liveDocs.get(doc)) {
+                docFreq++;
+            }
+        }
+        return docFreq;
+    }
+
+    /**
+     * @return the bloom filter of the field in the segment, or <code>null</code> if there is none yet, in which case
+     * it is built in the background if the field qualifies
+     */
+    private TermBloomFilter bloomFilter(LeafReader leaf, String field, Terms terms) throws IOException {
+        IndexReader.CacheHelper cacheHelper = leaf.getCoreCacheHelper();
+        long size = terms.size();
+        if (cache == null || cacheHelper == null || size < 0 || size > MAX_BLOOM_TERMS
+            || TermBloomFilter.bytes(size) > maxBytes) {
+            return null;
+        }
+        Key key = new Key(cacheHelper.getKey(), field);
+        TermBloomFilter filter = cache.get(key);
+        if (filter == null && building.add(key)) {
+            build(Lucene.segmentReader(leaf), cacheHelper, key);
+        }
+        return filter;
+    }
+
+    private void build(SegmentReader segment, IndexReader.CacheHelper cacheHelper, Key key) {
+        // the segment stays open until its terms are read
+        if (segment.tryIncRef() == false) {
+            building.remove(key);
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    Terms terms = segment.terms(key.field);
+                    if (terms != null) {
+                        TermBloomFilter filter = TermBloomFilter.build(terms, terms.size());
+                        if (listenedCores.add(key.core)) {
+                            cacheHelper.addClosedListener(this::onClose);
+                        }
+                        keys.compute(key.core, (core, coreKeys) -> {
+                            coreKeys = coreKeys == null ? new HashSet<>() : coreKeys;
+                            coreKeys.add(key);
+                            return coreKeys;
+                        });
+                        cache.put(key, filter);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // probes keep seeking the terms dictionary of the segment
+                    logger.debug(new ParameterizedMessage("failed to build the bloom filter of [{}]", key.field), e);
+                } finally {
+                    building.remove(key);
+                    decRef(segment);
+                }
+            });
+        } catch (RuntimeException e) {
+            building.remove(key);
+            decRef(segment);
+        }
+    }
+
+    private static void decRef(SegmentReader segment) {
+        try {
+            segment.decRef();
+        } catch (IOException e) {
+            logger.debug("failed to release a segment", e);
+        }
+    }
+
+    private void unindex(Key key) {
+        keys.computeIfPresent(key.core, (core, coreKeys) -> {
+            coreKeys.remove(key);
+            return coreKeys.isEmpty() ? null : coreKeys;
+        });
+    }
+
+    private void onClose(IndexReader.CacheKey core) {
+        listenedCores.remove(core);
+        List<Key> coreKeys = new ArrayList<>();
+        keys.computeIfPresent(core, (k, indexed) -> {
+            coreKeys.addAll(indexed);
+            return indexed;
+        });
+        coreKeys.forEach(cache::invalidate);
+    }
+
+    private static final class Key {
+        private final IndexReader.CacheKey core;
+        private final String field;
+
+        Key(IndexReader.CacheKey core, String field) {
+            this.core = core;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return core == key.core && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(core, field);
+        }
+    }
+
+    /**
+     * Bloom filter with 10 bits per term and 7 hash functions, derived from two murmur3 hashes, for a false
+     * positive rate of about 1%.
+     */
+    static final class TermBloomFilter implements Accountable {
+        private static final int BITS_PER_TERM = 10;
+        private static final int HASHES = 7;
+
+        private final long[] bits;
+        private final long numBits;
+
+        private TermBloomFilter(long numTerms) {
+            this.numBits = numBits(numTerms);
+            this.bits = new long[Math.toIntExact((numBits + Long.SIZE - 1) / Long.SIZE)];
+        }
+
+        private static long numBits(long numTerms) {
+            return Math.max(Long.SIZE, numTerms * BITS_PER_TERM);
+        }
+
+        /**
+         * @return about the memory used by the filter of <code>numTerms</code> terms, before it is built
+         */
+        static long bytes(long numTerms) {
+            return numBits(numTerms) / Byte.SIZE;
+        }
+
+        static TermBloomFilter build(Terms terms, long size) throws IOException {
+            TermBloomFilter filter = new TermBloomFilter(size);
+            TermsEnum termsEnum = terms.iterator();
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                filter.add(term);
+            }
+            return filter;
+        }
+
+        void add(BytesRef term) {
+            long hash1 = StringHelper.murmurhash3_x86_32(term, 0) & 0xFFFFFFFFL;
+            long hash2 = StringHelper.murmurhash3_x86_32(term, (int) hash1) & 0xFFFFFFFFL;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = (hash1 + i * hash2) % numBits;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(BytesRef term) {
+            long hash1 = StringHelper.murmurhash3_x86_32(term, 0) & 0xFFFFFFFFL;
+            long hash2 = StringHelper.murmurhash3_x86_32(term, (int) hash1) & 0xFFFFFFFFL;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = (hash1 + i * hash2) % numBits;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.sizeOf(bits);
+        }
+    }
+}
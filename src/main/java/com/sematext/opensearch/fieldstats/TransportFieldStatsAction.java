@@ -13,82 +13,508 @@
  */
 package com.sematext.opensearch.fieldstats;
 
-import org.apache.lucene.document.DoublePoint;
-import org.apache.lucene.document.FloatPoint;
-import org.apache.lucene.sandbox.document.HalfFloatPoint;
-import org.apache.lucene.document.IntPoint;
-import org.apache.lucene.document.LongPoint;
-import org.apache.lucene.geo.GeoEncodingUtils;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.MultiTerms;
-import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.SegmentCommitInfo;
 import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BytesRef;
 import org.opensearch.ExceptionsHelper;
+import org.opensearch.OpenSearchTimeoutException;
+import org.opensearch.action.ActionListenerResponseHandler;
+import org.opensearch.action.admin.cluster.node.tasks.cancel.CancelTasksAction;
+import org.opensearch.action.admin.cluster.node.tasks.cancel.CancelTasksRequest;
+import org.opensearch.action.NoShardAvailableActionException;
+import org.opensearch.action.search.SearchContextId;
+import org.opensearch.action.search.SearchContextIdForNode;
 import org.opensearch.action.support.ActionFilters;
+import org.opensearch.action.support.ChannelActionListener;
+import org.opensearch.action.support.TransportActions;
+import org.opensearch.core.action.ActionListener;
 import org.opensearch.core.action.support.DefaultShardOperationFailedException;
 import org.opensearch.action.support.broadcast.BroadcastShardOperationFailedException;
 import org.opensearch.action.support.broadcast.TransportBroadcastAction;
+import org.opensearch.client.node.NodeClient;
 import org.opensearch.cluster.ClusterState;
 import org.opensearch.cluster.block.ClusterBlockException;
 import org.opensearch.cluster.block.ClusterBlockLevel;
+import org.opensearch.cluster.metadata.DataStream;
+import org.opensearch.cluster.metadata.IndexMetadata;
 import org.opensearch.cluster.metadata.IndexNameExpressionResolver;
+import org.opensearch.cluster.node.DiscoveryNode;
 import org.opensearch.cluster.routing.GroupShardsIterator;
+import org.opensearch.cluster.routing.IndexRoutingTable;
+import org.opensearch.cluster.routing.IndexShardRoutingTable;
+import org.opensearch.cluster.routing.Murmur3HashFunction;
+import org.opensearch.cluster.routing.PlainShardIterator;
 import org.opensearch.cluster.routing.ShardIterator;
 import org.opensearch.cluster.routing.ShardRouting;
 import org.opensearch.cluster.service.ClusterService;
-import org.opensearch.common.geo.GeoPoint;
 import org.opensearch.common.inject.Inject;
+import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.common.lease.Releasable;
+import org.opensearch.common.lease.Releasables;
+import org.opensearch.common.lucene.Lucene;
+import org.opensearch.common.lucene.search.Queries;
+import org.opensearch.common.regex.Regex;
+import org.opensearch.core.common.breaker.CircuitBreaker;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.common.io.stream.NamedWriteableRegistry;
 import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+import org.opensearch.core.common.io.stream.Writeable;
+import org.opensearch.core.index.Index;
+import org.opensearch.common.settings.Setting;
 import org.opensearch.common.settings.Settings;
+import org.opensearch.common.unit.TimeValue;
 import org.opensearch.index.IndexService;
 import org.opensearch.index.engine.Engine;
-import org.opensearch.index.mapper.DateFieldMapper;
-import org.opensearch.index.mapper.GeoPointFieldMapper;
+import org.opensearch.index.mapper.FlatObjectFieldMapper;
 import org.opensearch.index.mapper.MappedFieldType;
-import org.opensearch.index.mapper.NumberFieldMapper;
+import org.opensearch.index.mapper.ObjectMapper;
+import org.opensearch.index.query.QueryShardContext;
+import org.opensearch.index.query.Rewriteable;
 import org.opensearch.index.shard.IndexShard;
 import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.core.indices.breaker.CircuitBreakerService;
+import org.opensearch.core.tasks.TaskId;
+import org.opensearch.core.transport.TransportResponse;
 import org.opensearch.indices.IndicesService;
+import org.opensearch.node.ResponseCollectorService;
+import org.opensearch.search.SearchContextMissingException;
+import org.opensearch.search.SearchService;
+import org.opensearch.search.internal.AliasFilter;
+import org.opensearch.search.internal.PitReaderContext;
+import org.opensearch.tasks.CancellableTask;
 import org.opensearch.tasks.Task;
+import org.opensearch.tasks.TaskAwareRequest;
+import org.opensearch.tasks.TaskManager;
+import org.opensearch.threadpool.Scheduler;
 import org.opensearch.threadpool.ThreadPool;
+import org.opensearch.transport.EmptyTransportResponseHandler;
+import org.opensearch.transport.TransportRequest;
 import org.opensearch.transport.TransportService;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
 
 public class TransportFieldStatsAction extends
     TransportBroadcastAction<FieldStatsRequest, FieldStatsResponse, FieldStatsShardRequest, FieldStatsShardResponse> {
 
+    static final String SHARD_ACTION_NAME = FieldStatsAction.NAME + "[s]";
+    static final String CANCEL_HEDGED_SHARD_ACTION_NAME = FieldStatsAction.NAME + "[cancel_hedged]";
+    static final String WAIT_FOR_REFRESH_ACTION_NAME = FieldStatsAction.NAME + "[wait_for_refresh]";
+
+    /**
+     * Whether requests without a preference ask the same copy of each shard every time, so that per-node caches
+     * see the same shards.
+     */
+    public static final Setting<Boolean> COPY_AFFINITY_SETTING = Setting.boolSetting(
+        "fieldstats.routing.copy_affinity", true, Setting.Property.NodeScope);
+    /**
+     * The search queue size of a node, plus the field stats shard requests this node has in flight to it, from which
+     * its copies are only asked when no other copy is available.
+     */
+    public static final Setting<Integer> OVERLOADED_QUEUE_SIZE_SETTING = Setting.intSetting(
+        "fieldstats.routing.overloaded_queue_size", 100, 1, Setting.Property.NodeScope);
+
     private final IndicesService indicesService;
+    private final TermProbeCache probeCache;
+    private final ShardLatencyTracker latencies;
+    private final ResponseCollectorService responseCollectorService;
+    private final FieldStatsResponseCache responseCache;
+    private final ImmutableIndexMemo memo;
+    private final SegmentStatsCache segmentStats;
+    private final RefreshWatcher refreshWatcher;
+    private final SearchService searchService;
+    private final NamedWriteableRegistry namedWriteableRegistry;
+    private final CircuitBreakerService breakerService;
+    private final boolean copyAffinity;
+    private final int overloadedQueueSize;
+    private final Map<String, Integer> inFlightShardRequests = new ConcurrentHashMap<>();
+    private final NodeClient client;
+    private final SingleFlight<BytesReference, FieldStatsResponse> requestFlights;
+    private final SingleFlight<BytesReference, FieldStatsShardResponse> shardFlights;
 
     @Inject
     public TransportFieldStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
                                               TransportService transportService, ActionFilters actionFilters,
                                               IndexNameExpressionResolver indexNameExpressionResolver,
-                                              IndicesService indicesService) {
+                                              IndicesService indicesService,
+                                              ResponseCollectorService responseCollectorService,
+                                              NodeClient client, SegmentStatsCache segmentStats,
+                                              RefreshWatcher refreshWatcher, SearchService searchService,
+                                              NamedWriteableRegistry namedWriteableRegistry,
+                                              CircuitBreakerService breakerService) {
         super(FieldStatsAction.NAME, clusterService, transportService,
             actionFilters, indexNameExpressionResolver, FieldStatsRequest::new,
             FieldStatsShardRequest::new, ThreadPool.Names.MANAGEMENT);
         this.indicesService = indicesService;
+        this.probeCache = new TermProbeCache(TermProbeCache.BLOOM_CACHE_SIZE_SETTING.get(settings),
+            threadPool.generic());
+        this.responseCollectorService = responseCollectorService;
+        this.client = client;
+        this.segmentStats = segmentStats;
+        this.refreshWatcher = refreshWatcher;
+        this.searchService = searchService;
+        this.namedWriteableRegistry = namedWriteableRegistry;
+        this.breakerService = breakerService;
+        this.requestFlights = new SingleFlight<>(this::cancelAbandonedTask,
+            transportService.getTaskManager()::unregister, response -> copy(response, FieldStatsResponse::new));
+        this.shardFlights = new SingleFlight<>(
+            task -> transportService.getTaskManager().cancel(task, "all shard requests were cancelled", () -> {}),
+            transportService.getTaskManager()::unregister, response -> copy(response, FieldStatsShardResponse::new));
+        this.responseCache = new FieldStatsResponseCache(FieldStatsResponseCache.TTL_SETTING.get(settings),
+            FieldStatsResponseCache.STALE_WHILE_REVALIDATE_SETTING.get(settings),
+            FieldStatsResponseCache.SIZE_SETTING.get(settings), System::nanoTime);
+        this.memo = new ImmutableIndexMemo(ImmutableIndexMemo.SIZE_SETTING.get(settings));
+        if (memo.isEnabled()) {
+            clusterService.addListener(memo);
+        }
+        this.copyAffinity = COPY_AFFINITY_SETTING.get(settings);
+        this.overloadedQueueSize = OVERLOADED_QUEUE_SIZE_SETTING.get(settings);
+        this.latencies = new ShardLatencyTracker(ShardLatencyTracker.HEDGE_PERCENTILE_SETTING.get(settings),
+            ShardLatencyTracker.HEDGE_MIN_DELAY_SETTING.get(settings));
+        transportService.registerRequestHandler(CANCEL_HEDGED_SHARD_ACTION_NAME, ThreadPool.Names.SAME,
+            CancelHedgedShardRequest::new, (request, channel, task) -> {
+                cancelHedgedShard(request);
+                channel.sendResponse(TransportResponse.Empty.INSTANCE);
+            });
+        transportService.registerRequestHandler(WAIT_FOR_REFRESH_ACTION_NAME, ThreadPool.Names.MANAGEMENT,
+            WaitForRefreshRequest::new, (request, channel, task) -> waitForRefresh(request, (FieldStatsTask) task,
+                new ChannelActionListener<>(channel, WAIT_FOR_REFRESH_ACTION_NAME, request)));
+    }
+
+    @Override
+    protected void doExecute(Task task, FieldStatsRequest request, ActionListener<FieldStatsResponse> listener) {
+        try {
+            if (request.getPit() != null && request.getPitContextId() == null) {
+                resolvePit(request);
+            }
+            if ("segments".equals(request.level())) {
+                rejectAliasFilters(request);
+            }
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        if (request.getWaitForChange() != null && request.getParentTask().isSet() == false) {
+            new ChangeWatch((FieldStatsTask) task, request, ActionListener.notifyOnce(listener)).start();
+            return;
+        }
+        if (request.shouldUseCache() == false || request.getParentTask().isSet()) {
+            execute((FieldStatsTask) task, request, listener);
+            return;
+        }
+        BytesReference key;
+        try {
+            ClusterState clusterState = clusterService.state();
+            key = FieldStatsResponseCache.key(request, clusterState,
+                indexNameExpressionResolver.concreteIndices(clusterState, request));
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        if (responseCache.isEnabled()) {
+            FieldStatsResponseCache.Entry cached = responseCache.get(key);
+            if (cached != null) {
+                if (responseCache.isFresh(cached) == false && cached.tryStartRefresh()) {
+                    refreshCachedResponse(request, key, cached);
+                }
+                ActionListener.completeWith(listener, cached::response);
+                return;
+            }
+        }
+        coalesce((FieldStatsTask) task, request, key, listener);
+    }
+
+    /**
+     * Decodes the pit of the request, whose indices become the indices of the request.
+     */
+    private void resolvePit(FieldStatsRequest request) {
+        SearchContextId pitContextId = SearchContextId.decode(namedWriteableRegistry, request.getPit());
+        for (SearchContextIdForNode context : pitContextId.shards().values()) {
+            if (context.getClusterAlias() != null) {
+                throw new IllegalArgumentException("pits of remote clusters aren't supported");
+            }
+        }
+        TimeValue keepAlive = request.getPitKeepAlive();
+        TimeValue maxKeepAlive = clusterService.getClusterSettings().get(SearchService.MAX_KEEPALIVE_SETTING);
+        if (keepAlive != null && keepAlive.millis() > maxKeepAlive.millis()) {
+            throw new IllegalArgumentException("Keep alive for request (" + keepAlive + ") is too large. It must be "
+                + "less than (" + maxKeepAlive + "). This limit can be set by changing the ["
+                + SearchService.MAX_KEEPALIVE_SETTING.getKey() + "] cluster level setting.");
+        }
+        request.indices(pitContextId.getActualIndices());
+        request.setPitContextId(pitContextId);
+    }
+
+    /**
+     * Rejects requests whose indices are filtered by an alias, whose filter can't be applied to the stats of
+     * segments any more than a query can.
+     */
+    private void rejectAliasFilters(FieldStatsRequest request) {
+        if (request.getPitContextId() != null) {
+            for (AliasFilter aliasFilter : request.getPitContextId().aliasFilter().values()) {
+                if (aliasFilter.getQueryBuilder() != null) {
+                    throw new IllegalArgumentException("filtered aliases aren't supported with level [segments]");
+                }
+            }
+            return;
+        }
+        ClusterState clusterState = clusterService.state();
+        Set<String> expressions = indexNameExpressionResolver.resolveExpressions(clusterState, request.indices());
+        for (String index : indexNameExpressionResolver.concreteIndexNames(clusterState, request)) {
+            if (indicesService.buildAliasFilter(clusterState, index, expressions).getQueryBuilder() != null) {
+                throw new IllegalArgumentException("filtered aliases aren't supported with level [segments], index ["
+                    + index + "] is requested through a filtered alias");
+            }
+        }
+    }
+
+    /**
+     * Attaches the request to an identical one in flight, or executes it under a task of its own that identical
+     * requests arriving meanwhile attach to. Responses are cached by the execution, once.
+     *
+     * @param cacheKey the key of the request in the response cache
+     */
+    private void coalesce(FieldStatsTask task, FieldStatsRequest request, BytesReference cacheKey,
+                          ActionListener<FieldStatsResponse> listener) {
+        BytesReference key;
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            out.writeBytesReference(cacheKey);
+            // the response cache serves any timeout, executions in flight only the same one
+            out.writeOptionalTimeValue(request.getTimeout());
+            out.writeBoolean(request.shouldHedge());
+            key = out.bytes();
+        } catch (IOException e) {
+            listener.onFailure(e);
+            return;
+        }
+        TaskManager taskManager = transportService.getTaskManager();
+        requestFlights.execute(key, task, listener,
+            () -> (FieldStatsTask) taskManager.register("transport", FieldStatsAction.NAME, request),
+            (sharedTask, sharedListener) -> execute(sharedTask, request, ActionListener.wrap(response -> {
+                if (responseCache.isEnabled()) {
+                    responseCache.put(cacheKey, response);
+                }
+                sharedListener.onResponse(response);
+            }, sharedListener::onFailure)));
+    }
+
+    /**
+     * Cancels the execution of requests that were all cancelled, and its shard requests, like the tasks API does.
+     */
+    private void cancelAbandonedTask(FieldStatsTask task) {
+        CancelTasksRequest cancelTasksRequest = new CancelTasksRequest();
+        cancelTasksRequest.setTaskId(new TaskId(clusterService.localNode().getId(), task.getId()));
+        cancelTasksRequest.setReason("all field stats requests were cancelled");
+        client.execute(CancelTasksAction.INSTANCE, cancelTasksRequest, ActionListener.wrap(() -> {}));
+    }
+
+    private static <T extends Writeable> T copy(T response, Writeable.Reader<T> reader) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        return reader.read(out.bytes().streamInput());
+    }
+
+    private void execute(FieldStatsTask task, FieldStatsRequest request, ActionListener<FieldStatsResponse> listener) {
+        new AsyncFieldStatsAction(task, request, ActionListener.notifyOnce(listener), null).start();
+    }
+
+    /**
+     * Waits for the <code>max_value</code> or <code>doc_count</code> of a field of the response to change, for up to
+     * <code>wait_for_change</code>. After each execution of the request, the copies that answered are asked to
+     * notify once a refresh changed their reader, and the request is executed again as soon as one of them did.
+     * Immutable indices, which are answered without their shards, are not waited for.
+     */
+    private class ChangeWatch {
+
+        private final FieldStatsTask task;
+        private final FieldStatsRequest request;
+        private final ActionListener<FieldStatsResponse> listener;
+        private final long deadlineNanos;
+        private FieldStatsResponse baseline;
+
+        ChangeWatch(FieldStatsTask task, FieldStatsRequest request, ActionListener<FieldStatsResponse> listener) {
+            this.task = task;
+            this.request = request;
+            this.listener = listener;
+            this.deadlineNanos = System.nanoTime() + request.getWaitForChange().nanos();
+        }
+
+        void start() {
+            Map<ShardId, ShardReader> readers = new ConcurrentHashMap<>();
+            new AsyncFieldStatsAction(task, request, ActionListener.notifyOnce(ActionListener.wrap(
+                response -> onResponse(response, readers), listener::onFailure)), readers).start();
+        }
+
+        private void onResponse(FieldStatsResponse response, Map<ShardId, ShardReader> readers) {
+            if (baseline == null) {
+                baseline = response;
+            } else if (response.getFailedShards() == 0 && hasChanged(baseline, response)) {
+                // responses with failed shards miss their stats, which isn't a change
+                response.setChanged(true);
+                listener.onResponse(response);
+                return;
+            }
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0 || readers.isEmpty() || task.isCancelled()) {
+                respond(response);
+                return;
+            }
+            AtomicBoolean woken = new AtomicBoolean();
+            AtomicInteger pending = new AtomicInteger(readers.size());
+            TimeValue remaining = TimeValue.timeValueNanos(remainingNanos);
+            for (Map.Entry<ShardId, ShardReader> entry : readers.entrySet()) {
+                // copies that fail to wait are not waited for, rather than asked again right away
+                ActionListener<WaitForRefreshResponse> waitListener = ActionListener.wrap(
+                    waited -> onWaited(waited.changed, woken, pending, response),
+                    e -> onWaited(false, woken, pending, response));
+                ShardReader reader = entry.getValue();
+                DiscoveryNode node = clusterService.state().nodes().get(reader.nodeId);
+                if (node == null) {
+                    // the node left, the next execution asks another copy
+                    waitListener.onResponse(new WaitForRefreshResponse(true));
+                    continue;
+                }
+                WaitForRefreshRequest waitRequest = new WaitForRefreshRequest(entry.getKey(), reader.allocationId,
+                    reader.readerVersion, remaining);
+                waitRequest.setParentTask(clusterService.localNode().getId(), task.getId());
+                transportService.sendRequest(node, WAIT_FOR_REFRESH_ACTION_NAME, waitRequest,
+                    new ActionListenerResponseHandler<>(waitListener, WaitForRefreshResponse::new));
+            }
+        }
+
+        /**
+         * @param response the last response, which is returned once no copy is waited for anymore
+         */
+        private void onWaited(boolean changed, AtomicBoolean woken, AtomicInteger pending,
+                              FieldStatsResponse response) {
+            if (changed) {
+                if (woken.compareAndSet(false, true)) {
+                    if (task.isCancelled()) {
+                        respond(response);
+                    } else {
+                        start();
+                    }
+                }
+            } else if (pending.decrementAndGet() == 0 && woken.compareAndSet(false, true)) {
+                respond(response);
+            }
+        }
+
+        private void respond(FieldStatsResponse response) {
+            try {
+                task.ensureNotCancelled();
+                listener.onResponse(response);
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the <code>max_value</code> or <code>doc_count</code> of a field differs between
+     * the responses, or a field or index is only part of one of them
+     */
+    static boolean hasChanged(FieldStatsResponse before, FieldStatsResponse after) {
+        Map<String, Map<String, FieldStats<?>>> beforeIndices = before.getIndicesMergedFieldStats();
+        Map<String, Map<String, FieldStats<?>>> afterIndices = after.getIndicesMergedFieldStats();
+        if (beforeIndices.keySet().equals(afterIndices.keySet()) == false) {
+            return true;
+        }
+        for (Map.Entry<String, Map<String, FieldStats<?>>> index : beforeIndices.entrySet()) {
+            Map<String, FieldStats<?>> afterFields = afterIndices.get(index.getKey());
+            if (index.getValue().keySet().equals(afterFields.keySet()) == false) {
+                return true;
+            }
+            for (Map.Entry<String, FieldStats<?>> field : index.getValue().entrySet()) {
+                FieldStats<?> afterField = afterFields.get(field.getKey());
+                if (field.getValue().getDocCount() != afterField.getDocCount()
+                    || Objects.equals(field.getValue().getMaxValue(), afterField.getMaxValue()) == false) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notifies the coordinating node once the reader of a copy isn't the one it answered from anymore.
+     */
+    private void waitForRefresh(WaitForRefreshRequest request, FieldStatsTask task,
+                                ActionListener<WaitForRefreshResponse> listener) {
+        IndexShard shard;
+        try {
+            shard = indicesService.indexServiceSafe(request.shardId.getIndex()).getShard(request.shardId.id());
+        } catch (Exception e) {
+            listener.onResponse(new WaitForRefreshResponse(true));
+            return;
+        }
+        if (request.allocationId.equals(shard.routingEntry().allocationId().getId()) == false) {
+            listener.onResponse(new WaitForRefreshResponse(true));
+            return;
+        }
+        refreshWatcher.watch(shard, request.readerVersion, request.timeout, task,
+            ActionListener.map(listener, changed -> new WaitForRefreshResponse(changed)));
+    }
+
+    /**
+     * Recomputes a stale cached response in the background, under a task of its own since the request that found
+     * the entry stale is answered right away.
+     */
+    private void refreshCachedResponse(FieldStatsRequest request, BytesReference key,
+                                       FieldStatsResponseCache.Entry cached) {
+        TaskManager taskManager = transportService.getTaskManager();
+        FieldStatsTask refreshTask = (FieldStatsTask) taskManager.register("transport", FieldStatsAction.NAME, request);
+        execute(refreshTask, request, ActionListener.runAfter(ActionListener.wrap(
+            response -> responseCache.put(key, response),
+            e -> cached.onRefreshFailed()), () -> taskManager.unregister(refreshTask)));
     }
 
     @Override
     @SuppressWarnings("rawtypes")
     protected FieldStatsResponse newResponse(FieldStatsRequest request, AtomicReferenceArray shardsResponses,
                                              ClusterState clusterState) {
+        return newResponse(request, shardsResponses, false);
+    }
+
+    /**
+     * @param timedOut whether the timeout of the request expired before all shards answered
+     */
+    @SuppressWarnings("rawtypes")
+    private FieldStatsResponse newResponse(FieldStatsRequest request, AtomicReferenceArray shardsResponses,
+                                           boolean timedOut) {
         int successfulShards = 0;
         int failedShards = 0;
         Map<String, String> conflicts = new HashMap<>();
         Map<String, Map<String, FieldStats<?>>> indicesMergedFieldStats = new HashMap<>();
+        Map<String, Map<String, Long>> indicesProbes = new HashMap<>();
+        List<ShardFieldStats> entries = new ArrayList<>();
+        long totalEntries = 0;
         List<DefaultShardOperationFailedException> shardFailures = new ArrayList<>();
         for (int i = 0; i < shardsResponses.length(); i++) {
             Object shardValue = shardsResponses.get(i);
@@ -102,6 +528,12 @@ public class TransportFieldStatsAction extends
             } else {
                 successfulShards++;
                 FieldStatsShardResponse shardResponse = (FieldStatsShardResponse) shardValue;
+                timedOut |= shardResponse.isTimedOut();
+                if ("shards".equals(request.level()) || "segments".equals(request.level())) {
+                    entries.addAll(shardResponse.getEntries());
+                    totalEntries += shardResponse.getTotalEntries();
+                    continue;
+                }
 
                 final String indexName;
                 if ("cluster".equals(request.level())) {
@@ -122,7 +554,8 @@ public class TransportFieldStatsAction extends
                 for (Map.Entry<String, FieldStats<?>> entry : fieldStats.entrySet()) {
                     FieldStats<?> existing = indexMergedFieldStats.get(entry.getKey());
                     if (existing != null) {
-                        if (existing.getType() != entry.getValue().getType()) {
+                        FieldStats<?> merged = FieldStats.merge(existing, entry.getValue());
+                        if (merged == null) {
                             if (conflicts.containsKey(entry.getKey()) == false) {
                                 FieldStats<?>[] fields = new FieldStats<?>[] {entry.getValue(), existing};
                                 Arrays.sort(fields, Comparator.comparingInt(FieldStats::getType));
@@ -134,12 +567,18 @@ public class TransportFieldStatsAction extends
                                         "] in other index.");
                             }
                         } else {
-                            existing.accumulate(entry.getValue());
+                            indexMergedFieldStats.put(entry.getKey(), merged);
                         }
                     } else {
                         indexMergedFieldStats.put(entry.getKey(), entry.getValue());
                     }
                 }
+                for (Map.Entry<String, Long> probe : shardResponse.getProbes().entrySet()) {
+                    if (probe.getValue() > 0) {
+                        indicesProbes.computeIfAbsent(indexName, k -> new HashMap<>())
+                            .merge(probe.getKey(), probe.getValue(), Long::sum);
+                    }
+                }
             }
 
             // Check the field with conflicts and remove them.
@@ -180,139 +619,1170 @@ public class TransportFieldStatsAction extends
             }
         }
 
+        if (request.getIndexConstraints().length != 0) {
+            indicesProbes.keySet().retainAll(indicesMergedFieldStats.keySet());
+            Set<String> fieldStatFields = new HashSet<>(Arrays.asList(request.getFields()));
+            for (IndexConstraint indexConstraint : request.getIndexConstraints()) {
+                entries.removeIf(entry -> {
+                    FieldStats<?> stats = entry.getFieldStats().get(indexConstraint.getField());
+                    return stats == null || stats.match(indexConstraint) == false;
+                });
+            }
+            for (ShardFieldStats entry : entries) {
+                entry.getFieldStats().keySet().retainAll(fieldStatFields);
+            }
+        }
+        if (request.getFields().length == 0) {
+            // probe only requests just list the indices that hold the terms
+            indicesMergedFieldStats.keySet().retainAll(indicesProbes.keySet());
+        }
+
+        entries.sort(ShardFieldStats.ORDER);
+        int from = Math.min(request.getFrom(), entries.size());
+        List<ShardFieldStats> page = new ArrayList<>(
+            entries.subList(from, (int) Math.min(entries.size(), (long) from + request.getSize())));
+
         return new FieldStatsResponse(shardsResponses.length(), successfulShards, failedShards,
-            shardFailures, indicesMergedFieldStats, conflicts);
+            shardFailures, indicesMergedFieldStats, conflicts, indicesProbes, page,
+            (int) Math.min(Integer.MAX_VALUE, totalEntries), timedOut);
     }
 
     @Override
     protected FieldStatsShardRequest newShardRequest(int numShards, ShardRouting shard, FieldStatsRequest request) {
-        return new FieldStatsShardRequest(shard.shardId(), request);
+        if (request.getPitContextId() != null) {
+            // the alias filters the pit was opened with
+            SearchContextId pitContextId = request.getPitContextId();
+            AliasFilter aliasFilter = pitContextId.aliasFilter().get(shard.index().getUUID());
+            return new FieldStatsShardRequest(shard.shardId(), request,
+                aliasFilter == null ? null : aliasFilter.getQueryBuilder(),
+                pitContextId.shards().get(shard.shardId()).getSearchContextId());
+        }
+        ClusterState clusterState = clusterService.state();
+        AliasFilter aliasFilter = indicesService.buildAliasFilter(clusterState, shard.getIndexName(),
+            indexNameExpressionResolver.resolveExpressions(clusterState, request.indices()));
+        FieldStatsShardRequest shardRequest = new FieldStatsShardRequest(shard.shardId(), request,
+            aliasFilter.getQueryBuilder());
+        FieldStatsShardResponse memoized = request.getMemoizedShard(shard.shardId());
+        if (memoized != null && shard.allocationId() != null
+            && memoized.getAllocationId().equals(shard.allocationId().getId())) {
+            shardRequest.setKnownReader(memoized.getAllocationId(), memoized.getReaderVersion());
+        }
+        return shardRequest;
     }
 
     @Override protected FieldStatsShardResponse readShardResponse(StreamInput in) throws IOException {
-        return null;
+        return new FieldStatsShardResponse(in);
+    }
+
+    /**
+     * Computes identical shard requests of different requests that arrive at the same time once, under a task of
+     * its own, so that cancelling one of the shard requests doesn't cancel the others.
+     */
+    @Override
+    protected void asyncShardOperation(FieldStatsShardRequest request, Task task,
+                                       ActionListener<FieldStatsShardResponse> listener) {
+        if (request.shouldUseCache() == false) {
+            super.asyncShardOperation(request, task, listener);
+            return;
+        }
+        BytesReference key;
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            request.writeCoalescingKey(out);
+            key = out.bytes();
+        } catch (IOException e) {
+            listener.onFailure(e);
+            return;
+        }
+        TaskManager taskManager = transportService.getTaskManager();
+        shardFlights.execute(key, (FieldStatsTask) task, listener,
+            () -> (FieldStatsTask) taskManager.register(task.getType(), task.getAction(), sharedTaskRequest(request)),
+            (sharedTask, sharedListener) -> super.asyncShardOperation(request, sharedTask, sharedListener));
+    }
+
+    /**
+     * The shard request as the shared task registers it: without the parent of any of the requests it serves.
+     */
+    private static TaskAwareRequest sharedTaskRequest(FieldStatsShardRequest request) {
+        return new TaskAwareRequest() {
+            @Override
+            public void setParentTask(TaskId taskId) {
+                throw new UnsupportedOperationException("the shared task has no parent");
+            }
+
+            @Override
+            public TaskId getParentTask() {
+                return TaskId.EMPTY_TASK_ID;
+            }
+
+            @Override
+            public Task createTask(long id, String type, String action, TaskId parentTaskId,
+                                   Map<String, String> headers) {
+                return request.createTask(id, type, action, parentTaskId, headers);
+            }
+
+            @Override
+            public String getDescription() {
+                return request.getDescription();
+            }
+        };
     }
 
     @Override protected FieldStatsShardResponse shardOperation(FieldStatsShardRequest request, Task task)
         throws IOException {
+        FieldStatsTask fieldStatsTask = (FieldStatsTask) task;
         ShardId shardId = request.shardId();
         Map<String, FieldStats<?>> fieldStats = new HashMap<>();
+        Map<String, Long> probes = new HashMap<>();
+        List<ShardFieldStats> entries = new ArrayList<>();
+        int totalEntries = 0;
+        long readerVersion;
         IndexService indexServices = indicesService.indexServiceSafe(shardId.getIndex());
         IndexShard shard = indexServices.getShard(shardId.id());
-        try (Engine.Searcher searcher = shard.acquireSearcher("fieldstats")) {
+        if (request.getTimeout() != null) {
+            fieldStatsTask.setTimeout(request.getTimeout());
+        }
+        PitReaderContext pitReader = null;
+        if (request.getPitContext() != null) {
+            pitReader = searchService.getPitReaderContext(request.getPitContext());
+            if (pitReader == null || pitReader.indexShard().shardId().equals(shardId) == false) {
+                throw new SearchContextMissingException(request.getPitContext());
+            }
+        }
+        long keepAlive = request.getPitKeepAlive() == null ? -1 : request.getPitKeepAlive().millis();
+        QueryScopedStats scoped = null;
+        try (Releasable pitUsed = pitReader == null ? () -> {} : pitReader.markAsUsed(keepAlive);
+             Engine.Searcher searcher = pitReader == null ? shard.acquireSearcher("fieldstats") :
+                 pitReader.acquireSearcher("fieldstats")) {
+            readerVersion = searcher.getDirectoryReader().getVersion();
+            if (readerVersion == request.getKnownReaderVersion()
+                && shard.routingEntry().allocationId().getId().equals(request.getKnownAllocationId())) {
+                // the coordinating node memoized the stats of this reader
+                FieldStatsShardResponse unchanged = new FieldStatsShardResponse(shardId, new HashMap<>());
+                unchanged.setReader(request.getKnownAllocationId(), readerVersion);
+                unchanged.setUnchanged(true);
+                return unchanged;
+            }
             // Resolve patterns and deduplicate
             Set<String> fieldNames = new HashSet<>();
             for (String field : request.getFields()) {
                 fieldNames.addAll(shard.mapperService().simpleMatchToFullName(field));
             }
-            for (String field : fieldNames) {
-                FieldStats<?> stats = getFieldStats(shard, searcher, field);
-                if (stats != null) {
-                    fieldStats.put(field, stats);
+            if (request.getQuery() != null) {
+                QueryShardContext context = indexServices.newQueryShardContext(shardId.id(), searcher,
+                    System::currentTimeMillis, null);
+                Query filter = context.toQuery(Rewriteable.rewrite(request.getQuery(), context)).query();
+                scoped = new QueryScopedStats(searcher, context, filter,
+                    breakerService.getBreaker(CircuitBreaker.REQUEST), fieldStatsTask);
+            }
+            IndexReader reader = searcher.getIndexReader();
+            if ("segments".equals(request.level())) {
+                if (request.getQuery() != null) {
+                    // the coordinating node rejects queries and filtered aliases, which segments aren't scoped to
+                    throw new IllegalArgumentException("query and filtered aliases aren't supported with level ["
+                        + request.level() + "]");
+                }
+                List<LeafReaderContext> leaves = new ArrayList<>(reader.leaves());
+                leaves.sort(Comparator.comparingLong(leaf -> segmentGeneration(leaf.reader())));
+                IndexConstraint[] constraints = request.getIndexConstraints();
+                // without constraints every segment is an entry, and only the ones of the page are computed
+                fieldStatsTask.setTotalFields(fieldNames.size() * Math.min(leaves.size(), request.getMaxEntries())
+                    + (constraints.length == 0 ? 0 : constraintFields(constraints).size() * leaves.size()));
+                for (LeafReaderContext leaf : leaves) {
+                    fieldStatsTask.ensureNotCancelled();
+                    if (entries.size() < request.getMaxEntries()) {
+                        Map<String, FieldStats<?>> leafStats = getReaderFieldStats(request, fieldStatsTask,
+                            indexServices, shard, leaf.reader(), null, fieldNames);
+                        if (matches(leafStats, constraints)) {
+                            SegmentCommitInfo info = Lucene.segmentReader(leaf.reader()).getSegmentInfo();
+                            entries.add(new ShardFieldStats(shardId.getIndexName(), shardId.id(), info.info.name,
+                                segmentGeneration(leaf.reader()), 1, leaf.reader().numDocs(),
+                                leaf.reader().numDeletedDocs(), info.sizeInBytes(), leafStats));
+                            totalEntries++;
+                        }
+                    } else if (constraints.length == 0) {
+                        totalEntries = leaves.size();
+                        break;
+                    } else if (matches(getReaderFieldStats(request, fieldStatsTask, indexServices, shard,
+                        leaf.reader(), null, constraintFields(constraints)), constraints)) {
+                        // segments past the page only count towards the total
+                        totalEntries++;
+                    }
+                }
+            } else {
+                fieldStatsTask.setTotalFields(fieldNames.size());
+                fieldStats = getReaderFieldStats(request, fieldStatsTask, indexServices, shard, reader, scoped,
+                    fieldNames);
+                if ("shards".equals(request.level())) {
+                    long sizeInBytes = 0;
+                    for (LeafReaderContext leaf : reader.leaves()) {
+                        sizeInBytes += Lucene.segmentReader(leaf.reader()).getSegmentInfo().sizeInBytes();
+                    }
+                    if (matches(fieldStats, request.getIndexConstraints())) {
+                        entries.add(new ShardFieldStats(shardId.getIndexName(), shardId.id(), null, -1,
+                            reader.leaves().size(), reader.numDocs(), reader.numDeletedDocs(), sizeInBytes,
+                            fieldStats));
+                        totalEntries++;
+                    }
+                    fieldStats = new HashMap<>();
+                }
+            }
+            for (Map.Entry<String, String> probe : request.getProbes().entrySet()) {
+                MappedFieldType fieldType = shard.mapperService().fieldType(probe.getKey());
+                if (fieldType != null) {
+                    BytesRef term = probeTerm(indexServices, shard, searcher, fieldType, probe.getValue());
+                    long docFreq = 0;
+                    for (LeafReaderContext context : reader.leaves()) {
+                        fieldStatsTask.ensureNotCancelled();
+                        docFreq += probeCache.docFreq(context.reader(), fieldType.name(), term);
+                    }
+                    probes.put(probe.getKey(), docFreq);
                 }
             }
         } catch (Exception e) {
             throw ExceptionsHelper.convertToOpenSearchException(e);
+        } finally {
+            Releasables.close(scoped);
         }
-        return new FieldStatsShardResponse(shardId, fieldStats);
+        FieldStatsShardResponse response = new FieldStatsShardResponse(shardId, fieldStats, probes, entries,
+            fieldStatsTask.isTimedOut());
+        response.setReader(shard.routingEntry().allocationId().getId(), readerVersion);
+        response.setTotalEntries(totalEntries);
+        return response;
     }
 
-    private FieldStats<?> getFieldStats(IndexShard shard, Engine.Searcher searcher, String field) throws Exception {
+    /**
+     * @return whether the stats of a shard or segment entry match all index constraints, like the coordinating node
+     * checks merged stats
+     */
+    static boolean matches(Map<String, FieldStats<?>> fieldStats, IndexConstraint[] constraints) {
+        for (IndexConstraint constraint : constraints) {
+            FieldStats<?> stats = fieldStats.get(constraint.getField());
+            if (stats == null || stats.match(constraint) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> constraintFields(IndexConstraint[] constraints) {
+        Set<String> fields = new HashSet<>();
+        for (IndexConstraint constraint : constraints) {
+            fields.add(constraint.getField());
+        }
+        return fields;
+    }
+
+    /**
+     * @return the stats of <code>fieldNames</code> in <code>reader</code>, which is the whole shard or one of its
+     * segments
+     */
+    private Map<String, FieldStats<?>> getReaderFieldStats(FieldStatsShardRequest request, FieldStatsTask task,
+                                                           IndexService indexService, IndexShard shard,
+                                                           IndexReader reader, QueryScopedStats scoped,
+                                                           Set<String> fieldNames) throws Exception {
+        Map<String, FieldStats<?>> fieldStats = new HashMap<>();
+        // disk usage is computed for all fields of a leaf at once, which the files are shared between
+        Map<String, DiskUsage> diskUsages = request.hasStat(DiskUsage.NAME) && task.isPastDeadline() == false ?
+            DiskUsage.analyze(reader) : null;
+        for (String field : fieldNames) {
+            task.ensureNotCancelled();
+            FieldStats<?> stats = getFieldStats(request, task, shard, reader, scoped, field);
+            if (stats != null) {
+                fieldStats.put(field, stats);
+            }
+            task.onFieldCompleted();
+        }
+        if (request.shouldExpandFlatObjects()) {
+            task.ensureNotCancelled();
+            for (Map.Entry<String, FieldStats.Text> entry : getFlatObjectKeyStats(request, shard, reader).entrySet()) {
+                if (scoped != null) {
+                    // keys are read from the terms dictionary, which can't be narrowed to the matching documents
+                    entry.getValue().scopeToQuery(-1, true);
+                }
+                fieldStats.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, FieldStats<?>> entry : fieldStats.entrySet()) {
+            FieldStats<?> stats = entry.getValue();
+            if (scoped != null) {
+                stats.setBaseDocCount(scoped.countMatches(shard.mapperService().hasNested() ?
+                    nestingLevelFilter(shard, entry.getKey()) : null));
+            } else if (shard.mapperService().hasNested()) {
+                stats.setBaseDocCount(countNestingLevelDocs(indexService, shard, reader, entry.getKey()));
+            }
+            if (diskUsages != null) {
+                stats.setDiskUsage(diskUsages.getOrDefault(entry.getKey(), new DiskUsage()));
+            }
+        }
+        return fieldStats;
+    }
+
+    /**
+     * @return the generation of the segment of <code>reader</code>, which is encoded in the segment name
+     */
+    private static long segmentGeneration(LeafReader reader) {
+        String name = Lucene.segmentReader(reader).getSegmentInfo().info.name;
+        return Long.parseLong(name.substring(1), Character.MAX_RADIX);
+    }
+
+    /**
+     * @return the indexed form of <code>value</code>, as the field type would search for it
+     */
+    private static BytesRef probeTerm(IndexService indexService, IndexShard shard, Engine.Searcher searcher,
+                                      MappedFieldType fieldType, String value) {
+        QueryShardContext context = indexService.newQueryShardContext(shard.shardId().id(), searcher,
+            System::currentTimeMillis, null);
+        Query query = fieldType.termQuery(value, context);
+        if (query instanceof TermQuery == false) {
+            throw new IllegalArgumentException("field [" + fieldType.name() + "] of type [" + fieldType.typeName()
+                + "] can't be probed, only fields with a terms dictionary can");
+        }
+        return ((TermQuery) query).getTerm().bytes();
+    }
+
+    /**
+     * Stats of the keys of the flat_object fields of the shard, for the keys that match a requested field pattern
+     * or belong to a requested flat_object field.
+     */
+    private Map<String, FieldStats.Text> getFlatObjectKeyStats(FieldStatsShardRequest request, IndexShard shard,
+                                                               IndexReader reader) throws IOException {
+        Map<String, FieldStats.Text> keyStats = new HashMap<>();
+        for (MappedFieldType fieldType : shard.mapperService().fieldTypes()) {
+            if (FlatObjectFieldMapper.CONTENT_TYPE.equals(fieldType.typeName()) == false) {
+                continue;
+            }
+            boolean allKeys = Regex.simpleMatch(request.getFields(), fieldType.name());
+            keyStats.putAll(FlatObjectKeys.build(reader, fieldType,
+                key -> allKeys || Regex.simpleMatch(request.getFields(), key)));
+        }
+        return keyStats;
+    }
+
+    /**
+     * @param scoped the documents matching the query of the request, or <code>null</code> without a query. Optional
+     *               statistics are always computed over all the documents.
+     */
+    private FieldStats<?> getFieldStats(FieldStatsShardRequest request, FieldStatsTask task, IndexShard shard,
+                                        IndexReader ir, QueryScopedStats scoped, String field) throws Exception {
+        if (scoped == null && request.shouldUseCache() && segmentStats.isEnabled()
+            && shard.mapperService().fieldType(field) != null) {
+            return getSegmentsFieldStats(request, task, shard, ir, field);
+        }
+        return computeFieldStats(request, task, shard, ir, scoped, field);
+    }
+
+    /**
+     * Merges the stats of the segments of <code>ir</code>, which are read from the segment stats cache or computed
+     * and cached.
+     */
+    private FieldStats<?> getSegmentsFieldStats(FieldStatsShardRequest request, FieldStatsTask task, IndexShard shard,
+                                                IndexReader ir, String field) throws Exception {
+        BytesStreamOutput variant = new BytesStreamOutput();
+        request.writeSegmentStatsKey(variant);
+        FieldStats<?> merged = null;
+        for (LeafReaderContext leaf : ir.leaves()) {
+            task.ensureNotCancelled();
+            FieldStats<?> stats = segmentStats.get(shard.shardId(), leaf.reader(), field, variant.bytes());
+            if (stats == null) {
+                stats = computeFieldStats(request, task, shard, leaf.reader(), null, field);
+                if (stats == null) {
+                    return computeFieldStats(request, task, shard, ir, null, field);
+                }
+                // optional statistics may have been skipped
+                if (task.isPastDeadline() == false) {
+                    segmentStats.put(shard.shardId(), leaf.reader(), field, variant.bytes(), stats);
+                }
+            }
+            if (merged == null) {
+                merged = stats;
+            } else {
+                merged.accumulate(stats);
+            }
+        }
+        return merged == null ? computeFieldStats(request, task, shard, ir, null, field) : merged;
+    }
+
+    private FieldStats<?> computeFieldStats(FieldStatsShardRequest request, FieldStatsTask task, IndexShard shard,
+                                            IndexReader ir, QueryScopedStats scoped, String field) throws Exception {
         MappedFieldType fieldType = shard.mapperService().fieldType(field);
         if (fieldType == null) {
             return null;
         }
-        IndexReader ir = searcher.getIndexReader();
-        if (fieldType instanceof NumberFieldMapper.NumberFieldType) {
-            String numericName = fieldType.typeName();
-            long size = PointValues.size(ir, field);
-            int docCount = PointValues.getDocCount(ir, field);
-            byte[] min = PointValues.getMinPackedValue(ir, field);
-            byte[] max = PointValues.getMaxPackedValue(ir, field);
-            if (size == 0) {
-                if (numericName == NumberFieldMapper.NumberType.HALF_FLOAT.typeName() ||
-                        numericName == NumberFieldMapper.NumberType.FLOAT.typeName() ||
-                        numericName == NumberFieldMapper.NumberType.DOUBLE.typeName()) {
-                    return new FieldStats.Double(ir.maxDoc(), 0, -1, -1, fieldType.isSearchable(), fieldType.isAggregatable());
-                }
-                return new FieldStats.Long(ir.maxDoc(), 0, -1, -1, fieldType.isSearchable(), fieldType.isAggregatable());
-            }
-            if (numericName == NumberFieldMapper.NumberType.LONG.typeName()) {
-                return new FieldStats.Long(ir.maxDoc(), docCount, -1, size,
-                        fieldType.isSearchable(), fieldType.isAggregatable(),
-                        LongPoint.decodeDimension(min, 0), LongPoint.decodeDimension(max, 0));
-            } else if (numericName == NumberFieldMapper.NumberType.INTEGER.typeName() ||
-                    numericName == NumberFieldMapper.NumberType.BYTE.typeName() ||
-                    numericName == NumberFieldMapper.NumberType.SHORT.typeName()) {
-                return new FieldStats.Long(ir.maxDoc(), docCount, -1, size,
-                        fieldType.isSearchable(), fieldType.isAggregatable(),
-                        IntPoint.decodeDimension(min, 0), IntPoint.decodeDimension(max, 0));
-            } else if (numericName == NumberFieldMapper.NumberType.HALF_FLOAT.typeName()) {
-                return new FieldStats.Double(ir.maxDoc(), docCount, -1, size,
-                        fieldType.isSearchable(), fieldType.isAggregatable(),
-                        HalfFloatPoint.decodeDimension(min, 0), HalfFloatPoint.decodeDimension(max, 0));
-            } else if (numericName == NumberFieldMapper.NumberType.FLOAT.typeName()) {
-                return new FieldStats.Double(ir.maxDoc(), docCount, -1, size,
-                        fieldType.isSearchable(), fieldType.isAggregatable(),
-                        FloatPoint.decodeDimension(min, 0), FloatPoint.decodeDimension(max, 0));
-            } else if (numericName == NumberFieldMapper.NumberType.DOUBLE.typeName()) {
-                return new FieldStats.Double(ir.maxDoc(), docCount, -1, size,
-                        fieldType.isSearchable(), fieldType.isAggregatable(),
-                        DoublePoint.decodeDimension(min, 0), DoublePoint.decodeDimension(max, 0));
-            }
-        }
-
-        if (fieldType instanceof DateFieldMapper.DateFieldType) {
-            long size = PointValues.size(ir, field);
-            if (size == 0) {
-                return new FieldStats.Date(ir.maxDoc(), -1L, -1L, -1L, fieldType.isSearchable(), fieldType.isAggregatable());
-            }
-            int docCount = PointValues.getDocCount(ir, field);
-            byte[] min = PointValues.getMinPackedValue(ir, field);
-            byte[] max = PointValues.getMaxPackedValue(ir, field);
-            return new FieldStats.Date(ir.maxDoc(),
-                docCount,
-                -1,
-                size,
-                fieldType.isSearchable(),
-                fieldType.isAggregatable(),
-                ((DateFieldMapper.DateFieldType) fieldType).dateTimeFormatter(),
-                LongPoint.decodeDimension(min, 0),
-                LongPoint.decodeDimension(max, 0)
-            );
-        }
-
-        if (fieldType instanceof GeoPointFieldMapper.GeoPointFieldType) {
-            final long size = PointValues.size(ir, field);
-            if (size == 0) {
-                return new FieldStats.GeoPoint(ir.maxDoc(), -1L, -1L, -1L, fieldType.isSearchable(), fieldType.isAggregatable());
-            }
-            final int docCount = PointValues.getDocCount(ir, field);
-            byte[] min = PointValues.getMinPackedValue(ir, field);
-            byte[] max = PointValues.getMaxPackedValue(ir, field);
-            GeoPoint minPt = new GeoPoint(GeoEncodingUtils.decodeLatitude(min, 0),
-                    GeoEncodingUtils.decodeLongitude(min, Integer.BYTES));
-            GeoPoint maxPt = new GeoPoint(GeoEncodingUtils.decodeLatitude(max, 0),
-                    GeoEncodingUtils.decodeLongitude(max, Integer.BYTES));
-            return new FieldStats.GeoPoint(ir.maxDoc(), docCount, -1L, size, fieldType.isSearchable(), fieldType.isAggregatable(),
-                    minPt, maxPt);
-
-        }
-
-        Terms terms = MultiTerms.getTerms(ir, field);
-        if (terms == null) {
-            return new FieldStats.Text(ir.maxDoc(), 0, 0, 0, fieldType.isSearchable(), fieldType.isAggregatable());
-        }
-
-        return new FieldStats.Text(ir.maxDoc(), terms.getDocCount(), terms.getSumDocFreq(), terms.getSumTotalTermFreq(),
-                fieldType.isSearchable(), fieldType.isAggregatable(), terms.getMin(), terms.getMax());
+        FieldStatsProvider provider = FieldStatsProviders.get(fieldType);
+        FieldStats<?> stats;
+        if (provider != null) {
+            stats = provider.build(fieldType, ir, field);
+        } else {
+            Terms terms = MultiTerms.getTerms(ir, field);
+            if (terms == null) {
+                stats = new FieldStats.Text(ir.maxDoc(), 0, 0, 0, fieldType.isSearchable(), fieldType.isAggregatable());
+            } else {
+                stats = new FieldStats.Text(ir.maxDoc(), terms.getDocCount(), terms.getSumDocFreq(),
+                    terms.getSumTotalTermFreq(), fieldType.isSearchable(), fieldType.isAggregatable(),
+                    terms.getMin(), terms.getMax());
+            }
+        }
+        if (scoped != null) {
+            task.ensureNotCancelled();
+            stats = scoped.narrow(stats, fieldType, provider, field);
+        }
+
+        // optional statistics each read the whole field again, and are skipped once the request timed out
+        if (stats instanceof FieldStats.GeoPoint && request.hasStat(GeoSummary.NAME)
+                && task.isPastDeadline() == false) {
+            task.ensureNotCancelled();
+            ((FieldStats.GeoPoint) stats).setGeoSummary(
+                GeoSummary.build(ir, field, stats instanceof FieldStats.GeoShape));
+        }
+        if (stats instanceof FieldStats.Text) {
+            FieldStats.Text text = (FieldStats.Text) stats;
+            // doc values only fields have no terms dictionary but can still be bucketed through their ords
+            if (request.hasStat(PrefixDistribution.NAME) && task.isPastDeadline() == false) {
+                task.ensureNotCancelled();
+                text.setPrefixDistribution(PrefixDistribution.build(ir, field, request.getPrefixLength()));
+            }
+            if (request.hasStat(LengthHistogram.NAME) && task.isPastDeadline() == false) {
+                task.ensureNotCancelled();
+                text.setLengthHistogram(LengthHistogram.build(ir, field));
+            }
+        }
+        return stats;
+    }
+
+
+    /**
+     * Counts the documents at the nesting level of <code>field</code> from the cached parent or nested type bitsets,
+     * so that nested documents don't count as documents missing a root field and vice versa.
+     */
+    private static long countNestingLevelDocs(IndexService indexService, IndexShard shard, IndexReader reader,
+                                              String field) throws IOException {
+        Query levelFilter = nestingLevelFilter(shard, field);
+        BitSetProducer producer = indexService.cache().bitsetFilterCache().getBitSetProducer(levelFilter);
+        long count = 0;
+        for (LeafReaderContext context : reader.leaves()) {
+            BitSet bits = producer.getBitSet(context);
+            if (bits != null) {
+                count += bits.cardinality();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the filter of the documents at the nesting level of <code>field</code>
+     */
+    private static Query nestingLevelFilter(IndexShard shard, String field) {
+        for (int i = field.lastIndexOf('.'); i > 0; i = field.lastIndexOf('.', i - 1)) {
+            ObjectMapper objectMapper = shard.mapperService().getObjectMapper(field.substring(0, i));
+            if (objectMapper != null && objectMapper.nested().isNested()) {
+                return objectMapper.nestedTypeFilter();
+            }
+        }
+        return Queries.newNonNestedFilter();
+    }
+
+    /**
+     * Reports the shards that answered as the progress of the task, hedges slow shard requests when the request
+     * asks for it, and responds with the stats of the shards that answered when the timeout of the request expires.
+     */
+    private class AsyncFieldStatsAction extends AsyncBroadcastAction {
+
+        private final FieldStatsTask task;
+        private final FieldStatsRequest request;
+        private final ActionListener<FieldStatsResponse> listener;
+        private final AtomicReferenceArray<ShardId> pendingShards;
+        private final AtomicReferenceArray<Exception> hedgeFailures;
+        private final AtomicLongArray startNanos;
+        private final AtomicReferenceArray<ShardId> shardIds;
+        private final AtomicReferenceArray<String> sentTo;
+        private final ClusterState memoState;
+        private final BytesReference memoShape;
+        private final Set<String> memoExpressions;
+        private final Set<String> archiveExpressions;
+        private final Set<Index> archiveServed = ConcurrentHashMap.newKeySet();
+        private final Map<ShardId, FieldStatsShardResponse> memoizedShards = new ConcurrentHashMap<>();
+        private final Map<ShardId, ShardReader> readers;
+        private final AtomicInteger hedgedShards = new AtomicInteger();
+        private final AtomicInteger hedgeWins = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile Scheduler.ScheduledCancellable timeout;
+
+        /**
+         * @param listener a listener that is only notified once, by the timeout or when all shards answered
+         * @param readers collects the copies that answered and the versions of the readers they answered from, or
+         *                <code>null</code>
+         */
+        AsyncFieldStatsAction(FieldStatsTask task, FieldStatsRequest request,
+                              ActionListener<FieldStatsResponse> listener, Map<ShardId, ShardReader> readers) {
+            super(task, request, listener);
+            this.task = task;
+            this.readers = readers;
+            this.request = request;
+            this.listener = listener;
+            this.pendingShards = new AtomicReferenceArray<>(shardsResponses().length());
+            this.hedgeFailures = new AtomicReferenceArray<>(shardsResponses().length());
+            this.startNanos = new AtomicLongArray(shardsResponses().length());
+            this.shardIds = new AtomicReferenceArray<>(shardsResponses().length());
+            this.sentTo = new AtomicReferenceArray<>(shardsResponses().length());
+            this.memoState = clusterService.state();
+            this.memoShape = memoShape(request);
+            this.memoExpressions = memoShape == null ? null :
+                indexNameExpressionResolver.resolveExpressions(memoState, request.indices());
+            this.archiveExpressions = ArchivedFieldStats.canAnswer(request) == false ? null :
+                indexNameExpressionResolver.resolveExpressions(memoState, request.indices());
+            request.setMemoizedShards(memoizedShards);
+            task.setTotalShards(shardsResponses().length());
+        }
+
+        /**
+         * @return what the shard requests compute, or <code>null</code> if the stats of immutable indices can't be
+         * memoized for this request: their shards are listed, they are routed to some shards only, or they are
+         * filtered by a query, which may depend on the current time
+         */
+        private BytesReference memoShape(FieldStatsRequest request) {
+            if (memo.isEnabled() == false || request.shouldUseCache() == false || request.getQuery() != null
+                || request.getRouting() != null || request.getPit() != null
+                || ("cluster".equals(request.level()) || "indices".equals(request.level())) == false) {
+                return null;
+            }
+            try {
+                BytesStreamOutput out = new BytesStreamOutput();
+                new FieldStatsShardRequest(new ShardId("_na_", "_na_", 0), request, null).writeStatsKey(out);
+                return out.bytes();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the metadata of the index if its stats may be memoized, or <code>null</code>
+         */
+        private IndexMetadata memoizable(Index index) {
+            IndexMetadata indexMetadata = memoState.metadata().index(index);
+            if (indexMetadata == null || ImmutableIndexMemo.isImmutable(indexMetadata) == false
+                || indicesService.buildAliasFilter(memoState, index.getName(), memoExpressions)
+                    .getQueryBuilder() != null) {
+                return null;
+            }
+            return indexMetadata;
+        }
+
+        /**
+         * Looks up the memoized stats of the shard, which the shard request offers to the copy they were computed
+         * from.
+         */
+        private void lookUpMemoized(ShardId shardId) {
+            if (memoShape == null || memoizedShards.containsKey(shardId)) {
+                return;
+            }
+            IndexMetadata indexMetadata = memoizable(shardId.getIndex());
+            if (indexMetadata == null) {
+                return;
+            }
+            try {
+                FieldStatsShardResponse memoized = memo.get(indexMetadata, shardId.id(), memoShape);
+                if (memoized != null) {
+                    memoizedShards.put(shardId, memoized);
+                }
+            } catch (IOException e) {
+                // the shard computes its stats again
+            }
+        }
+
+        /**
+         * @return the archived stats of the index of the shard for its first shard, empty stats for the others, or
+         * <code>null</code> if the index isn't answered from its archived stats
+         */
+        private FieldStatsShardResponse archived(ShardId shardId) {
+            if (archiveExpressions == null) {
+                return null;
+            }
+            if (archiveServed.contains(shardId.getIndex()) == false) {
+                Map<String, FieldStats<?>> stats = archivedStats(memoState, request, archiveExpressions,
+                    shardId.getIndexName());
+                if (stats == null) {
+                    return null;
+                }
+                if (archiveServed.add(shardId.getIndex())) {
+                    return new FieldStatsShardResponse(shardId, stats);
+                }
+            }
+            return new FieldStatsShardResponse(shardId, new HashMap<>());
+        }
+
+        /**
+         * Memoizes the stats of the shards of immutable indices that answered in time, with the copy and reader they
+         * were computed from.
+         */
+        private void memoize(AtomicReferenceArray<Object> responses) {
+            for (int i = 0; i < responses.length(); i++) {
+                ShardId shardId = shardIds.get(i);
+                Object response = responses.get(i);
+                if (shardId == null || response instanceof FieldStatsShardResponse == false
+                    || ((FieldStatsShardResponse) response).isTimedOut()
+                    || memoizedShards.get(shardId) == response) {
+                    continue;
+                }
+                IndexMetadata indexMetadata = memoizable(shardId.getIndex());
+                if (indexMetadata == null) {
+                    continue;
+                }
+                try {
+                    memo.put(indexMetadata, memoShape, (FieldStatsShardResponse) response);
+                } catch (IOException e) {
+                    // the shard computes its stats again next time
+                }
+            }
+        }
+
+        /**
+         * Sets the change token of the response, and drops the indices whose shards answered from the same readers
+         * as for the token of the request.
+         */
+        private void trackChanges(AtomicReferenceArray<Object> responses, FieldStatsResponse response) {
+            ChangeToken since = request.getSince() == null ? ChangeToken.EMPTY : ChangeToken.parse(request.getSince());
+            Map<Index, List<FieldStatsShardResponse>> indices = new HashMap<>();
+            Set<Index> incomplete = new HashSet<>();
+            for (int i = 0; i < responses.length(); i++) {
+                ShardId shardId = shardIds.get(i);
+                Object shardResponse = responses.get(i);
+                if (shardResponse instanceof FieldStatsShardResponse
+                    && ((FieldStatsShardResponse) shardResponse).isTimedOut() == false) {
+                    indices.computeIfAbsent(shardId.getIndex(), k -> new ArrayList<>())
+                        .add((FieldStatsShardResponse) shardResponse);
+                } else if (shardId != null) {
+                    incomplete.add(shardId.getIndex());
+                }
+            }
+            Set<Index> asked = new HashSet<>(indices.keySet());
+            asked.addAll(incomplete);
+            Map<String, ChangeToken.IndexState> states = new HashMap<>();
+            List<String> removed = new ArrayList<>();
+            for (Index index : asked) {
+                IndexMetadata indexMetadata = memoState.metadata().index(index);
+                if (indexMetadata == null) {
+                    continue;
+                }
+                boolean immutable = ImmutableIndexMemo.isImmutable(indexMetadata);
+                // archived shards report no reader, but closed indices have none to change
+                Long fingerprint = incomplete.contains(index) ? null :
+                    indexMetadata.getState() == IndexMetadata.State.CLOSE ? Long.valueOf(0) :
+                        ChangeToken.fingerprint(indices.get(index));
+                boolean listed = response.getIndicesMergedFieldStats().containsKey(index.getName());
+                ChangeToken.IndexState state = fingerprint == null ?
+                    ChangeToken.IndexState.unknown(index.getName(), listed) :
+                    new ChangeToken.IndexState(index.getName(), indexMetadata.getVersion(), immutable, fingerprint,
+                        listed);
+                states.put(index.getUUID(), state);
+                ChangeToken.IndexState previous = since.getIndices().get(index.getUUID());
+                if (previous == null || previous.isListed() == false) {
+                    continue;
+                }
+                if (listed && state.isSameAs(previous)) {
+                    response.getIndicesMergedFieldStats().remove(index.getName());
+                    response.getIndicesProbes().remove(index.getName());
+                } else if (listed == false) {
+                    removed.add(index.getName());
+                }
+            }
+            for (Map.Entry<String, ChangeToken.IndexState> entry : since.getIndices().entrySet()) {
+                // indices that weren't asked were deleted or no longer match the request
+                if (states.containsKey(entry.getKey()) == false && entry.getValue().isListed()) {
+                    removed.add(entry.getValue().getName());
+                }
+            }
+            Collections.sort(removed);
+            response.setChanges(new ChangeToken(states).encode(), removed);
+        }
+
+        @Override
+        public void start() {
+            request.setStartNanos(System.nanoTime());
+            super.start();
+            if (request.getTimeout() != null && finished.get() == false) {
+                timeout = transportService.getThreadPool().schedule(this::onTimeout, request.getTimeout(),
+                    ThreadPool.Names.MANAGEMENT);
+            }
+        }
+
+        @Override
+        protected void performOperation(ShardIterator shardIt, ShardRouting shard, int shardIndex) {
+            shardIds.set(shardIndex, shardIt.shardId());
+            FieldStatsShardResponse archived = archived(shardIt.shardId());
+            if (archived != null) {
+                task.onShardCompleted();
+                super.onOperation(shard, shardIndex, archived);
+                return;
+            }
+            lookUpMemoized(shardIt.shardId());
+            if (shard == null) {
+                super.performOperation(shardIt, shard, shardIndex);
+                return;
+            }
+            // shards without an active copy are never pending
+            pendingShards.set(shardIndex, shardIt.shardId());
+            startNanos.set(shardIndex, System.nanoTime());
+            if (request.shouldHedge()) {
+                new HedgedShardOperation(shardIt, shardIndex).send(shard, false);
+            } else {
+                // the base class retries a failed copy through here, which is where its request is done
+                sent(shardIndex, shard.currentNodeId());
+                super.performOperation(shardIt, shard, shardIndex);
+            }
+        }
+
+        /**
+         * Counts a shard request sent by the base class as in flight to the node until it is answered.
+         */
+        private void sent(int shardIndex, String nodeId) {
+            onShardRequestSent(nodeId);
+            String previous = sentTo.getAndSet(shardIndex, nodeId);
+            if (previous != null) {
+                onShardRequestDone(previous);
+            }
+        }
+
+        private void answered(int shardIndex) {
+            String nodeId = sentTo.getAndSet(shardIndex, null);
+            if (nodeId != null) {
+                onShardRequestDone(nodeId);
+            }
+        }
+
+        @Override
+        protected void onOperation(ShardRouting shard, int shardIndex, FieldStatsShardResponse response) {
+            answered(shardIndex);
+            if (response.isUnchanged()) {
+                // the copy still answers from the reader the memoized stats were computed from
+                response = memoizedShards.get(response.getShardId());
+            }
+            latencies.record(System.nanoTime() - startNanos.get(shardIndex));
+            if (readers != null && response.getAllocationId() != null) {
+                readers.put(response.getShardId(), new ShardReader(shard.currentNodeId(), response.getAllocationId(),
+                    response.getReaderVersion()));
+            }
+            task.onShardCompleted();
+            super.onOperation(shard, shardIndex, response);
+        }
+
+        /**
+         * Records the failure of a hedged shard request, which the base class only knows how to do for the shard
+         * requests it sent itself.
+         */
+        private void onHedgedFailure(ShardRouting shard, int shardIndex, ShardId shardId, Exception e) {
+            if (TransportActions.isShardNotAvailableException(e) == false) {
+                hedgeFailures.set(shardIndex, new BroadcastShardOperationFailedException(shardId, e));
+            }
+            super.onOperation(shard, shardIndex, null);
+        }
+
+        @Override
+        protected void finishHim() {
+            finished.set(true);
+            // the base class doesn't tell when the last copy of a shard failed
+            for (int i = 0; i < sentTo.length(); i++) {
+                answered(i);
+            }
+            Scheduler.ScheduledCancellable timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            respond(false);
+        }
+
+        private void onTimeout() {
+            if (finished.get() == false) {
+                respond(true);
+            }
+        }
+
+        /**
+         * @param timedOut whether to report the shards that are still pending as timed out
+         */
+        private void respond(boolean timedOut) {
+            AtomicReferenceArray<?> shardsResponses = shardsResponses();
+            AtomicReferenceArray<Object> responses = new AtomicReferenceArray<>(shardsResponses.length());
+            for (int i = 0; i < shardsResponses.length(); i++) {
+                Object response = shardsResponses.get(i);
+                if (response == null) {
+                    response = hedgeFailures.get(i);
+                }
+                if (response == null && timedOut && pendingShards.get(i) != null) {
+                    response = new BroadcastShardOperationFailedException(pendingShards.get(i),
+                        new OpenSearchTimeoutException("shard didn't answer within [" + request.getTimeout() + "]"));
+                }
+                responses.set(i, response);
+            }
+            if (memoShape != null) {
+                // before the responses are merged, into the stats of the first shard of each index
+                memoize(responses);
+            }
+            try {
+                FieldStatsResponse response = newResponse(request, responses, timedOut);
+                response.setHedgeStats(hedgedShards.get(), hedgeWins.get());
+                if ("indices".equals(request.level())) {
+                    trackChanges(responses, response);
+                }
+                listener.onResponse(response);
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        }
+
+        /**
+         * Sends a shard request to one copy of the shard, and to the next copy as well when the first doesn't answer
+         * within the hedge delay. The first response wins and the shard requests still running on other copies
+         * are cancelled. Their latency is recorded as well, as the time they ran until then, so that slow copies
+         * keep the hedge delay up. Failed copies are retried on the next copy, like the base class does.
+         */
+        private class HedgedShardOperation {
+
+            private final ShardIterator shardIt;
+            private final int shardIndex;
+            private final AtomicBoolean done = new AtomicBoolean();
+            private final AtomicInteger inFlight = new AtomicInteger();
+            private final List<Attempt> attempts = Collections.synchronizedList(new ArrayList<>());
+            private volatile Scheduler.ScheduledCancellable hedge;
+
+            HedgedShardOperation(ShardIterator shardIt, int shardIndex) {
+                this.shardIt = shardIt;
+                this.shardIndex = shardIndex;
+            }
+
+            void send(ShardRouting shard, boolean hedged) {
+                inFlight.incrementAndGet();
+                DiscoveryNode node = clusterService.state().nodes().get(shard.currentNodeId());
+                if (node == null) {
+                    onFailure(shard, new NoShardAvailableActionException(shardIt.shardId()));
+                    return;
+                }
+                FieldStatsShardRequest shardRequest = newShardRequest(shardIt.size(), shard, request);
+                shardRequest.setParentTask(clusterService.localNode().getId(), task.getId());
+                Attempt attempt = new Attempt(node, System.nanoTime());
+                attempts.add(attempt);
+                onShardRequestSent(node.getId());
+                transportService.sendRequest(node, SHARD_ACTION_NAME, shardRequest,
+                    new ActionListenerResponseHandler<>(ActionListener.wrap(
+                        response -> onResponse(shard, attempt, hedged, response),
+                        e -> onFailure(shard, attempt, e)), FieldStatsShardResponse::new));
+                if (hedged == false) {
+                    TimeValue delay = latencies.hedgeDelay();
+                    if (delay != null && shardIt.remaining() > 0) {
+                        // sending resolves the copy and serializes the request, which the scheduler thread shouldn't
+                        hedge = transportService.getThreadPool().schedule(this::hedge, delay,
+                            ThreadPool.Names.GENERIC);
+                    }
+                }
+            }
+
+            private void hedge() {
+                ShardRouting next = done.get() ? null : nextCopy();
+                if (next != null) {
+                    hedgedShards.incrementAndGet();
+                    send(next, true);
+                }
+            }
+
+            private ShardRouting nextCopy() {
+                synchronized (shardIt) {
+                    return shardIt.nextOrNull();
+                }
+            }
+
+            private void onResponse(ShardRouting shard, Attempt winner, boolean hedged,
+                                    FieldStatsShardResponse response) {
+                winner.finish();
+                if (done.compareAndSet(false, true) == false) {
+                    return;
+                }
+                cancelHedge();
+                if (hedged) {
+                    hedgeWins.incrementAndGet();
+                }
+                long now = System.nanoTime();
+                synchronized (attempts) {
+                    for (Attempt other : attempts) {
+                        if (other.finish()) {
+                            latencies.record(now - other.startNanos);
+                            transportService.sendRequest(other.node, CANCEL_HEDGED_SHARD_ACTION_NAME,
+                                new CancelHedgedShardRequest(new TaskId(clusterService.localNode().getId(),
+                                    task.getId()), shardIt.shardId()), EmptyTransportResponseHandler.INSTANCE_SAME);
+                        }
+                    }
+                }
+                startNanos.set(shardIndex, winner.startNanos);
+                onOperation(shard, shardIndex, response);
+            }
+
+            private void onFailure(ShardRouting shard, Attempt attempt, Exception e) {
+                attempt.finish();
+                ShardRouting next = done.get() ? null : nextCopy();
+                if (next != null) {
+                    send(next, false);
+                }
+                if (inFlight.decrementAndGet() == 0 && done.compareAndSet(false, true)) {
+                    cancelHedge();
+                    onHedgedFailure(shard, shardIndex, shardIt.shardId(), e);
+                }
+            }
+
+            private void cancelHedge() {
+                Scheduler.ScheduledCancellable hedge = this.hedge;
+                if (hedge != null) {
+                    hedge.cancel();
+                }
+            }
+        }
+
+        /**
+         * A shard request sent to one copy of the shard.
+         */
+        private final class Attempt {
+
+            private final DiscoveryNode node;
+            private final long startNanos;
+            private final AtomicBoolean finished = new AtomicBoolean();
+
+            Attempt(DiscoveryNode node, long startNanos) {
+                this.node = node;
+                this.startNanos = startNanos;
+            }
+
+            /**
+             * @return <code>true</code> if the attempt was still in flight, which it no longer counts as
+             */
+            boolean finish() {
+                if (finished.compareAndSet(false, true)) {
+                    onShardRequestDone(node.getId());
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Cancels the shard requests of a field stats request that were hedged to another copy that answered first.
+     */
+    private void cancelHedgedShard(CancelHedgedShardRequest request) {
+        TaskManager taskManager = transportService.getTaskManager();
+        for (CancellableTask task : taskManager.getCancellableTasks().values()) {
+            if (task instanceof FieldStatsTask && request.parentTaskId.equals(task.getParentTaskId())
+                    && request.shardId.equals(((FieldStatsTask) task).getShardId())) {
+                taskManager.cancel(task, "another copy of the shard answered first", () -> {});
+            }
+        }
+    }
+
+    static class CancelHedgedShardRequest extends TransportRequest {
+
+        private final TaskId parentTaskId;
+        private final ShardId shardId;
+
+        CancelHedgedShardRequest(TaskId parentTaskId, ShardId shardId) {
+            this.parentTaskId = parentTaskId;
+            this.shardId = shardId;
+        }
+
+        CancelHedgedShardRequest(StreamInput in) throws IOException {
+            super(in);
+            parentTaskId = TaskId.readFromStream(in);
+            shardId = new ShardId(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            parentTaskId.writeTo(out);
+            shardId.writeTo(out);
+        }
+    }
+
+    /**
+     * The copy of a shard that answered, and the version of the reader it answered from.
+     */
+    private static final class ShardReader {
+
+        private final String nodeId;
+        private final String allocationId;
+        private final long readerVersion;
+
+        ShardReader(String nodeId, String allocationId, long readerVersion) {
+            this.nodeId = nodeId;
+            this.allocationId = allocationId;
+            this.readerVersion = readerVersion;
+        }
+    }
+
+    static class WaitForRefreshRequest extends TransportRequest {
+
+        private final ShardId shardId;
+        private final String allocationId;
+        private final long readerVersion;
+        private final TimeValue timeout;
+
+        WaitForRefreshRequest(ShardId shardId, String allocationId, long readerVersion, TimeValue timeout) {
+            this.shardId = shardId;
+            this.allocationId = allocationId;
+            this.readerVersion = readerVersion;
+            this.timeout = timeout;
+        }
+
+        WaitForRefreshRequest(StreamInput in) throws IOException {
+            super(in);
+            shardId = new ShardId(in);
+            allocationId = in.readString();
+            readerVersion = in.readZLong();
+            timeout = in.readTimeValue();
+        }
+
+        @Override
+        public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+            return new FieldStatsTask(id, type, action, "wait for refresh of shard" + shardId, parentTaskId, headers,
+                shardId);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            shardId.writeTo(out);
+            out.writeString(allocationId);
+            out.writeZLong(readerVersion);
+            out.writeTimeValue(timeout);
+        }
     }
 
+    static class WaitForRefreshResponse extends TransportResponse {
+
+        private final boolean changed;
+
+        WaitForRefreshResponse(boolean changed) {
+            this.changed = changed;
+        }
+
+        WaitForRefreshResponse(StreamInput in) throws IOException {
+            super(in);
+            changed = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeBoolean(changed);
+        }
+    }
 
     @Override
     protected GroupShardsIterator<ShardIterator> shards(ClusterState clusterState, FieldStatsRequest request,
                                          String[] concreteIndices) {
-        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, null);
+        if (request.getPitContextId() != null) {
+            return pitShards(clusterState, request.getPitContextId());
+        }
+        if ("indices".equals(request.level()) && request.getIndexConstraints().length != 0) {
+            // indices whose published ranges don't match the constraints would be dropped from the response
+            concreteIndices = FieldRangesMetadata.get(clusterState.metadata()).prune(clusterState.metadata(),
+                concreteIndices, request.getIndexConstraints());
+            if (request.isDataStreamOrdered()) {
+                concreteIndices = pruneBackingIndices(clusterState, request, concreteIndices);
+            }
+        }
+        Map<String, Set<String>> routing = indexNameExpressionResolver.resolveSearchRouting(clusterState,
+            request.getRouting(), request.indices());
+        GroupShardsIterator<ShardIterator> shards = clusterService.operationRouting().searchShards(clusterState,
+            concreteIndices, routing, request.getPreference());
+        if (request.getPreference() != null || copyAffinity == false) {
+            return shards;
+        }
+        List<ShardIterator> preferred = new ArrayList<>(shards.size());
+        for (ShardIterator shardIt : shards) {
+            preferred.add(preferCopies(shardIt, this::isOverloaded));
+        }
+        return new GroupShardsIterator<>(preferred);
+    }
+
+    /**
+     * @return <code>true</code> if the search queue of the node and the field stats shard requests sent to it, which
+     * run on its management pool and don't show in its search stats, add up to the overloaded queue size
+     */
+    private boolean isOverloaded(String nodeId) {
+        int queueSize = responseCollectorService.getNodeStatistics(nodeId).map(stats -> stats.queueSize).orElse(0);
+        return queueSize + inFlightShardRequests.getOrDefault(nodeId, 0) >= overloadedQueueSize;
+    }
+
+    private void onShardRequestSent(String nodeId) {
+        inFlightShardRequests.merge(nodeId, 1, Integer::sum);
+    }
+
+    private void onShardRequestDone(String nodeId) {
+        inFlightShardRequests.computeIfPresent(nodeId, (id, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * @return the copies that hold the reader contexts of the pit, one per shard, or none if the copy is gone
+     */
+    private static GroupShardsIterator<ShardIterator> pitShards(ClusterState clusterState,
+                                                               SearchContextId pitContextId) {
+        List<ShardIterator> shards = new ArrayList<>();
+        for (Map.Entry<ShardId, SearchContextIdForNode> entry : pitContextId.shards().entrySet()) {
+            List<ShardRouting> copies = new ArrayList<>(1);
+            IndexRoutingTable indexRoutingTable = clusterState.routingTable().index(entry.getKey().getIndex());
+            IndexShardRoutingTable shardRoutingTable = indexRoutingTable == null ? null :
+                indexRoutingTable.shard(entry.getKey().id());
+            if (shardRoutingTable != null) {
+                for (ShardRouting copy : shardRoutingTable) {
+                    if (copy.active() && entry.getValue().getNode().equals(copy.currentNodeId())) {
+                        copies.add(copy);
+                    }
+                }
+            }
+            shards.add(new PlainShardIterator(entry.getKey(), copies));
+        }
+        return new GroupShardsIterator<>(shards);
+    }
+
+    /**
+     * @return the indices without the backing indices of the requested data streams that can't match the constraints
+     * on their timestamp field, given the published ranges of a few of them
+     */
+    private String[] pruneBackingIndices(ClusterState clusterState, FieldStatsRequest request,
+                                         String[] concreteIndices) {
+        FieldRangesMetadata ranges = FieldRangesMetadata.get(clusterState.metadata());
+        Set<String> excluded = new HashSet<>();
+        for (String name : indexNameExpressionResolver.dataStreamNames(clusterState, request.indicesOptions(),
+            request.indices())) {
+            DataStream dataStream = clusterState.metadata().dataStreams().get(name);
+            if (dataStream == null) {
+                continue;
+            }
+            for (IndexConstraint constraint : request.getIndexConstraints()) {
+                if (constraint.getField().equals(dataStream.getTimeStampField().getName())) {
+                    excluded.addAll(ranges.excludedBackingIndices(clusterState.metadata(), dataStream.getIndices(),
+                        constraint));
+                }
+            }
+        }
+        if (excluded.isEmpty()) {
+            return concreteIndices;
+        }
+        return Arrays.stream(concreteIndices).filter(index -> excluded.contains(index) == false)
+            .toArray(String[]::new);
+    }
+
+    /**
+     * Orders the copies of a shard by rendezvous hashing of the shard and node ids, so that every request asks the
+     * same copy as long as it is active, and a lost copy only moves its own shards. Copies on overloaded nodes and
+     * copies that aren't active yet are only asked after the others.
+     */
+    static ShardIterator preferCopies(ShardIterator shardIt, Predicate<String> overloaded) {
+        String shardKey = shardIt.shardId().getIndex().getUUID() + "/" + shardIt.shardId().id() + "/";
+        List<ShardRouting> copies = new ArrayList<>(shardIt.getShardRoutings());
+        Map<String, Boolean> overloadedNodes = new HashMap<>();
+        copies.sort(Comparator.comparing((ShardRouting copy) -> copy.active() == false)
+            .thenComparing(copy -> overloadedNodes.computeIfAbsent(copy.currentNodeId(), overloaded::test))
+            .thenComparing(Comparator.comparingInt(
+                (ShardRouting copy) -> Murmur3HashFunction.hash(shardKey + copy.currentNodeId())).reversed())
+            .thenComparing(ShardRouting::currentNodeId));
+        return new PlainShardIterator(shardIt.shardId(), copies);
     }
 
     @Override
@@ -323,6 +1793,43 @@ public class TransportFieldStatsAction extends
     @Override
     protected ClusterBlockException checkRequestBlock(ClusterState state, FieldStatsRequest request,
                                                       String[] concreteIndices) {
-        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+        // closed indices are blocked for reads, unless they are answered from their archived stats
+        Set<String> expressions = null;
+        List<String> asked = new ArrayList<>(concreteIndices.length);
+        for (String index : concreteIndices) {
+            IndexMetadata indexMetadata = state.metadata().index(index);
+            if (indexMetadata != null && indexMetadata.getState() == IndexMetadata.State.CLOSE
+                && ArchivedFieldStats.canAnswer(request)) {
+                if (expressions == null) {
+                    expressions = indexNameExpressionResolver.resolveExpressions(state, request.indices());
+                }
+                if (archivedStats(state, request, expressions, index) != null) {
+                    continue;
+                }
+            }
+            asked.add(index);
+        }
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, asked.toArray(new String[0]));
+    }
+
+    /**
+     * @param expressions the index expressions of the request, resolved to index and alias names
+     * @return the archived stats of the requested fields of the index, or <code>null</code> if its shards are asked:
+     * open indices are only answered from complete archived stats of all requested fields, and only when the
+     * request may use cached stats
+     */
+    private Map<String, FieldStats<?>> archivedStats(ClusterState state, FieldStatsRequest request,
+                                                     Set<String> expressions, String index) {
+        IndexMetadata indexMetadata = state.metadata().index(index);
+        if (indexMetadata == null || ArchivedFieldStats.canAnswer(request) == false) {
+            return null;
+        }
+        boolean closed = indexMetadata.getState() == IndexMetadata.State.CLOSE;
+        if (closed == false && request.shouldUseCache() == false
+            || indicesService.buildAliasFilter(state, index, expressions).getQueryBuilder() != null) {
+            return null;
+        }
+        Map<String, FieldStats<?>> archived = ArchivedFieldStats.get(indexMetadata);
+        return archived == null ? null : ArchivedFieldStats.select(archived, request, closed == false);
     }
 }
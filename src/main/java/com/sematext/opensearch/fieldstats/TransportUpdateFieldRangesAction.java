@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.action.support.ActionFilters;
+import org.opensearch.action.support.clustermanager.TransportClusterManagerNodeAction;
+import org.opensearch.action.support.master.AcknowledgedResponse;
+import org.opensearch.cluster.ClusterState;
+import org.opensearch.cluster.ClusterStateTaskConfig;
+import org.opensearch.cluster.ClusterStateTaskExecutor;
+import org.opensearch.cluster.ClusterStateTaskListener;
+import org.opensearch.cluster.block.ClusterBlockException;
+import org.opensearch.cluster.block.ClusterBlockLevel;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.cluster.metadata.IndexNameExpressionResolver;
+import org.opensearch.cluster.metadata.Metadata;
+import org.opensearch.cluster.service.ClusterService;
+import org.opensearch.common.Priority;
+import org.opensearch.common.inject.Inject;
+import org.opensearch.core.action.ActionListener;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.index.Index;
+import org.opensearch.threadpool.ThreadPool;
+import org.opensearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies the ranges reported by the primaries to the cluster state, and archives the final ones in the metadata of
+ * their index ({@link ArchivedFieldStats}). The reports that are queued while a cluster state is published are
+ * applied at once, in a single update.
+ */
+public class TransportUpdateFieldRangesAction extends
+    TransportClusterManagerNodeAction<UpdateFieldRangesRequest, AcknowledgedResponse> {
+
+    private static final ClusterStateTaskExecutor<UpdateFieldRangesRequest> EXECUTOR = (currentState, tasks) -> {
+        List<FieldRangesMetadata.ShardRanges> reports = new ArrayList<>();
+        for (UpdateFieldRangesRequest task : tasks) {
+            reports.addAll(task.getShards());
+        }
+        FieldRangesMetadata current = FieldRangesMetadata.get(currentState.metadata());
+        FieldRangesMetadata updated = current.apply(currentState.metadata(), reports);
+        Map<Index, IndexMetadata> archived = archive(currentState.metadata(), reports);
+        ClusterState newState = currentState;
+        if (updated.equals(current) == false || archived.isEmpty() == false) {
+            Metadata.Builder metadata = Metadata.builder(currentState.metadata())
+                .putCustom(FieldRangesMetadata.TYPE, updated);
+            for (IndexMetadata indexMetadata : archived.values()) {
+                metadata.put(indexMetadata, true);
+            }
+            newState = ClusterState.builder(currentState).metadata(metadata).build();
+        }
+        return ClusterStateTaskExecutor.ClusterTasksResult.<UpdateFieldRangesRequest>builder().successes(tasks)
+            .build(newState);
+    };
+
+    /**
+     * @return the metadata of the indices whose archived stats the final reports changed
+     */
+    private static Map<Index, IndexMetadata> archive(Metadata metadata, List<FieldRangesMetadata.ShardRanges> reports)
+        throws IOException {
+        Map<Index, IndexMetadata> archived = new HashMap<>();
+        for (FieldRangesMetadata.ShardRanges report : reports) {
+            IndexMetadata indexMetadata = archived.getOrDefault(report.getIndex(), metadata.index(report.getIndex()));
+            FieldRangesMetadata.ShardRanges resolved = indexMetadata == null ? null : report.resolve(indexMetadata);
+            Map<String, String> customData = resolved == null ? null : ArchivedFieldStats.put(indexMetadata, resolved);
+            if (customData != null) {
+                archived.put(report.getIndex(), IndexMetadata.builder(indexMetadata)
+                    .putCustom(ArchivedFieldStats.CUSTOM_KEY, customData).build());
+            }
+        }
+        return archived;
+    }
+
+    @Inject
+    public TransportUpdateFieldRangesAction(TransportService transportService, ClusterService clusterService,
+                                            ThreadPool threadPool, ActionFilters actionFilters,
+                                            IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(UpdateFieldRangesAction.NAME, transportService, clusterService, threadPool, actionFilters,
+            UpdateFieldRangesRequest::new, indexNameExpressionResolver);
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SAME;
+    }
+
+    @Override
+    protected AcknowledgedResponse read(StreamInput in) throws IOException {
+        return new AcknowledgedResponse(in);
+    }
+
+    @Override
+    protected void clusterManagerOperation(UpdateFieldRangesRequest request, ClusterState state,
+                                           ActionListener<AcknowledgedResponse> listener) {
+        clusterService.submitStateUpdateTask("update field ranges", request,
+            ClusterStateTaskConfig.build(Priority.LOW), EXECUTOR, new ClusterStateTaskListener() {
+                @Override
+                public void onFailure(String source, Exception e) {
+                    listener.onFailure(e);
+                }
+
+                @Override
+                public void clusterStateProcessed(String source, ClusterState oldState, ClusterState newState) {
+                    listener.onResponse(new AcknowledgedResponse(true));
+                }
+            });
+    }
+
+    @Override
+    protected ClusterBlockException checkBlock(UpdateFieldRangesRequest request, ClusterState state) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA_WRITE);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.action.ActionType;
+import org.opensearch.action.support.master.AcknowledgedResponse;
+
+
+/**
+ * Sent by the primaries to the elected cluster manager to publish the ranges of their fields.
+ */
+public class UpdateFieldRangesAction extends ActionType<AcknowledgedResponse> {
+
+    public static final UpdateFieldRangesAction INSTANCE = new UpdateFieldRangesAction();
+    public static final String NAME = "internal:cluster/fieldstats/ranges/update";
+
+    private UpdateFieldRangesAction() { super(NAME, AcknowledgedResponse::new); }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sematext.opensearch.fieldstats;
+
+import org.opensearch.action.ActionRequestValidationException;
+import org.opensearch.action.support.clustermanager.ClusterManagerNodeRequest;
+import org.opensearch.core.common.io.stream.StreamInput;
+import org.opensearch.core.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.List;
+
+
+public class UpdateFieldRangesRequest extends ClusterManagerNodeRequest<UpdateFieldRangesRequest> {
+
+    private final List<FieldRangesMetadata.ShardRanges> shards;
+
+    /**
+     * @param shards the ranges of the primaries of a node that changed since they were last reported
+     */
+    UpdateFieldRangesRequest(List<FieldRangesMetadata.ShardRanges> shards) {
+        this.shards = shards;
+    }
+
+    public UpdateFieldRangesRequest(StreamInput in) throws IOException {
+        super(in);
+        shards = in.readList(FieldRangesMetadata.ShardRanges::new);
+    }
+
+    List<FieldRangesMetadata.ShardRanges> getShards() {
+        return shards;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        return null;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeList(shards);
+    }
+}
@@ -15,32 +15,96 @@
 package com.sematext.opensearch.plugin;
 
 import org.opensearch.action.ActionRequest;
+import org.opensearch.client.Client;
+import org.opensearch.cluster.NamedDiff;
+import org.opensearch.cluster.metadata.Metadata;
+import org.opensearch.cluster.service.ClusterService;
 import org.opensearch.core.action.ActionResponse;
 import org.opensearch.cluster.metadata.IndexNameExpressionResolver;
 import org.opensearch.cluster.node.DiscoveryNodes;
 import org.opensearch.common.settings.ClusterSettings;
 import org.opensearch.common.settings.IndexScopedSettings;
+import org.opensearch.common.settings.Setting;
 import org.opensearch.common.settings.Settings;
 import org.opensearch.common.settings.SettingsFilter;
+import org.opensearch.core.common.io.stream.NamedWriteableRegistry;
+import org.opensearch.core.xcontent.NamedXContentRegistry;
+import org.opensearch.env.Environment;
+import org.opensearch.env.NodeEnvironment;
+import org.opensearch.index.IndexModule;
 import org.opensearch.plugins.ActionPlugin;
 import org.opensearch.plugins.Plugin;
+import org.opensearch.repositories.RepositoriesService;
 import org.opensearch.rest.RestController;
 import org.opensearch.rest.RestHandler;
+import org.opensearch.script.ScriptService;
+import org.opensearch.tasks.Task;
+import org.opensearch.threadpool.ThreadPool;
+import org.opensearch.watcher.ResourceWatcherService;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.function.Supplier;
 
+import com.sematext.opensearch.fieldstats.FieldRangesMetadata;
+import com.sematext.opensearch.fieldstats.FieldRangesReporter;
 import com.sematext.opensearch.fieldstats.FieldStatsAction;
+import com.sematext.opensearch.fieldstats.FieldStatsResponseCache;
+import com.sematext.opensearch.fieldstats.FieldStatsTask;
+import com.sematext.opensearch.fieldstats.ImmutableIndexMemo;
+import com.sematext.opensearch.fieldstats.RefreshWatcher;
 import com.sematext.opensearch.fieldstats.RestFieldStatsAction;
+import com.sematext.opensearch.fieldstats.SegmentStatsCache;
+import com.sematext.opensearch.fieldstats.ShardLatencyTracker;
+import com.sematext.opensearch.fieldstats.TermProbeCache;
 import com.sematext.opensearch.fieldstats.TransportFieldStatsAction;
+import com.sematext.opensearch.fieldstats.TransportUpdateFieldRangesAction;
+import com.sematext.opensearch.fieldstats.UpdateFieldRangesAction;
 
 public class FieldStatsPlugin extends Plugin implements ActionPlugin {
 
+  private FieldRangesReporter fieldRangesReporter;
+  private SegmentStatsCache segmentStatsCache;
+  private RefreshWatcher refreshWatcher;
+
  public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
-   return Arrays.asList(new ActionHandler<>(FieldStatsAction.INSTANCE, TransportFieldStatsAction.class));
+   return Arrays.asList(new ActionHandler<>(FieldStatsAction.INSTANCE, TransportFieldStatsAction.class),
+       new ActionHandler<>(UpdateFieldRangesAction.INSTANCE, TransportUpdateFieldRangesAction.class));
  }
 
+  @Override
+  public Collection<Object> createComponents(final Client client,
+      final ClusterService clusterService,
+      final ThreadPool threadPool,
+      final ResourceWatcherService resourceWatcherService,
+      final ScriptService scriptService,
+      final NamedXContentRegistry xContentRegistry,
+      final Environment environment,
+      final NodeEnvironment nodeEnvironment,
+      final NamedWriteableRegistry namedWriteableRegistry,
+      final IndexNameExpressionResolver indexNameExpressionResolver,
+      final Supplier<RepositoriesService> repositoriesServiceSupplier) {
+    fieldRangesReporter = new FieldRangesReporter(environment.settings(), client, clusterService, threadPool);
+    segmentStatsCache = new SegmentStatsCache(environment.settings(), threadPool);
+    refreshWatcher = new RefreshWatcher(threadPool);
+    return Arrays.asList(fieldRangesReporter, segmentStatsCache, refreshWatcher);
+  }
+
+  @Override
+  public void onIndexModule(final IndexModule indexModule) {
+    if (fieldRangesReporter != null) {
+      indexModule.addIndexEventListener(fieldRangesReporter);
+    }
+    if (segmentStatsCache != null) {
+      indexModule.addIndexEventListener(segmentStatsCache);
+    }
+    if (refreshWatcher != null) {
+      indexModule.addIndexEventListener(refreshWatcher);
+      indexModule.addIndexOperationListener(refreshWatcher);
+    }
+  }
+
   @Override
   public List<RestHandler> getRestHandlers(final Settings settings,
       final RestController restController,
@@ -51,4 +115,22 @@ public class FieldStatsPlugin extends Plugin implements ActionPlugin {
       final Supplier<DiscoveryNodes> nodesInCluster) {
     return Arrays.asList(new RestFieldStatsAction());
   }
+
+  @Override
+  public List<NamedWriteableRegistry.Entry> getNamedWriteables() {
+    return Arrays.asList(
+        new NamedWriteableRegistry.Entry(Task.Status.class, FieldStatsTask.Status.NAME, FieldStatsTask.Status::new),
+        new NamedWriteableRegistry.Entry(Metadata.Custom.class, FieldRangesMetadata.TYPE, FieldRangesMetadata::new),
+        new NamedWriteableRegistry.Entry(NamedDiff.class, FieldRangesMetadata.TYPE, FieldRangesMetadata::readDiffFrom));
+  }
+
+  @Override
+  public List<Setting<?>> getSettings() {
+    return Arrays.asList(TermProbeCache.BLOOM_CACHE_SIZE_SETTING, ShardLatencyTracker.HEDGE_PERCENTILE_SETTING,
+        ShardLatencyTracker.HEDGE_MIN_DELAY_SETTING, TransportFieldStatsAction.COPY_AFFINITY_SETTING,
+        TransportFieldStatsAction.OVERLOADED_QUEUE_SIZE_SETTING, FieldStatsResponseCache.TTL_SETTING,
+        FieldStatsResponseCache.STALE_WHILE_REVALIDATE_SETTING, FieldStatsResponseCache.SIZE_SETTING,
+        ImmutableIndexMemo.SIZE_SETTING, FieldRangesReporter.FIELDS_SETTING, FieldRangesReporter.INTERVAL_SETTING,
+        SegmentStatsCache.SIZE_SETTING, SegmentStatsCache.PERSIST_SETTING);
+  }
 }
@@ -21,16 +21,41 @@ import static com.sematext.opensearch.fieldstats.IndexConstraint.Comparison.LTE;
 import static com.sematext.opensearch.fieldstats.IndexConstraint.Property.MAX;
 import static com.sematext.opensearch.fieldstats.IndexConstraint.Property.MIN;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
 
+import org.opensearch.Version;
+import org.opensearch.action.support.PlainActionFuture;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.cluster.metadata.Metadata;
+import org.opensearch.cluster.routing.PlainShardIterator;
+import org.opensearch.cluster.routing.ShardRouting;
+import org.opensearch.cluster.routing.ShardRoutingState;
+import org.opensearch.cluster.routing.TestShardRouting;
+import org.opensearch.core.action.ActionListener;
 import org.opensearch.core.common.bytes.BytesArray;
+import org.opensearch.core.common.bytes.BytesReference;
+import org.opensearch.core.common.unit.ByteSizeValue;
+import org.opensearch.core.index.Index;
 import org.opensearch.common.io.stream.BytesStreamOutput;
+import org.opensearch.common.settings.Settings;
+import org.opensearch.common.unit.TimeValue;
 import org.opensearch.core.common.io.stream.StreamInput;
 import org.opensearch.common.xcontent.json.JsonXContent;
 import org.opensearch.core.index.shard.ShardId;
+import org.opensearch.core.tasks.TaskId;
+import org.opensearch.tasks.TaskCancelledException;
 import org.opensearch.test.OpenSearchTestCase;
 import org.opensearch.test.StreamsUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Map;
 
 
@@ -86,6 +111,541 @@ public class FieldStatsRequestTests extends OpenSearchTestCase {
         assertThat(request.getIndexConstraints()[7].getOptionalFormat(), equalTo("date_optional_time"));
     }
 
+    public void testStatsParsing() throws Exception {
+        BytesArray data = new BytesArray("{\"fields\": [\"host\"], \"stats\": [\"prefix_distribution\"], "
+            + "\"prefix_length\": 2}");
+        FieldStatsRequest request = new FieldStatsRequest();
+        request.source(createParser(JsonXContent.jsonXContent, data));
+        assertThat(request.getStats().length, equalTo(1));
+        assertThat(request.getStats()[0], equalTo(PrefixDistribution.NAME));
+        assertThat(request.getPrefixLength(), equalTo(2));
+        assertFalse(request.shouldExpandFlatObjects());
+        assertNull(request.validate());
+
+        request.setPrefixLength(4);
+        assertNotNull(request.validate());
+        request.setPrefixLength(1);
+        request.setStats(new String[] {"foo"});
+        assertNotNull(request.validate());
+    }
+
+    public void testExpandFlatObjectsParsing() throws Exception {
+        BytesArray data = new BytesArray("{\"fields\": [\"attrs.*\"], \"expand_flat_objects\": true}");
+        FieldStatsRequest request = new FieldStatsRequest();
+        request.source(createParser(JsonXContent.jsonXContent, data));
+        assertTrue(request.shouldExpandFlatObjects());
+
+        BytesStreamOutput output = new BytesStreamOutput();
+        request.writeTo(output);
+        FieldStatsRequest deserialized = new FieldStatsRequest(output.bytes().streamInput());
+        assertTrue(deserialized.shouldExpandFlatObjects());
+    }
+
+    public void testProbeParsing() throws Exception {
+        BytesArray data = new BytesArray("{\"probe\": {\"trace.id\": \"abc\"}}");
+        FieldStatsRequest request = new FieldStatsRequest();
+        request.source(createParser(JsonXContent.jsonXContent, data));
+        assertThat(request.getProbes().size(), equalTo(1));
+        assertThat(request.getProbes().get("trace.id"), equalTo("abc"));
+        assertNull(request.validate());
+
+        request.setProbes(new HashMap<>());
+        assertNotNull(request.validate());
+    }
+
+    public void testTimeoutParsing() throws Exception {
+        BytesArray data = new BytesArray("{\"fields\": [\"timestamp\"], \"timeout\": \"500ms\"}");
+        FieldStatsRequest request = new FieldStatsRequest();
+        request.source(createParser(JsonXContent.jsonXContent, data));
+        assertThat(request.getTimeout(), equalTo(TimeValue.timeValueMillis(500)));
+        assertNull(request.validate());
+
+        BytesStreamOutput output = new BytesStreamOutput();
+        request.writeTo(output);
+        assertThat(new FieldStatsRequest(output.bytes().streamInput()).getTimeout(), equalTo(request.getTimeout()));
+
+        request.setTimeout(TimeValue.ZERO);
+        assertNotNull(request.validate());
+    }
+
+    public void testRemainingTimeout() throws Exception {
+        FieldStatsRequest request = new FieldStatsRequest("test");
+        request.setFields(new String[] {"timestamp"});
+        ShardId shardId = new ShardId("test", "_na_", 0);
+        assertNull(new FieldStatsShardRequest(shardId, request, null).getTimeout());
+
+        // shard requests get what is left of the timeout when they are sent
+        request.setTimeout(TimeValue.timeValueMinutes(1));
+        request.setStartNanos(System.nanoTime() - TimeValue.timeValueSeconds(50).nanos());
+        FieldStatsShardRequest late = new FieldStatsShardRequest(shardId, request, null);
+        assertThat(late.getTimeout().nanos(), lessThan(TimeValue.timeValueSeconds(10).nanos() + 1));
+        request.setStartNanos(System.nanoTime() - TimeValue.timeValueMinutes(2).nanos());
+        FieldStatsShardRequest expired = new FieldStatsShardRequest(shardId, request, null);
+        assertThat(expired.getTimeout(), equalTo(TimeValue.ZERO));
+
+        BytesStreamOutput output = new BytesStreamOutput();
+        late.writeTo(output);
+        assertThat(new FieldStatsShardRequest(output.bytes().streamInput()).getTimeout(), equalTo(late.getTimeout()));
+
+        // which doesn't prevent coalescing them
+        BytesStreamOutput lateKey = new BytesStreamOutput();
+        late.writeCoalescingKey(lateKey);
+        BytesStreamOutput expiredKey = new BytesStreamOutput();
+        expired.writeCoalescingKey(expiredKey);
+        assertThat(expiredKey.bytes(), equalTo(lateKey.bytes()));
+    }
+
+    public void testPitParsing() throws Exception {
+        BytesArray data = new BytesArray("{\"fields\": [\"timestamp\"], "
+            + "\"pit\": {\"id\": \"abc\", \"keep_alive\": \"1m\"}}");
+        FieldStatsRequest request = new FieldStatsRequest();
+        request.source(createParser(JsonXContent.jsonXContent, data));
+        assertThat(request.getPit(), equalTo("abc"));
+        assertThat(request.getPitKeepAlive(), equalTo(TimeValue.timeValueMinutes(1)));
+        assertNull(request.validate());
+
+        BytesStreamOutput output = new BytesStreamOutput();
+        request.writeTo(output);
+        FieldStatsRequest read = new FieldStatsRequest(output.bytes().streamInput());
+        assertThat(read.getPit(), equalTo(request.getPit()));
+        assertThat(read.getPitKeepAlive(), equalTo(request.getPitKeepAlive()));
+
+        FieldStatsRequest other = new FieldStatsRequest();
+        other.setFields(new String[] {"timestamp"});
+        other.setPit("def");
+        assertNotEquals(cacheKey(request), cacheKey(other));
+
+        request.setWaitForChange(TimeValue.timeValueSeconds(30));
+        assertNotNull(request.validate());
+        request.setWaitForChange(null);
+        request.setRouting("1");
+        assertNotNull(request.validate());
+        request.setRouting(null);
+        request.indices("test");
+        assertNotNull(request.validate());
+    }
+
+    public void testHedgeDelay() {
+        ShardLatencyTracker latencies = new ShardLatencyTracker(90, TimeValue.timeValueNanos(10));
+        for (int i = 1; i < ShardLatencyTracker.MIN_SAMPLES; i++) {
+            latencies.record(i * 1000L);
+        }
+        assertNull(latencies.hedgeDelay());
+        latencies.record(ShardLatencyTracker.MIN_SAMPLES * 1000L);
+        // the upper bound of the bucket of the percentile
+        long delay = latencies.hedgeDelay().nanos();
+        assertThat(delay, greaterThanOrEqualTo(90_000L));
+        assertThat(delay, lessThanOrEqualTo(90_000L + 90_000L / ShardLatencyTracker.SUB_BUCKETS));
+
+        // older samples are replaced once the window is full
+        for (int i = 0; i < ShardLatencyTracker.SAMPLES; i++) {
+            latencies.record(1);
+        }
+        assertThat(latencies.hedgeDelay(), equalTo(TimeValue.timeValueNanos(10)));
+        latencies.record(Long.MAX_VALUE);
+        assertThat(latencies.hedgeDelay(), equalTo(TimeValue.timeValueNanos(10)));
+    }
+
+    public void testCopyAffinity() {
+        ShardId shardId = new ShardId("test", "test", 0);
+        List<ShardRouting> copies = new ArrayList<>(Arrays.asList(
+            TestShardRouting.newShardRouting(shardId, "node1", true, ShardRoutingState.STARTED),
+            TestShardRouting.newShardRouting(shardId, "node2", false, ShardRoutingState.STARTED),
+            TestShardRouting.newShardRouting(shardId, "node3", false, ShardRoutingState.STARTED),
+            TestShardRouting.newShardRouting(shardId, "node4", false, ShardRoutingState.INITIALIZING)));
+        ShardRouting preferred = TransportFieldStatsAction.preferCopies(
+            new PlainShardIterator(shardId, copies), node -> false).nextOrNull();
+        assertTrue(preferred.active());
+        for (int i = 0; i < 10; i++) {
+            Collections.shuffle(copies, random());
+            assertThat(TransportFieldStatsAction.preferCopies(new PlainShardIterator(shardId, copies), node -> false)
+                .nextOrNull(), equalTo(preferred));
+        }
+
+        // losing another copy doesn't move the shard
+        List<ShardRouting> remaining = new ArrayList<>(copies);
+        remaining.remove(copies.stream().filter(copy -> copy.active() && copy.equals(preferred) == false)
+            .findFirst().get());
+        assertThat(TransportFieldStatsAction.preferCopies(new PlainShardIterator(shardId, remaining), node -> false)
+            .nextOrNull(), equalTo(preferred));
+
+        ShardRouting failover = TransportFieldStatsAction.preferCopies(new PlainShardIterator(shardId, copies),
+            node -> node.equals(preferred.currentNodeId())).nextOrNull();
+        assertTrue(failover.active());
+        assertNotEquals(preferred.currentNodeId(), failover.currentNodeId());
+    }
+
+    public void testCacheKey() throws Exception {
+        FieldStatsRequest request = new FieldStatsRequest("logs-*");
+        request.setFields(new String[] {"@timestamp", "host"});
+        FieldStatsRequest reordered = new FieldStatsRequest("logs-*");
+        reordered.setFields(new String[] {"host", "@timestamp"});
+        reordered.setTimeout(TimeValue.timeValueSeconds(1));
+        assertThat(cacheKey(reordered), equalTo(cacheKey(request)));
+
+        reordered.level("indices");
+        assertNotEquals(cacheKey(request), cacheKey(reordered));
+    }
+
+    private static BytesReference cacheKey(FieldStatsRequest request) throws Exception {
+        BytesStreamOutput output = new BytesStreamOutput();
+        request.writeCacheKey(output);
+        return output.bytes();
+    }
+
+    public void testResponseCache() throws Exception {
+        AtomicLong now = new AtomicLong();
+        FieldStatsResponseCache cache = new FieldStatsResponseCache(TimeValue.timeValueNanos(10),
+            TimeValue.timeValueNanos(5), new ByteSizeValue(1024 * 1024), now::get);
+        assertTrue(cache.isEnabled());
+        BytesReference key = new BytesArray("key");
+        assertNull(cache.get(key));
+
+        Map<String, Map<String, FieldStats<?>>> stats = new HashMap<>();
+        stats.put("_all", Collections.singletonMap("field", FieldStatsTests.randomFieldStats()));
+        cache.put(key, new FieldStatsResponse(1, 1, 0, Collections.emptyList(), stats, new HashMap<>()));
+        FieldStatsResponseCache.Entry entry = cache.get(key);
+        assertTrue(cache.isFresh(entry));
+        assertThat(entry.response().getAllFieldStats(), equalTo(stats.get("_all")));
+
+        // stale responses are still served, and only the first caller refreshes them
+        now.set(12);
+        entry = cache.get(key);
+        assertFalse(cache.isFresh(entry));
+        assertTrue(entry.tryStartRefresh());
+        assertFalse(entry.tryStartRefresh());
+        entry.onRefreshFailed();
+        assertTrue(entry.tryStartRefresh());
+
+        now.set(15);
+        assertNull(cache.get(key));
+
+        // partial responses aren't cached
+        cache.put(key, new FieldStatsResponse(2, 1, 1, Collections.emptyList(), stats, new HashMap<>()));
+        assertNull(cache.get(key));
+
+        assertFalse(new FieldStatsResponseCache(TimeValue.ZERO, TimeValue.ZERO, new ByteSizeValue(1024),
+            now::get).isEnabled());
+    }
+
+    public void testTask() throws Exception {
+        FieldStatsRequest request = new FieldStatsRequest("logs*");
+        request.setFields(new String[] {"timestamp"});
+        FieldStatsTask task = (FieldStatsTask) request.createTask(1, "transport", FieldStatsAction.NAME,
+            TaskId.EMPTY_TASK_ID, new HashMap<>());
+        assertThat(task.getDescription(), equalTo("indices[logs*], fields[timestamp], level[cluster]"));
+        assertTrue(task.shouldCancelChildrenOnCancellation());
+
+        task.setTotalShards(3);
+        task.onShardCompleted();
+        FieldStatsTask.Status status = task.getStatus();
+        assertThat(status.getTotalShards(), equalTo(3));
+        assertThat(status.getCompletedShards(), equalTo(1));
+        assertThat(status.getTotalFields(), equalTo(-1));
+
+        BytesStreamOutput output = new BytesStreamOutput();
+        status.writeTo(output);
+        assertThat(new FieldStatsTask.Status(output.bytes().streamInput()), equalTo(status));
+
+        assertFalse(task.isPastDeadline());
+        task.setTimeout(TimeValue.timeValueNanos(1));
+        assertBusy(() -> assertTrue(task.isPastDeadline()));
+        assertTrue(task.isTimedOut());
+
+        task.ensureNotCancelled();
+        task.cancel("test");
+        expectThrows(TaskCancelledException.class, task::ensureNotCancelled);
+    }
+
+    public void testSingleFlight() throws Exception {
+        List<FieldStatsTask> cancelled = new ArrayList<>();
+        List<FieldStatsTask> released = new ArrayList<>();
+        SingleFlight<String, String> flights = new SingleFlight<>(cancelled::add, released::add, String::new);
+        List<ActionListener<String>> executions = new ArrayList<>();
+        List<FieldStatsTask> executionTasks = new ArrayList<>();
+        SingleFlight.Execution<String> execution = (task, listener) -> {
+            executions.add(listener);
+            executionTasks.add(task);
+        };
+
+        FieldStatsTask first = newTask(1);
+        FieldStatsTask second = newTask(2);
+        FieldStatsTask third = newTask(3);
+        PlainActionFuture<String> firstFuture = new PlainActionFuture<>();
+        PlainActionFuture<String> secondFuture = new PlainActionFuture<>();
+        PlainActionFuture<String> thirdFuture = new PlainActionFuture<>();
+        flights.execute("key", first, firstFuture, () -> newTask(10), execution);
+        flights.execute("key", second, secondFuture, () -> newTask(11), execution);
+        flights.execute("key", third, thirdFuture, () -> newTask(12), execution);
+        assertThat(executions.size(), equalTo(1));
+        assertThat(flights.size(), equalTo(1));
+
+        // the callers report the progress of the execution
+        executionTasks.get(0).setTotalFields(4);
+        executionTasks.get(0).onFieldCompleted();
+        assertThat(first.getStatus(), equalTo(new FieldStatsTask.Status(-1, 0, 4, 1)));
+        assertThat(third.getStatus(), equalTo(first.getStatus()));
+
+        // cancelling a caller only detaches it
+        second.cancel("test");
+        expectThrows(TaskCancelledException.class, secondFuture::actionGet);
+        assertTrue(cancelled.isEmpty());
+
+        executions.get(0).onResponse("response");
+        assertThat(firstFuture.actionGet(), equalTo("response"));
+        assertThat(thirdFuture.actionGet(), equalTo("response"));
+        assertThat(released.size(), equalTo(1));
+        assertThat(flights.size(), equalTo(0));
+
+        // requests after the execution completed start a new one, which is cancelled with its last caller
+        FieldStatsTask fourth = newTask(4);
+        PlainActionFuture<String> fourthFuture = new PlainActionFuture<>();
+        flights.execute("key", fourth, fourthFuture, () -> newTask(13), execution);
+        assertThat(executions.size(), equalTo(2));
+        fourth.cancel("test");
+        expectThrows(TaskCancelledException.class, fourthFuture::actionGet);
+        assertThat(cancelled.size(), equalTo(1));
+        assertThat(cancelled.get(0).getId(), equalTo(13L));
+        assertThat(flights.size(), equalTo(0));
+        executions.get(1).onFailure(new TaskCancelledException("test"));
+        assertThat(released.size(), equalTo(2));
+    }
+
+    private static FieldStatsTask newTask(long id) {
+        return new FieldStatsTask(id, "transport", FieldStatsAction.NAME, "", TaskId.EMPTY_TASK_ID,
+            Collections.emptyMap());
+    }
+
+    public void testImmutableIndexMemo() throws Exception {
+        assertFalse(ImmutableIndexMemo.isImmutable(indexMetadata(Settings.EMPTY, 1)));
+        assertFalse(ImmutableIndexMemo.isImmutable(indexMetadata(
+            Settings.builder().put("index.blocks.read_only_allow_delete", true).build(), 1)));
+        assertTrue(ImmutableIndexMemo.isImmutable(indexMetadata(
+            Settings.builder().put("index.blocks.read_only", true).build(), 1)));
+        assertTrue(ImmutableIndexMemo.isImmutable(indexMetadata(
+            Settings.builder().put("index.store.type", "remote_snapshot").build(), 1)));
+
+        ImmutableIndexMemo memo = new ImmutableIndexMemo(new ByteSizeValue(1024 * 1024));
+        IndexMetadata blocked = indexMetadata(Settings.builder().put("index.blocks.write", true).build(), 1);
+        BytesReference shape = new BytesArray("shape");
+        ShardId shardId = new ShardId(blocked.getIndex(), 0);
+        Map<String, FieldStats<?>> stats = new HashMap<>();
+        stats.put("value", new FieldStats.Long(10, 10, 10, 10, true, true, 1L, 5L));
+        FieldStatsShardResponse shard = new FieldStatsShardResponse(shardId, stats);
+        // stats without the reader they were computed from can't be confirmed by the shard
+        memo.put(blocked, shape, shard);
+        assertNull(memo.get(blocked, 0, shape));
+
+        shard.setReader("allocation", 7);
+        memo.put(blocked, shape, shard);
+        FieldStatsShardResponse memoized = memo.get(blocked, 0, shape);
+        assertThat(memoized.getFieldStats().get("value").getMaxDoc(), equalTo(10L));
+        assertThat(memoized.getAllocationId(), equalTo("allocation"));
+        assertThat(memoized.getReaderVersion(), equalTo(7L));
+        assertNull(memo.get(blocked, 1, shape));
+        assertNull(memo.get(blocked, 0, new BytesArray("other")));
+        // any change to the metadata of the index, such as removing the block, is a new version
+        assertNull(memo.get(indexMetadata(Settings.builder().put("index.blocks.write", true).build(), 2), 0, shape));
+
+        IndexMetadata writable = indexMetadata(Settings.EMPTY, 3);
+        memo.put(writable, shape, new FieldStatsShardResponse(new ShardId(writable.getIndex(), 0), stats));
+        assertNull(memo.get(writable, 0, shape));
+    }
+
+    public void testFieldRanges() throws Exception {
+        IndexMetadata blocked = indexMetadata(Settings.builder().put("index.blocks.write", true).build(), 1);
+        Metadata metadata = Metadata.builder().put(blocked, false).build();
+        String[] indices = new String[] {"logs"};
+        IndexConstraint[] after = new IndexConstraint[] {new IndexConstraint("value", MAX, GT, "20")};
+        IndexConstraint[] before = new IndexConstraint[] {new IndexConstraint("value", MAX, LTE, "20")};
+        Map<String, FieldStats<?>> ranges = Collections.singletonMap("value",
+            new FieldStats.Long(10, 10, -1, -1, true, true, 5L, 10L));
+
+        // the ranges reported while the index was written to only grow, so they can't be used
+        FieldRangesMetadata written = FieldRangesMetadata.EMPTY.apply(metadata, Collections.singletonList(
+            new FieldRangesMetadata.ShardRanges(blocked.getIndex(), 0, 1, blocked.getSettingsVersion(), false,
+                false, ranges)));
+        assertFalse(written.index("uuid").isFinal(blocked));
+        assertThat(written.prune(metadata, indices, after).length, equalTo(1));
+
+        FieldRangesMetadata immutable = written.apply(metadata, Collections.singletonList(
+            new FieldRangesMetadata.ShardRanges(blocked.getIndex(), 0, 1, blocked.getSettingsVersion(), true,
+                false, ranges)));
+        assertTrue(immutable.index("uuid").isFinal(blocked));
+        assertThat(immutable.prune(metadata, indices, after).length, equalTo(0));
+        assertThat(immutable.prune(metadata, indices, before).length, equalTo(1));
+        // constraints on other fields can't be evaluated
+        assertThat(immutable.prune(metadata, indices,
+            new IndexConstraint[] {new IndexConstraint("other", MAX, GT, "20")}).length, equalTo(1));
+
+        BytesStreamOutput output = new BytesStreamOutput();
+        immutable.writeTo(output);
+        assertThat(new FieldRangesMetadata(output.bytes().streamInput()), equalTo(immutable));
+
+        // diffs only carry the indices whose ranges changed
+        output = new BytesStreamOutput();
+        immutable.diff(written).writeTo(output);
+        assertThat(FieldRangesMetadata.readDiffFrom(output.bytes().streamInput()).apply(written),
+            equalTo(immutable));
+        output = new BytesStreamOutput();
+        immutable.diff(immutable).writeTo(output);
+        BytesStreamOutput full = new BytesStreamOutput();
+        immutable.writeTo(full);
+        assertThat(output.bytes().length(), lessThan(full.bytes().length()));
+
+        // the ranges of deleted indices are dropped
+        assertNull(immutable.apply(Metadata.EMPTY_METADATA, Collections.emptyList()).index("uuid"));
+    }
+
+    public void testExcludedBackingIndices() throws Exception {
+        Metadata.Builder builder = Metadata.builder();
+        List<Index> backingIndices = new ArrayList<>();
+        for (int generation = 1; generation <= 5; generation++) {
+            IndexMetadata backingIndex = IndexMetadata.builder(".ds-logs-00000" + generation)
+                .settings(Settings.builder().put(IndexMetadata.SETTING_VERSION_CREATED, Version.CURRENT)
+                    .put(IndexMetadata.SETTING_INDEX_UUID, "uuid" + generation)
+                    .put("index.blocks.write", generation < 5))
+                .numberOfShards(1)
+                .numberOfReplicas(0)
+                .build();
+            builder.put(backingIndex, false);
+            backingIndices.add(backingIndex.getIndex());
+        }
+        Metadata metadata = builder.build();
+        // only the third backing index has final ranges, the ones before it are assumed to be older
+        FieldRangesMetadata ranges = FieldRangesMetadata.EMPTY.apply(metadata, Collections.singletonList(
+            new FieldRangesMetadata.ShardRanges(backingIndices.get(2), 0, 1, 1, true, false,
+                Collections.singletonMap("@timestamp", new FieldStats.Long(10, 10, -1, -1, true, true, 10L, 15L)))));
+
+        assertThat(ranges.excludedBackingIndices(metadata, backingIndices,
+            new IndexConstraint("@timestamp", MAX, GTE, "20")),
+            equalTo(Arrays.asList(".ds-logs-000001", ".ds-logs-000002", ".ds-logs-000003")));
+        assertThat(ranges.excludedBackingIndices(metadata, backingIndices,
+            new IndexConstraint("@timestamp", MIN, LTE, "5")),
+            equalTo(Arrays.asList(".ds-logs-000005", ".ds-logs-000004", ".ds-logs-000003")));
+        assertTrue(ranges.excludedBackingIndices(metadata, backingIndices,
+            new IndexConstraint("@timestamp", MAX, GTE, "12")).isEmpty());
+    }
+
+    public void testArchivedFieldStats() throws Exception {
+        IndexMetadata closed = IndexMetadata.builder(indexMetadata(Settings.EMPTY, 1))
+            .state(IndexMetadata.State.CLOSE).settingsVersion(2).build();
+        Map<String, FieldStats<?>> ranges = Collections.singletonMap("value",
+            new FieldStats.Long(10, 8, -1, -1, true, true, 5L, 10L));
+        FieldRangesMetadata.ShardRanges closing = new FieldRangesMetadata.ShardRanges(closed.getIndex(), 0, 1, -1,
+            true, true, ranges);
+
+        // ranges computed while closing are final for the closed index, whatever its settings version
+        FieldRangesMetadata.ShardRanges resolved = closing.resolve(closed);
+        assertTrue(resolved.isFinal());
+        assertThat(resolved.getSettingsVersion(), equalTo(2L));
+        assertNull(closing.resolve(indexMetadata(Settings.EMPTY, 2)));
+
+        Map<String, String> customData = ArchivedFieldStats.put(closed, resolved);
+        IndexMetadata archived = IndexMetadata.builder(closed)
+            .putCustom(ArchivedFieldStats.CUSTOM_KEY, customData).build();
+        assertNull(ArchivedFieldStats.put(archived, resolved));
+        Map<String, FieldStats<?>> stats = ArchivedFieldStats.get(archived);
+        assertThat(stats.get("value").getDocCount(), equalTo(8L));
+        assertThat(stats.get("value").getMaxValue(), equalTo(10L));
+
+        FieldStatsRequest request = new FieldStatsRequest("logs");
+        request.setFields(new String[] {"value", "other*"});
+        assertTrue(ArchivedFieldStats.canAnswer(request));
+        // patterns only match the archived fields of closed indices, open indices are asked for the others
+        assertThat(ArchivedFieldStats.select(stats, request, false).keySet(),
+            equalTo(Collections.singleton("value")));
+        assertNull(ArchivedFieldStats.select(stats, request, true));
+        // concrete fields that aren't archived are never left out, whether requested or constrained
+        request.setFields(new String[] {"value", "other"});
+        assertNull(ArchivedFieldStats.select(stats, request, false));
+        request.setFields(new String[] {"value"});
+        request.setIndexConstraints(new IndexConstraint[] {new IndexConstraint("other", MIN, GTE, "0")});
+        assertNull(ArchivedFieldStats.select(stats, request, false));
+        request.setIndexConstraints(new IndexConstraint[] {new IndexConstraint("value", MIN, GTE, "0")});
+        assertNotNull(ArchivedFieldStats.select(stats, request, false));
+        request.setStats(new String[] {PrefixDistribution.NAME});
+        assertFalse(ArchivedFieldStats.canAnswer(request));
+
+        // opening the index changes its settings, after which the archived stats are stale
+        IndexMetadata reopened = IndexMetadata.builder(archived).state(IndexMetadata.State.OPEN)
+            .settingsVersion(3).build();
+        assertNull(ArchivedFieldStats.get(reopened));
+        assertNull(ArchivedFieldStats.put(reopened, resolved));
+    }
+
+    public void testChangeToken() throws Exception {
+        Map<String, ChangeToken.IndexState> states = new HashMap<>();
+        states.put("uuid", new ChangeToken.IndexState("logs", 3, true, 42, true));
+        states.put("other", ChangeToken.IndexState.unknown("other", true));
+        ChangeToken token = ChangeToken.parse(new ChangeToken(states).encode());
+        assertThat(token.getIndices(), equalTo(states));
+        assertTrue(states.get("uuid").isSameAs(new ChangeToken.IndexState("logs", 3, true, 42, true)));
+        // immutable indices still change when they refresh or are force merged
+        assertFalse(states.get("uuid").isSameAs(new ChangeToken.IndexState("logs", 3, true, 43, true)));
+        assertFalse(states.get("other").isSameAs(states.get("other")));
+        expectThrows(IllegalArgumentException.class, () -> ChangeToken.parse("not a token"));
+
+        FieldStatsRequest request = new FieldStatsRequest();
+        request.setFields(new String[] {"value"});
+        request.setSince(token.encode());
+        assertNotNull(request.validate());
+        request.level("indices");
+        assertNull(request.validate());
+
+        // the readers of the shards of a mutable index, in shard order
+        ShardId shard0 = new ShardId("logs", "uuid", 0);
+        ShardId shard1 = new ShardId("logs", "uuid", 1);
+        List<FieldStatsShardResponse> shards = new ArrayList<>();
+        shards.add(shardResponse(shard1, "b", 7));
+        shards.add(shardResponse(shard0, "a", 4));
+        Long fingerprint = ChangeToken.fingerprint(shards);
+        assertNotNull(fingerprint);
+        assertThat(ChangeToken.fingerprint(new ArrayList<>(Arrays.asList(shardResponse(shard0, "a", 4),
+            shardResponse(shard1, "b", 7)))), equalTo(fingerprint));
+        assertThat(ChangeToken.fingerprint(new ArrayList<>(Arrays.asList(shardResponse(shard0, "a", 5),
+            shardResponse(shard1, "b", 7)))), not(equalTo(fingerprint)));
+        assertNull(ChangeToken.fingerprint(new ArrayList<>(Collections.singletonList(
+            new FieldStatsShardResponse(shard0, new HashMap<>())))));
+    }
+
+    public void testHasChanged() {
+        FieldStatsResponse before = fieldStatsResponse(new FieldStats.Long(10, 8, -1, -1, true, true, 1L, 10L));
+        // only the max value and the doc count are watched
+        assertFalse(TransportFieldStatsAction.hasChanged(before,
+            fieldStatsResponse(new FieldStats.Long(12, 8, -1, -1, true, true, 0L, 10L))));
+        assertTrue(TransportFieldStatsAction.hasChanged(before,
+            fieldStatsResponse(new FieldStats.Long(10, 9, -1, -1, true, true, 1L, 10L))));
+        assertTrue(TransportFieldStatsAction.hasChanged(before,
+            fieldStatsResponse(new FieldStats.Long(10, 8, -1, -1, true, true, 1L, 11L))));
+        assertTrue(TransportFieldStatsAction.hasChanged(before, new FieldStatsResponse(1, 1, 0,
+            Collections.emptyList(), Collections.singletonMap("logs", new HashMap<>()), new HashMap<>())));
+    }
+
+    private static FieldStatsResponse fieldStatsResponse(FieldStats<?> value) {
+        Map<String, FieldStats<?>> fields = new HashMap<>();
+        fields.put("value", value);
+        Map<String, Map<String, FieldStats<?>>> indices = new HashMap<>();
+        indices.put("logs", fields);
+        return new FieldStatsResponse(1, 1, 0, Collections.emptyList(), indices, new HashMap<>());
+    }
+
+    private static FieldStatsShardResponse shardResponse(ShardId shardId, String allocationId, long readerVersion) {
+        FieldStatsShardResponse response = new FieldStatsShardResponse(shardId, new HashMap<>());
+        response.setReader(allocationId, readerVersion);
+        return response;
+    }
+
+    private static IndexMetadata indexMetadata(Settings settings, long version) {
+        return IndexMetadata.builder("logs")
+            .settings(Settings.builder().put(settings).put(IndexMetadata.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(IndexMetadata.SETTING_INDEX_UUID, "uuid"))
+            .numberOfShards(1)
+            .numberOfReplicas(0)
+            .version(version)
+            .build();
+    }
+
     public void testFieldStatsBWC() throws Exception {
         int size = randomIntBetween(5, 20);
         Map<String, FieldStats<?> > stats = new HashMap<> ();
@@ -20,14 +20,35 @@ import static com.sematext.opensearch.fieldstats.IndexConstraint.Comparison.LTE;
 import static com.sematext.opensearch.fieldstats.IndexConstraint.Property.MAX;
 import static com.sematext.opensearch.fieldstats.IndexConstraint.Property.MIN;
 import static org.hamcrest.Matchers.containsString;
+import static org.opensearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import org.apache.lucene.tests.geo.GeoTestUtil;
 import org.apache.lucene.util.BytesRef;
+import org.opensearch.action.ActionRequestValidationException;
+import org.opensearch.action.search.CreatePitAction;
+import org.opensearch.action.search.CreatePitRequest;
+import org.opensearch.action.search.CreatePitResponse;
+import org.opensearch.action.search.DeletePitAction;
+import org.opensearch.action.search.DeletePitRequest;
+import org.opensearch.action.support.IndicesOptions;
+import org.opensearch.action.support.PlainActionFuture;
+import org.opensearch.cluster.block.ClusterBlockException;
+import org.opensearch.cluster.metadata.IndexMetadata;
+import org.opensearch.cluster.metadata.Metadata;
 import org.opensearch.common.io.stream.BytesStreamOutput;
 import org.opensearch.core.common.io.stream.StreamInput;
 import org.opensearch.common.joda.Joda;
 import org.opensearch.common.settings.Settings;
+import org.opensearch.common.time.DateFormatter;
+import org.opensearch.common.unit.TimeValue;
+import org.opensearch.core.common.breaker.CircuitBreaker;
+import org.opensearch.core.indices.breaker.CircuitBreakerService;
+import org.opensearch.core.xcontent.XContentBuilder;
 import org.opensearch.index.mapper.DateFieldMapper;
+import org.opensearch.index.query.QueryBuilders;
+import org.opensearch.index.shard.IndexShard;
+import org.opensearch.indices.IndexClosedException;
+import org.opensearch.indices.IndicesService;
 import org.opensearch.plugins.Plugin;
 import org.opensearch.test.OpenSearchSingleNodeTestCase;
 import org.opensearch.test.InternalSettingsPlugin;
@@ -35,15 +56,21 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import com.sematext.opensearch.plugin.FieldStatsPlugin;
 
@@ -53,6 +80,15 @@ public class FieldStatsTests extends OpenSearchSingleNodeTestCase {
     return pluginList(InternalSettingsPlugin.class, FieldStatsPlugin.class);
   }
 
+  @Override
+  protected Settings nodeSettings() {
+    return Settings.builder().put(super.nodeSettings())
+        .putList("fieldstats.ranges.fields", "timestamp")
+        .put("fieldstats.ranges.interval", "1s")
+        .put("fieldstats.probe.bloom_cache.size", "1mb")
+        .build();
+  }
+
   public void testByte() {
     testNumberRange("field1", "byte", 12, 18);
     testNumberRange("field1", "byte", -5, 5);
@@ -135,6 +171,142 @@ public class FieldStatsTests extends OpenSearchSingleNodeTestCase {
     }
   }
 
+  public void testPrefixDistribution() {
+    createIndex("test", Settings.EMPTY, "test",
+        "field_index", makeType("keyword", true, false, false),
+        "field_dv", makeType("keyword", true, true, false));
+    for (String value : new String[] {"a1", "a2", "ab", "b1", "c"}) {
+      client().prepareIndex("test").setSource("field_index", value, "field_dv", value).get();
+    }
+    client().admin().indices().prepareForceMerge("test").setMaxNumSegments(1).get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats()
+        .setFields("field_index", "field_dv")
+        .setStats(PrefixDistribution.NAME)
+        .get();
+    for (String field : new String[] {"field_index", "field_dv"}) {
+      PrefixDistribution distribution =
+          ((FieldStats.Text) result.getAllFieldStats().get(field)).getPrefixDistribution();
+      assertNotNull(distribution);
+      assertEquals(1, distribution.getPrefixLength());
+      assertEquals(3, distribution.getBuckets().size());
+      assertEquals(Long.valueOf(3), distribution.getBuckets().get(new BytesRef("a")));
+      assertEquals(Long.valueOf(1), distribution.getBuckets().get(new BytesRef("b")));
+      assertEquals(Long.valueOf(1), distribution.getBuckets().get(new BytesRef("c")));
+      assertEquals(0, distribution.getOtherTermCount());
+    }
+    assertTrue(((FieldStats.Text) result.getAllFieldStats().get("field_dv")).getPrefixDistribution().isExact());
+
+    result = prepareFieldStats()
+        .setFields("field_dv")
+        .setStats(PrefixDistribution.NAME)
+        .setPrefixLength(2)
+        .get();
+    PrefixDistribution distribution =
+        ((FieldStats.Text) result.getAllFieldStats().get("field_dv")).getPrefixDistribution();
+    assertEquals(5, distribution.getBuckets().size());
+    assertEquals(Long.valueOf(1), distribution.getBuckets().get(new BytesRef("c")));
+
+    result = prepareFieldStats().setFields("field_dv").get();
+    assertNull(((FieldStats.Text) result.getAllFieldStats().get("field_dv")).getPrefixDistribution());
+  }
+
+  public void testPrefixUpperBound() {
+    assertEquals(new BytesRef("b"), PrefixDistribution.upperBound(new BytesRef("a"), 1));
+    assertEquals(new BytesRef("ac"), PrefixDistribution.upperBound(new BytesRef("ab"), 2));
+    assertEquals(new BytesRef(new byte[] {'a', 0}), PrefixDistribution.upperBound(new BytesRef("a"), 2));
+    assertEquals(new BytesRef("b"), PrefixDistribution.upperBound(new BytesRef(new byte[] {'a', (byte) 0xFF}), 2));
+    assertNull(PrefixDistribution.upperBound(new BytesRef(new byte[] {(byte) 0xFF}), 1));
+    assertEquals(new BytesRef("\u00e9\u0000"), PrefixDistribution.upperBound(new BytesRef("\u00e9"), 2));
+  }
+
+  public void testPrefixCodePoints() {
+    assertEquals(new BytesRef("a"), PrefixDistribution.prefix(new BytesRef("abc"), 1));
+    assertEquals(new BytesRef("\u00e9"), PrefixDistribution.prefix(new BytesRef("\u00e9t\u00e9"), 1));
+    assertEquals(new BytesRef("a\u20ac"), PrefixDistribution.prefix(new BytesRef("a\u20acb"), 2));
+    assertEquals(new BytesRef("\ud83d\ude00"), PrefixDistribution.prefix(new BytesRef("\ud83d\ude00\ud83d\ude01"), 1));
+    assertEquals(new BytesRef("\u00e9"), PrefixDistribution.prefix(new BytesRef("\u00e9"), 3));
+  }
+
+  public void testPrefixDistributionExactness() {
+    PrefixDistribution distribution = new PrefixDistribution(1);
+    PrefixDistribution a = new PrefixDistribution(1);
+    a.getBuckets().put(new BytesRef("a"), 2L);
+    distribution.accumulate(a);
+    assertTrue(distribution.isExact());
+    PrefixDistribution b = new PrefixDistribution(1);
+    b.getBuckets().put(new BytesRef("b"), 1L);
+    distribution.accumulate(b);
+    assertTrue(distribution.isExact());
+    PrefixDistribution otherA = new PrefixDistribution(1);
+    otherA.getBuckets().put(new BytesRef("a"), 1L);
+    distribution.accumulate(otherA);
+    assertFalse(distribution.isExact());
+    assertEquals(Long.valueOf(3), distribution.getBuckets().get(new BytesRef("a")));
+  }
+
+  public void testDiskUsage() {
+    createIndex("test", Settings.builder().put("index.number_of_shards", 2).build(), "test",
+        "keyword", makeType("keyword", true, true, false),
+        "text", "type=text",
+        "number", makeType("long", true, false, false));
+    for (int i = 0; i < 100; i++) {
+      client().prepareIndex("test").setSource("keyword", "value" + i, "text", "some text " + i, "number", i).get();
+    }
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats()
+        .setFields("keyword", "text", "number")
+        .setStats(DiskUsage.NAME)
+        .get();
+    DiskUsage keyword = result.getAllFieldStats().get("keyword").getDiskUsage();
+    assertTrue(keyword.getTermsBytes() > 0);
+    assertTrue(keyword.getDocValuesBytes() > 0);
+    assertEquals(0, keyword.getPointsBytes());
+    DiskUsage text = result.getAllFieldStats().get("text").getDiskUsage();
+    assertTrue(text.getTermsBytes() > 0);
+    assertTrue(text.getNormsBytes() > 0);
+    assertEquals(0, text.getDocValuesBytes());
+    DiskUsage number = result.getAllFieldStats().get("number").getDiskUsage();
+    assertTrue(number.getPointsBytes() > 0);
+    assertEquals(number.getPointsBytes(), number.getTotalBytes());
+
+    result = prepareFieldStats().setFields("keyword").get();
+    assertNull(result.getAllFieldStats().get("keyword").getDiskUsage());
+  }
+
+  public void testLengthHistogram() {
+    createIndex("test", Settings.builder().put("index.number_of_shards", 2).build(), "test",
+        "text", "type=text",
+        "keyword", makeType("keyword", true, true, false));
+    for (String value : new String[] {"a", "a b", "a b c", "c b a"}) {
+      client().prepareIndex("test").setSource("text", value, "keyword", value).get();
+    }
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats()
+        .setFields("text", "keyword")
+        .setStats(LengthHistogram.NAME)
+        .get();
+    FieldStats.Text text = (FieldStats.Text) result.getAllFieldStats().get("text");
+    assertEquals(2.25, text.getAvgLength(), 0.0);
+    LengthHistogram histogram = text.getLengthHistogram();
+    assertNotNull(histogram);
+    assertFalse(histogram.isSampled());
+    assertEquals(1, histogram.getCount(1));
+    assertEquals(1, histogram.getCount(2));
+    assertEquals(2, histogram.getCount(3));
+    assertEquals(0, histogram.getCount(4));
+    // keyword fields have no norms
+    FieldStats.Text keyword = (FieldStats.Text) result.getAllFieldStats().get("keyword");
+    assertEquals(1.0, keyword.getAvgLength(), 0.0);
+    assertNull(keyword.getLengthHistogram());
+
+    result = prepareFieldStats().setFields("text").get();
+    assertNull(((FieldStats.Text) result.getAllFieldStats().get("text")).getLengthHistogram());
+  }
+
   public void testDouble() {
     createIndex("test", Settings.builder().put("index.number_of_shards", 4).build(), "test",
         "field_index", makeType("double", true, false, false),
@@ -236,6 +408,691 @@ public class FieldStatsTests extends OpenSearchSingleNodeTestCase {
     }
   }
 
+  public void testIp() throws UnknownHostException {
+    createIndex("test", Settings.EMPTY, "test",
+        "field_index", makeType("ip", true, false, false),
+        "field_dv", makeType("ip", false, true, false));
+    for (String value : new String[] {"10.0.0.1", "192.168.1.1", "::1", "10.0.0.2"}) {
+      client().prepareIndex("test").setSource("field_index", value, "field_dv", value).get();
+    }
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("field_index", "field_dv").get();
+    FieldStats<?> stats = result.getAllFieldStats().get("field_index");
+    assertEquals("ip", stats.getDisplayType());
+    assertEquals(4L, stats.getDocCount());
+    assertEquals(InetAddress.getByName("::1"), stats.getMinValue());
+    assertEquals(InetAddress.getByName("192.168.1.1"), stats.getMaxValue());
+    assertEquals("192.168.1.1", stats.getMaxValueAsString());
+    stats = result.getAllFieldStats().get("field_dv");
+    assertEquals("ip", stats.getDisplayType());
+    assertEquals(0L, stats.getDocCount());
+    assertNull(stats.getMinValue());
+  }
+
+  public void testUnsignedLong() {
+    createIndex("test", Settings.EMPTY, "test", "field", "type=unsigned_long");
+    for (String value : new String[] {"0", "9223372036854775808", "18446744073709551615"}) {
+      client().prepareIndex("test").setSource("field", value).get();
+    }
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStats<?> stats = prepareFieldStats().setFields("field").get().getAllFieldStats().get("field");
+    assertEquals("unsigned_long", stats.getDisplayType());
+    assertEquals(3L, stats.getDocCount());
+    assertEquals(BigInteger.ZERO, stats.getMinValue());
+    assertEquals(new BigInteger("18446744073709551615"), stats.getMaxValue());
+    assertEquals("18446744073709551615", stats.getMaxValueAsString());
+  }
+
+  public void testDateNanos() {
+    createIndex("test", Settings.EMPTY, "test", "field", "type=date_nanos");
+    client().prepareIndex("test").setSource("field", "2020-01-01T00:00:00.123456789Z").get();
+    client().prepareIndex("test").setSource("field", "2020-01-01T00:00:00.123456790Z").get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStats<?> stats = prepareFieldStats().setFields("field").get().getAllFieldStats().get("field");
+    assertEquals("date_nanos", stats.getDisplayType());
+    long epochNanos = new DateTime(2020, 1, 1, 0, 0, DateTimeZone.UTC).getMillis() * 1_000_000L;
+    assertEquals(epochNanos + 123456789L, stats.getMinValue());
+    assertEquals(epochNanos + 123456790L, stats.getMaxValue());
+    assertEquals("2020-01-01T00:00:00.123456789Z", stats.getMinValueAsString());
+  }
+
+  public void testDateAndDateNanos() {
+    createIndex("millis", Settings.EMPTY, "test", "timestamp", "type=date");
+    createIndex("nanos", Settings.EMPTY, "test", "timestamp", "type=date_nanos");
+    client().prepareIndex("millis").setSource("timestamp", "2020-01-01T00:00:00.000Z").get();
+    client().prepareIndex("nanos").setSource("timestamp", "2020-01-02T00:00:00.123456789Z").get();
+    client().admin().indices().prepareRefresh().get();
+
+    // like searches, the cluster level stats treat both types alike, at millisecond resolution
+    FieldStatsResponse result = prepareFieldStats().setFields("timestamp").get();
+    assertTrue(result.getConflicts().isEmpty());
+    FieldStats<?> stats = result.getAllFieldStats().get("timestamp");
+    assertEquals("date", stats.getDisplayType());
+    assertEquals(2L, stats.getDocCount());
+    long epochMillis = new DateTime(2020, 1, 1, 0, 0, DateTimeZone.UTC).getMillis();
+    assertEquals(epochMillis, stats.getMinValue());
+    assertEquals(epochMillis + 86_400_000L + 123L, stats.getMaxValue());
+
+    result = prepareFieldStats().setFields("timestamp")
+        .setIndexContraints(new IndexConstraint("timestamp", MAX, GTE, "2020-01-01T12:00:00.000Z")).get();
+    assertEquals(epochMillis + 86_400_000L + 123L, result.getAllFieldStats().get("timestamp").getMaxValue());
+
+    result = prepareFieldStats().setFields("timestamp").setLevel("indices").get();
+    assertEquals("date", result.getIndicesMergedFieldStats().get("millis").get("timestamp").getDisplayType());
+    assertEquals("date_nanos", result.getIndicesMergedFieldStats().get("nanos").get("timestamp").getDisplayType());
+  }
+
+  public void testBoolean() {
+    createIndex("test", Settings.EMPTY, "test", "field", "type=boolean", "field_true", "type=boolean");
+    client().prepareIndex("test").setSource("field", true, "field_true", true).get();
+    client().prepareIndex("test").setSource("field", false, "field_true", true).get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("field", "field_true").get();
+    FieldStats<?> stats = result.getAllFieldStats().get("field");
+    assertEquals("boolean", stats.getDisplayType());
+    assertEquals(2L, stats.getDocCount());
+    assertEquals(false, stats.getMinValue());
+    assertEquals(true, stats.getMaxValue());
+    stats = result.getAllFieldStats().get("field_true");
+    assertEquals(true, stats.getMinValue());
+    assertEquals(true, stats.getMaxValue());
+  }
+
+  public void testFlatObjectKeys() throws IOException {
+    createIndex("test", Settings.EMPTY, "test", "attrs", "type=flat_object");
+    client().prepareIndex("test").setSource(jsonBuilder().startObject()
+        .startObject("attrs").field("color", "red").startObject("size").field("name", "m").endObject().endObject()
+        .endObject()).get();
+    client().prepareIndex("test").setSource(jsonBuilder().startObject()
+        .startObject("attrs").field("color", "blue").endObject()
+        .endObject()).get();
+    client().prepareIndex("test").setSource(jsonBuilder().startObject()
+        .startObject("attrs").field("color", "green").endObject()
+        .endObject()).get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("attrs.*").get();
+    assertNull(result.getAllFieldStats().get("attrs.color"));
+
+    result = prepareFieldStats().setFields("attrs.*").setExpandFlatObjects(true).get();
+    FieldStats<?> stats = result.getAllFieldStats().get("attrs.color");
+    assertEquals("string", stats.getDisplayType());
+    assertEquals(3L, stats.getDocCount());
+    assertEquals(3L, stats.getSumDocFreq());
+    assertEquals(0L, stats.getMissing());
+    assertEquals("blue", stats.getMinValueAsString());
+    assertEquals("red", stats.getMaxValueAsString());
+    stats = result.getAllFieldStats().get("attrs.size.name");
+    assertEquals(1L, stats.getDocCount());
+    assertEquals(2L, stats.getMissing());
+    assertEquals("m", stats.getMinValueAsString());
+
+    result = prepareFieldStats().setFields("attrs").setExpandFlatObjects(true).get();
+    assertNotNull(result.getAllFieldStats().get("attrs.color"));
+    assertNotNull(result.getAllFieldStats().get("attrs.size.name"));
+
+    result = prepareFieldStats().setFields("attrs.size.*").setExpandFlatObjects(true).get();
+    assertNull(result.getAllFieldStats().get("attrs.color"));
+    assertNotNull(result.getAllFieldStats().get("attrs.size.name"));
+
+    result = prepareFieldStats().setFields("attrs.color").setExpandFlatObjects(true)
+        .setIndexContraints(new IndexConstraint("attrs.color", MIN, GTE, "c")).setLevel("indices").get();
+    assertEquals(0, result.getIndicesMergedFieldStats().size());
+  }
+
+  public void testQuery() {
+    createIndex("test", Settings.EMPTY, "test", "tenant", "type=keyword", "timestamp", "type=date",
+        "host", "type=keyword");
+    createIndex("test-sorted", Settings.builder().put("index.sort.field", "timestamp").build(), "test",
+        "tenant", "type=keyword", "timestamp", "type=date", "host", "type=keyword");
+    for (String index : new String[] {"test", "test-sorted"}) {
+      client().prepareIndex(index).setSource("tenant", "a", "timestamp", 10L, "host", "h1").get();
+      client().prepareIndex(index).setSource("tenant", "b", "timestamp", 5L, "host", "h0").get();
+      client().prepareIndex(index).setSource("tenant", "a", "timestamp", 30L, "host", "h3").get();
+      client().prepareIndex(index).setSource("tenant", "b", "timestamp", 50L, "host", "h9").get();
+      client().prepareIndex(index).setSource("tenant", "a").get();
+    }
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("timestamp", "host")
+        .setQuery(QueryBuilders.termQuery("tenant", "a")).setLevel("indices").get();
+    for (String index : new String[] {"test", "test-sorted"}) {
+      FieldStats<?> stats = result.getIndicesMergedFieldStats().get(index).get("timestamp");
+      assertEquals(2L, stats.getDocCount());
+      assertEquals(1L, stats.getMissing());
+      assertEquals(-1L, stats.getSumTotalTermFreq());
+      assertEquals(10L, stats.getMinValue());
+      assertEquals(30L, stats.getMaxValue());
+      assertFalse(stats.isApproximate());
+      stats = result.getIndicesMergedFieldStats().get(index).get("host");
+      assertEquals(2L, stats.getDocCount());
+      assertEquals("h1", stats.getMinValueAsString());
+      assertEquals("h3", stats.getMaxValueAsString());
+    }
+
+    result = prepareFieldStats().setFields("timestamp")
+        .setQuery(QueryBuilders.termQuery("tenant", "c")).get();
+    assertEquals(0L, result.getAllFieldStats().get("timestamp").getDocCount());
+    assertNull(result.getAllFieldStats().get("timestamp").getMinValue());
+    // the matching documents are accounted for in the request breaker while the shards are read
+    CircuitBreaker breaker = getInstanceFromNode(CircuitBreakerService.class).getBreaker(CircuitBreaker.REQUEST);
+    assertEquals(0L, breaker.getUsed());
+
+    // when they don't fit, doc counts are still exact but the bounds are those of all documents
+    client().admin().cluster().prepareUpdateSettings()
+        .setTransientSettings(Settings.builder().put("indices.breaker.request.limit", "1b")).get();
+    try {
+      result = prepareFieldStats().setFields("timestamp").setIndices("test")
+          .setQuery(QueryBuilders.termQuery("tenant", "a")).get();
+      FieldStats<?> stats = result.getAllFieldStats().get("timestamp");
+      assertEquals(2L, stats.getDocCount());
+      assertEquals(5L, stats.getMinValue());
+      assertEquals(50L, stats.getMaxValue());
+      assertTrue(stats.isApproximate());
+    } finally {
+      client().admin().cluster().prepareUpdateSettings()
+          .setTransientSettings(Settings.builder().putNull("indices.breaker.request.limit")).get();
+    }
+    assertEquals(0L, breaker.getUsed());
+
+    client().admin().indices().prepareAliases()
+        .addAlias("test", "tenant-b", QueryBuilders.termQuery("tenant", "b")).get();
+    result = prepareFieldStats().setIndices("tenant-b").setFields("timestamp").get();
+    assertEquals(2L, result.getAllFieldStats().get("timestamp").getDocCount());
+    assertEquals(5L, result.getAllFieldStats().get("timestamp").getMinValue());
+    assertEquals(50L, result.getAllFieldStats().get("timestamp").getMaxValue());
+
+    result = prepareFieldStats().setIndices("tenant-b").setFields("timestamp")
+        .setQuery(QueryBuilders.rangeQuery("timestamp").lt(20)).get();
+    assertEquals(1L, result.getAllFieldStats().get("timestamp").getDocCount());
+    assertEquals(5L, result.getAllFieldStats().get("timestamp").getMaxValue());
+
+    // segments can't be filtered, and would show the documents the alias hides
+    IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+        () -> prepareFieldStats().setIndices("tenant-b").setFields("timestamp").setLevel("segments").get());
+    assertThat(e.getMessage(), containsString("filtered aliases aren't supported with level [segments]"));
+    result = prepareFieldStats().setIndices("tenant-b").setFields("timestamp").setLevel("shards").get();
+    assertEquals(2L, result.getEntries().get(0).getFieldStats().get("timestamp").getDocCount());
+  }
+
+  public void testProbe() {
+    createIndex("test1", Settings.EMPTY, "test", "trace_id", "type=keyword", "value", "type=long");
+    createIndex("test2", Settings.EMPTY, "test", "trace_id", "type=keyword", "value", "type=long");
+    createIndex("test3", Settings.EMPTY, "test", "value", "type=long");
+    client().prepareIndex("test1").setSource("trace_id", "abc", "value", 1).get();
+    client().prepareIndex("test1").setSource("trace_id", "abc", "value", 2).get();
+    client().prepareIndex("test2").setSource("trace_id", "def", "value", 3).get();
+    client().prepareIndex("test3").setSource("value", 4).get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats()
+        .setProbes(Collections.singletonMap("trace_id", "abc")).setLevel("indices").get();
+    assertEquals(Collections.singleton("test1"), result.getIndicesProbes().keySet());
+    assertEquals(Long.valueOf(2), result.getIndicesProbes().get("test1").get("trace_id"));
+    assertEquals(Collections.singleton("test1"), result.getIndicesMergedFieldStats().keySet());
+    assertTrue(result.getIndicesMergedFieldStats().get("test1").isEmpty());
+
+    result = prepareFieldStats().setFields("value")
+        .setProbes(Collections.singletonMap("trace_id", "def")).setLevel("indices").get();
+    assertEquals(Collections.singleton("test2"), result.getIndicesProbes().keySet());
+    assertEquals(3, result.getIndicesMergedFieldStats().size());
+
+    result = prepareFieldStats().setProbes(Collections.singletonMap("trace_id", "xyz")).get();
+    assertTrue(result.getIndicesProbes().isEmpty());
+    assertTrue(result.getIndicesMergedFieldStats().isEmpty());
+
+    result = prepareFieldStats().setProbes(Collections.singletonMap("value", "1")).get();
+    assertEquals(3, result.getFailedShards());
+
+    client().prepareIndex("test2").setId("deleted").setSource("trace_id", "ghi", "value", 5).get();
+    client().prepareIndex("test2").setSource("trace_id", "jkl", "value", 6).get();
+    client().admin().indices().prepareRefresh().get();
+    client().prepareDelete("test2", "deleted").get();
+    client().admin().indices().prepareRefresh().get();
+    result = prepareFieldStats().setProbes(Collections.singletonMap("trace_id", "ghi")).setLevel("indices").get();
+    assertTrue(result.getIndicesProbes().isEmpty());
+    result = prepareFieldStats().setProbes(Collections.singletonMap("trace_id", "jkl")).setLevel("indices").get();
+    assertEquals(Long.valueOf(1), result.getIndicesProbes().get("test2").get("trace_id"));
+  }
+
+  public void testShardsAndSegmentsLevel() {
+    createIndex("test", Settings.builder().put("index.number_of_shards", 2).build(), "test", "value", "type=long");
+    client().prepareIndex("test").setId("1").setSource("value", 1).setRouting("a").get();
+    client().admin().indices().prepareRefresh().get();
+    client().prepareIndex("test").setId("2").setSource("value", 2).setRouting("a").get();
+    client().prepareIndex("test").setId("3").setSource("value", 3).setRouting("a").get();
+    client().admin().indices().prepareRefresh().get();
+    client().prepareDelete("test", "2").setRouting("a").get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("shards").get();
+    assertEquals(2, result.getTotalEntries());
+    assertEquals(2, result.getEntries().size());
+    assertTrue(result.getIndicesMergedFieldStats().isEmpty());
+    ShardFieldStats first = result.getEntries().get(0);
+    ShardFieldStats second = result.getEntries().get(1);
+    assertEquals(0, first.getShard());
+    assertEquals(1, second.getShard());
+    ShardFieldStats routed = first.getNumDocs() > 0 ? first : second;
+    assertEquals(2L, routed.getNumDocs());
+    assertEquals(1L, routed.getDeletedDocs());
+    assertEquals(2, routed.getSegmentCount());
+    assertEquals(1L, routed.getFieldStats().get("value").getMinValue());
+    assertEquals(3L, routed.getFieldStats().get("value").getMaxValue());
+
+    result = prepareFieldStats().setFields("value").setLevel("segments").get();
+    assertEquals(2, result.getTotalEntries());
+    assertEquals("_0", result.getEntries().get(0).getSegment());
+    assertEquals(0L, result.getEntries().get(0).getGeneration());
+    assertEquals(1L, result.getEntries().get(0).getFieldStats().get("value").getMaxValue());
+    assertEquals(1L, result.getEntries().get(1).getGeneration());
+    assertEquals(1L, result.getEntries().get(1).getDeletedDocs());
+    assertEquals(2L, result.getEntries().get(1).getFieldStats().get("value").getMinValue());
+
+    result = prepareFieldStats().setFields("value").setLevel("segments").setFrom(1).setSize(5).get();
+    assertEquals(2, result.getTotalEntries());
+    assertEquals(1, result.getEntries().size());
+    assertEquals(1L, result.getEntries().get(0).getGeneration());
+
+    result = prepareFieldStats().setFields("value").setLevel("segments")
+        .setIndexContraints(new IndexConstraint("value", MAX, GTE, "2")).get();
+    assertEquals(1, result.getTotalEntries());
+    assertEquals(1L, result.getEntries().get(0).getGeneration());
+  }
+
+  public void testSegmentsPaging() {
+    createIndex("test", Settings.builder().put("index.number_of_shards", 1).put("index.merge.enabled", false)
+        .build(), "test", "value", "type=long");
+    for (int i = 1; i <= 5; i++) {
+      client().prepareIndex("test").setId(Integer.toString(i)).setSource("value", i).get();
+      client().admin().indices().prepareRefresh().get();
+    }
+
+    // the total counts the segments of every page, not only the ones each shard returns
+    List<Long> generations = new ArrayList<>();
+    for (int from = 0; from < 5; from += 2) {
+      FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("segments")
+          .setFrom(from).setSize(2).get();
+      assertEquals(5, result.getTotalEntries());
+      assertEquals(Math.min(2, 5 - from), result.getEntries().size());
+      for (ShardFieldStats entry : result.getEntries()) {
+        generations.add(entry.getGeneration());
+      }
+    }
+    assertEquals(5, generations.size());
+    assertEquals(5, new HashSet<>(generations).size());
+
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("segments").setSize(2)
+        .setIndexContraints(new IndexConstraint("value", MIN, GTE, "3")).get();
+    assertEquals(3, result.getTotalEntries());
+    assertEquals(2, result.getEntries().size());
+    assertEquals(3L, result.getEntries().get(0).getFieldStats().get("value").getMinValue());
+    assertEquals(4L, result.getEntries().get(1).getFieldStats().get("value").getMinValue());
+    result = prepareFieldStats().setFields("value").setLevel("segments").setFrom(2).setSize(2)
+        .setIndexContraints(new IndexConstraint("value", MIN, GTE, "3")).get();
+    assertEquals(3, result.getTotalEntries());
+    assertEquals(1, result.getEntries().size());
+    assertEquals(5L, result.getEntries().get(0).getFieldStats().get("value").getMinValue());
+  }
+
+  public void testTimeout() {
+    createIndex("test", Settings.builder().put("index.number_of_shards", 2).build(), "test",
+        "keyword", makeType("keyword", true, true, false));
+    client().prepareIndex("test").setSource("keyword", "value").get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats()
+        .setFields("keyword")
+        .setStats(PrefixDistribution.NAME)
+        .setTimeout(TimeValue.timeValueMinutes(1))
+        .get();
+    assertFalse(result.isTimedOut());
+    assertEquals(2, result.getSuccessfulShards());
+    assertNotNull(((FieldStats.Text) result.getAllFieldStats().get("keyword")).getPrefixDistribution());
+  }
+
+  public void testHedge() {
+    createIndex("test", Settings.builder().put("index.number_of_shards", 2).build(), "test",
+        "value", "type=long");
+    client().prepareIndex("test").setSource("value", 1).get();
+    client().admin().indices().prepareRefresh().get();
+
+    // without replicas there is no other copy to hedge to
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setHedge(true).get();
+    assertEquals(2, result.getSuccessfulShards());
+    assertEquals(0, result.getHedgedShards());
+    assertEquals(1L, result.getAllFieldStats().get("value").getMinValue());
+  }
+
+  public void testImmutableIndexMemo() {
+    createIndex("old", Settings.builder().put("index.number_of_shards", 2).build(), "test", "value", "type=long");
+    createIndex("new", Settings.EMPTY, "test", "value", "type=long");
+    client().prepareIndex("old").setId("1").setSource("value", 1).get();
+    client().prepareIndex("old").setId("2").setSource("value", 2).get();
+    client().prepareIndex("new").setId("1").setSource("value", 3).get();
+    client().admin().indices().prepareRefresh().get();
+    client().admin().indices().prepareUpdateSettings("old")
+        .setSettings(Settings.builder().put("index.blocks.write", true)).get();
+
+    for (int i = 0; i < 2; i++) {
+      // the first request memoizes the stats of the old shards, which confirm them for the second
+      FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("indices").get();
+      assertEquals(3, result.getTotalShards());
+      assertEquals(3, result.getSuccessfulShards());
+      assertEquals(2L, result.getIndicesMergedFieldStats().get("old").get("value").getDocCount());
+      assertEquals(2L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxValue());
+      assertEquals(1L, result.getIndicesMergedFieldStats().get("new").get("value").getDocCount());
+
+      result = prepareFieldStats().setFields("value").get();
+      assertEquals(3L, result.getAllFieldStats().get("value").getDocCount());
+    }
+
+    // removing the block changes the metadata of the index, which drops its memoized stats
+    client().admin().indices().prepareUpdateSettings("old")
+        .setSettings(Settings.builder().put("index.blocks.write", false)).get();
+    client().prepareIndex("old").setId("3").setSource("value", 5).get();
+    client().admin().indices().prepareRefresh().get();
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("indices").get();
+    assertEquals(3L, result.getIndicesMergedFieldStats().get("old").get("value").getDocCount());
+    assertEquals(5L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxValue());
+  }
+
+  public void testImmutableIndexMemoAfterBlock() {
+    createIndex("old", Settings.builder().put("index.refresh_interval", -1).build(), "test", "value", "type=long");
+    client().prepareIndex("old").setId("1").setSource("value", 1).get();
+    client().prepareIndex("old").setId("2").setSource("value", 2).get();
+    client().admin().indices().prepareRefresh("old").get();
+    client().prepareDelete("old", "2").get();
+    client().prepareIndex("old").setId("3").setSource("value", 3).get();
+    client().admin().indices().prepareUpdateSettings("old")
+        .setSettings(Settings.builder().put("index.blocks.write", true)).get();
+
+    for (int i = 0; i < 2; i++) {
+      FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("indices").get();
+      assertEquals(2L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxDoc());
+      assertEquals(2L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxValue());
+    }
+
+    // the delete and the document indexed before the block show up at the next refresh
+    client().admin().indices().prepareRefresh("old").get();
+    for (int i = 0; i < 2; i++) {
+      FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("indices").get();
+      assertEquals(3L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxDoc());
+      assertEquals(3L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxValue());
+    }
+
+    // force merges are allowed under the block, and drop the deleted document
+    client().admin().indices().prepareForceMerge("old").setMaxNumSegments(1).get();
+    client().admin().indices().prepareRefresh("old").get();
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("indices").get();
+    assertEquals(2L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxDoc());
+    assertEquals(2L, result.getIndicesMergedFieldStats().get("old").get("value").getDocCount());
+  }
+
+  public void testSegmentStatsCache() throws Exception {
+    createIndex("test", Settings.EMPTY, "test", "value", "type=long", "keyword",
+        makeType("keyword", true, true, false));
+    client().prepareIndex("test").setId("1").setSource("value", 1, "keyword", "a").get();
+    client().admin().indices().prepareRefresh().get();
+    client().prepareIndex("test").setId("2").setSource("value", 3, "keyword", "b").get();
+    client().admin().indices().prepareRefresh().get();
+
+    for (int i = 0; i < 2; i++) {
+      // the first request caches the stats of both segments, the second merges them from the cache
+      FieldStatsResponse result = prepareFieldStats().setFields("value", "keyword")
+          .setStats(PrefixDistribution.NAME).get();
+      assertEquals(2L, result.getAllFieldStats().get("value").getDocCount());
+      assertEquals(1L, result.getAllFieldStats().get("value").getMinValue());
+      assertEquals(3L, result.getAllFieldStats().get("value").getMaxValue());
+      assertEquals(new BytesRef("b"), result.getAllFieldStats().get("keyword").getMaxValue());
+      assertNotNull(((FieldStats.Text) result.getAllFieldStats().get("keyword")).getPrefixDistribution());
+    }
+
+    // only the new segment is read
+    client().prepareIndex("test").setId("3").setSource("value", 5, "keyword", "c").get();
+    client().admin().indices().prepareRefresh().get();
+    FieldStatsResponse result = prepareFieldStats().setFields("value").get();
+    assertEquals(3L, result.getAllFieldStats().get("value").getDocCount());
+    assertEquals(5L, result.getAllFieldStats().get("value").getMaxValue());
+
+    // closing the shard writes the stats of its segments next to it, which are read back when it starts again
+    client().admin().indices().prepareClose("test").get();
+    client().admin().indices().prepareOpen("test").get();
+    ensureGreen("test");
+    IndexShard shard = getInstanceFromNode(IndicesService.class).indexServiceSafe(resolveIndex("test")).getShard(0);
+    // the file is written in the background
+    assertBusy(() -> assertTrue(Files.exists(shard.shardPath().getDataPath().resolve(SegmentStatsCache.FILE_NAME))));
+    result = prepareFieldStats().setFields("value").get();
+    assertEquals(3L, result.getAllFieldStats().get("value").getDocCount());
+    assertEquals(1L, result.getAllFieldStats().get("value").getMinValue());
+    assertEquals(5L, result.getAllFieldStats().get("value").getMaxValue());
+    assertEquals(result.getAllFieldStats().get("value").getDocCount(),
+        prepareFieldStats().setFields("value").setUseCache(false).get().getAllFieldStats().get("value").getDocCount());
+  }
+
+  public void testFieldRanges() throws Exception {
+    createIndex("old", Settings.EMPTY, "test", "timestamp", "type=date");
+    createIndex("new", Settings.EMPTY, "test", "timestamp", "type=date");
+    client().prepareIndex("old").setId("1").setSource("timestamp", "2024-01-01").get();
+    client().prepareIndex("new").setId("1").setSource("timestamp", "2024-07-01").get();
+    client().admin().indices().prepareRefresh().get();
+    client().admin().indices().prepareUpdateSettings("old")
+        .setSettings(Settings.builder().put("index.blocks.write", true)).get();
+
+    assertBusy(() -> {
+      Metadata metadata = client().admin().cluster().prepareState().get().getState().metadata();
+      IndexMetadata old = metadata.index("old");
+      FieldRangesMetadata.IndexRanges ranges = FieldRangesMetadata.get(metadata).index(old.getIndexUUID());
+      assertNotNull(ranges);
+      assertTrue(ranges.isFinal(old));
+    });
+    // the ranges of indices that are still written to aren't published
+    Metadata metadata = client().admin().cluster().prepareState().get().getState().metadata();
+    assertNull(FieldRangesMetadata.get(metadata).index(metadata.index("new").getIndexUUID()));
+
+    int allShards = prepareFieldStats().setFields("timestamp").setLevel("indices").get().getTotalShards();
+    FieldStatsResponse result = prepareFieldStats().setFields("timestamp").setLevel("indices")
+        .setIndexContraints(new IndexConstraint("timestamp", MAX, GTE, "2024-06-01")).get();
+    // the old index is left out by its published range, without asking its shards
+    assertTrue(result.getTotalShards() < allShards);
+    assertEquals(1, result.getIndicesMergedFieldStats().size());
+    assertTrue(result.getIndicesMergedFieldStats().containsKey("new"));
+  }
+
+  public void testClosedIndex() throws Exception {
+    createIndex("archive", Settings.builder().put("index.number_of_shards", 2).build(), "test",
+        "timestamp", "type=date", "value", "type=long");
+    client().prepareIndex("archive").setId("1").setSource("timestamp", "2024-01-01", "value", 1).get();
+    client().prepareIndex("archive").setId("2").setSource("timestamp", "2024-02-01", "value", 2).get();
+    client().admin().indices().prepareRefresh().get();
+    client().admin().indices().prepareClose("archive").get();
+
+    // the primaries archive the stats of the configured fields while the index is closed
+    assertBusy(() -> {
+      IndexMetadata archive = client().admin().cluster().prepareState().get().getState().metadata().index("archive");
+      assertNotNull(ArchivedFieldStats.get(archive));
+    });
+
+    // closed indices are forbidden unless the request asks for them
+    expectThrows(IndexClosedException.class, () -> prepareFieldStats().setIndices("archive").setFields("timestamp")
+        .get());
+    IndicesOptions withClosed = FieldStatsRequest.allowClosedIndices(IndicesOptions.strictExpand());
+    FieldStatsResponse result = prepareFieldStats().setIndices("archive").setIndicesOptions(withClosed)
+        .setFields("timestamp").setLevel("indices").get();
+    FieldStats<?> timestamp = result.getIndicesMergedFieldStats().get("archive").get("timestamp");
+    assertEquals(2L, timestamp.getDocCount());
+    assertEquals(1706745600000L, timestamp.getMaxValue());
+    // patterns only match the archived fields
+    result = prepareFieldStats().setIndices("archive").setIndicesOptions(withClosed).setFields("*").get();
+    assertEquals(Collections.singleton("timestamp"), result.getAllFieldStats().keySet());
+    // while concrete fields that aren't archived, requested or constrained, need the shards
+    expectThrows(ClusterBlockException.class, () -> prepareFieldStats().setIndices("archive")
+        .setIndicesOptions(withClosed).setFields("value").get());
+    expectThrows(ClusterBlockException.class, () -> prepareFieldStats().setIndices("archive")
+        .setIndicesOptions(withClosed).setFields("timestamp").setLevel("indices")
+        .setIndexContraints(new IndexConstraint("value", MIN, GTE, "0")).get());
+    // and so are requests that need the shards, like before
+    expectThrows(ClusterBlockException.class, () -> prepareFieldStats().setIndices("archive")
+        .setIndicesOptions(withClosed).setFields("timestamp").setQuery(QueryBuilders.matchAllQuery()).get());
+
+    client().admin().indices().prepareOpen("archive").get();
+    ensureGreen("archive");
+    result = prepareFieldStats().setIndices("archive").setFields("value").get();
+    assertEquals(2L, result.getAllFieldStats().get("value").getDocCount());
+  }
+
+  public void testChangesSinceToken() {
+    createIndex("old", Settings.builder().put("index.refresh_interval", -1).build(), "test", "value", "type=long");
+    createIndex("new", Settings.EMPTY, "test", "value", "type=long");
+    createIndex("gone", Settings.EMPTY, "test", "value", "type=long");
+    client().prepareIndex("old").setId("1").setSource("value", 1).get();
+    client().prepareIndex("new").setId("1").setSource("value", 2).get();
+    client().admin().indices().prepareRefresh().get();
+    client().prepareIndex("old").setId("2").setSource("value", 3).get();
+    client().admin().indices().prepareUpdateSettings("old")
+        .setSettings(Settings.builder().put("index.blocks.write", true)).get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setLevel("indices").get();
+    assertEquals(3, result.getIndicesMergedFieldStats().size());
+    assertEquals(1L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxValue());
+    assertNotNull(result.getChangeToken());
+
+    // nothing changed, the blocked index only confirms that its reader is the same
+    result = prepareFieldStats().setFields("value").setLevel("indices").setSince(result.getChangeToken()).get();
+    assertEquals(3, result.getTotalShards());
+    assertTrue(result.getIndicesMergedFieldStats().isEmpty());
+    assertTrue(result.getRemovedIndices().isEmpty());
+
+    // the document indexed into the blocked index before the block shows up at the next refresh
+    client().prepareIndex("new").setId("2").setSource("value", 7).get();
+    client().admin().indices().prepareRefresh().get();
+    client().admin().indices().prepareDelete("gone").get();
+    result = prepareFieldStats().setFields("value").setLevel("indices").setSince(result.getChangeToken()).get();
+    assertEquals(new HashSet<>(Arrays.asList("new", "old")), result.getIndicesMergedFieldStats().keySet());
+    assertEquals(7L, result.getIndicesMergedFieldStats().get("new").get("value").getMaxValue());
+    assertEquals(3L, result.getIndicesMergedFieldStats().get("old").get("value").getMaxValue());
+    assertEquals(Collections.singletonList("gone"), result.getRemovedIndices());
+
+    result = prepareFieldStats().setFields("value").setLevel("indices").setSince(result.getChangeToken()).get();
+    assertTrue(result.getIndicesMergedFieldStats().isEmpty());
+    assertTrue(result.getRemovedIndices().isEmpty());
+
+    String token = result.getChangeToken();
+    expectThrows(ActionRequestValidationException.class, () -> prepareFieldStats().setFields("value")
+        .setSince(token).get());
+  }
+
+  public void testWaitForChange() throws Exception {
+    createIndex("test", Settings.builder().put("index.refresh_interval", -1).build(), "test", "value", "type=long");
+    client().prepareIndex("test").setId("1").setSource("value", 1).get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("value")
+        .setWaitForChange(TimeValue.timeValueMillis(200)).get();
+    assertFalse(result.isChanged());
+    assertEquals(1L, result.getAllFieldStats().get("value").getMaxValue());
+
+    RefreshWatcher watcher = getInstanceFromNode(RefreshWatcher.class);
+    PlainActionFuture<FieldStatsResponse> future = new PlainActionFuture<>();
+    prepareFieldStats().setFields("value").setWaitForChange(TimeValue.timeValueSeconds(30)).execute(future);
+    assertBusy(() -> assertEquals(1, watcher.size()));
+    // the request waits until the new document is refreshed
+    client().prepareIndex("test").setId("2").setSource("value", 5).get();
+    assertFalse(future.isDone());
+    client().admin().indices().prepareRefresh().get();
+    result = future.get(10, TimeUnit.SECONDS);
+    assertTrue(result.isChanged());
+    assertEquals(5L, result.getAllFieldStats().get("value").getMaxValue());
+    assertEquals(2L, result.getAllFieldStats().get("value").getDocCount());
+    assertBusy(() -> assertEquals(0, watcher.size()));
+  }
+
+  public void testPit() throws Exception {
+    createIndex("test", Settings.EMPTY, "test", "value", "type=long");
+    client().prepareIndex("test").setId("1").setSource("value", 1).get();
+    client().admin().indices().prepareRefresh().get();
+    CreatePitResponse pit = client().execute(CreatePitAction.INSTANCE,
+        new CreatePitRequest(TimeValue.timeValueMinutes(1), false, "test")).get();
+
+    // the stats of the pit don't see the documents indexed after it was created
+    client().prepareIndex("test").setId("2").setSource("value", 5).get();
+    client().admin().indices().prepareRefresh().get();
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setPit(pit.getId(), null).get();
+    assertEquals(0, result.getFailedShards());
+    assertEquals(1L, result.getAllFieldStats().get("value").getMaxValue());
+    assertEquals(1L, result.getAllFieldStats().get("value").getDocCount());
+    result = prepareFieldStats().setFields("value").get();
+    assertEquals(5L, result.getAllFieldStats().get("value").getMaxValue());
+
+    expectThrows(ActionRequestValidationException.class,
+        () -> prepareFieldStats().setIndices("test").setFields("value").setPit(pit.getId(), null).get());
+
+    client().execute(DeletePitAction.INSTANCE, new DeletePitRequest(pit.getId())).get();
+    result = prepareFieldStats().setFields("value").setPit(pit.getId(), null).get();
+    assertEquals(1, result.getFailedShards());
+  }
+
+  public void testRoutingAndPreference() {
+    createIndex("test", Settings.builder().put("index.number_of_shards", 2).build(), "test",
+        "value", "type=long");
+    client().prepareIndex("test").setId("1").setSource("value", 1).setRouting("a").get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("value").setRouting("a").get();
+    assertEquals(1, result.getTotalShards());
+    assertEquals(1L, result.getAllFieldStats().get("value").getDocCount());
+
+    result = prepareFieldStats().setFields("value").setPreference("_only_local").get();
+    assertEquals(2, result.getTotalShards());
+    assertEquals(1L, result.getAllFieldStats().get("value").getDocCount());
+  }
+
+  public void testRangeFields() throws IOException {
+    createIndex("test", Settings.EMPTY, "test",
+        "integer_range", "type=integer_range",
+        "double_range", "type=double_range",
+        "date_range", "type=date_range",
+        "ip_range", "type=ip_range");
+    client().prepareIndex("test").setSource(jsonBuilder().startObject()
+        .startObject("integer_range").field("gte", 5).field("lte", 10).endObject()
+        .startObject("double_range").field("gte", -1.5).field("lte", 2.5).endObject()
+        .startObject("date_range").field("gte", "2020-01-01").field("lte", "2020-01-31").endObject()
+        .startObject("ip_range").field("gte", "10.0.0.1").field("lte", "10.0.0.5").endObject()
+        .endObject()).get();
+    client().prepareIndex("test").setSource(jsonBuilder().startObject()
+        .startObject("integer_range").field("gte", -3).field("lte", 7).endObject()
+        .startObject("double_range").field("gte", 0.5).field("lte", 8.5).endObject()
+        .startObject("date_range").field("gte", "2019-06-01").field("lte", "2020-01-15").endObject()
+        .startObject("ip_range").field("gte", "10.0.0.3").field("lte", "10.0.1.0").endObject()
+        .endObject()).get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats()
+        .setFields("integer_range", "double_range", "date_range", "ip_range").get();
+    FieldStats<?> stats = result.getAllFieldStats().get("integer_range");
+    assertEquals("integer", stats.getDisplayType());
+    assertEquals(2L, stats.getDocCount());
+    assertEquals(-3L, stats.getMinValue());
+    assertEquals(10L, stats.getMaxValue());
+    stats = result.getAllFieldStats().get("double_range");
+    assertEquals("float", stats.getDisplayType());
+    assertEquals(-1.5d, stats.getMinValue());
+    assertEquals(8.5d, stats.getMaxValue());
+    stats = result.getAllFieldStats().get("date_range");
+    assertEquals("date", stats.getDisplayType());
+    assertEquals(new DateTime(2019, 6, 1, 0, 0, DateTimeZone.UTC).getMillis(), stats.getMinValue());
+    // the upper bound of a date range is rounded up to the last millisecond of the day
+    assertTrue((java.lang.Long) stats.getMaxValue() >= new DateTime(2020, 1, 31, 0, 0, DateTimeZone.UTC).getMillis());
+    stats = result.getAllFieldStats().get("ip_range");
+    assertEquals("ip", stats.getDisplayType());
+    assertEquals("10.0.0.1", stats.getMinValueAsString());
+    assertEquals("10.0.1.0", stats.getMaxValueAsString());
+  }
+
   private void testNumberRange(String fieldName, String fieldType, long min, long max) {
     createIndex("test", Settings.EMPTY, "test", fieldName, "type=" + fieldType);
     // index=false
@@ -293,6 +1150,61 @@ public class FieldStatsTests extends OpenSearchSingleNodeTestCase {
     assertEquals(stat.getDisplayType(), "integer");
   }
 
+  public void testMissing() {
+    List<FieldStats<?>> stats = new ArrayList<>();
+    stats.add(new FieldStats.Long(10, 4L, -1L, -1L, true, false, 1L, 1L));
+    stats.add(new FieldStats.Long(5, 5L, -1L, -1L, true, false, 1L, 1L));
+    FieldStats<?> stat = new FieldStats.Long(5, 0L, -1L, -1L, true, false);
+    for (FieldStats<?> otherStat : stats) {
+      stat.accumulate(otherStat);
+    }
+    assertEquals(stat.getMaxDoc(), 20L);
+    assertEquals(stat.getMissing(), 11L);
+    assertEquals(stat.getFractionalDensity(), 0.45d, 0.0001d);
+
+    stat.accumulate(new FieldStats.Date(1, -1L, -1L, -1L, true, false));
+    assertEquals(stat.getMissing(), -1L);
+    assertEquals(stat.getFractionalDensity(), -1d, 0d);
+  }
+
+  public void testMissingWithNestedDocs() throws IOException {
+    XContentBuilder mapping = jsonBuilder().startObject()
+        .startObject("properties")
+          .startObject("root").field("type", "long").endObject()
+          .startObject("nested").field("type", "nested")
+            .startObject("properties")
+              .startObject("value").field("type", "long").endObject()
+            .endObject()
+          .endObject()
+        .endObject()
+        .endObject();
+    createIndex("test", Settings.EMPTY, "_doc", mapping);
+    client().prepareIndex("test").setSource(jsonBuilder().startObject()
+        .field("root", 1L)
+        .startArray("nested")
+          .startObject().field("value", 1L).endObject()
+          .startObject().field("value", 2L).endObject()
+        .endArray()
+        .endObject()).get();
+    client().prepareIndex("test").setSource(jsonBuilder().startObject()
+        .startArray("nested")
+          .startObject().field("value", 3L).endObject()
+          .startObject().field("other", "x").endObject()
+        .endArray()
+        .endObject()).get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("root", "nested.value").get();
+    FieldStats<?> root = result.getAllFieldStats().get("root");
+    assertEquals(root.getDocCount(), 1L);
+    assertEquals(root.getMissing(), 1L);
+    assertEquals(root.getFractionalDensity(), 0.5d, 0d);
+    FieldStats<?> nested = result.getAllFieldStats().get("nested.value");
+    assertEquals(nested.getDocCount(), 3L);
+    assertEquals(nested.getMissing(), 1L);
+    assertEquals(nested.getFractionalDensity(), 0.75d, 0d);
+  }
+
   public void testNumberFiltering() {
     createIndex("test1", Settings.EMPTY, "test", "value", "type=long");
     client().prepareIndex("test1").setSource("value", 1L).get();
@@ -611,7 +1523,7 @@ public class FieldStatsTests extends OpenSearchSingleNodeTestCase {
    * creates a random field stats which does not guarantee that {@link FieldStats#maxValue} is greater than {@link FieldStats#minValue}
    **/
   public static FieldStats<?> randomFieldStats() throws UnknownHostException {
-    int type = randomInt(5);
+    int type = randomInt(8);
     switch (type) {
       case 0:
         if (randomBoolean()) {
@@ -665,6 +1577,32 @@ public class FieldStatsTests extends OpenSearchSingleNodeTestCase {
               randomNonNegativeLong(), randomBoolean(), randomBoolean(),
               InetAddress.getByName("1.2.3.4"), InetAddress.getByName("1.2.3.4"));
         }
+      case 6:
+        if (randomBoolean()) {
+          return new FieldStats.UnsignedLong(randomNonNegativeLong(), randomNonNegativeLong(), randomNonNegativeLong(),
+              randomNonNegativeLong(), randomBoolean(), randomBoolean());
+        } else {
+          return new FieldStats.UnsignedLong(randomNonNegativeLong(), randomNonNegativeLong(), randomNonNegativeLong(),
+              randomNonNegativeLong(), randomBoolean(), randomBoolean(),
+              BigInteger.valueOf(randomNonNegativeLong()), BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE));
+        }
+      case 7:
+        if (randomBoolean()) {
+          return new FieldStats.DateNanos(randomNonNegativeLong(), randomNonNegativeLong(), randomNonNegativeLong(),
+              randomNonNegativeLong(), randomBoolean(), randomBoolean());
+        } else {
+          return new FieldStats.DateNanos(randomNonNegativeLong(), randomNonNegativeLong(), randomNonNegativeLong(),
+              randomNonNegativeLong(), randomBoolean(), randomBoolean(),
+              DateFormatter.forPattern("strict_date_optional_time_nanos"), randomNonNegativeLong(), randomNonNegativeLong());
+        }
+      case 8:
+        if (randomBoolean()) {
+          return new FieldStats.Boolean(randomNonNegativeLong(), randomNonNegativeLong(), randomNonNegativeLong(),
+              randomNonNegativeLong(), randomBoolean(), randomBoolean());
+        } else {
+          return new FieldStats.Boolean(randomNonNegativeLong(), randomNonNegativeLong(), randomNonNegativeLong(),
+              randomNonNegativeLong(), randomBoolean(), randomBoolean(), randomBoolean(), randomBoolean());
+        }
       default:
         throw new IllegalArgumentException("Invalid type");
     }
@@ -687,6 +1625,65 @@ public class FieldStatsTests extends OpenSearchSingleNodeTestCase {
     assertEquals(stats.getDisplayType(), "geo_point");
   }
 
+  public void testGeopointMergeDoesNotAlias() {
+    org.opensearch.common.geo.GeoPoint min = new org.opensearch.common.geo.GeoPoint(10, 10);
+    org.opensearch.common.geo.GeoPoint max = new org.opensearch.common.geo.GeoPoint(20, 20);
+    FieldStats.GeoPoint merged = new FieldStats.GeoPoint(1, 1, -1, 1, true, false);
+    merged.accumulate(new FieldStats.GeoPoint(1, 1, -1, 1, true, false, min, max));
+    merged.accumulate(new FieldStats.GeoPoint(1, 1, -1, 1, true, false,
+        new org.opensearch.common.geo.GeoPoint(-5, 0), new org.opensearch.common.geo.GeoPoint(30, 40)));
+    assertEquals(new org.opensearch.common.geo.GeoPoint(-5, 0), merged.getMinValue());
+    assertEquals(new org.opensearch.common.geo.GeoPoint(30, 40), merged.getMaxValue());
+    assertEquals(new org.opensearch.common.geo.GeoPoint(10, 10), min);
+    assertEquals(new org.opensearch.common.geo.GeoPoint(20, 20), max);
+  }
+
+  public void testGeoSummary() {
+    createIndex("test", Settings.EMPTY, "test", "location", "type=geo_point");
+    for (String point : new String[] {"10,170", "20,-170", "-5,175"}) {
+      client().prepareIndex("test").setSource("location", point).get();
+    }
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("location").setStats(GeoSummary.NAME).get();
+    GeoSummary summary = ((FieldStats.GeoPoint) result.getAllFieldStats().get("location")).getGeoSummary();
+    assertNotNull(summary);
+    assertEquals(3, summary.getCount());
+    assertEquals(20, summary.getTop(), 1e-6);
+    assertEquals(-5, summary.getBottom(), 1e-6);
+    // the box wraps around the dateline rather than spanning the whole world
+    assertEquals(170, summary.getLeft(), 1e-6);
+    assertEquals(-170, summary.getRight(), 1e-6);
+    assertEquals(25d / 3, summary.getCentroidLat(), 1e-6);
+    assertEquals(3, summary.getTiles().size());
+    assertEquals(Long.valueOf(1), summary.getTiles().get("3/7/3"));
+    assertEquals(Long.valueOf(1), summary.getTiles().get("3/7/4"));
+    assertEquals(Long.valueOf(1), summary.getTiles().get("3/0/3"));
+
+    result = prepareFieldStats().setFields("location").get();
+    assertNull(((FieldStats.GeoPoint) result.getAllFieldStats().get("location")).getGeoSummary());
+  }
+
+  public void testGeoShape() {
+    createIndex("test", Settings.EMPTY, "test", "shape", "type=geo_shape");
+    client().prepareIndex("test").setSource("shape", "BBOX (-10, 10, 20, -20)").get();
+    client().prepareIndex("test").setSource("shape", "POINT (30 5)").get();
+    client().admin().indices().prepareRefresh().get();
+
+    FieldStatsResponse result = prepareFieldStats().setFields("shape").setStats(GeoSummary.NAME).get();
+    FieldStats.GeoShape stats = (FieldStats.GeoShape) result.getAllFieldStats().get("shape");
+    assertEquals("geo_shape", stats.getDisplayType());
+    assertEquals(2L, stats.getDocCount());
+    assertEquals(-20, stats.getMinValue().lat(), 1e-6);
+    assertEquals(-10, stats.getMinValue().lon(), 1e-6);
+    assertEquals(20, stats.getMaxValue().lat(), 1e-6);
+    assertEquals(30, stats.getMaxValue().lon(), 1e-6);
+    GeoSummary summary = stats.getGeoSummary();
+    assertEquals(20, summary.getTop(), 1e-6);
+    assertEquals(-10, summary.getLeft(), 1e-6);
+    assertEquals(30, summary.getRight(), 1e-6);
+  }
+
   private void assertSerialization(FieldStats<?> stats) throws IOException {
     BytesStreamOutput output = new BytesStreamOutput();
     stats.writeTo(output);